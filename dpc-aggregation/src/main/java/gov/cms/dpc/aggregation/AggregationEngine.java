@@ -1,102 +1,743 @@
 package gov.cms.dpc.aggregation;
 
-import ca.uhn.fhir.context.FhirContext;
-import ca.uhn.fhir.parser.IParser;
-import gov.cms.dpc.aggregation.bbclient.BlueButtonClient;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.typesafe.config.Config;
+import gov.cms.dpc.aggregation.bbclient.AsyncBlueButtonClient;
+import gov.cms.dpc.aggregation.bbclient.BlueButtonClientException;
+import gov.cms.dpc.aggregation.bbclient.ResourceEncoding;
 import gov.cms.dpc.common.annotations.ExportPath;
-import gov.cms.dpc.common.interfaces.AttributionEngine;
+import gov.cms.dpc.common.models.ExportCompression;
 import gov.cms.dpc.common.models.JobModel;
+import gov.cms.dpc.common.models.ResourceType;
+import gov.cms.dpc.queue.JobOutput;
+import gov.cms.dpc.queue.JobProgress;
 import gov.cms.dpc.queue.JobQueue;
 import gov.cms.dpc.queue.JobStatus;
+import gov.cms.dpc.queue.ClaimedJob;
 import gov.cms.dpc.queue.Pair;
+import org.hl7.fhir.dstu3.model.OperationOutcome;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.inject.Inject;
-import java.io.FileOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
-import java.util.Optional;
-import java.util.Set;
-import java.util.UUID;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
+import java.util.stream.Collectors;
 
+/**
+ * Claims export jobs from the {@link JobQueue} and writes the Blue Button data for each of their beneficiaries.
+ * <p>
+ * The engine is shared by every worker thread of the {@link WorkerPool}, each of which runs the claim loop in {@link AggregationEngine#run()}.
+ * Stopping the engine wakes up any workers waiting for a job, while workers in the middle of a job finish it first.
+ * <p>
+ * Within a job, beneficiaries are requested in batches of aggregation.fetch.batchSize, once for each of the job's {@link ResourceType}s, with up to aggregation.fetch.parallelism requests in flight at once.
+ * Requests are made with the {@link AsyncBlueButtonClient}, so they don't each tie up a thread while they wait on the server.
+ * Each resource type is written to its own file, and requests for the different types are interleaved, so the files are all written side by side, rather than one after the other.
+ * Beneficiaries are requested in sorted order and written in that same order, so the same roster always produces the same files.
+ * Resources are written exactly as the client encoded them, so beneficiaries the client has cached are copied into the export without being parsed.
+ * Each file is written through a buffer of aggregation.export.bufferSize, so most resources are a copy into the buffer, rather than a system call.
+ * Files are split into parts of at most aggregation.export.maxResourcesPerFile resources and aggregation.export.maxFileSize bytes, so clients can download them in parallel.
+ * They're optionally gzip compressed, depending on aggregation.export.compression.
+ * The rate resources are written at, and the rate the workers allocate memory at while writing them, are reported as metrics.
+ * <p>
+ * Beneficiaries whose resources can't be fetched are requested again, up to aggregation.fetch.retry.maxAttempts times in all, waiting longer after each attempt.
+ * Requests go through a {@link CircuitBreaker}, shared by every worker, so while Blue Button is down, they fail straight away, and retries wait for it to come back.
+ * A beneficiary which still can't be fetched fails the job, is left out of the export, or is reported in the job's error file, depending on the {@link FailurePolicy}.
+ * <p>
+ * The job's lease is renewed while we wait on requests, but only while they're making progress.
+ * A batch which goes aggregation.fetch.stallTimeout without any of its requests completing is cancelled, and the job goes straight back to the queue, or fails, once it's used up queue.lease.maxRetries.
+ */
 public class AggregationEngine implements Runnable {
 
     private static final Logger logger = LoggerFactory.getLogger(AggregationEngine.class);
-    private static final char delim = '\n';
+    // How long to block waiting for a job, before checking whether we've been asked to stop
+    private static final Duration JOB_WAIT = Duration.ofSeconds(5);
+    // How often to report job progress to the queue
+    private static final Duration PROGRESS_INTERVAL = Duration.ofSeconds(1);
 
-    private final AttributionEngine engine;
     private final JobQueue queue;
-    private final BlueButtonClient bbclient;
-    private final FhirContext context;
+    private final AsyncBlueButtonClient bbclient;
     private final String exportPath;
+    // Renew the job lease well before it expires, so a slow request doesn't cost us the job
+    private final Duration leaseRenewal;
+    private final int maxRetries;
+    private final MetricRegistry registry;
+    // Workers which are waiting on the queue, rather than working a job, guarded by itself
+    private final Set<Thread> idleWorkers;
+    private final AtomicInteger busyWorkers;
+    private final int fetchParallelism;
+    private final int batchSize;
+    private final FailurePolicy failurePolicy;
+    private final int maxAttempts;
+    private final Duration initialBackoff;
+    private final Duration maxBackoff;
+    private final Duration stallTimeout;
+    private final CircuitBreaker circuitBreaker;
+    private final int writeBufferSize;
+    private final long maxResourcesPerFile;
+    private final long maxFileSize;
+    private final ExportCompression compression;
+    // Write buffers which aren't in use, so each job doesn't have to allocate its own
+    private final Queue<ByteBuffer> writeBuffers;
+    private final Meter bytesWritten;
+    private final Meter resourcesWritten;
+    private final Meter allocatedBytes;
+    private final Meter retries;
     private volatile boolean run = true;
 
+    /**
+     * What to do when a beneficiary can't be fetched from Blue Button
+     */
+    public enum FailurePolicy {
+        /**
+         * Stop working the job and mark it as {@link JobStatus#FAILED}
+         */
+        FAIL_JOB,
+        /**
+         * Leave the beneficiary out of the export, and carry on with the rest of the job
+         */
+        SKIP,
+        /**
+         * Write an OperationOutcome for the beneficiary to the job's error file, and carry on with the rest of the job
+         */
+        REPORT
+    }
+
     @Inject
-    public AggregationEngine(AttributionEngine engine, JobQueue queue, BlueButtonClient bbclient,  @ExportPath String exportPath) {
-        this.engine = engine;
+    public AggregationEngine(JobQueue queue, AsyncBlueButtonClient bbclient, @ExportPath String exportPath, Config config, MetricRegistry registry) {
         this.queue = queue;
         this.bbclient = bbclient;
-        this.context = FhirContext.forDstu3();
         this.exportPath = exportPath;
+        this.leaseRenewal = config.getDuration("queue.lease.duration").dividedBy(3);
+        this.maxRetries = config.getInt("queue.lease.maxRetries");
+        this.registry = registry;
+        this.idleWorkers = new HashSet<>();
+        this.busyWorkers = new AtomicInteger();
+        this.fetchParallelism = config.getInt("aggregation.fetch.parallelism");
+        this.batchSize = config.getInt("aggregation.fetch.batchSize");
+        this.failurePolicy = config.getEnum(FailurePolicy.class, "aggregation.fetch.onFailure");
+        this.maxAttempts = Math.max(1, config.getInt("aggregation.fetch.retry.maxAttempts"));
+        this.initialBackoff = config.getDuration("aggregation.fetch.retry.initialBackoff");
+        this.maxBackoff = config.getDuration("aggregation.fetch.retry.maxBackoff");
+        this.stallTimeout = config.getDuration("aggregation.fetch.stallTimeout");
+        this.circuitBreaker = new CircuitBreaker(config.getConfig("aggregation.fetch.circuitBreaker"));
+        this.writeBufferSize = Math.toIntExact(config.getBytes("aggregation.export.bufferSize"));
+        this.maxResourcesPerFile = config.getLong("aggregation.export.maxResourcesPerFile");
+        this.maxFileSize = config.getBytes("aggregation.export.maxFileSize");
+        this.compression = config.getEnum(ExportCompression.class, "aggregation.export.compression");
+        this.writeBuffers = new ConcurrentLinkedQueue<>();
+        this.bytesWritten = registry.meter(MetricRegistry.name(AggregationEngine.class, "export", "bytes"));
+        this.resourcesWritten = registry.meter(MetricRegistry.name(AggregationEngine.class, "export", "resources"));
+        this.allocatedBytes = registry.meter(MetricRegistry.name(AggregationEngine.class, "export", "allocatedBytes"));
+        this.retries = registry.meter(MetricRegistry.name(AggregationEngine.class, "fetch", "retries"));
+        registry.gauge(MetricRegistry.name(AggregationEngine.class, "fetch", "circuitBreakerOpen"), () -> (Gauge<Boolean>) this.circuitBreaker::isOpen);
     }
 
     @Override
     public void run() {
+        final String worker = Thread.currentThread().getName();
+        final Timer jobTimer = this.registry.timer(MetricRegistry.name(AggregationEngine.class, "workers", worker, "jobs"));
+        final Meter failures = this.registry.meter(MetricRegistry.name(AggregationEngine.class, "workers", worker, "failures"));
 
-        while (run) {
-            final Optional<Pair<UUID, Object>> workPair = this.queue.workJob();
+        while (startWaiting()) {
+            final Optional<ClaimedJob<Object>> workPair;
+            try {
+                workPair = this.queue.workJob(JOB_WAIT);
+            } catch (InterruptedException e) {
+                logger.debug("Interrupted while waiting for job");
+                break;
+            } finally {
+                stopWaiting();
+            }
             if (workPair.isEmpty()) {
-                try {
-                    logger.debug("No job, waiting 2 seconds");
-                    Thread.sleep(2000);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+                logger.debug("No job after waiting {}", JOB_WAIT);
+                continue;
+            }
+
+            this.busyWorkers.incrementAndGet();
+            try (final Timer.Context timer = jobTimer.time()) {
+                if (!processJob(workPair.get().getLeft(), workPair.get().getAttempt(), (JobModel) workPair.get().getRight())) {
+                    failures.mark();
                 }
+            } finally {
+                this.busyWorkers.decrementAndGet();
+            }
+        }
+        logger.info("Shutting down aggregation worker {}", worker);
+    }
+
+    /**
+     * Stop claiming jobs.
+     * Workers which are waiting for a job return immediately, workers which are working a job return once they've finished it.
+     */
+    public void stop() {
+        synchronized (this.idleWorkers) {
+            this.run = false;
+            this.idleWorkers.forEach(Thread::interrupt);
+        }
+    }
+
+    /**
+     * Number of workers currently working a job
+     *
+     * @return - number of busy workers
+     */
+    public int getBusyWorkers() {
+        return this.busyWorkers.get();
+    }
+
+    /**
+     * Work a single job and record its outcome in the queue
+     *
+     * @return - {@code false} the job failed
+     */
+    private boolean processJob(UUID jobID, int attempt, JobModel model) {
+        logger.debug("Has job {}. Working.", jobID);
+        if (model.getBeneficiaries().isEmpty()) {
+            logger.error("Cannot execute Job {} with no beneficiaries", jobID);
+            this.queue.completeJob(jobID, attempt, JobStatus.FAILED);
+            return false;
+        }
+
+        logger.debug("Has {} attributed beneficiaries", model.getBeneficiaries().size());
+        try {
+            final List<JobOutput> output = this.workJob(jobID, attempt, model);
+            // If our lease has lapsed in the meantime, the job belongs to another worker, so our outcome is dropped
+            return this.queue.completeJob(jobID, attempt, JobStatus.COMPLETED, output);
+        } catch (LeaseExpiredException e) {
+            // The job has already been handed back to the queue, so we leave its status alone
+            logger.warn("Lease expired for job {}, abandoning it", jobID);
+            return false;
+        } catch (FetchStalledException e) {
+            // Hand the job back now, rather than leaving it until the lease lapses, counting the attempt the same way the queue does for an expired lease
+            if (attempt > this.maxRetries) {
+                logger.error("Requests for job {} have stopped making progress, failing it after {} attempts", jobID, attempt);
+                this.queue.completeJob(jobID, attempt, JobStatus.FAILED);
             } else {
-                final JobModel model = (JobModel) workPair.get().getRight();
-                final UUID jobID = workPair.get().getLeft();
-                logger.debug("Has job {}. Working.", jobID);
-                final Optional<Set<String>> attributedBeneficiaries = this.engine.getAttributedBeneficiaries(model.getProviderID());
-                if (attributedBeneficiaries.isPresent()) {
-                    logger.debug("Has {} attributed beneficiaries", attributedBeneficiaries.get().size());
-                    try {
-                        this.workJob(jobID, model);
-                        this.queue.completeJob(jobID, JobStatus.COMPLETED);
-                    } catch (Exception e) {
-                        logger.error("Cannot process job {}", jobID, e);
-                        this.queue.completeJob(jobID, JobStatus.FAILED);
+                logger.error("Requests for job {} have stopped making progress, returning it to the queue after {} attempts", jobID, attempt);
+                this.queue.completeJob(jobID, attempt, JobStatus.QUEUED);
+            }
+            return false;
+        } catch (WorkerInterruptedException | ClosedByInterruptException e) {
+            // We're being shut down without enough time to finish, so let another worker start the job over.
+            // An interrupt during a write closes the export file, rather than being picked up by our own checks.
+            logger.warn("Interrupted while working job {}, returning it to the queue", jobID);
+            requeue(jobID, attempt);
+            return false;
+        } catch (Exception e) {
+            if (Thread.currentThread().isInterrupted()) {
+                logger.warn("Interrupted while working job {}, returning it to the queue", jobID, e);
+                requeue(jobID, attempt);
+                return false;
+            }
+            logger.error("Cannot process job {}", jobID, e);
+            this.queue.completeJob(jobID, attempt, JobStatus.FAILED);
+            return false;
+        }
+    }
+
+    /**
+     * Return an interrupted job to the queue.
+     * The interrupt is held back while we do, so it can't break the queue's own I/O, and then restored.
+     */
+    private void requeue(UUID jobID, int attempt) {
+        final boolean interrupted = Thread.interrupted();
+        try {
+            this.queue.completeJob(jobID, attempt, JobStatus.QUEUED);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Mark the current worker as waiting for a job, so it can be woken up by {@link AggregationEngine#stop()}
+     *
+     * @return - {@code false} the engine has been stopped and the worker should return
+     */
+    private boolean startWaiting() {
+        synchronized (this.idleWorkers) {
+            if (!this.run) {
+                return false;
+            }
+            this.idleWorkers.add(Thread.currentThread());
+            return true;
+        }
+    }
+
+    private void stopWaiting() {
+        synchronized (this.idleWorkers) {
+            this.idleWorkers.remove(Thread.currentThread());
+        }
+        // A stop which raced with claiming a job shouldn't abort it, so drop the interrupt and let the job finish
+        Thread.interrupted();
+    }
+
+    /**
+     * Write the export files of a job
+     *
+     * @return - {@link List} of {@link JobOutput} for each part of each file, to report when the job is completed
+     */
+    private List<JobOutput> workJob(UUID jobID, int attempt, JobModel job) throws IOException {
+        final LeaseRenewer lease = new LeaseRenewer(jobID, attempt);
+        final List<ResourceType> resourceTypes = job.getResourceTypes();
+        final ProgressTracker progress = new ProgressTracker(jobID, job.getBeneficiaries().size() * resourceTypes.size());
+        final OffsetDateTime since = job.getSince().orElse(null);
+        // Each batch is requested once for every resource type
+        final Iterator<Pair<ResourceType, List<String>>> requests = batchBeneficiaries(job.getBeneficiaries())
+                .stream()
+                .flatMap(batch -> resourceTypes.stream().map(resourceType -> new Pair<>(resourceType, batch)))
+                .iterator();
+        // Requests which have been started, in the order their results need to be written
+        final Deque<Fetch> inFlight = new ArrayDeque<>(this.fetchParallelism);
+        final ExportFiles files = new ExportFiles(jobID, resourceTypes);
+        try (files) {
+            while (requests.hasNext() || !inFlight.isEmpty()) {
+                while (requests.hasNext() && inFlight.size() < this.fetchParallelism) {
+                    final Pair<ResourceType, List<String>> request = requests.next();
+                    inFlight.addLast(new Fetch(request.getLeft(), request.getRight(), since));
+                }
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new WorkerInterruptedException();
+                }
+                lease.renew();
+
+                final Fetch next = inFlight.removeFirst();
+                awaitFetch(next, lease);
+                final ResourceWriter writer = files.get(next.resourceType);
+                for (final String beneficiaryID : next.batch) {
+                    final List<byte[]> beneficiaryResources = next.resources.get(beneficiaryID);
+                    if (beneficiaryResources == null) {
+                        beneficiaryFailed(jobID, next.resourceType, beneficiaryID, next.errors.get(beneficiaryID), files, progress);
+                        continue;
                     }
-                } else {
-                    logger.error("Cannot execute Job {} with no beneficiaries", jobID);
-                    this.queue.completeJob(jobID, JobStatus.FAILED);
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("Writing {} {} resources for beneficiary {} to file", beneficiaryResources.size(), next.resourceType.getFhirName(), beneficiaryID);
+                    }
+                    long bytes = 0;
+                    for (final byte[] resource : beneficiaryResources) {
+                        bytes += writer.write(resource);
+                    }
+                    this.resourcesWritten.mark(beneficiaryResources.size());
+                    this.bytesWritten.mark(bytes);
+                    progress.fetched(bytes);
                 }
             }
+            files.flush();
+        } finally {
+            // If the job is abandoned part way through, there's no point finishing the outstanding requests
+            inFlight.forEach(fetch -> fetch.done.cancel(true));
+            progress.report();
         }
-        logger.info("Shutting down aggregation engine");
+        return files.output();
     }
 
-    public void stop() {
-        this.run = false;
-    }
-
-    private void workJob(UUID jobID, JobModel job) throws IOException {
-        final IParser parser = context.newJsonParser();
-        try (final FileOutputStream writer = new FileOutputStream(String.format("%s/%s.ndjson", exportPath, jobID.toString()))) {
-            job.getBeneficiaries()
-                    .stream()
-                    .map(this.bbclient::requestFHIRFromServer)
-                    .map(parser::encodeResourceToString)
-                    .forEach(str -> {
-                        try {
-                            logger.debug("Writing {} to file", str);
-                            writer.write(str.getBytes(StandardCharsets.UTF_8));
-                            writer.write(delim);
-                        } catch (IOException e) {
-                            throw new RuntimeException(e);
+    /**
+     * Split the beneficiaries into sorted batches of at most aggregation.fetch.batchSize
+     */
+    private List<List<String>> batchBeneficiaries(Set<String> beneficiaries) {
+        final List<String> sorted = beneficiaries.stream().sorted().collect(Collectors.toList());
+        final List<List<String>> batches = new ArrayList<>();
+        for (int i = 0; i < sorted.size(); i += this.batchSize) {
+            batches.add(sorted.subList(i, Math.min(i + this.batchSize, sorted.size())));
+        }
+        return batches;
+    }
+
+    /**
+     * Wait for a batch of beneficiaries' resources to be fetched, including any retries, renewing the job lease while we wait, since retries can take a while.
+     * If none of the batch's requests complete within aggregation.fetch.stallTimeout, the batch is cancelled, rather than holding on to the job indefinitely.
+     */
+    private void awaitFetch(Fetch fetch, LeaseRenewer lease) {
+        while (true) {
+            try {
+                fetch.done.get(leaseRenewal.toNanos(), TimeUnit.NANOSECONDS);
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new WorkerInterruptedException();
+            } catch (ExecutionException e) {
+                // Failed requests are recorded against each beneficiary, so this only happens if the retries themselves went wrong
+                throw new BlueButtonClientException(String.format("Unable to fetch %s resources for %d beneficiaries, starting with %s",
+                        fetch.resourceType.getFhirName(), fetch.batch.size(), fetch.batch.get(0)), e.getCause());
+            } catch (TimeoutException e) {
+                if (System.nanoTime() - fetch.lastProgress > this.stallTimeout.toNanos()) {
+                    logger.warn("No {} resources fetched for {} beneficiaries, starting with {}, in {}, giving up on them",
+                            fetch.resourceType.getFhirName(), fetch.batch.size(), fetch.batch.get(0), this.stallTimeout);
+                    fetch.done.cancel(true);
+                    throw new FetchStalledException();
+                }
+                lease.renew();
+            }
+        }
+    }
+
+    /**
+     * Apply the {@link FailurePolicy} to a beneficiary whose resources couldn't be fetched
+     */
+    private void beneficiaryFailed(UUID jobID, ResourceType resourceType, String beneficiaryID, String reason, ExportFiles files, ProgressTracker progress) throws IOException {
+        progress.failed();
+        switch (this.failurePolicy) {
+            case SKIP:
+                logger.warn("Unable to fetch {} resources for beneficiary {} for job {}, leaving them out of the export: {}", resourceType.getFhirName(), beneficiaryID, jobID, reason);
+                return;
+            case REPORT:
+                logger.warn("Unable to fetch {} resources for beneficiary {} for job {}, reporting them in the error file: {}", resourceType.getFhirName(), beneficiaryID, jobID, reason);
+                files.errors().write(ResourceEncoding.encode(operationOutcome(resourceType, beneficiaryID, reason)));
+                return;
+            default:
+                throw new BlueButtonClientException(String.format("Unable to fetch %s resources for beneficiary %s", resourceType.getFhirName(), beneficiaryID),
+                        new IllegalStateException(reason));
+        }
+    }
+
+    private static OperationOutcome operationOutcome(ResourceType resourceType, String beneficiaryID, String reason) {
+        final OperationOutcome outcome = new OperationOutcome();
+        outcome.addIssue()
+                .setSeverity(OperationOutcome.IssueSeverity.ERROR)
+                .setCode(OperationOutcome.IssueType.EXCEPTION)
+                .setDiagnostics(String.format("Unable to fetch %s resources for beneficiary %s: %s", resourceType.getFhirName(), beneficiaryID, reason));
+        return outcome;
+    }
+
+    /**
+     * Wait before the given retry, doubling each time, up to aggregation.fetch.retry.maxBackoff.
+     * The wait is jittered, so the retries of requests which failed together don't all go at once.
+     * While the {@link CircuitBreaker} is open, retries wait for it to let requests through again.
+     *
+     * @param attempt - the attempt which failed, starting at 1
+     * @return - {@link Duration} to wait
+     */
+    private Duration retryBackoff(int attempt) {
+        final long backoff = Math.min(this.maxBackoff.toNanos(), this.initialBackoff.toNanos() << Math.min(attempt - 1, 30));
+        final long jittered = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+        return Duration.ofNanos(Math.max(jittered, this.circuitBreaker.remainingOpen().toNanos()));
+    }
+
+    /**
+     * A request for the resources of a batch of beneficiaries, which hasn't been written yet.
+     * Beneficiaries which can't be fetched are retried on their own, until they've been fetched, or they've run out of attempts.
+     * The resources and errors are only complete once {@link #done} has completed, after which the worker can read them.
+     */
+    private class Fetch {
+
+        private final ResourceType resourceType;
+        private final List<String> batch;
+        private final OffsetDateTime since;
+        // Only written by one attempt at a time, before it hands over to the next one, or completes done
+        private final Map<String, List<byte[]>> resources = new HashMap<>();
+        // Why each beneficiary which couldn't be fetched failed, as of its last attempt
+        private final Map<String, String> errors = new HashMap<>();
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+        // When the last attempt completed, or the fetch started, so a hung request can be told apart from a slow batch of retries
+        private volatile long lastProgress = System.nanoTime();
+
+        Fetch(ResourceType resourceType, List<String> batch, OffsetDateTime since) {
+            this.resourceType = resourceType;
+            this.batch = batch;
+            this.since = since;
+            attempt(batch, 1);
+        }
+
+        private void attempt(List<String> beneficiaryIDs, int attempt) {
+            request(beneficiaryIDs).whenComplete((fetched, error) -> {
+                this.lastProgress = System.nanoTime();
+                try {
+                    final List<String> failed = new ArrayList<>();
+                    for (final String beneficiaryID : beneficiaryIDs) {
+                        if (error == null && fetched.containsKey(beneficiaryID)) {
+                            this.resources.put(beneficiaryID, fetched.get(beneficiaryID));
+                            this.errors.remove(beneficiaryID);
+                        } else {
+                            failed.add(beneficiaryID);
+                            this.errors.put(beneficiaryID, error == null ? "Beneficiary was not returned by Blue Button" : describe(error));
                         }
-                    });
-            writer.flush();
+                    }
+                    // Once the job has given up on the batch, there's no point retrying it
+                    if (failed.isEmpty() || attempt >= maxAttempts || this.done.isDone()) {
+                        this.done.complete(null);
+                        return;
+                    }
+                    final Duration backoff = retryBackoff(attempt);
+                    logger.debug("Retrying {} resources for {} beneficiaries in {}", this.resourceType.getFhirName(), failed.size(), backoff);
+                    retries.mark(failed.size());
+                    CompletableFuture.delayedExecutor(backoff.toNanos(), TimeUnit.NANOSECONDS).execute(() -> attempt(failed, attempt + 1));
+                } catch (RuntimeException e) {
+                    this.done.completeExceptionally(e);
+                }
+            });
+        }
+
+        private CompletableFuture<Map<String, List<byte[]>>> request(List<String> beneficiaryIDs) {
+            final long permit = circuitBreaker.tryAcquire();
+            if (permit == CircuitBreaker.NO_PERMIT) {
+                return CompletableFuture.failedFuture(new BlueButtonClientException("Not sending request, since Blue Button is unavailable",
+                        new IllegalStateException("Circuit breaker is open")));
+            }
+            final CompletableFuture<Map<String, List<byte[]>>> request;
+            try {
+                request = bbclient.requestEncodedResourcesAsync(this.resourceType, beneficiaryIDs, this.since);
+            } catch (RuntimeException e) {
+                circuitBreaker.failure(permit);
+                return CompletableFuture.failedFuture(e);
+            }
+            return request.whenComplete((fetched, error) -> {
+                if (error == null) {
+                    circuitBreaker.success(permit);
+                } else {
+                    circuitBreaker.failure(permit);
+                }
+            });
         }
     }
+
+    /**
+     * Describe why a request failed, from the innermost exception which has a message
+     */
+    private static String describe(Throwable error) {
+        Throwable current = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        String description = current.toString();
+        while (current.getCause() != null && current.getCause() != current) {
+            current = current.getCause();
+            if (current.getMessage() != null) {
+                description = String.format("%s (%s)", description, current.getMessage());
+            }
+        }
+        return description;
+    }
+
+    /**
+     * The export files of the job being worked, one series of parts for each resource type, which are all written to side by side.
+     * Each file is written through one of the engine's write buffers, which is handed back once the file is closed.
+     */
+    private class ExportFiles implements Closeable {
+
+        private final UUID jobID;
+        private final Map<ResourceType, ResourceWriter> files = new EnumMap<>(ResourceType.class);
+        private final List<ByteBuffer> buffers = new ArrayList<>();
+        // Only created once something fails, so jobs without errors don't have an error file
+        private ResourceWriter errors;
+
+        ExportFiles(UUID jobID, List<ResourceType> resourceTypes) throws IOException {
+            this.jobID = jobID;
+            try {
+                for (final ResourceType resourceType : resourceTypes) {
+                    final ByteBuffer buffer = acquireBuffer();
+                    this.buffers.add(buffer);
+                    this.files.put(resourceType, new ResourceWriter(part -> Paths.get(exportPath, JobModel.outputFileName(jobID, resourceType, part) + compression.getExtension()),
+                            buffer, maxResourcesPerFile, maxFileSize, compression));
+                }
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        ResourceWriter get(ResourceType resourceType) {
+            return this.files.get(resourceType);
+        }
+
+        /**
+         * Get the error file, creating it, if this is the first error
+         */
+        ResourceWriter errors() throws IOException {
+            if (this.errors == null) {
+                final ByteBuffer buffer = acquireBuffer();
+                this.buffers.add(buffer);
+                this.errors = new ResourceWriter(part -> Paths.get(exportPath, JobModel.errorFileName(this.jobID, part) + compression.getExtension()),
+                        buffer, maxResourcesPerFile, maxFileSize, compression);
+            }
+            return this.errors;
+        }
+
+        /**
+         * Each part of each file, as it was written, which is only complete once the files have been closed
+         */
+        List<JobOutput> output() {
+            final List<JobOutput> output = new ArrayList<>();
+            this.files.forEach((resourceType, file) -> addParts(output, resourceType.getFhirName(), part -> JobModel.outputFileName(this.jobID, resourceType, part), file));
+            if (this.errors != null) {
+                addParts(output, JobModel.ERROR_RESOURCE_TYPE, part -> JobModel.errorFileName(this.jobID, part), this.errors);
+            }
+            return output;
+        }
+
+        void flush() throws IOException {
+            for (final ResourceWriter file : allFiles()) {
+                file.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            // Close every file, even if one of them fails
+            IOException error = null;
+            for (final ResourceWriter file : allFiles()) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    if (error == null) {
+                        error = e;
+                    } else {
+                        error.addSuppressed(e);
+                    }
+                }
+            }
+            this.buffers.forEach(writeBuffers::offer);
+            if (error != null) {
+                throw error;
+            }
+        }
+
+        private void addParts(List<JobOutput> output, String resourceType, IntFunction<String> fileNames, ResourceWriter file) {
+            final List<Long> counts = file.getPartCounts();
+            for (int part = 0; part < counts.size(); part++) {
+                output.add(new JobOutput(resourceType, fileNames.apply(part), compression, counts.get(part)));
+            }
+        }
+
+        private List<ResourceWriter> allFiles() {
+            final List<ResourceWriter> all = new ArrayList<>(this.files.values());
+            if (this.errors != null) {
+                all.add(this.errors);
+            }
+            return all;
+        }
+    }
+
+    /**
+     * Take a write buffer from the pool, or allocate a new one if they're all in use.
+     * Uncompressed files are written straight from the buffer, so it's direct, and the file channel doesn't have to copy it first.
+     * Compressed files are compressed from an array, so the buffer is on the heap.
+     */
+    private ByteBuffer acquireBuffer() {
+        final ByteBuffer buffer = this.writeBuffers.poll();
+        if (buffer != null) {
+            return buffer;
+        }
+        return this.compression == ExportCompression.NONE ? ByteBuffer.allocateDirect(this.writeBufferSize) : ByteBuffer.allocate(this.writeBufferSize);
+    }
+
+    /**
+     * Renews the lease on the job being worked, while we make progress on it.
+     * If the worker gets stuck (e.g. on a hung request), the lease stops being renewed and the job is eventually handed to another worker.
+     */
+    private class LeaseRenewer {
+
+        private final UUID jobID;
+        private final int attempt;
+        private long nextRenewal;
+
+        LeaseRenewer(UUID jobID, int attempt) {
+            this.jobID = jobID;
+            this.attempt = attempt;
+            this.nextRenewal = System.nanoTime() + leaseRenewal.toNanos();
+        }
+
+        void renew() {
+            if (System.nanoTime() < this.nextRenewal) {
+                return;
+            }
+            if (!queue.renewLease(this.jobID, this.attempt)) {
+                throw new LeaseExpiredException();
+            }
+            this.nextRenewal = System.nanoTime() + leaseRenewal.toNanos();
+        }
+    }
+
+    /**
+     * Counts the fetches processed for the job being worked, one for each resource type of each beneficiary, and periodically reports them to the queue.
+     */
+    private class ProgressTracker {
+
+        private final UUID jobID;
+        private final int total;
+        private final AtomicInteger fetched = new AtomicInteger();
+        private final AtomicInteger failed = new AtomicInteger();
+        private final AtomicLong bytesWritten = new AtomicLong();
+        private long nextReport;
+        private long lastAllocated;
+
+        ProgressTracker(UUID jobID, int total) {
+            this.jobID = jobID;
+            this.total = total;
+            this.lastAllocated = currentThreadAllocatedBytes();
+            report();
+        }
+
+        void fetched(long bytes) {
+            this.fetched.incrementAndGet();
+            this.bytesWritten.addAndGet(bytes);
+            maybeReport();
+        }
+
+        void failed() {
+            this.failed.incrementAndGet();
+            maybeReport();
+        }
+
+        synchronized void report() {
+            queue.updateProgress(this.jobID, new JobProgress(this.total, this.fetched.get(), this.failed.get(), this.bytesWritten.get()));
+            this.nextReport = System.nanoTime() + PROGRESS_INTERVAL.toNanos();
+            // Only called from the worker thread, so this is what the worker has allocated since the last report
+            final long allocated = currentThreadAllocatedBytes();
+            if (allocated >= 0 && this.lastAllocated >= 0) {
+                allocatedBytes.mark(allocated - this.lastAllocated);
+            }
+            this.lastAllocated = allocated;
+        }
+
+        private synchronized void maybeReport() {
+            if (System.nanoTime() >= this.nextReport) {
+                report();
+            }
+        }
+    }
+
+    /**
+     * Bytes allocated by the current thread so far
+     *
+     * @return - number of bytes, or -1 if the JVM doesn't track allocation
+     */
+    private static long currentThreadAllocatedBytes() {
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    private static class LeaseExpiredException extends RuntimeException {
+        public static final long serialVersionUID = 42L;
+    }
+
+    private static class WorkerInterruptedException extends RuntimeException {
+        public static final long serialVersionUID = 42L;
+    }
+
+    private static class FetchStalledException extends RuntimeException {
+        public static final long serialVersionUID = 42L;
+    }
 }
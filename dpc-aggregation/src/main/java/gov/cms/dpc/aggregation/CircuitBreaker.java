@@ -0,0 +1,111 @@
+package gov.cms.dpc.aggregation;
+
+import com.typesafe.config.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+
+/**
+ * Stops requests to Blue Button while it's down, so workers don't keep hammering it, and records fail fast rather than each waiting for a timeout.
+ * <p>
+ * The breaker opens once aggregation.fetch.circuitBreaker.failureThreshold requests in a row have failed outright, and stays open for openDuration.
+ * After that, a single trial request is let through: if it succeeds the breaker closes again, otherwise it's open for another openDuration.
+ * Beneficiaries which are missing from a response don't count as failures, since that's a problem with the beneficiary, rather than with Blue Button.
+ * Batches which the client fetches with a request per beneficiary only fail outright when none of their beneficiaries could be fetched, other than ones which weren't found.
+ * <p>
+ * Each request is let through with a permit, from {@link #tryAcquire()}, which it reports its outcome with.
+ * Permits belong to the generation of the breaker they were handed out in, which moves on whenever the breaker opens, lets a trial through, or closes,
+ * so only the trial decides whether to close the breaker, and requests which were sent before it opened, or before it closed again, can't change its state once they finish.
+ */
+class CircuitBreaker {
+
+    // Returned by tryAcquire when the breaker is open
+    static final long NO_PERMIT = -1;
+
+    private static final Logger logger = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    private final int failureThreshold;
+    private final Duration openDuration;
+
+    // Everything below is guarded by this
+    private int consecutiveFailures;
+    private boolean open;
+    private long openUntil;
+    private long generation;
+    // Whether the trial request, which decides whether to close the breaker, has been sent
+    private boolean trialInFlight;
+
+    CircuitBreaker(Config config) {
+        this.failureThreshold = config.getInt("failureThreshold");
+        this.openDuration = config.getDuration("openDuration");
+    }
+
+    /**
+     * Check whether a request can be sent
+     *
+     * @return - permit to report the outcome of the request with, {@link #NO_PERMIT} the breaker is open, and the request should fail without being sent
+     */
+    synchronized long tryAcquire() {
+        if (!this.open) {
+            return this.generation;
+        }
+        if (this.trialInFlight || this.openUntil - System.nanoTime() > 0) {
+            return NO_PERMIT;
+        }
+        this.trialInFlight = true;
+        return ++this.generation;
+    }
+
+    /**
+     * Record a request which got a response, which closes the breaker, if it's the trial request
+     *
+     * @param permit - the request was sent with, from {@link #tryAcquire()}
+     */
+    synchronized void success(long permit) {
+        if (permit != this.generation) {
+            return;
+        }
+        if (this.open) {
+            logger.info("Blue Button is responding again, closing circuit breaker");
+            this.open = false;
+            this.trialInFlight = false;
+            this.generation++;
+        }
+        this.consecutiveFailures = 0;
+    }
+
+    /**
+     * Record a request which failed outright, which opens the breaker, once there have been enough of them in a row, or if it's the trial request
+     *
+     * @param permit - the request was sent with, from {@link #tryAcquire()}
+     */
+    synchronized void failure(long permit) {
+        if (permit != this.generation) {
+            return;
+        }
+        this.consecutiveFailures++;
+        if (this.trialInFlight || (!this.open && this.consecutiveFailures >= this.failureThreshold)) {
+            logger.warn("{} Blue Button requests in a row have failed, holding back requests for {}", this.consecutiveFailures, this.openDuration);
+            this.open = true;
+            this.openUntil = System.nanoTime() + this.openDuration.toNanos();
+            this.trialInFlight = false;
+            this.generation++;
+        }
+    }
+    synchronized boolean isOpen() {
+        return this.open;
+    }
+
+    /**
+     * How long until the breaker lets a trial request through
+     *
+     * @return - {@link Duration} until the trial, zero if the breaker is closed, or the trial is due
+     */
+    synchronized Duration remainingOpen() {
+        if (!this.open) {
+            return Duration.ZERO;
+        }
+        return Duration.ofNanos(Math.max(0, this.openUntil - System.nanoTime()));
+    }
+}
@@ -0,0 +1,216 @@
+package gov.cms.dpc.aggregation;
+
+import com.typesafe.config.Config;
+import gov.cms.dpc.aggregation.bbclient.DiskResourceCache;
+import gov.cms.dpc.common.annotations.ExportPath;
+import gov.cms.dpc.queue.JobQueue;
+import gov.cms.dpc.queue.JobStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Background task which cleans up finished export jobs, and their output files, once they're no longer needed.
+ * <p>
+ * Each sweep:
+ * <ol>
+ * <li>Removes jobs which finished more than aggregation.retention.ttl ago from the {@link JobQueue} and deletes their output files.</li>
+ * <li>Deletes output files which are older than the TTL and don't belong to any job in the queue (e.g. left behind by a restart).</li>
+ * <li>If the export directory is still larger than aggregation.retention.maxExportSize, removes the oldest finished jobs until it fits.</li>
+ * <li>Sweeps the Blue Button {@link DiskResourceCache}, which would otherwise grow with every beneficiary ever exported.</li>
+ * </ol>
+ * Output files are matched to their job by the job ID at the start of the file name.
+ * Shards write their files under their own ID, so those are grouped under the parent job, and a sharded export is only ever removed as a whole, once its parent has finished.
+ * Files belonging to jobs which are still queued or running are never deleted.
+ */
+public class ExportRetention {
+
+    private static final Logger logger = LoggerFactory.getLogger(ExportRetention.class);
+    private static final int UUID_LENGTH = 36;
+
+    private final JobQueue queue;
+    private final Path exportPath;
+    private final Duration ttl;
+    private final Duration sweepInterval;
+    private final long maxExportSize;
+    private final DiskResourceCache diskCache;
+    private ScheduledExecutorService executor;
+
+    @Inject
+    public ExportRetention(JobQueue queue, @ExportPath String exportPath, Config config) {
+        this.queue = queue;
+        this.exportPath = Paths.get(exportPath);
+        this.ttl = config.getDuration("aggregation.retention.ttl");
+        this.sweepInterval = config.getDuration("aggregation.retention.sweepInterval");
+        this.maxExportSize = config.getBytes("aggregation.retention.maxExportSize");
+        this.diskCache = new DiskResourceCache(config);
+    }
+
+    public synchronized void start() {
+        if (this.executor != null) {
+            return;
+        }
+        logger.debug("Removing exports older than {} every {}", this.ttl, this.sweepInterval);
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "export-retention");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.scheduleWithFixedDelay(this::sweepQuietly, 0, this.sweepInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (this.executor != null) {
+            this.executor.shutdownNow();
+            this.executor = null;
+        }
+    }
+
+    /**
+     * Run a single sweep of the queue and export directory
+     *
+     * @throws IOException - if the export directory cannot be read
+     */
+    void sweep() throws IOException {
+        final Instant cutoff = Instant.now().minus(this.ttl);
+        final List<UUID> expired = this.queue.removeFinishedJobs(cutoff);
+        final Map<UUID, List<Path>> files = listExports();
+        expired.forEach(jobID -> deleteFiles(files.remove(jobID)));
+        final Map<UUID, List<Path>> exports = groupByParent(files);
+
+        // Anything left with no matching job, has outlived its job
+        final Iterator<Map.Entry<UUID, List<Path>>> iterator = exports.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<UUID, List<Path>> export = iterator.next();
+            if (lastModified(export.getValue()).isBefore(cutoff) && this.queue.getJobStatus(export.getKey()).isEmpty()) {
+                deleteFiles(export.getValue());
+                iterator.remove();
+            }
+        }
+        if (!expired.isEmpty()) {
+            logger.info("Removed {} expired export jobs", expired.size());
+        }
+
+        enforceQuota(exports);
+        this.diskCache.sweep();
+    }
+
+    private void enforceQuota(Map<UUID, List<Path>> exports) {
+        long exportSize = exports.values().stream().flatMap(List::stream).mapToLong(ExportRetention::size).sum();
+        if (exportSize <= this.maxExportSize) {
+            return;
+        }
+        logger.warn("Export directory is {} bytes, which is over the limit of {} bytes. Removing the oldest exports", exportSize, this.maxExportSize);
+
+        final List<Map.Entry<UUID, List<Path>>> oldestFirst = exports.entrySet()
+                .stream()
+                .sorted(Comparator.comparing(export -> lastModified(export.getValue())))
+                .collect(Collectors.toList());
+        for (final Map.Entry<UUID, List<Path>> export : oldestFirst) {
+            if (exportSize <= this.maxExportSize) {
+                break;
+            }
+            // A sharded job's status covers all of its shards, so this skips the whole export while any shard is still working
+            final Optional<JobStatus> status = this.queue.getJobStatus(export.getKey());
+            if (status.isPresent() && status.get() != JobStatus.COMPLETED && status.get() != JobStatus.FAILED) {
+                continue;
+            }
+            // Removing a parent job removes its shards along with it
+            status.ifPresent(s -> this.queue.removeJob(export.getKey()));
+            exportSize -= export.getValue().stream().mapToLong(ExportRetention::size).sum();
+            deleteFiles(export.getValue());
+        }
+    }
+
+    /**
+     * Group the files in the export directory by the job that wrote them
+     */
+    private Map<UUID, List<Path>> listExports() throws IOException {
+        if (!Files.isDirectory(this.exportPath)) {
+            return new HashMap<>();
+        }
+        final Map<UUID, List<Path>> exports = new HashMap<>();
+        try (Stream<Path> files = Files.list(this.exportPath)) {
+            files.filter(Files::isRegularFile).forEach(file -> {
+                final String name = file.getFileName().toString();
+                if (name.length() < UUID_LENGTH) {
+                    return;
+                }
+                try {
+                    exports.computeIfAbsent(UUID.fromString(name.substring(0, UUID_LENGTH)), id -> new ArrayList<>()).add(file);
+                } catch (IllegalArgumentException e) {
+                    // Not one of ours, leave it alone
+                }
+            });
+        }
+        return exports;
+    }
+
+    /**
+     * Merge the files written by each shard into the export of its parent job, so the export is kept or removed as a whole
+     */
+    private Map<UUID, List<Path>> groupByParent(Map<UUID, List<Path>> files) {
+        final Map<UUID, List<Path>> exports = new HashMap<>();
+        files.forEach((jobID, jobFiles) -> exports
+                .computeIfAbsent(this.queue.getParentID(jobID).orElse(jobID), id -> new ArrayList<>())
+                .addAll(jobFiles));
+        return exports;
+    }
+
+    private void sweepQuietly() {
+        // Exceptions would cancel any further runs, so we just log them and try again next time
+        try {
+            sweep();
+        } catch (Exception e) {
+            logger.error("Unable to remove expired exports", e);
+        }
+    }
+
+    private static void deleteFiles(List<Path> files) {
+        if (files == null) {
+            return;
+        }
+        files.forEach(file -> {
+            try {
+                Files.deleteIfExists(file);
+                logger.debug("Deleted export file {}", file);
+            } catch (IOException e) {
+                logger.error("Unable to delete export file {}", file, e);
+            }
+        });
+    }
+
+    private static Instant lastModified(List<Path> files) {
+        return files.stream()
+                .map(file -> {
+                    try {
+                        return Files.getLastModifiedTime(file).toInstant();
+                    } catch (IOException e) {
+                        return Instant.EPOCH;
+                    }
+                })
+                .max(Comparator.naturalOrder())
+                .orElse(Instant.EPOCH);
+    }
+
+    private static long size(Path file) {
+        try {
+            return Files.size(file);
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package gov.cms.dpc.aggregation;
+
+import gov.cms.dpc.common.models.ExportCompression;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntFunction;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes encoded resources to a series of NDJSON export files, one resource per line.
+ * <p>
+ * Resources are copied into a buffer, which is only written to the file once it fills up, so most resources don't cost a system call.
+ * Resources which are larger than the buffer are written straight through, after whatever is already buffered.
+ * The buffer is supplied by the caller, so it can be reused from one file to the next.
+ * <p>
+ * Once a file has the maximum number of resources, or the next resource would take it over the maximum size, the writer rolls over to the next part.
+ * Every part has at least one resource, so a single resource which is larger than the maximum size gets a part to itself.
+ * The first part is always created, even if nothing is written to it.
+ * The number of resources in each part is kept, so the parts can be reported once the writer is closed.
+ * <p>
+ * Parts can be gzip compressed, in which case the buffer is compressed as it's flushed, and the size limit applies to the uncompressed resources.
+ * Compressed parts are written through a {@link GZIPOutputStream}, which needs an array, so they should be given a heap buffer, rather than a direct one.
+ */
+class ResourceWriter implements Closeable {
+
+    private static final byte DELIMITER = '\n';
+    // Size of the compressor's output buffer, which is written to the file each time it fills up
+    private static final int COMPRESSOR_BUFFER_SIZE = 64 * 1024;
+
+    private final IntFunction<Path> parts;
+    private final ByteBuffer buffer;
+    private final long maxResources;
+    private final long maxBytes;
+    private final ExportCompression compression;
+    private FileChannel channel;
+    // Compresses the current part, null if parts aren't compressed
+    private GZIPOutputStream compressor;
+    private int part;
+    private long partResources;
+    private long partBytes;
+    // Number of resources in each part which has been closed
+    private final List<Long> partCounts = new ArrayList<>();
+
+    /**
+     * @param parts        - {@link IntFunction} which gives the {@link Path} of each part, from its index
+     * @param buffer       - {@link ByteBuffer} to write through
+     * @param maxResources - maximum number of resources in each part
+     * @param maxBytes     - maximum size of each part, in bytes, before compression
+     * @param compression  - {@link ExportCompression} to apply to each part
+     * @throws IOException - if the first part could not be created
+     */
+    ResourceWriter(IntFunction<Path> parts, ByteBuffer buffer, long maxResources, long maxBytes, ExportCompression compression) throws IOException {
+        this.parts = parts;
+        this.buffer = buffer;
+        this.maxResources = maxResources;
+        this.maxBytes = maxBytes;
+        this.compression = compression;
+        this.buffer.clear();
+        open(0);
+    }
+
+    /**
+     * Write a resource, followed by the line delimiter, rolling over to the next part first, if the current one is full
+     *
+     * @param resource - encoded resource, which must not contain any line breaks
+     * @return - number of bytes written, including the delimiter, before compression
+     * @throws IOException - if the buffer could not be written to the file
+     */
+    long write(byte[] resource) throws IOException {
+        final int length = resource.length + 1;
+        if (this.partResources > 0 && (this.partResources >= this.maxResources || this.partBytes + length > this.maxBytes)) {
+            roll();
+        }
+        if (length > this.buffer.remaining()) {
+            flush();
+        }
+        if (length > this.buffer.remaining()) {
+            writeFully(ByteBuffer.wrap(resource));
+        } else {
+            this.buffer.put(resource);
+        }
+        this.buffer.put(DELIMITER);
+        this.partResources++;
+        this.partBytes += length;
+        return length;
+    }
+
+    /**
+     * Write anything which is buffered to the current part
+     *
+     * @throws IOException - if the buffer could not be written to the file
+     */
+    void flush() throws IOException {
+        this.buffer.flip();
+        writeFully(this.buffer);
+        this.buffer.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        // Resources are closed in reverse, so the compressor writes the gzip trailer and frees its native Deflater first, then closes the channel, which makes closing the channel itself a no-op
+        try (FileChannel closing = this.channel; GZIPOutputStream compressing = this.compressor) {
+            flush();
+        } finally {
+            this.partCounts.add(this.partResources);
+        }
+    }
+
+    /**
+     * Number of resources in each part, in order, including the current one once the writer has been closed
+     *
+     * @return - {@link List} of resource counts, indexed by part
+     */
+    List<Long> getPartCounts() {
+        return this.partCounts;
+    }
+
+    private void roll() throws IOException {
+        close();
+        open(this.part + 1);
+        this.part++;
+        this.partResources = 0;
+        this.partBytes = 0;
+    }
+
+    private void open(int index) throws IOException {
+        this.channel = FileChannel.open(this.parts.apply(index), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        if (this.compression == ExportCompression.GZIP) {
+            this.compressor = new GZIPOutputStream(Channels.newOutputStream(this.channel), COMPRESSOR_BUFFER_SIZE);
+        }
+    }
+
+    private void writeFully(ByteBuffer source) throws IOException {
+        if (this.compressor != null) {
+            this.compressor.write(source.array(), source.arrayOffset() + source.position(), source.remaining());
+            source.position(source.limit());
+            return;
+        }
+        while (source.hasRemaining()) {
+            this.channel.write(source);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package gov.cms.dpc.aggregation;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.typesafe.config.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fixed pool of worker threads, each of which runs the {@link AggregationEngine} claim loop, so a node can work several export jobs at once.
+ * <p>
+ * The pool size is set by aggregation.workers.count, or one worker per available processor if that's 0.
+ * On {@link WorkerPool#stop()}, idle workers return straight away and busy workers are given aggregation.workers.drainTimeout to finish their jobs.
+ * Workers which are still busy after that are interrupted, and hand their job back to the queue.
+ */
+public class WorkerPool {
+
+    private static final Logger logger = LoggerFactory.getLogger(WorkerPool.class);
+
+    private final AggregationEngine engine;
+    private final int workers;
+    private final Duration drainTimeout;
+    private ExecutorService executor;
+
+    @Inject
+    public WorkerPool(AggregationEngine engine, Config config, MetricRegistry registry) {
+        this.engine = engine;
+        final int configured = config.getInt("aggregation.workers.count");
+        this.workers = configured > 0 ? configured : Runtime.getRuntime().availableProcessors();
+        this.drainTimeout = config.getDuration("aggregation.workers.drainTimeout");
+        registry.gauge(MetricRegistry.name(WorkerPool.class, "size"), () -> (Gauge<Integer>) () -> this.workers);
+        registry.gauge(MetricRegistry.name(WorkerPool.class, "busy"), () -> (Gauge<Integer>) engine::getBusyWorkers);
+    }
+
+    public synchronized void start() {
+        if (this.executor != null) {
+            return;
+        }
+        logger.info("Starting {} aggregation workers", this.workers);
+        final AtomicInteger count = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(this.workers, r -> new Thread(r, "aggregation-worker-" + count.getAndIncrement()));
+        for (int i = 0; i < this.workers; i++) {
+            this.executor.execute(this.engine);
+        }
+    }
+
+    /**
+     * Stop the workers, waiting for any running jobs to finish
+     *
+     * @throws InterruptedException - if interrupted while waiting for the workers to finish
+     */
+    public synchronized void stop() throws InterruptedException {
+        if (this.executor == null) {
+            return;
+        }
+        this.engine.stop();
+        this.executor.shutdown();
+        if (!this.executor.awaitTermination(this.drainTimeout.toMillis(), TimeUnit.MILLISECONDS)) {
+            logger.warn("Aggregation workers did not finish within {}, interrupting them", this.drainTimeout);
+            this.executor.shutdownNow();
+        }
+        this.executor = null;
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+}
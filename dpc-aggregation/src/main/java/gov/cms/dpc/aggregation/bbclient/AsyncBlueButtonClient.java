@@ -0,0 +1,142 @@
+package gov.cms.dpc.aggregation.bbclient;
+
+
+import gov.cms.dpc.common.models.ResourceType;
+import org.hl7.fhir.dstu3.model.Patient;
+import org.hl7.fhir.dstu3.model.Resource;
+
+import java.time.OffsetDateTime;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.stream.Collectors;
+
+/**
+ * Non-blocking variant of {@link BlueButtonClient}, which lets a handful of threads keep many requests in flight.
+ * Failed requests complete the future exceptionally with a {@link BlueButtonClientException}, or a {@link BeneficiaryNotFoundException}, if the beneficiary doesn't exist.
+ * Requests for a batch of beneficiaries leave out the ones which couldn't be fetched, but fail as a whole if none of them could be fetched, for any reason other than not being found.
+ */
+public interface AsyncBlueButtonClient {
+
+    CompletableFuture<Patient> requestFHIRFromServerAsync(String beneficiaryID);
+
+    /**
+     * Request several beneficiaries at once.
+     * The default implementation makes a separate request for each beneficiary, clients which support searching by multiple IDs should override it.
+     *
+     * @param beneficiaryIDs - {@link List} of beneficiary IDs to request
+     * @return - {@link CompletableFuture} {@link Map} of beneficiary ID to {@link Patient}, beneficiaries which could not be fetched are left out
+     */
+    default CompletableFuture<Map<String, Patient>> requestFHIRFromServerAsync(List<String> beneficiaryIDs) {
+        final Map<String, CompletableFuture<Patient>> requests = new HashMap<>();
+        beneficiaryIDs.forEach(beneficiaryID -> requests.put(beneficiaryID, requestFHIRFromServerAsync(beneficiaryID)));
+        return BatchResults.collect(requests);
+    }
+
+    /**
+     * Request several beneficiaries, encoded as FHIR JSON and ready to be written to an export.
+     * The default implementation encodes the fetched {@link Patient}s, clients which already have the encoded resources (e.g. in a cache) should override it, to avoid parsing and re-encoding them.
+     *
+     * @param beneficiaryIDs - {@link List} of beneficiary IDs to request
+     * @return - {@link CompletableFuture} {@link Map} of beneficiary ID to encoded {@link Patient}, beneficiaries which could not be fetched are left out
+     */
+    default CompletableFuture<Map<String, byte[]>> requestEncodedFromServerAsync(List<String> beneficiaryIDs) {
+        return requestFHIRFromServerAsync(beneficiaryIDs).thenApply(ResourceEncoding::encodeAll);
+    }
+
+    /**
+     * Request the resources of the given type (e.g. ExplanationOfBenefits) which belong to several beneficiaries.
+     * The default implementation only supports {@link ResourceType#PATIENT}, clients which can search for other resource types should override it.
+     *
+     * @param resourceType   - {@link ResourceType} to request
+     * @param beneficiaryIDs - {@link List} of beneficiary IDs to request resources for
+     * @return - {@link CompletableFuture} {@link Map} of beneficiary ID to its {@link Resource}s, beneficiaries whose resources could not be fetched are left out
+     */
+    default CompletableFuture<Map<String, List<Resource>>> requestResourcesFromServerAsync(ResourceType resourceType, List<String> beneficiaryIDs) {
+        if (resourceType != ResourceType.PATIENT) {
+            return CompletableFuture.failedFuture(new BlueButtonClientException(String.format("Unable to request %s resources", resourceType.getFhirName()),
+                    new UnsupportedOperationException("Client only supports Patient resources")));
+        }
+        return requestFHIRFromServerAsync(beneficiaryIDs)
+                .thenApply(patients -> patients.entrySet()
+                        .stream()
+                        .collect(Collectors.toMap(Map.Entry::getKey, entry -> List.<Resource>of(entry.getValue()))));
+    }
+
+    /**
+     * Request the resources of the given type which belong to several beneficiaries and have been updated since the given time, encoded as FHIR JSON.
+     * Without a since time, Patients are requested with {@link #requestEncodedFromServerAsync(List)}, so they make use of any caching the client does.
+     * Otherwise, the default implementation fetches every beneficiary, and filters them by their last updated time,
+     * so a beneficiary which was fetched, but hasn't been updated, can be told apart from one which couldn't be fetched.
+     * Clients which can ask the server to filter them should override it, as long as they only treat a beneficiary as unchanged when the request which covered it succeeded.
+     * The default implementation for other resource types fetches them with {@link #requestResourcesFromServerAsync(ResourceType, List)}, and filters them the same way.
+     *
+     * @param resourceType   - {@link ResourceType} to request
+     * @param beneficiaryIDs - {@link List} of beneficiary IDs to request resources for
+     * @param since          - {@link OffsetDateTime} only return resources updated at or after this time, {@code null} returns every resource
+     * @return - {@link CompletableFuture} {@link Map} of beneficiary ID to its encoded resources, empty if none of them have been updated, beneficiaries whose resources could not be fetched are left out
+     */
+    default CompletableFuture<Map<String, List<byte[]>>> requestEncodedResourcesAsync(ResourceType resourceType, List<String> beneficiaryIDs, OffsetDateTime since) {
+        if (resourceType == ResourceType.PATIENT && since == null) {
+            return requestEncodedFromServerAsync(beneficiaryIDs)
+                    .thenApply(patients -> patients.entrySet()
+                            .stream()
+                            .collect(Collectors.toMap(Map.Entry::getKey, entry -> List.of(entry.getValue()))));
+        }
+        if (resourceType == ResourceType.PATIENT) {
+            return requestFHIRFromServerAsync(beneficiaryIDs)
+                    .thenApply(patients -> patients.entrySet()
+                            .stream()
+                            .collect(Collectors.toMap(Map.Entry::getKey, entry -> isUpdatedSince(entry.getValue(), since)
+                                    ? List.of(ResourceEncoding.encode(entry.getValue()))
+                                    : List.<byte[]>of())));
+        }
+        return requestResourcesFromServerAsync(resourceType, beneficiaryIDs)
+                .thenApply(fetched -> fetched.entrySet()
+                        .stream()
+                        .collect(Collectors.toMap(Map.Entry::getKey, entry -> entry.getValue()
+                                .stream()
+                                .filter(resource -> isUpdatedSince(resource, since))
+                                .map(ResourceEncoding::encode)
+                                .collect(Collectors.toList()))));
+    }
+
+    /**
+     * Adapt a blocking client, by running each request on the given executor.
+     * This still ties up a thread per request, so it's only meant for clients which don't have a non-blocking transport (e.g. in tests).
+     * Batches are passed through to {@link BlueButtonClient#requestFHIRFromServer(List)} and {@link BlueButtonClient#requestResourcesFromServer(ResourceType, List)}, as a single request.
+     *
+     * @param client   - {@link BlueButtonClient} to make requests with
+     * @param executor - {@link Executor} to run the blocking requests on
+     * @return - {@link AsyncBlueButtonClient}
+     */
+    static AsyncBlueButtonClient fromBlocking(BlueButtonClient client, Executor executor) {
+        return new AsyncBlueButtonClient() {
+            @Override
+            public CompletableFuture<Patient> requestFHIRFromServerAsync(String beneficiaryID) {
+                return CompletableFuture.supplyAsync(() -> client.requestFHIRFromServer(beneficiaryID), executor);
+            }
+
+            @Override
+            public CompletableFuture<Map<String, Patient>> requestFHIRFromServerAsync(List<String> beneficiaryIDs) {
+                return CompletableFuture.supplyAsync(() -> client.requestFHIRFromServer(beneficiaryIDs), executor);
+            }
+
+            @Override
+            public CompletableFuture<Map<String, List<Resource>>> requestResourcesFromServerAsync(ResourceType resourceType, List<String> beneficiaryIDs) {
+                return CompletableFuture.supplyAsync(() -> client.requestResourcesFromServer(resourceType, beneficiaryIDs), executor);
+            }
+        };
+    }
+
+    /**
+     * Resources without a last updated time can't be ruled out, so they count as updated
+     */
+    private static boolean isUpdatedSince(Resource resource, OffsetDateTime since) {
+        final Date lastUpdated = resource.getMeta().getLastUpdated();
+        return since == null || lastUpdated == null || !lastUpdated.toInstant().isBefore(since.toInstant());
+    }
+}
@@ -0,0 +1,52 @@
+package gov.cms.dpc.aggregation.bbclient;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Combines the separate requests for each beneficiary in a batch into a single result for the whole batch.
+ * <p>
+ * Beneficiaries whose request failed are left out, so the caller can decide what to do about them.
+ * If none of the requests succeeded, and any of them failed for a reason other than a {@link BeneficiaryNotFoundException},
+ * the batch fails with that error, so an outage isn't mistaken for a batch of missing beneficiaries.
+ */
+final class BatchResults {
+
+    private BatchResults() {
+        // Not used
+    }
+
+    static <T> CompletableFuture<Map<String, T>> collect(Map<String, CompletableFuture<T>> requests) {
+        final Map<String, T> results = new HashMap<>();
+        // The first failure which wasn't a missing beneficiary
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final CompletableFuture<?>[] handled = requests.entrySet()
+                .stream()
+                .map(entry -> entry.getValue().handle((result, error) -> {
+                    if (error == null) {
+                        synchronized (results) {
+                            results.put(entry.getKey(), result);
+                        }
+                    } else if (!(unwrap(error) instanceof BeneficiaryNotFoundException)) {
+                        failure.compareAndSet(null, unwrap(error));
+                    }
+                    return null;
+                }))
+                .toArray(CompletableFuture[]::new);
+        return CompletableFuture.allOf(handled).thenApply(done -> {
+            synchronized (results) {
+                if (results.isEmpty() && failure.get() != null) {
+                    throw new CompletionException(failure.get());
+                }
+                return results;
+            }
+        });
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    }
+}
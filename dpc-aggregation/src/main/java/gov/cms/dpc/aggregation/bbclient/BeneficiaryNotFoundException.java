@@ -0,0 +1,12 @@
+package gov.cms.dpc.aggregation.bbclient;
+
+/**
+ * Blue Button doesn't have the requested beneficiary.
+ * Unlike other failures, this is a problem with the beneficiary, rather than with Blue Button, so it doesn't count against the server.
+ */
+public class BeneficiaryNotFoundException extends BlueButtonClientException {
+
+    public BeneficiaryNotFoundException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -1,9 +1,54 @@
 package gov.cms.dpc.aggregation.bbclient;
 
 
+import gov.cms.dpc.common.models.ResourceType;
 import org.hl7.fhir.dstu3.model.Patient;
+import org.hl7.fhir.dstu3.model.Resource;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 public interface BlueButtonClient {
 
     public Patient requestFHIRFromServer(String BeneficiaryID) throws BlueButtonClientException;
+
+    /**
+     * Request several beneficiaries at once.
+     * The default implementation requests each beneficiary in turn, clients which support searching by multiple IDs should override it.
+     *
+     * @param beneficiaryIDs - {@link List} of beneficiary IDs to request
+     * @return - {@link Map} of beneficiary ID to {@link Patient}, beneficiaries which could not be fetched are left out
+     * @throws BlueButtonClientException - if the request as a whole failed
+     */
+    default Map<String, Patient> requestFHIRFromServer(List<String> beneficiaryIDs) throws BlueButtonClientException {
+        final Map<String, Patient> patients = new HashMap<>();
+        for (final String beneficiaryID : beneficiaryIDs) {
+            try {
+                patients.put(beneficiaryID, requestFHIRFromServer(beneficiaryID));
+            } catch (BlueButtonClientException e) {
+                // Left out, so the caller can decide what to do about it
+            }
+        }
+        return patients;
+    }
+
+    /**
+     * Request the resources of the given type (e.g. ExplanationOfBenefits) which belong to several beneficiaries.
+     * The default implementation only supports {@link ResourceType#PATIENT}, clients which can search for other resource types should override it.
+     *
+     * @param resourceType   - {@link ResourceType} to request
+     * @param beneficiaryIDs - {@link List} of beneficiary IDs to request resources for
+     * @return - {@link Map} of beneficiary ID to its {@link Resource}s, beneficiaries whose resources could not be fetched are left out
+     * @throws BlueButtonClientException - if the request as a whole failed
+     */
+    default Map<String, List<Resource>> requestResourcesFromServer(ResourceType resourceType, List<String> beneficiaryIDs) throws BlueButtonClientException {
+        if (resourceType != ResourceType.PATIENT) {
+            throw new BlueButtonClientException(String.format("Unable to request %s resources", resourceType.getFhirName()),
+                    new UnsupportedOperationException("Client only supports Patient resources"));
+        }
+        final Map<String, List<Resource>> resources = new HashMap<>();
+        requestFHIRFromServer(beneficiaryIDs).forEach((beneficiaryID, patient) -> resources.put(beneficiaryID, List.of(patient)));
+        return resources;
+    }
 }
@@ -10,6 +10,12 @@ public class BlueButtonClientModule extends AbstractModule {
     }
 
     protected void configure() {
-        bind(BlueButtonClient.class).to(DefaultBlueButtonClient.class);
+        // Both interfaces share a single client, and its connections and cache
+        bind(DefaultBlueButtonClient.class).in(Scopes.SINGLETON);
+        // Shared by every worker, so the limit applies to the JVM as a whole
+        bind(BlueButtonLimiter.class).in(Scopes.SINGLETON);
+        bind(CachingBlueButtonClient.class).in(Scopes.SINGLETON);
+        bind(BlueButtonClient.class).to(CachingBlueButtonClient.class);
+        bind(AsyncBlueButtonClient.class).to(CachingBlueButtonClient.class);
     }
 }
@@ -0,0 +1,230 @@
+package gov.cms.dpc.aggregation.bbclient;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.typesafe.config.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Limits the number of requests in flight to Blue Button, across every worker in the JVM, adjusting the limit to how the server is coping.
+ * <p>
+ * The limit follows additive increase, multiplicative decrease (AIMD), from the aggregation.bbclient.limiter settings:
+ * each response which comes back quickly raises it by 1/limit, so it grows by about one for each round of requests,
+ * while a 429 or 5xx response, a failed request, or a response which takes latencyTolerance times longer than usual, cuts it by backoffRatio.
+ * The limit is only cut once for all the requests which were already in flight when it was last cut, so a burst of errors doesn't take it straight down to minLimit.
+ * <p>
+ * Usual latency is a moving average of the responses which weren't throttled, so it follows slow changes (e.g. to larger searches), while sudden slowdowns stand out.
+ * <p>
+ * A Retry-After header, on any response, holds back every request which hasn't been sent yet, until the time it gives (up to maxRetryAfter).
+ * The throttled request itself still fails, so it's up to the caller whether to retry it.
+ * <p>
+ * Requests over the limit wait in order, without holding a thread, and are sent as earlier ones complete.
+ */
+class BlueButtonLimiter {
+
+    private static final Logger logger = LoggerFactory.getLogger(BlueButtonLimiter.class);
+    // How much each response moves the usual latency
+    private static final double LATENCY_SMOOTHING = 0.05;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final double backoffRatio;
+    private final double latencyTolerance;
+    private final Duration maxRetryAfter;
+    private final Meter throttled;
+    private final Meter backoffs;
+
+    // Everything below is guarded by this
+    private final Deque<Runnable> waiting;
+    private double limit;
+    private int inFlight;
+    // Moving average of the latency of successful requests, 0 until the first one completes
+    private double usualLatency;
+    private long lastBackoff;
+    private long pausedUntil;
+    private boolean resumeScheduled;
+
+    @Inject
+    BlueButtonLimiter(Config config, MetricRegistry registry) {
+        final Config limiter = config.getConfig("aggregation.bbclient.limiter");
+        this.minLimit = limiter.getInt("minLimit");
+        this.maxLimit = limiter.getInt("maxLimit");
+        this.backoffRatio = limiter.getDouble("backoffRatio");
+        this.latencyTolerance = limiter.getDouble("latencyTolerance");
+        this.maxRetryAfter = limiter.getDuration("maxRetryAfter");
+        this.limit = Math.max(this.minLimit, Math.min(this.maxLimit, limiter.getInt("initialLimit")));
+        this.waiting = new ArrayDeque<>();
+        this.lastBackoff = System.nanoTime();
+        this.pausedUntil = this.lastBackoff;
+
+        this.throttled = registry.meter(MetricRegistry.name(BlueButtonLimiter.class, "throttled"));
+        this.backoffs = registry.meter(MetricRegistry.name(BlueButtonLimiter.class, "backoffs"));
+        registry.gauge(MetricRegistry.name(BlueButtonLimiter.class, "limit"), () -> (Gauge<Integer>) this::getLimit);
+        registry.gauge(MetricRegistry.name(BlueButtonLimiter.class, "inFlight"), () -> (Gauge<Integer>) this::getInFlight);
+        registry.gauge(MetricRegistry.name(BlueButtonLimiter.class, "waiting"), () -> (Gauge<Integer>) this::getWaiting);
+    }
+
+    /**
+     * Send a request once there's room under the limit, and adjust the limit from its response
+     *
+     * @param request - {@link Supplier} which sends the request, only called once it's allowed to go
+     * @param <T>     - type of the response body
+     * @return - {@link CompletableFuture} {@link HttpResponse}, which completes as the request does
+     */
+    <T> CompletableFuture<HttpResponse<T>> send(Supplier<CompletableFuture<HttpResponse<T>>> request) {
+        final CompletableFuture<HttpResponse<T>> result = new CompletableFuture<>();
+        final Runnable start = () -> {
+            final long started = System.nanoTime();
+            CompletableFuture<HttpResponse<T>> sent;
+            try {
+                sent = request.get();
+            } catch (RuntimeException e) {
+                sent = CompletableFuture.failedFuture(e);
+            }
+            sent.whenComplete((response, error) -> {
+                release(started, response, error);
+                drain();
+                if (error != null) {
+                    result.completeExceptionally(error);
+                } else {
+                    result.complete(response);
+                }
+            });
+        };
+        synchronized (this) {
+            this.waiting.add(start);
+        }
+        drain();
+        return result;
+    }
+
+    synchronized int getLimit() {
+        return (int) this.limit;
+    }
+
+    synchronized int getInFlight() {
+        return this.inFlight;
+    }
+
+    synchronized int getWaiting() {
+        return this.waiting.size();
+    }
+
+    /**
+     * Send as many waiting requests as the limit allows, outside the lock, since sending can complete them straight away
+     */
+    private void drain() {
+        while (true) {
+            final Runnable next;
+            synchronized (this) {
+                if (this.waiting.isEmpty() || this.inFlight >= (int) this.limit) {
+                    return;
+                }
+                final long paused = this.pausedUntil - System.nanoTime();
+                if (paused > 0) {
+                    scheduleResume(paused);
+                    return;
+                }
+                next = this.waiting.poll();
+                this.inFlight++;
+            }
+            next.run();
+        }
+    }
+
+    private synchronized void release(long started, HttpResponse<?> response, Throwable error) {
+        final long latency = System.nanoTime() - started;
+        this.inFlight--;
+        if (response != null) {
+            retryAfter(response).ifPresent(this::pause);
+        }
+
+        if (error != null || isThrottled(response)) {
+            this.throttled.mark();
+            backoff(started);
+        } else {
+            if (this.usualLatency > 0 && latency > this.usualLatency * this.latencyTolerance) {
+                backoff(started);
+            } else {
+                this.limit = Math.min(this.maxLimit, this.limit + 1 / this.limit);
+            }
+            this.usualLatency = this.usualLatency == 0 ? latency : this.usualLatency + LATENCY_SMOOTHING * (latency - this.usualLatency);
+        }
+    }
+
+    private void backoff(long started) {
+        // Requests sent before the last backoff were already over the new limit, so they don't count against it again
+        if (started - this.lastBackoff <= 0) {
+            return;
+        }
+        this.limit = Math.max(this.minLimit, this.limit * this.backoffRatio);
+        this.lastBackoff = System.nanoTime();
+        this.backoffs.mark();
+        logger.debug("Backing off Blue Button requests, limit is now {}", (int) this.limit);
+    }
+
+    private void pause(Duration delay) {
+        final Duration capped = delay.compareTo(this.maxRetryAfter) > 0 ? this.maxRetryAfter : delay;
+        final long until = System.nanoTime() + capped.toNanos();
+        if (until - this.pausedUntil > 0) {
+            this.pausedUntil = until;
+            logger.info("Blue Button asked us to retry after {}, holding back requests until then", capped);
+        }
+    }
+
+    private void scheduleResume(long delayNanos) {
+        if (this.resumeScheduled) {
+            return;
+        }
+        this.resumeScheduled = true;
+        CompletableFuture.delayedExecutor(delayNanos, TimeUnit.NANOSECONDS).execute(() -> {
+            synchronized (this) {
+                this.resumeScheduled = false;
+            }
+            drain();
+        });
+    }
+
+    private static boolean isThrottled(HttpResponse<?> response) {
+        return response.statusCode() == 429 || response.statusCode() >= 500;
+    }
+
+    /**
+     * Parse the Retry-After header, which is either a number of seconds, or an HTTP date
+     *
+     * @param response - {@link HttpResponse} to check
+     * @return - {@link Duration} to wait, empty if there's no header, or it can't be parsed
+     */
+    static Optional<Duration> retryAfter(HttpResponse<?> response) {
+        return response.headers().firstValue("Retry-After").flatMap(value -> {
+            try {
+                return Optional.of(Duration.ofSeconds(Math.max(0, Long.parseLong(value.trim()))));
+            } catch (NumberFormatException e) {
+                // Not a number of seconds, so try a date
+            }
+            try {
+                final Duration delay = Duration.between(Instant.now(), ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME));
+                return Optional.of(delay.isNegative() ? Duration.ZERO : delay);
+            } catch (DateTimeParseException e) {
+                logger.debug("Ignoring unparseable Retry-After header: {}", value);
+                return Optional.empty();
+            }
+        });
+    }
+}
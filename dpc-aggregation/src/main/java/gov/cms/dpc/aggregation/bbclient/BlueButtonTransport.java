@@ -0,0 +1,145 @@
+package gov.cms.dpc.aggregation.bbclient;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.typesafe.config.Config;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+
+import javax.net.ssl.SSLContext;
+import java.time.Duration;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Builds the HTTP clients used to talk to Blue Button, from the aggregation.bbclient.transport settings.
+ * <p>
+ * Exports go through the asynchronous {@link java.net.http.HttpClient}, whose requests are limited by the {@link BlueButtonLimiter}.
+ * It keeps up to maxConnections keep-alive connections, so parallel requests reuse existing TLS connections rather than doing a handshake each time,
+ * and closes them once they've been idle for idleTimeout, so we don't hold on to connections the server is about to close.
+ * The JDK only reads its pool settings from system properties, once, so they're set before the first client is built, unless they've been set explicitly, and apply to every client in the JVM.
+ * Responses are handled on a thread pool of the same size, whose threads go away while the client is idle.
+ * The pool is reported through the limiter, since every request it holds a connection for is one the limiter let through.
+ * <p>
+ * The blocking client, used by the HAPI generic client, has its own pool, with the same limits.
+ * New connections of either client resume cached TLS sessions, where the server allows it.
+ */
+class BlueButtonTransport {
+
+    private static final String METRIC_PREFIX = MetricRegistry.name(DefaultBlueButtonClient.class, "pool");
+    private static final String POOL_SIZE_PROPERTY = "jdk.httpclient.connectionPoolSize";
+    private static final String KEEP_ALIVE_PROPERTY = "jdk.httpclient.keepalive.timeout";
+
+    private final int maxConnections;
+    private final Duration connectTimeout;
+    private final Duration readTimeout;
+    private final Duration idleTimeout;
+    private final int sessionCacheSize;
+    private final Duration sessionTimeout;
+
+    BlueButtonTransport(Config config) {
+        final Config transport = config.getConfig("aggregation.bbclient.transport");
+        this.maxConnections = transport.getInt("maxConnections");
+        this.connectTimeout = transport.getDuration("connectTimeout");
+        this.readTimeout = transport.getDuration("readTimeout");
+        this.idleTimeout = transport.getDuration("idleTimeout");
+        this.sessionCacheSize = transport.getInt("tlsSessionCache.size");
+        this.sessionTimeout = transport.getDuration("tlsSessionCache.timeout");
+    }
+
+    /**
+     * Size the client session cache of the {@link SSLContext}, which is shared by every client built from it
+     *
+     * @param sslContext - {@link SSLContext} to configure
+     */
+    void configureSessionCache(SSLContext sslContext) {
+        sslContext.getClientSessionContext().setSessionCacheSize(this.sessionCacheSize);
+        sslContext.getClientSessionContext().setSessionTimeout((int) this.sessionTimeout.getSeconds());
+    }
+
+    /**
+     * Build a pooled, blocking client
+     *
+     * @param sslContext - {@link SSLContext} to use for HTTPS connections
+     * @return - {@link CloseableHttpClient}
+     */
+    CloseableHttpClient buildHttpClient(SSLContext sslContext) {
+        final PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(
+                RegistryBuilder.<ConnectionSocketFactory>create()
+                        .register("https", new SSLConnectionSocketFactory(sslContext))
+                        .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                        .build());
+        // Every request goes to the same server, so it can have the whole pool
+        connectionManager.setMaxTotal(this.maxConnections);
+        connectionManager.setDefaultMaxPerRoute(this.maxConnections);
+
+        final RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout((int) this.connectTimeout.toMillis())
+                .setSocketTimeout((int) this.readTimeout.toMillis())
+                .setConnectionRequestTimeout((int) this.connectTimeout.toMillis())
+                .build();
+
+        return HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .evictExpiredConnections()
+                .evictIdleConnections(this.idleTimeout.toMillis(), TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    /**
+     * Build a non-blocking client, and register gauges for its connection pool
+     *
+     * @param sslContext - {@link SSLContext} to use for HTTPS connections
+     * @param limiter    - {@link BlueButtonLimiter} the client's requests are sent through
+     * @param registry   - {@link MetricRegistry} to register pool metrics with
+     * @return - {@link java.net.http.HttpClient}
+     */
+    java.net.http.HttpClient buildAsyncClient(SSLContext sslContext, BlueButtonLimiter limiter, MetricRegistry registry) {
+        setIfAbsent(POOL_SIZE_PROPERTY, Integer.toString(this.maxConnections));
+        setIfAbsent(KEEP_ALIVE_PROPERTY, Long.toString(Math.max(1, this.idleTimeout.getSeconds())));
+
+        final AtomicInteger threads = new AtomicInteger();
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(this.maxConnections, this.maxConnections, this.idleTimeout.toMillis(), TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+            final Thread thread = new Thread(r, "bbclient-async-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+
+        registry.gauge(MetricRegistry.name(METRIC_PREFIX, "leased"), () -> (Gauge<Integer>) limiter::getInFlight);
+        registry.gauge(MetricRegistry.name(METRIC_PREFIX, "pending"), () -> (Gauge<Integer>) limiter::getWaiting);
+        registry.gauge(MetricRegistry.name(METRIC_PREFIX, "max"), () -> (Gauge<Integer>) () -> this.maxConnections);
+        registry.gauge(MetricRegistry.name(METRIC_PREFIX, "threads"), () -> (Gauge<Integer>) executor::getPoolSize);
+
+        return java.net.http.HttpClient.newBuilder()
+                .sslContext(sslContext)
+                .connectTimeout(this.connectTimeout)
+                .executor(executor)
+                .build();
+    }
+
+    /**
+     * How long to wait for a response, which the asynchronous client needs to set on each request
+     *
+     * @return - {@link Duration} read timeout
+     */
+    Duration getReadTimeout() {
+        return readTimeout;
+    }
+
+    private static void setIfAbsent(String property, String value) {
+        if (System.getProperty(property) == null) {
+            System.setProperty(property, value);
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package gov.cms.dpc.aggregation.bbclient;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.typesafe.config.Config;
+import gov.cms.dpc.common.models.ResourceType;
+import org.hl7.fhir.dstu3.model.Patient;
+import org.hl7.fhir.dstu3.model.Resource;
+
+import javax.inject.Inject;
+import java.time.OffsetDateTime;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Caches the beneficiaries fetched from Blue Button, so a beneficiary attributed to several providers is only fetched once.
+ * <p>
+ * Beneficiaries are kept encoded, for aggregation.bbclient.cache.ttl, up to aggregation.bbclient.cache.maxSize at a time, with the least recently used evicted first.
+ * Concurrent requests for a beneficiary which isn't cached are collapsed into a single upstream request, even when the cache itself is turned off.
+ * Failed requests aren't cached, so the next request for the beneficiary tries again.
+ * <p>
+ * Every request goes through {@link AsyncBlueButtonClient#requestEncodedFromServerAsync(List)}, so {@link Patient}s are only parsed for callers which ask for them.
+ * Requests for beneficiaries updated since a given time can't be answered from the cache, so they're passed straight through, and their results cached.
+ * Only Patients are cached, requests for other resource types are passed straight through.
+ */
+public class CachingBlueButtonClient implements BlueButtonClient, AsyncBlueButtonClient {
+
+    private final AsyncBlueButtonClient client;
+    private final Cache<String, byte[]> cache;
+    // Requests which have been sent upstream, but haven't completed yet
+    private final ConcurrentMap<String, CompletableFuture<byte[]>> inFlight;
+    private final Meter hits;
+    private final Meter misses;
+
+    @Inject
+    public CachingBlueButtonClient(DefaultBlueButtonClient client, Config config, MetricRegistry registry) {
+        this((AsyncBlueButtonClient) client, config, registry);
+    }
+
+    public CachingBlueButtonClient(AsyncBlueButtonClient client, Config config, MetricRegistry registry) {
+        this.client = client;
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(config.getLong("aggregation.bbclient.cache.maxSize"))
+                .expireAfterWrite(config.getDuration("aggregation.bbclient.cache.ttl"))
+                .build();
+        this.inFlight = new ConcurrentHashMap<>();
+        this.hits = registry.meter(MetricRegistry.name(CachingBlueButtonClient.class, "hits"));
+        this.misses = registry.meter(MetricRegistry.name(CachingBlueButtonClient.class, "misses"));
+        registry.gauge(MetricRegistry.name(CachingBlueButtonClient.class, "size"), () -> (Gauge<Long>) this.cache::size);
+    }
+
+    @Override
+    public Patient requestFHIRFromServer(String beneficiaryID) {
+        return await(requestFHIRFromServerAsync(beneficiaryID));
+    }
+
+    @Override
+    public Map<String, Patient> requestFHIRFromServer(List<String> beneficiaryIDs) {
+        return await(requestFHIRFromServerAsync(beneficiaryIDs));
+    }
+
+    @Override
+    public CompletableFuture<Patient> requestFHIRFromServerAsync(String beneficiaryID) {
+        // A dependent future, so the caller cancelling it doesn't cancel the shared request
+        return request(List.of(beneficiaryID))
+                .get(beneficiaryID)
+                .thenApply(resource -> ResourceEncoding.decode(Patient.class, resource));
+    }
+
+    @Override
+    public CompletableFuture<Map<String, Patient>> requestFHIRFromServerAsync(List<String> beneficiaryIDs) {
+        return requestEncodedFromServerAsync(beneficiaryIDs).thenApply(resources -> ResourceEncoding.decodeAll(Patient.class, resources));
+    }
+
+    @Override
+    public CompletableFuture<Map<String, byte[]>> requestEncodedFromServerAsync(List<String> beneficiaryIDs) {
+        // Callers only ever see dependent futures, so one of them cancelling doesn't cancel the shared requests
+        return BatchResults.collect(request(beneficiaryIDs));
+    }
+
+    @Override
+    public CompletableFuture<Map<String, List<Resource>>> requestResourcesFromServerAsync(ResourceType resourceType, List<String> beneficiaryIDs) {
+        if (resourceType == ResourceType.PATIENT) {
+            return AsyncBlueButtonClient.super.requestResourcesFromServerAsync(resourceType, beneficiaryIDs);
+        }
+        return this.client.requestResourcesFromServerAsync(resourceType, beneficiaryIDs);
+    }
+
+    @Override
+    public CompletableFuture<Map<String, List<byte[]>>> requestEncodedResourcesAsync(ResourceType resourceType, List<String> beneficiaryIDs, OffsetDateTime since) {
+        if (resourceType == ResourceType.PATIENT && since == null) {
+            return AsyncBlueButtonClient.super.requestEncodedResourcesAsync(resourceType, beneficiaryIDs, since);
+        }
+        if (resourceType == ResourceType.PATIENT) {
+            return this.client.requestEncodedResourcesAsync(resourceType, beneficiaryIDs, since)
+                    .thenApply(resources -> {
+                        // Beneficiaries which haven't been updated don't come back, so there's nothing to cache for them
+                        resources.forEach((beneficiaryID, patients) -> patients.forEach(patient -> this.cache.put(beneficiaryID, patient)));
+                        return resources;
+                    });
+        }
+        return this.client.requestEncodedResourcesAsync(resourceType, beneficiaryIDs, since);
+    }
+
+    /**
+     * Look up each of the beneficiaries, and request the ones which aren't cached or in flight, in a single upstream request
+     *
+     * @param beneficiaryIDs - beneficiaries to request
+     * @return - {@link Map} of beneficiary ID to the shared {@link CompletableFuture} for its encoded {@link Patient}
+     */
+    private Map<String, CompletableFuture<byte[]>> request(List<String> beneficiaryIDs) {
+        final Map<String, CompletableFuture<byte[]>> results = new LinkedHashMap<>();
+        final Map<String, CompletableFuture<byte[]>> fetches = new LinkedHashMap<>();
+        for (final String beneficiaryID : beneficiaryIDs) {
+            final CompletableFuture<byte[]> fetch = new CompletableFuture<>();
+            final CompletableFuture<byte[]> existing = claim(beneficiaryID, fetch);
+            if (existing == null) {
+                fetches.put(beneficiaryID, fetch);
+                results.put(beneficiaryID, fetch);
+            } else {
+                results.put(beneficiaryID, existing);
+            }
+        }
+        if (!fetches.isEmpty()) {
+            this.client.requestEncodedFromServerAsync(new ArrayList<>(fetches.keySet()))
+                    .whenComplete((resources, e) -> finishAll(fetches, resources, e));
+        }
+        return results;
+    }
+
+    /**
+     * Look up the beneficiary in the cache, or join a request for it which is already in flight.
+     *
+     * @param beneficiaryID - beneficiary to look up
+     * @param fetch         - {@link CompletableFuture} which the caller completes, if it needs to make the request itself
+     * @return - {@link CompletableFuture} {@link Patient} for the beneficiary, or {@code null} if the caller needs to make the request
+     */
+    private CompletableFuture<byte[]> claim(String beneficiaryID, CompletableFuture<byte[]> fetch) {
+        final byte[] cached = this.cache.getIfPresent(beneficiaryID);
+        if (cached != null) {
+            this.hits.mark();
+            return CompletableFuture.completedFuture(cached);
+        }
+        final CompletableFuture<byte[]> existing = this.inFlight.putIfAbsent(beneficiaryID, fetch);
+        if (existing != null) {
+            this.hits.mark();
+            return existing;
+        }
+        // A request which finished after we checked the cache will already have populated it
+        final byte[] raced = this.cache.getIfPresent(beneficiaryID);
+        if (raced != null) {
+            this.hits.mark();
+            this.inFlight.remove(beneficiaryID, fetch);
+            fetch.complete(raced);
+            return fetch;
+        }
+        this.misses.mark();
+        return null;
+    }
+
+    private void finish(String beneficiaryID, CompletableFuture<byte[]> fetch, byte[] resource, Throwable error) {
+        // Cache before leaving the in flight map, so there's no window where neither has the beneficiary
+        if (error == null) {
+            this.cache.put(beneficiaryID, resource);
+        }
+        this.inFlight.remove(beneficiaryID, fetch);
+        if (error == null) {
+            fetch.complete(resource);
+        } else {
+            fetch.completeExceptionally(error instanceof CompletionException && error.getCause() != null ? error.getCause() : error);
+        }
+    }
+
+    private void finishAll(Map<String, CompletableFuture<byte[]>> fetches, Map<String, byte[]> resources, Throwable error) {
+        fetches.forEach((beneficiaryID, fetch) -> {
+            if (error != null) {
+                finish(beneficiaryID, fetch, null, error);
+            } else if (resources.containsKey(beneficiaryID)) {
+                finish(beneficiaryID, fetch, resources.get(beneficiaryID), null);
+            } else {
+                finish(beneficiaryID, fetch, null, new BeneficiaryNotFoundException("Could not find beneficiary with ID: " + beneficiaryID,
+                        new IllegalStateException("Beneficiary was not returned by Blue Button")));
+            }
+        });
+    }
+
+    private static <T> T await(CompletableFuture<T> result) {
+        try {
+            return result.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof BlueButtonClientException) {
+                throw (BlueButtonClientException) e.getCause();
+            }
+            throw new BlueButtonClientException("Unable to fetch beneficiary", e.getCause());
+        }
+    }
+}
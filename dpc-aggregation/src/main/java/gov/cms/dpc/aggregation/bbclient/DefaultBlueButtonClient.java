@@ -2,12 +2,17 @@ package gov.cms.dpc.aggregation.bbclient;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
 import com.typesafe.config.Config;
+import gov.cms.dpc.common.models.ResourceType;
 import org.apache.http.client.HttpClient;
-import org.apache.http.impl.client.HttpClients;
 import org.apache.http.ssl.SSLContexts;
+import org.hl7.fhir.dstu3.model.Bundle;
 import org.hl7.fhir.dstu3.model.Patient;
+import org.hl7.fhir.dstu3.model.Resource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -18,19 +23,69 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.net.URLEncoder;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
 import java.security.*;
 import java.security.cert.CertificateException;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
-public class DefaultBlueButtonClient implements BlueButtonClient {
+/**
+ * Blue Button client, which authenticates to the server with mutual TLS, using the certificate and trust material from aggregation.bbclient.keyStore.
+ * <p>
+ * Blocking requests go through the HAPI generic client, asynchronous requests go through a {@link java.net.http.HttpClient}, which shares the same {@link SSLContext}.
+ * Both clients are built by the {@link BlueButtonTransport}, which sets up connection pooling, timeouts and TLS session reuse.
+ * <p>
+ * Batches of beneficiaries are fetched with a single Patient?_id=a,b,c search, following the next links of the result {@link Bundle}, if the server pages it.
+ * <p>
+ * Encoded beneficiaries are also kept in the {@link DiskResourceCache}, when it's turned on.
+ * The cached beneficiaries of a batch are revalidated together, with a single search for the ones updated since the earliest of their Last-Modified dates.
+ * Beneficiaries the search doesn't return haven't changed, so their cached bytes are returned without being parsed.
+ * A batch of one is revalidated with a conditional read instead, and entries without a Last-Modified date are fetched again, along with the uncached beneficiaries.
+ * Since a beneficiary which is removed from Blue Button is also missing from the search, it can be served from the cache until its entry expires, after aggregation.bbclient.diskCache.ttl, when it's fetched again.
+ * Beneficiaries updated since a given time are always searched for, with a _lastUpdated filter, so the server only returns the ones which have changed.
+ * <p>
+ * Other resource types (e.g. ExplanationOfBenefit) are searched for by beneficiary, with a separate search for each beneficiary in a batch, all of them in flight at once.
+ * They aren't kept in the {@link DiskResourceCache}.
+ * <p>
+ * Asynchronous requests are sent through the {@link BlueButtonLimiter}, which is shared by every client in the JVM, and adjusts how many of them are in flight at once, to how the server is coping.
+ */
+public class DefaultBlueButtonClient implements BlueButtonClient, AsyncBlueButtonClient {
 
     private static final Logger logger = LoggerFactory.getLogger(DefaultBlueButtonClient.class);
+    private static final String FHIR_JSON = "application/fhir+json";
+    private static final String PATIENT = "Patient";
 
     private URL serverBaseUrl;
     private IGenericClient client;
+    private FhirContext ctx;
+    private java.net.http.HttpClient asyncClient;
+    private BlueButtonTransport transport;
+    private DiskResourceCache diskCache;
+    private BlueButtonLimiter limiter;
+    private Meter notModified;
+    private Meter modified;
+
+    public DefaultBlueButtonClient(Config conf, MetricRegistry registry) {
+        this(conf, registry, new BlueButtonLimiter(conf, registry));
+    }
 
     @Inject
-    public DefaultBlueButtonClient(Config conf) {
+    DefaultBlueButtonClient(Config conf, MetricRegistry registry, BlueButtonLimiter limiter) {
+        this.limiter = limiter;
         String keyStoreType = conf.getString("aggregation.bbclient.keyStore.type");
         String defaultKeyStorePassword = conf.getString("aggregation.bbclient.keyStore.defaultPassword");
 
@@ -41,6 +96,10 @@ public class DefaultBlueButtonClient implements BlueButtonClient {
             throw new BlueButtonClientException("Malformed base URL for bluebutton server", ex);
         }
 
+        diskCache = new DiskResourceCache(conf);
+        notModified = registry.meter(MetricRegistry.name(DefaultBlueButtonClient.class, "diskCache", "notModified"));
+        modified = registry.meter(MetricRegistry.name(DefaultBlueButtonClient.class, "diskCache", "modified"));
+
         String keyStorePath = conf.getString("aggregation.bbclient.keyStore.location");
         if (keyStorePath == null || keyStorePath.isEmpty()) {
             throw new BlueButtonClientException("KeyStore location is empty, cannot find keyStore.",
@@ -58,12 +117,16 @@ public class DefaultBlueButtonClient implements BlueButtonClient {
                     .loadTrustMaterial(keyStore, null)
                     .build();
 
-            HttpClient mutualTlsHttpClient = HttpClients.custom().setSSLContext(sslContext).build();
-            FhirContext ctx = FhirContext.forDstu3();
+            transport = new BlueButtonTransport(conf);
+            transport.configureSessionCache(sslContext);
+            HttpClient mutualTlsHttpClient = transport.buildHttpClient(sslContext);
+            ctx = FhirContext.forDstu3();
 
             ctx.getRestfulClientFactory().setHttpClient(mutualTlsHttpClient);
             client = ctx.newRestfulGenericClient(serverBaseUrl.toString());
 
+            asyncClient = transport.buildAsyncClient(sslContext, limiter, registry);
+
         } catch (FileNotFoundException ex) {
             throw new BlueButtonClientException("Could not find keystore at location: " + keyStorePath, ex);
         } catch (KeyStoreException ex) {
@@ -91,12 +154,420 @@ public class DefaultBlueButtonClient implements BlueButtonClient {
             );
 
         } catch (ResourceNotFoundException ex) {
-            throw new BlueButtonClientException("Could not find beneficiary with ID: " + beneficiaryID, ex);
+            throw new BeneficiaryNotFoundException("Could not find beneficiary with ID: " + beneficiaryID, ex);
         }
 
         return patient;
     }
 
+    @Override
+    public Map<String, Patient> requestFHIRFromServer(List<String> beneficiaryIDs) {
+        final Map<String, Patient> patients = new HashMap<>();
+        try {
+            Bundle bundle = client.search()
+                    .forResource(Patient.class)
+                    .where(Patient.RES_ID.exactly().codes(beneficiaryIDs))
+                    .count(beneficiaryIDs.size())
+                    .returnBundle(Bundle.class)
+                    .execute();
+            collectPatients(bundle, patients);
+            while (bundle.getLink(Bundle.LINK_NEXT) != null) {
+                bundle = client.loadPage().next(bundle).execute();
+                collectPatients(bundle, patients);
+            }
+        } catch (BaseServerResponseException ex) {
+            throw new BlueButtonClientException(
+                    String.format("Unexpected response fetching %d beneficiaries from bluebutton server", beneficiaryIDs.size()),
+                    ex
+            );
+        }
+
+        return patients;
+    }
+
+    @Override
+    public CompletableFuture<Patient> requestFHIRFromServerAsync(String beneficiaryID) {
+        final HttpRequest request;
+        try {
+            request = buildRequest(new URL(serverBaseUrl, "Patient/" + beneficiaryID).toURI()).build();
+        } catch (MalformedURLException | URISyntaxException ex) {
+            return CompletableFuture.failedFuture(new BlueButtonClientException(
+                    "There was an error building the URL from the patientID: " + beneficiaryID,
+                    ex
+            ));
+        }
+
+        return send(request, HttpResponse.BodyHandlers.ofString())
+                .thenApply(response -> parsePatient(beneficiaryID, response));
+    }
+
+    @Override
+    public CompletableFuture<Map<String, Patient>> requestFHIRFromServerAsync(List<String> beneficiaryIDs) {
+        return searchPatients(beneficiaryIDs, null);
+    }
+
+    @Override
+    public CompletableFuture<Map<String, byte[]>> requestEncodedFromServerAsync(List<String> beneficiaryIDs) {
+        final Map<String, byte[]> resources = new ConcurrentHashMap<>();
+        final List<CompletableFuture<?>> requests = new ArrayList<>();
+        // A single beneficiary is a plain read, which is cheaper for the server than a search
+        if (beneficiaryIDs.size() == 1) {
+            final String beneficiaryID = beneficiaryIDs.get(0);
+            return readEncoded(beneficiaryID, diskCache.get(PATIENT, beneficiaryID).orElse(null))
+                    .thenApply(resource -> {
+                        resource.ifPresent(bytes -> resources.put(beneficiaryID, bytes));
+                        return resources;
+                    });
+        }
+
+        final Map<String, DiskResourceCache.Entry> cached = new LinkedHashMap<>();
+        final List<String> uncached = new ArrayList<>();
+        for (final String beneficiaryID : beneficiaryIDs) {
+            final Optional<DiskResourceCache.Entry> entry = diskCache.get(PATIENT, beneficiaryID);
+            if (entry.isPresent() && parseLastModified(entry.get()).isPresent()) {
+                cached.put(beneficiaryID, entry.get());
+            } else {
+                uncached.add(beneficiaryID);
+            }
+        }
+
+        if (!cached.isEmpty()) {
+            requests.add(revalidate(cached).thenAccept(resources::putAll));
+        }
+        if (uncached.size() == 1) {
+            final String beneficiaryID = uncached.get(0);
+            requests.add(readEncoded(beneficiaryID, null).thenAccept(resource -> resource.ifPresent(bytes -> resources.put(beneficiaryID, bytes))));
+        } else if (!uncached.isEmpty()) {
+            requests.add(searchPatients(uncached, null).thenAccept(patients -> patients.forEach((beneficiaryID, patient) -> resources.put(beneficiaryID, store(beneficiaryID, patient)))));
+        }
+
+        return CompletableFuture.allOf(requests.toArray(CompletableFuture[]::new)).thenApply(done -> resources);
+    }
+
+    @Override
+    public Map<String, List<Resource>> requestResourcesFromServer(ResourceType resourceType, List<String> beneficiaryIDs) {
+        if (resourceType == ResourceType.PATIENT) {
+            return BlueButtonClient.super.requestResourcesFromServer(resourceType, beneficiaryIDs);
+        }
+        final Map<String, List<Resource>> resources = new HashMap<>();
+        for (final String beneficiaryID : beneficiaryIDs) {
+            try {
+                final List<Resource> beneficiaryResources = new ArrayList<>();
+                Bundle bundle = client.search()
+                        .byUrl(new URL(serverBaseUrl, buildResourceSearchUrl(resourceType, beneficiaryID, null)).toString())
+                        .returnBundle(Bundle.class)
+                        .execute();
+                collectResources(bundle, resourceType, beneficiaryResources);
+                while (bundle.getLink(Bundle.LINK_NEXT) != null) {
+                    bundle = client.loadPage().next(bundle).execute();
+                    collectResources(bundle, resourceType, beneficiaryResources);
+                }
+                resources.put(beneficiaryID, beneficiaryResources);
+            } catch (MalformedURLException | BaseServerResponseException ex) {
+                // Left out, so the caller can decide what to do about it
+                logger.debug("Unable to fetch {} resources for beneficiary {}", resourceType.getFhirName(), beneficiaryID, ex);
+            }
+        }
+
+        return resources;
+    }
+
+    @Override
+    public CompletableFuture<Map<String, List<Resource>>> requestResourcesFromServerAsync(ResourceType resourceType, List<String> beneficiaryIDs) {
+        if (resourceType == ResourceType.PATIENT) {
+            return AsyncBlueButtonClient.super.requestResourcesFromServerAsync(resourceType, beneficiaryIDs);
+        }
+        return searchEachBeneficiary(resourceType, beneficiaryIDs, null, resources -> resources);
+    }
+
+    @Override
+    public CompletableFuture<Map<String, List<byte[]>>> requestEncodedResourcesAsync(ResourceType resourceType, List<String> beneficiaryIDs, OffsetDateTime since) {
+        if (resourceType == ResourceType.PATIENT && since == null) {
+            return AsyncBlueButtonClient.super.requestEncodedResourcesAsync(resourceType, beneficiaryIDs, since);
+        }
+        if (resourceType == ResourceType.PATIENT) {
+            return searchPatients(beneficiaryIDs, since)
+                    .thenApply(patients -> {
+                        // A failed search fails the whole batch, so once it's succeeded, any beneficiary it didn't return hasn't been updated
+                        final Map<String, List<byte[]>> resources = new HashMap<>();
+                        for (final String beneficiaryID : beneficiaryIDs) {
+                            final Patient patient = patients.get(beneficiaryID);
+                            resources.put(beneficiaryID, patient == null ? List.of() : List.of(store(beneficiaryID, patient)));
+                        }
+                        return resources;
+                    });
+        }
+        return searchEachBeneficiary(resourceType, beneficiaryIDs, since, resources -> resources
+                .stream()
+                .map(ResourceEncoding::encode)
+                .collect(Collectors.toList()));
+    }
+
+    /**
+     * Search for the resources of each beneficiary at the same time.
+     * Blue Button only supports searching for a single beneficiary's resources, so unlike Patients, they can't be fetched in one request.
+     *
+     * @return - {@link CompletableFuture} {@link Map} of beneficiary ID to its converted resources, beneficiaries whose search failed are left out, unless they all failed
+     */
+    private <T> CompletableFuture<Map<String, T>> searchEachBeneficiary(ResourceType resourceType, List<String> beneficiaryIDs, OffsetDateTime since, Function<List<Resource>, T> converter) {
+        final Map<String, CompletableFuture<T>> searches = new HashMap<>();
+        for (final String beneficiaryID : beneficiaryIDs) {
+            searches.put(beneficiaryID, searchResources(resourceType, beneficiaryID, since)
+                    .thenApply(converter)
+                    .whenComplete((resources, e) -> {
+                        if (e != null) {
+                            logger.debug("Unable to fetch {} resources for beneficiary {}", resourceType.getFhirName(), beneficiaryID, e);
+                        }
+                    }));
+        }
+        return BatchResults.collect(searches);
+    }
+
+    /**
+     * Read a single encoded beneficiary, revalidating the cached copy, if there is one
+     *
+     * @return - {@link CompletableFuture} encoded {@link Patient}, empty if the beneficiary couldn't be found
+     */
+    private CompletableFuture<Optional<byte[]>> readEncoded(String beneficiaryID, DiskResourceCache.Entry cached) {
+        final HttpRequest.Builder request;
+        try {
+            request = buildRequest(new URL(serverBaseUrl, "Patient/" + beneficiaryID).toURI());
+        } catch (MalformedURLException | URISyntaxException ex) {
+            return CompletableFuture.failedFuture(new BlueButtonClientException(
+                    "There was an error building the URL from the patientID: " + beneficiaryID,
+                    ex
+            ));
+        }
+        if (cached != null && !cached.getEtag().isEmpty()) {
+            request.header("If-None-Match", cached.getEtag());
+        }
+        if (cached != null && !cached.getLastModified().isEmpty()) {
+            request.header("If-Modified-Since", cached.getLastModified());
+        }
+
+        return send(request.build(), HttpResponse.BodyHandlers.ofByteArray())
+                .thenApply(response -> {
+                    if (response.statusCode() == 304 && cached != null) {
+                        notModified.mark();
+                        return Optional.of(cached.getResource());
+                    }
+                    if (response.statusCode() == 404) {
+                        diskCache.remove(PATIENT, beneficiaryID);
+                        return Optional.empty();
+                    }
+                    checkResponse(response, String.format("Unexpected response fetching beneficiary %s from bluebutton server", beneficiaryID));
+                    if (cached != null) {
+                        modified.mark();
+                    }
+                    final byte[] resource = compact(response.body());
+                    diskCache.put(PATIENT, beneficiaryID, new DiskResourceCache.Entry(resource,
+                            response.headers().firstValue("ETag").orElse(null),
+                            response.headers().firstValue("Last-Modified").orElse(null)));
+                    return Optional.of(resource);
+                });
+    }
+
+    /**
+     * Revalidate cached beneficiaries with a single search for the ones which have been updated since the earliest of their Last-Modified dates.
+     * Beneficiaries last modified after that date, which haven't changed since they were cached, are returned by the search as well, in which case their bytes are unchanged.
+     *
+     * @return - {@link CompletableFuture} {@link Map} of beneficiary ID to encoded {@link Patient}
+     */
+    private CompletableFuture<Map<String, byte[]>> revalidate(Map<String, DiskResourceCache.Entry> cached) {
+        final OffsetDateTime oldest = cached.values()
+                .stream()
+                .map(entry -> parseLastModified(entry).orElseThrow())
+                .min(Comparator.naturalOrder())
+                .orElseThrow();
+        return searchPatients(new ArrayList<>(cached.keySet()), oldest)
+                .thenApply(updated -> {
+                    final Map<String, byte[]> resources = new HashMap<>();
+                    cached.forEach((beneficiaryID, entry) -> {
+                        final Patient patient = updated.get(beneficiaryID);
+                        final byte[] resource = patient == null ? entry.getResource() : store(beneficiaryID, patient);
+                        if (Arrays.equals(resource, entry.getResource())) {
+                            notModified.mark();
+                        } else {
+                            modified.mark();
+                        }
+                        resources.put(beneficiaryID, resource);
+                    });
+                    return resources;
+                });
+    }
+
+    /**
+     * Parse the Last-Modified date of a cached beneficiary
+     *
+     * @return - {@link Optional} {@link OffsetDateTime}, empty if the entry doesn't have one, or it can't be parsed
+     */
+    private static Optional<OffsetDateTime> parseLastModified(DiskResourceCache.Entry entry) {
+        if (entry.getLastModified().isEmpty()) {
+            return Optional.empty();
+        }
+        try {
+            return Optional.of(OffsetDateTime.parse(entry.getLastModified(), DateTimeFormatter.RFC_1123_DATE_TIME));
+        } catch (DateTimeParseException e) {
+            logger.debug("Ignoring unparseable Last-Modified date: {}", entry.getLastModified());
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Encode a beneficiary from a search, and cache it with the validators from its metadata, since search results don't have their own headers
+     */
+    private byte[] store(String beneficiaryID, Patient patient) {
+        final byte[] resource = ResourceEncoding.encode(patient);
+        final String versionId = patient.getMeta().getVersionId();
+        final Date lastUpdated = patient.getMeta().getLastUpdated();
+        diskCache.put(PATIENT, beneficiaryID, new DiskResourceCache.Entry(resource,
+                versionId == null ? null : String.format("W/\"%s\"", versionId),
+                lastUpdated == null ? null : DateTimeFormatter.RFC_1123_DATE_TIME.format(lastUpdated.toInstant().atZone(ZoneOffset.UTC))));
+        return resource;
+    }
+
+    /**
+     * Exports have a resource per line, so re-encode any response which the server has pretty printed
+     */
+    private static byte[] compact(byte[] resource) {
+        for (final byte b : resource) {
+            if (b == '\n' || b == '\r') {
+                return ResourceEncoding.encode(ResourceEncoding.decode(Patient.class, resource));
+            }
+        }
+        return resource;
+    }
+
+    /**
+     * Search for the beneficiaries, optionally only the ones which have been updated since the given time
+     */
+    private CompletableFuture<Map<String, Patient>> searchPatients(List<String> beneficiaryIDs, OffsetDateTime since) {
+        final String ids = beneficiaryIDs
+                .stream()
+                .map(beneficiaryID -> URLEncoder.encode(beneficiaryID, StandardCharsets.UTF_8))
+                .collect(Collectors.joining(","));
+        final String lastUpdated = formatLastUpdated(since);
+        final URI searchUri;
+        try {
+            searchUri = new URL(serverBaseUrl, String.format("Patient?_id=%s&_count=%d%s", ids, beneficiaryIDs.size(), lastUpdated)).toURI();
+        } catch (MalformedURLException | URISyntaxException ex) {
+            return CompletableFuture.failedFuture(new BlueButtonClientException(
+                    "There was an error building the search URL for beneficiaries: " + ids,
+                    ex
+            ));
+        }
+
+        final Map<String, Patient> patients = new HashMap<>();
+        return requestPages(searchUri, String.format("Unexpected response fetching %d beneficiaries from bluebutton server", beneficiaryIDs.size()), bundle -> collectPatients(bundle, patients))
+                .thenApply(done -> patients);
+    }
+
+    /**
+     * Search for the resources of the given type which belong to a beneficiary, optionally only the ones which have been updated since the given time
+     */
+    private CompletableFuture<List<Resource>> searchResources(ResourceType resourceType, String beneficiaryID, OffsetDateTime since) {
+        final URI searchUri;
+        try {
+            searchUri = new URL(serverBaseUrl, buildResourceSearchUrl(resourceType, beneficiaryID, since)).toURI();
+        } catch (MalformedURLException | URISyntaxException ex) {
+            return CompletableFuture.failedFuture(new BlueButtonClientException(
+                    String.format("There was an error building the %s search URL for beneficiary: %s", resourceType.getFhirName(), beneficiaryID),
+                    ex
+            ));
+        }
+
+        final List<Resource> resources = new ArrayList<>();
+        return requestPages(searchUri, String.format("Unexpected response fetching %s resources for beneficiary %s from bluebutton server", resourceType.getFhirName(), beneficiaryID),
+                bundle -> collectResources(bundle, resourceType, resources))
+                .thenApply(done -> resources);
+    }
+
+    /**
+     * Fetch a page of search results, and then the pages which follow it, handing each of them to the collector
+     */
+    private CompletableFuture<Void> requestPages(URI pageUri, String errorMessage, Consumer<Bundle> collector) {
+        return send(buildRequest(pageUri).build(), HttpResponse.BodyHandlers.ofString())
+                .thenCompose(response -> {
+                    checkResponse(response, errorMessage);
+                    final Bundle bundle = ctx.newJsonParser().parseResource(Bundle.class, response.body());
+                    collector.accept(bundle);
+                    final Bundle.BundleLinkComponent next = bundle.getLink(Bundle.LINK_NEXT);
+                    if (next == null) {
+                        return CompletableFuture.completedFuture(null);
+                    }
+                    return requestPages(URI.create(next.getUrl()), errorMessage, collector);
+                });
+    }
+
+    private <T> CompletableFuture<HttpResponse<T>> send(HttpRequest request, HttpResponse.BodyHandler<T> bodyHandler) {
+        return limiter.send(() -> asyncClient.sendAsync(request, bodyHandler));
+    }
+
+    private HttpRequest.Builder buildRequest(URI uri) {
+        return HttpRequest.newBuilder(uri)
+                .header("Accept", FHIR_JSON)
+                .timeout(transport.getReadTimeout())
+                .GET();
+    }
+
+    private Patient parsePatient(String beneficiaryID, HttpResponse<String> response) {
+        if (response.statusCode() == 404) {
+            throw new BeneficiaryNotFoundException("Could not find beneficiary with ID: " + beneficiaryID,
+                    new IllegalStateException("HTTP 404")
+            );
+        }
+        checkResponse(response, String.format("Unexpected response fetching beneficiary %s from bluebutton server", beneficiaryID));
+        return ctx.newJsonParser().parseResource(Patient.class, response.body());
+    }
+
+    private static void checkResponse(HttpResponse<?> response, String message) {
+        if (response.statusCode() >= 400) {
+            throw new BlueButtonClientException(message, new IllegalStateException("HTTP " + response.statusCode()));
+        }
+    }
+
+    private static void collectPatients(Bundle bundle, Map<String, Patient> patients) {
+        for (final Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            final Resource resource = entry.getResource();
+            // Search results can also include an OperationOutcome, with any warnings from the server
+            if (resource instanceof Patient) {
+                patients.put(resource.getIdElement().getIdPart(), (Patient) resource);
+            }
+        }
+    }
+
+    private static void collectResources(Bundle bundle, ResourceType resourceType, List<Resource> resources) {
+        for (final Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            final Resource resource = entry.getResource();
+            if (resource != null && resource.getResourceType().name().equals(resourceType.getFhirName())) {
+                resources.add(resource);
+            }
+        }
+    }
+
+    /**
+     * Build the search for a beneficiary's resources, relative to the server base URL, e.g. ExplanationOfBenefit?patient=Patient/123
+     */
+    private static String buildResourceSearchUrl(ResourceType resourceType, String beneficiaryID, OffsetDateTime since) {
+        final String parameter;
+        switch (resourceType) {
+            case EXPLANATION_OF_BENEFIT:
+                parameter = "patient";
+                break;
+            case COVERAGE:
+                parameter = "beneficiary";
+                break;
+            default:
+                throw new IllegalArgumentException(String.format("%s resources are not searched by beneficiary", resourceType.getFhirName()));
+        }
+        return String.format("%s?%s=%s%s", resourceType.getFhirName(), parameter,
+                URLEncoder.encode("Patient/" + beneficiaryID, StandardCharsets.UTF_8), formatLastUpdated(since));
+    }
+
+    private static String formatLastUpdated(OffsetDateTime since) {
+        return since == null ? "" : "&_lastUpdated=ge" + URLEncoder.encode(since.format(DateTimeFormatter.ISO_OFFSET_DATE_TIME), StandardCharsets.UTF_8);
+    }
+
     private String buildSearchUrl(String beneficiaryID) throws MalformedURLException {
         return new URL(serverBaseUrl, "Patient/" + beneficiaryID).toString();
     }
@@ -0,0 +1,260 @@
+package gov.cms.dpc.aggregation.bbclient;
+
+import com.typesafe.config.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Keeps Blue Button responses on disk, so they survive a restart and can be revalidated with a conditional request, rather than fetched again.
+ * <p>
+ * The cache is off unless aggregation.bbclient.diskCache.location is set.
+ * The directory holds beneficiary data, so it's created readable only by the owner of the process (0700), and is tightened to that if it already exists.
+ * Each resource is stored in its own file, at {location}/{resourceType}/{SHA-256 of its ID}, along with the ETag and Last-Modified date it was served with, so IDs don't show up in file names.
+ * Files are replaced atomically, so a crash part way through a write leaves the previous entry in place.
+ * The cache is only an optimization, so failing to read or write an entry is logged and treated as a miss.
+ * <p>
+ * Entries written more than aggregation.bbclient.diskCache.ttl ago are treated as a miss, which bounds how long a resource that's been removed upstream can still be served.
+ * {@link DiskResourceCache#sweep()} removes them from disk, along with, oldest first, any entries which take the cache over aggregation.bbclient.diskCache.maxSize.
+ */
+public class DiskResourceCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(DiskResourceCache.class);
+    // Written at the start of each entry, so the format can be changed without misreading older entries
+    private static final int FORMAT_VERSION = 1;
+
+    private final Path location;
+    private final Duration ttl;
+    private final long maxSize;
+
+    /**
+     * A cached resource, and the validators to revalidate it with
+     */
+    static class Entry {
+
+        private final byte[] resource;
+        private final String etag;
+        private final String lastModified;
+
+        Entry(byte[] resource, String etag, String lastModified) {
+            this.resource = resource;
+            this.etag = etag == null ? "" : etag;
+            this.lastModified = lastModified == null ? "" : lastModified;
+        }
+
+        byte[] getResource() {
+            return resource;
+        }
+
+        /**
+         * @return - ETag the resource was served with, empty if it didn't have one
+         */
+        String getEtag() {
+            return etag;
+        }
+
+        /**
+         * @return - Last-Modified date the resource was served with, as an HTTP date, empty if it didn't have one
+         */
+        String getLastModified() {
+            return lastModified;
+        }
+    }
+
+    public DiskResourceCache(Config config) {
+        final String path = config.getString("aggregation.bbclient.diskCache.location");
+        this.location = path.isEmpty() ? null : createDirectory(Paths.get(path));
+        this.ttl = config.getDuration("aggregation.bbclient.diskCache.ttl");
+        this.maxSize = config.getBytes("aggregation.bbclient.diskCache.maxSize");
+    }
+
+    boolean isEnabled() {
+        return this.location != null;
+    }
+
+    Optional<Entry> get(String resourceType, String id) {
+        if (!isEnabled()) {
+            return Optional.empty();
+        }
+        final Path file = resolve(resourceType, id);
+        try (DataInputStream input = new DataInputStream(Files.newInputStream(file))) {
+            if (Files.getLastModifiedTime(file).toInstant().isBefore(Instant.now().minus(this.ttl))) {
+                logger.debug("Ignoring cached {} {}, which has expired", resourceType, id);
+                return Optional.empty();
+            }
+            if (input.readInt() != FORMAT_VERSION) {
+                logger.debug("Ignoring cached {} {} written in an older format", resourceType, id);
+                return Optional.empty();
+            }
+            final String etag = input.readUTF();
+            final String lastModified = input.readUTF();
+            return Optional.of(new Entry(input.readAllBytes(), etag, lastModified));
+        } catch (NoSuchFileException e) {
+            return Optional.empty();
+        } catch (IOException e) {
+            logger.warn("Unable to read cached {} {}, discarding it", resourceType, id, e);
+            remove(resourceType, id);
+            return Optional.empty();
+        }
+    }
+
+    void put(String resourceType, String id, Entry entry) {
+        if (!isEnabled()) {
+            return;
+        }
+        final Path file = resolve(resourceType, id);
+        Path temp = null;
+        try {
+            // Only the resource type's directory, the cache directory itself is created, with its permissions, up front
+            if (!Files.isDirectory(file.getParent())) {
+                Files.createDirectory(file.getParent());
+            }
+            temp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+            try (DataOutputStream output = new DataOutputStream(Files.newOutputStream(temp))) {
+                output.writeInt(FORMAT_VERSION);
+                output.writeUTF(entry.getEtag());
+                output.writeUTF(entry.getLastModified());
+                output.write(entry.getResource());
+            }
+            Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            logger.warn("Unable to cache {} {}", resourceType, id, e);
+            if (temp != null) {
+                temp.toFile().delete();
+            }
+        }
+    }
+
+    void remove(String resourceType, String id) {
+        if (!isEnabled()) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(resolve(resourceType, id));
+        } catch (IOException e) {
+            logger.warn("Unable to remove cached {} {}", resourceType, id, e);
+        }
+    }
+
+    /**
+     * Remove expired entries, and then the oldest entries, until the cache fits within its maximum size.
+     * Temporary files left behind by a crash part way through a write are removed along with them.
+     *
+     * @return - number of entries removed
+     */
+    public int sweep() {
+        if (!isEnabled() || !Files.isDirectory(this.location)) {
+            return 0;
+        }
+        final Map<Path, FileTime> entries;
+        // Entries are one level down, under their resource type, anything else in the directory isn't ours
+        try (Stream<Path> files = Files.walk(this.location, 2)) {
+            entries = files
+                    .filter(file -> this.location.relativize(file).getNameCount() == 2 && Files.isRegularFile(file))
+                    .collect(Collectors.toMap(file -> file, DiskResourceCache::lastModified));
+        } catch (IOException | UncheckedIOException e) {
+            logger.warn("Unable to list disk cache {}", this.location, e);
+            return 0;
+        }
+
+        final Instant cutoff = Instant.now().minus(this.ttl);
+        final List<Path> oldestFirst = entries.keySet()
+                .stream()
+                .sorted(Comparator.comparing(entries::get))
+                .collect(Collectors.toList());
+        long cacheSize = oldestFirst.stream().mapToLong(DiskResourceCache::size).sum();
+        int removed = 0;
+        for (final Path file : oldestFirst) {
+            if (cacheSize <= this.maxSize && entries.get(file).toInstant().isAfter(cutoff)) {
+                break;
+            }
+            final long size = size(file);
+            try {
+                Files.deleteIfExists(file);
+                cacheSize -= size;
+                removed++;
+            } catch (IOException e) {
+                logger.warn("Unable to remove cached file {}", file, e);
+            }
+        }
+        if (removed > 0) {
+            logger.debug("Removed {} entries from disk cache, which is now {} bytes", removed, cacheSize);
+        }
+        return removed;
+    }
+
+    Path resolve(String resourceType, String id) {
+        // IDs come from rosters, hashing them keeps them out of the file names, and makes sure they can't escape the cache directory
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every JVM has to support SHA-256
+            throw new IllegalStateException(e);
+        }
+        final StringBuilder name = new StringBuilder();
+        for (final byte b : digest.digest(id.getBytes(StandardCharsets.UTF_8))) {
+            name.append(String.format("%02x", b));
+        }
+        return this.location.resolve(resourceType).resolve(name.toString());
+    }
+
+    /**
+     * Create the cache directory, or restrict an existing one, so it can only be read by the owner of the process
+     *
+     * @return - {@link Path} of the directory, {@code null} if it couldn't be set up, which turns off the cache
+     */
+    private static Path createDirectory(Path directory) {
+        final Set<PosixFilePermission> ownerOnly = PosixFilePermissions.fromString("rwx------");
+        final boolean posix = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+        try {
+            if (!Files.isDirectory(directory)) {
+                if (posix) {
+                    Files.createDirectories(directory, PosixFilePermissions.asFileAttribute(ownerOnly));
+                } else {
+                    Files.createDirectories(directory);
+                }
+            }
+            if (posix && !Files.getPosixFilePermissions(directory).equals(ownerOnly)) {
+                logger.warn("Restricting disk cache {} to its owner", directory);
+                Files.setPosixFilePermissions(directory, ownerOnly);
+            }
+            return directory;
+        } catch (IOException e) {
+            logger.error("Unable to create disk cache {}, turning it off", directory, e);
+            return null;
+        }
+    }
+
+    private static FileTime lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    private static long size(Path file) {
+        try {
+            return Files.size(file);
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+}
@@ -3,7 +3,9 @@ package gov.cms.dpc.aggregation.bbclient;
 
 import org.hl7.fhir.dstu3.model.Patient;
 
-public class MockBlueButtonClient implements BlueButtonClient {
+import java.util.concurrent.CompletableFuture;
+
+public class MockBlueButtonClient implements BlueButtonClient, AsyncBlueButtonClient {
 
     public MockBlueButtonClient(){
 
@@ -13,4 +15,9 @@ public class MockBlueButtonClient implements BlueButtonClient {
         // TODO
         return null;
     }
+
+    @Override
+    public CompletableFuture<Patient> requestFHIRFromServerAsync(String beneficiaryID) {
+        return CompletableFuture.completedFuture(requestFHIRFromServer(beneficiaryID));
+    }
 }
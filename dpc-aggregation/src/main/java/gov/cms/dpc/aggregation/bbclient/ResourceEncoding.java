@@ -0,0 +1,81 @@
+package gov.cms.dpc.aggregation.bbclient;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Converts between Blue Button resources and the encoded JSON which is cached and written to exports.
+ * <p>
+ * Resources are encoded straight to UTF-8, through a buffer which each thread reuses, so the only copy made is the returned array.
+ */
+public final class ResourceEncoding {
+
+    // Expensive to create, but thread-safe, so it's shared
+    private static final FhirContext ctx = FhirContext.forDstu3();
+    // Buffers which have grown past this, for an unusually large resource, aren't kept for the next one
+    private static final int MAX_RETAINED_BUFFER = 1024 * 1024;
+    private static final ThreadLocal<EncodingBuffer> buffers = ThreadLocal.withInitial(EncodingBuffer::new);
+
+    private ResourceEncoding() {
+        // Not used
+    }
+
+    public static byte[] encode(IBaseResource resource) {
+        final EncodingBuffer buffer = buffers.get();
+        boolean reusable = false;
+        try {
+            ctx.newJsonParser().encodeResourceToWriter(resource, buffer.writer);
+            buffer.writer.flush();
+            final byte[] encoded = buffer.toByteArray();
+            reusable = buffer.capacity() <= MAX_RETAINED_BUFFER;
+            return encoded;
+        } catch (IOException e) {
+            // Writing to memory doesn't fail
+            throw new UncheckedIOException(e);
+        } finally {
+            if (reusable) {
+                buffer.reset();
+            } else {
+                // The writer may still hold part of a resource which failed to encode, so start again with a new one
+                buffers.remove();
+            }
+        }
+    }
+
+    static <T extends IBaseResource> Map<String, byte[]> encodeAll(Map<String, T> resources) {
+        final Map<String, byte[]> encoded = new HashMap<>();
+        resources.forEach((id, resource) -> encoded.put(id, encode(resource)));
+        return encoded;
+    }
+
+    static <T extends IBaseResource> T decode(Class<T> type, byte[] resource) {
+        return ctx.newJsonParser().parseResource(type, new String(resource, StandardCharsets.UTF_8));
+    }
+
+    static <T extends IBaseResource> Map<String, T> decodeAll(Class<T> type, Map<String, byte[]> resources) {
+        final Map<String, T> decoded = new HashMap<>();
+        resources.forEach((id, resource) -> decoded.put(id, decode(type, resource)));
+        return decoded;
+    }
+
+    private static final class EncodingBuffer extends ByteArrayOutputStream {
+        private final Writer writer = new OutputStreamWriter(this, StandardCharsets.UTF_8);
+
+        EncodingBuffer() {
+            super(8192);
+        }
+
+        int capacity() {
+            return buf.length;
+        }
+    }
+}
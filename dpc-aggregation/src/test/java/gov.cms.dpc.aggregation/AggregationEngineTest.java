@@ -0,0 +1,508 @@
+package gov.cms.dpc.aggregation;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import com.codahale.metrics.MetricRegistry;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import gov.cms.dpc.aggregation.bbclient.AsyncBlueButtonClient;
+import gov.cms.dpc.aggregation.bbclient.BlueButtonClient;
+import gov.cms.dpc.aggregation.bbclient.BlueButtonClientException;
+import gov.cms.dpc.common.models.ExportCompression;
+import gov.cms.dpc.common.models.JobModel;
+import gov.cms.dpc.common.models.ResourceType;
+import gov.cms.dpc.queue.JobOutput;
+import gov.cms.dpc.queue.JobProgress;
+import gov.cms.dpc.queue.JobStatus;
+import gov.cms.dpc.queue.MemoryQueue;
+import org.hl7.fhir.dstu3.model.Coverage;
+import org.hl7.fhir.dstu3.model.ExplanationOfBenefit;
+import org.hl7.fhir.dstu3.model.OperationOutcome;
+import org.hl7.fhir.dstu3.model.Patient;
+import org.hl7.fhir.dstu3.model.Resource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AggregationEngineTest {
+
+    private static final Set<String> BENEFICIARIES = IntStream.range(0, 10)
+            .mapToObj(i -> String.format("%02d", i))
+            .collect(Collectors.toSet());
+
+    private Path exportPath;
+    private MemoryQueue queue;
+    // Runs the blocking test clients
+    private ExecutorService fetchExecutor;
+    private MetricRegistry registry;
+
+    @BeforeEach
+    void setup() throws IOException {
+        exportPath = Files.createTempDirectory("dpc-exports");
+        fetchExecutor = Executors.newCachedThreadPool();
+        queue = new MemoryQueue();
+        registry = new MetricRegistry();
+    }
+
+    @AfterEach
+    void cleanup() throws IOException {
+        fetchExecutor.shutdownNow();
+        try (Stream<Path> files = Files.walk(exportPath)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    void testParallelFetch() throws Exception {
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        final UUID jobID = runJob("parallelism = 3, batchSize = 1", beneficiaryID -> {
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                inFlight.decrementAndGet();
+            }
+            return patient(beneficiaryID);
+        });
+
+        assertAll(() -> assertEquals(JobStatus.COMPLETED, queue.getJobStatus(jobID).orElseThrow(), "Should complete job"),
+                () -> assertTrue(maxInFlight.get() > 1, "Should fetch beneficiaries in parallel"),
+                () -> assertTrue(maxInFlight.get() <= 3, "Should not exceed in flight limit"),
+                () -> assertEquals(BENEFICIARIES.stream().sorted().collect(Collectors.toList()), readExport(jobID), "Should write beneficiaries in sorted order"));
+    }
+
+    @Test
+    void testWriteMetrics() throws Exception {
+        // Buffer is smaller than some of the resources, so they have to be written straight through
+        final UUID jobID = runJob("parallelism = 1", ConfigFactory.parseString("aggregation.export.bufferSize = 64"), new JobModel("test-provider", BENEFICIARIES, List.of(ResourceType.PATIENT), null, OffsetDateTime.now(ZoneOffset.UTC)), beneficiaryID -> {
+            final Patient patient = patient(beneficiaryID);
+            if (Integer.parseInt(beneficiaryID) % 2 == 0) {
+                patient.addName().setFamily("x".repeat(100));
+            }
+            return patient;
+        });
+
+        long size = 0;
+        for (final Path part : listParts(jobID, ResourceType.PATIENT)) {
+            size += Files.size(part);
+        }
+        final long written = size;
+        assertAll(() -> assertEquals(BENEFICIARIES.stream().sorted().collect(Collectors.toList()), readExport(jobID), "Should write every beneficiary"),
+                () -> assertEquals(written, queue.getJobProgress(jobID).orElseThrow().getBytesWritten(), "Should report bytes written"),
+                () -> assertEquals(written, registry.meter("gov.cms.dpc.aggregation.AggregationEngine.export.bytes").getCount(), "Should meter bytes written"),
+                () -> assertEquals(BENEFICIARIES.size(), registry.meter("gov.cms.dpc.aggregation.AggregationEngine.export.resources").getCount(), "Should meter resources written"));
+    }
+
+    @Test
+    void testInterruptedWrite() throws Exception {
+        queue = new MemoryQueue() {
+            private boolean interrupted;
+
+            @Override
+            public synchronized void updateProgress(UUID jobID, JobProgress progress) {
+                super.updateProgress(jobID, progress);
+                // Simulate being shut down part way through writing the export, which closes the file channel
+                if (!interrupted && progress.getFetched() > 0) {
+                    interrupted = true;
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        // Holding up the first beneficiary gets us past the first progress report, and a tiny buffer means every resource is written straight to the file
+        final UUID jobID = runJob("parallelism = 1", ConfigFactory.parseString("aggregation.export.bufferSize = 16"), new JobModel("test-provider", BENEFICIARIES, List.of(ResourceType.PATIENT), null, OffsetDateTime.now(ZoneOffset.UTC)), beneficiaryID -> {
+            if (beneficiaryID.equals("00")) {
+                try {
+                    Thread.sleep(1100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return patient(beneficiaryID);
+        });
+
+        assertAll(() -> assertEquals(JobStatus.COMPLETED, queue.getJobStatus(jobID).orElseThrow(), "Should requeue interrupted job, rather than failing it"),
+                () -> assertEquals(BENEFICIARIES.stream().sorted().collect(Collectors.toList()), readExport(jobID), "Should write every beneficiary on the next attempt"));
+    }
+
+    @Test
+    void testBatchedFetch() throws Exception {
+        final List<List<String>> batches = Collections.synchronizedList(new ArrayList<>());
+        final UUID jobID = runJob("batchSize = 4, onFailure = SKIP", new BlueButtonClient() {
+            @Override
+            public Patient requestFHIRFromServer(String beneficiaryID) {
+                batches.add(List.of(beneficiaryID));
+                return patient(beneficiaryID);
+            }
+
+            @Override
+            public Map<String, Patient> requestFHIRFromServer(List<String> beneficiaryIDs) {
+                batches.add(List.copyOf(beneficiaryIDs));
+                // Leave one out, as if Blue Button didn't have it
+                return beneficiaryIDs
+                        .stream()
+                        .filter(beneficiaryID -> !beneficiaryID.equals("05"))
+                        .collect(Collectors.toMap(beneficiaryID -> beneficiaryID, AggregationEngineTest::patient));
+            }
+        });
+
+        final List<String> expected = BENEFICIARIES.stream()
+                .filter(beneficiaryID -> !beneficiaryID.equals("05"))
+                .sorted()
+                .collect(Collectors.toList());
+        batches.sort(Comparator.comparing(batch -> batch.get(0)));
+        assertAll(() -> assertEquals(JobStatus.COMPLETED, queue.getJobStatus(jobID).orElseThrow(), "Should complete job"),
+                () -> assertEquals(List.of(List.of("00", "01", "02", "03"), List.of("04", "05", "06", "07"), List.of("08", "09")), batches, "Should request beneficiaries in sorted batches"),
+                () -> assertEquals(expected, readExport(jobID), "Should write batches in sorted order, without missing beneficiary"),
+                () -> assertEquals(1, queue.getJobProgress(jobID).orElseThrow().getFailed(), "Should count missing beneficiary"));
+    }
+
+    @Test
+    void testRollover() throws Exception {
+        final JobModel job = new JobModel("test-provider", BENEFICIARIES, List.of(ResourceType.PATIENT), null, OffsetDateTime.now(ZoneOffset.UTC));
+        final UUID byCount = runJob("batchSize = 4", ConfigFactory.parseString("aggregation.export.maxResourcesPerFile = 3"), job, AggregationEngineTest::patient);
+        // Each resource is 40 bytes or so, and the first one is well over the limit
+        final UUID bySize = runJob("batchSize = 4", ConfigFactory.parseString("aggregation.export.maxFileSize = 100"), job, beneficiaryID -> {
+            final Patient patient = patient(beneficiaryID);
+            if (beneficiaryID.equals("00")) {
+                patient.addName().setFamily("x".repeat(200));
+            }
+            return patient;
+        });
+
+        final List<String> sorted = BENEFICIARIES.stream().sorted().collect(Collectors.toList());
+        final List<Long> sizes = new ArrayList<>();
+        for (final Path part : listParts(bySize, ResourceType.PATIENT)) {
+            sizes.add(Files.size(part));
+        }
+        assertAll(() -> assertEquals(4, listParts(byCount, ResourceType.PATIENT).size(), "Should start a new part every 3 resources"),
+                () -> assertEquals(sorted, readExport(byCount), "Should write every beneficiary, in order, across the parts"),
+                () -> assertEquals(1, Files.readAllLines(listParts(bySize, ResourceType.PATIENT).get(0)).size(), "Should give oversized resource a part of its own"),
+                () -> assertTrue(sizes.subList(1, sizes.size()).stream().allMatch(size -> size <= 100), "Should keep parts under the size limit"),
+                () -> assertEquals(sorted, readExport(bySize), "Should write every beneficiary across the parts"));
+    }
+
+    @Test
+    void testCompression() throws Exception {
+        final JobModel job = new JobModel("test-provider", BENEFICIARIES, List.of(ResourceType.PATIENT), null, OffsetDateTime.now(ZoneOffset.UTC));
+        final UUID jobID = runJob("batchSize = 4", ConfigFactory.parseString("aggregation.export { compression = GZIP, maxResourcesPerFile = 6 }"), job, AggregationEngineTest::patient);
+
+        final IParser parser = FhirContext.forDstu3().newJsonParser();
+        final List<String> ids = new ArrayList<>();
+        for (final Path part : listParts(jobID, ResourceType.PATIENT, ExportCompression.GZIP)) {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(Files.newInputStream(part)), StandardCharsets.UTF_8))) {
+                reader.lines()
+                        .map(line -> parser.parseResource(line).getIdElement().getIdPart())
+                        .forEach(ids::add);
+            }
+        }
+        final List<JobOutput> output = queue.getJobOutput(jobID);
+        assertAll(() -> assertEquals(2, listParts(jobID, ResourceType.PATIENT, ExportCompression.GZIP).size(), "Should roll over compressed parts"),
+                () -> assertTrue(listParts(jobID, ResourceType.PATIENT).isEmpty(), "Should not write uncompressed parts"),
+                () -> assertEquals(BENEFICIARIES.stream().sorted().collect(Collectors.toList()), ids, "Should write every beneficiary, compressed"),
+                () -> assertEquals(List.of(new JobOutput("Patient", JobModel.outputFileName(jobID, ResourceType.PATIENT, 0), ExportCompression.GZIP, 6),
+                        new JobOutput("Patient", JobModel.outputFileName(jobID, ResourceType.PATIENT, 1), ExportCompression.GZIP, BENEFICIARIES.size() - 6)), output, "Should report each part to the queue"));
+    }
+
+    @Test
+    void testIncrementalExport() throws Exception {
+        final OffsetDateTime since = OffsetDateTime.of(2019, 1, 1, 0, 0, 0, 0, ZoneOffset.UTC);
+        // Odd beneficiaries have been updated since the last export
+        final UUID jobID = runJob("batchSize = 4", new JobModel("test-provider", BENEFICIARIES, List.of(ResourceType.PATIENT), since, OffsetDateTime.now(ZoneOffset.UTC)), beneficiaryID -> {
+            final Patient patient = patient(beneficiaryID);
+            patient.getMeta().setLastUpdated(Date.from(since.plusDays(Integer.parseInt(beneficiaryID) % 2 == 0 ? -1 : 1).toInstant()));
+            return patient;
+        });
+
+        assertAll(() -> assertEquals(JobStatus.COMPLETED, queue.getJobStatus(jobID).orElseThrow(), "Should complete job"),
+                () -> assertEquals(List.of("01", "03", "05", "07", "09"), readExport(jobID), "Should only export updated beneficiaries"),
+                () -> assertEquals(0, queue.getJobProgress(jobID).orElseThrow().getFailed(), "Should not count unchanged beneficiaries as failed"),
+                () -> assertEquals(BENEFICIARIES.size(), queue.getJobProgress(jobID).orElseThrow().getFetched(), "Should count unchanged beneficiaries as done"));
+    }
+
+    @Test
+    void testIncrementalExportFailure() throws Exception {
+        final OffsetDateTime since = OffsetDateTime.of(2019, 1, 1, 0, 0, 0, 0, ZoneOffset.UTC);
+        // None of the beneficiaries have been updated, but one of them can't be fetched, which mustn't be mistaken for being unchanged
+        final UUID jobID = runJob("batchSize = 4, onFailure = REPORT", new JobModel("test-provider", BENEFICIARIES, List.of(ResourceType.PATIENT), since, OffsetDateTime.now(ZoneOffset.UTC)), beneficiaryID -> {
+            final Patient patient = failOne(beneficiaryID);
+            patient.getMeta().setLastUpdated(Date.from(since.minusDays(1).toInstant()));
+            return patient;
+        });
+
+        final List<OperationOutcome> errors = readErrors(jobID);
+        assertAll(() -> assertEquals(JobStatus.COMPLETED, queue.getJobStatus(jobID).orElseThrow(), "Should complete job"),
+                () -> assertEquals(List.of(), readExport(jobID), "Should not export unchanged beneficiaries"),
+                () -> assertEquals(1, errors.size(), "Should report beneficiary which couldn't be fetched"),
+                () -> assertTrue(errors.get(0).getIssueFirstRep().getDiagnostics().contains("beneficiary 03"), "Should say which beneficiary failed"),
+                () -> assertEquals(1, queue.getJobProgress(jobID).orElseThrow().getFailed(), "Should count failed beneficiary"));
+    }
+
+    @Test
+    void testResourceTypes() throws Exception {
+        final JobModel job = new JobModel("test-provider", BENEFICIARIES, List.of(ResourceType.values()), null, OffsetDateTime.now(ZoneOffset.UTC));
+        final UUID jobID = runJob("batchSize = 4, onFailure = SKIP", job, new BlueButtonClient() {
+            @Override
+            public Patient requestFHIRFromServer(String beneficiaryID) {
+                return patient(beneficiaryID);
+            }
+
+            @Override
+            public Map<String, List<Resource>> requestResourcesFromServer(ResourceType resourceType, List<String> beneficiaryIDs) {
+                final Map<String, List<Resource>> resources = new HashMap<>();
+                for (final String beneficiaryID : beneficiaryIDs) {
+                    if (resourceType == ResourceType.PATIENT) {
+                        resources.put(beneficiaryID, List.of(patient(beneficiaryID)));
+                    } else if (resourceType == ResourceType.EXPLANATION_OF_BENEFIT) {
+                        resources.put(beneficiaryID, List.of(eob(beneficiaryID + "-a"), eob(beneficiaryID + "-b")));
+                    } else if (beneficiaryID.equals("07")) {
+                        // Beneficiary without any coverage
+                        resources.put(beneficiaryID, List.of());
+                    } else if (!beneficiaryID.equals("05")) {
+                        final Coverage coverage = new Coverage();
+                        coverage.setId(beneficiaryID);
+                        resources.put(beneficiaryID, List.of(coverage));
+                    }
+                }
+                return resources;
+            }
+        });
+
+        final List<String> sorted = BENEFICIARIES.stream().sorted().collect(Collectors.toList());
+        assertAll(() -> assertEquals(JobStatus.COMPLETED, queue.getJobStatus(jobID).orElseThrow(), "Should complete job"),
+                () -> assertEquals(sorted, readExport(jobID, ResourceType.PATIENT), "Should write patients to their own file"),
+                () -> assertEquals(sorted.stream().flatMap(id -> Stream.of(id + "-a", id + "-b")).collect(Collectors.toList()), readExport(jobID, ResourceType.EXPLANATION_OF_BENEFIT), "Should write every EOB for each beneficiary to its own file"),
+                () -> assertEquals(sorted.stream().filter(id -> !id.equals("05") && !id.equals("07")).collect(Collectors.toList()), readExport(jobID, ResourceType.COVERAGE), "Should write coverage to its own file"),
+                () -> assertEquals(BENEFICIARIES.size() * 3, queue.getJobProgress(jobID).orElseThrow().getTotal(), "Should track each resource type of each beneficiary"),
+                () -> assertEquals(1, queue.getJobProgress(jobID).orElseThrow().getFailed(), "Should only count missing coverage as failed"));
+    }
+
+    @Test
+    void testSkipFailedBeneficiary() throws Exception {
+        final UUID jobID = runJob("onFailure = SKIP", this::failOne);
+
+        final List<String> expected = BENEFICIARIES.stream()
+                .filter(beneficiaryID -> !beneficiaryID.equals("03"))
+                .sorted()
+                .collect(Collectors.toList());
+        assertAll(() -> assertEquals(JobStatus.COMPLETED, queue.getJobStatus(jobID).orElseThrow(), "Should complete job"),
+                () -> assertEquals(expected, readExport(jobID), "Should leave out failed beneficiary"),
+                () -> assertEquals(1, queue.getJobProgress(jobID).orElseThrow().getFailed(), "Should count failed beneficiary"));
+    }
+
+    @Test
+    void testFailJob() throws Exception {
+        final UUID jobID = runJob("onFailure = FAIL_JOB", this::failOne);
+        assertEquals(JobStatus.FAILED, queue.getJobStatus(jobID).orElseThrow(), "Should fail job");
+    }
+
+    @Test
+    void testRetryFailedBeneficiary() throws Exception {
+        final Map<String, AtomicInteger> attempts = new ConcurrentHashMap<>();
+        final UUID jobID = runJob("batchSize = 4, onFailure = FAIL_JOB, retry { maxAttempts = 3, initialBackoff = 10ms }", beneficiaryID -> {
+            // Fails twice, and then comes through on the last attempt
+            if (beneficiaryID.equals("03") && attempts.computeIfAbsent(beneficiaryID, id -> new AtomicInteger()).incrementAndGet() < 3) {
+                throw new BlueButtonClientException("Unexpected response fetching beneficiary " + beneficiaryID, new IllegalStateException("HTTP 503"));
+            }
+            return patient(beneficiaryID);
+        });
+
+        assertAll(() -> assertEquals(JobStatus.COMPLETED, queue.getJobStatus(jobID).orElseThrow(), "Should complete job"),
+                () -> assertEquals(BENEFICIARIES.stream().sorted().collect(Collectors.toList()), readExport(jobID), "Should write retried beneficiary in order"),
+                () -> assertEquals(3, attempts.get("03").get(), "Should retry until beneficiary is fetched"),
+                () -> assertEquals(2, registry.meter("gov.cms.dpc.aggregation.AggregationEngine.fetch.retries").getCount(), "Should meter retries"),
+                () -> assertEquals(0, queue.getJobProgress(jobID).orElseThrow().getFailed(), "Should not count retried beneficiary as failed"));
+    }
+
+    @Test
+    void testReportFailedBeneficiary() throws Exception {
+        final UUID jobID = runJob("onFailure = REPORT, retry { maxAttempts = 2, initialBackoff = 10ms }", this::failOne);
+
+        final List<String> expected = BENEFICIARIES.stream()
+                .filter(beneficiaryID -> !beneficiaryID.equals("03"))
+                .sorted()
+                .collect(Collectors.toList());
+        final List<OperationOutcome> errors = readErrors(jobID);
+        assertAll(() -> assertEquals(JobStatus.COMPLETED, queue.getJobStatus(jobID).orElseThrow(), "Should complete job"),
+                () -> assertEquals(expected, readExport(jobID), "Should leave out failed beneficiary"),
+                () -> assertEquals(1, errors.size(), "Should report failed beneficiary"),
+                () -> assertEquals(new JobOutput("OperationOutcome", JobModel.errorFileName(jobID, 0), ExportCompression.NONE, 1), queue.getJobOutput(jobID).get(1), "Should report error file to the queue"),
+                () -> assertEquals(OperationOutcome.IssueSeverity.ERROR, errors.get(0).getIssueFirstRep().getSeverity(), "Should report error"),
+                () -> assertTrue(errors.get(0).getIssueFirstRep().getDiagnostics().contains("Patient resources for beneficiary 03"), "Should say which beneficiary failed"),
+                () -> assertEquals(1, queue.getJobProgress(jobID).orElseThrow().getFailed(), "Should count failed beneficiary"));
+
+        final UUID cleanJobID = runJob("onFailure = REPORT", AggregationEngineTest::patient);
+        assertFalse(Files.exists(exportPath.resolve(JobModel.errorFileName(cleanJobID, 0) + ExportCompression.NONE.getExtension())), "Should not write error file without errors");
+    }
+
+    @Test
+    void testCircuitBreaker() throws Exception {
+        final AtomicInteger requests = new AtomicInteger();
+        final UUID jobID = runJob("parallelism = 1, batchSize = 1, onFailure = REPORT, circuitBreaker { failureThreshold = 2, openDuration = 1m }", new BlueButtonClient() {
+            @Override
+            public Patient requestFHIRFromServer(String beneficiaryID) {
+                return patient(beneficiaryID);
+            }
+
+            @Override
+            public Map<String, Patient> requestFHIRFromServer(List<String> beneficiaryIDs) {
+                requests.incrementAndGet();
+                throw new BlueButtonClientException("Unexpected response fetching beneficiaries", new IllegalStateException("HTTP 503"));
+            }
+        });
+
+        final List<OperationOutcome> errors = readErrors(jobID);
+        assertAll(() -> assertEquals(JobStatus.COMPLETED, queue.getJobStatus(jobID).orElseThrow(), "Should complete job"),
+                () -> assertEquals(2, requests.get(), "Should stop sending requests once the breaker opens"),
+                () -> assertEquals(BENEFICIARIES.size(), errors.size(), "Should report every beneficiary"),
+                () -> assertTrue(errors.get(BENEFICIARIES.size() - 1).getIssueFirstRep().getDiagnostics().contains("Circuit breaker is open"), "Should say request wasn't sent"),
+                () -> assertEquals(true, registry.getGauges().get("gov.cms.dpc.aggregation.AggregationEngine.fetch.circuitBreakerOpen").getValue(), "Should report open breaker"));
+    }
+
+    @Test
+    void testStalledFetch() throws Exception {
+        // Nothing requeues expired leases here, so the job only moves on if the worker hands it back itself
+        final Config lease = ConfigFactory.parseString("queue.lease { duration = 3s, maxRetries = 1 }");
+        queue = new MemoryQueue(lease.withFallback(ConfigFactory.load()));
+        final CountDownLatch hung = new CountDownLatch(1);
+        final AtomicInteger requests = new AtomicInteger();
+        try {
+            // Without giving up on the hung request, the lease would be renewed until the test times out
+            final UUID jobID = runJob("parallelism = 1, stallTimeout = 500ms", lease, new JobModel("test-provider", BENEFICIARIES, List.of(ResourceType.PATIENT), null, OffsetDateTime.now(ZoneOffset.UTC)), beneficiaryID -> {
+                requests.incrementAndGet();
+                try {
+                    hung.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return patient(beneficiaryID);
+            });
+            assertAll(() -> assertEquals(2, requests.get(), "Should requeue stalled job straight away, and work it again"),
+                    () -> assertEquals(JobStatus.FAILED, queue.getJobStatus(jobID).orElseThrow(), "Should fail job once it's out of retries"));
+        } finally {
+            hung.countDown();
+        }
+    }
+
+    private Patient failOne(String beneficiaryID) {
+        if (beneficiaryID.equals("03")) {
+            throw new BlueButtonClientException("Could not find beneficiary with ID: " + beneficiaryID, new IllegalStateException());
+        }
+        return patient(beneficiaryID);
+    }
+
+    /**
+     * Submit a single job and work it on a single worker, with the given aggregation.fetch settings
+     */
+    private UUID runJob(String fetchConfig, BlueButtonClient bbclient) throws InterruptedException {
+        // Most of the test clients only serve Patients
+        return runJob(fetchConfig, new JobModel("test-provider", BENEFICIARIES, List.of(ResourceType.PATIENT), null, OffsetDateTime.now(ZoneOffset.UTC)), bbclient);
+    }
+
+    private UUID runJob(String fetchConfig, JobModel job, BlueButtonClient bbclient) throws InterruptedException {
+        return runJob(fetchConfig, ConfigFactory.empty(), job, bbclient);
+    }
+
+    private UUID runJob(String fetchConfig, Config overrides, JobModel job, BlueButtonClient bbclient) throws InterruptedException {
+        final Config config = ConfigFactory.parseString("aggregation.workers.count = 1")
+                .withFallback(overrides)
+                .withFallback(ConfigFactory.parseString(fetchConfig).atPath("aggregation.fetch"))
+                // Beneficiaries are only retried by the tests which ask for it, so the rest don't have to wait
+                .withFallback(ConfigFactory.parseString("aggregation.fetch.retry.maxAttempts = 1"))
+                .withFallback(ConfigFactory.load());
+        final AggregationEngine engine = new AggregationEngine(queue, AsyncBlueButtonClient.fromBlocking(bbclient, fetchExecutor), exportPath.toString(), config, registry);
+        final WorkerPool pool = new WorkerPool(engine, config, registry);
+
+        final UUID jobID = UUID.randomUUID();
+        queue.submitJob(jobID, job);
+        pool.start();
+        try {
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (queue.getJobStatus(jobID).orElseThrow() == JobStatus.QUEUED || queue.getJobStatus(jobID).orElseThrow() == JobStatus.RUNNING) {
+                assertTrue(System.nanoTime() < deadline, "Job should finish");
+                Thread.sleep(10);
+            }
+        } finally {
+            pool.stop();
+        }
+        return jobID;
+    }
+
+    private List<String> readExport(UUID jobID) throws IOException {
+        return readExport(jobID, ResourceType.PATIENT);
+    }
+
+    /**
+     * Read the IDs of the resources in the export files for the given resource type, across all of its parts
+     */
+    private List<String> readExport(UUID jobID, ResourceType resourceType) throws IOException {
+        final IParser parser = FhirContext.forDstu3().newJsonParser();
+        final List<String> ids = new ArrayList<>();
+        for (final Path part : listParts(jobID, resourceType)) {
+            Files.readAllLines(part)
+                    .stream()
+                    .map(line -> parser.parseResource(line).getIdElement().getIdPart())
+                    .forEach(ids::add);
+        }
+        return ids;
+    }
+
+    /**
+     * Read the OperationOutcomes in the job's error file
+     */
+    private List<OperationOutcome> readErrors(UUID jobID) throws IOException {
+        final IParser parser = FhirContext.forDstu3().newJsonParser();
+        return Files.readAllLines(exportPath.resolve(JobModel.errorFileName(jobID, 0) + ExportCompression.NONE.getExtension()))
+                .stream()
+                .map(line -> parser.parseResource(OperationOutcome.class, line))
+                .collect(Collectors.toList());
+    }
+
+    private List<Path> listParts(UUID jobID, ResourceType resourceType) {
+        return listParts(jobID, resourceType, ExportCompression.NONE);
+    }
+
+    private List<Path> listParts(UUID jobID, ResourceType resourceType, ExportCompression compression) {
+        final List<Path> parts = new ArrayList<>();
+        for (int part = 0; Files.exists(exportPath.resolve(JobModel.outputFileName(jobID, resourceType, part) + compression.getExtension())); part++) {
+            parts.add(exportPath.resolve(JobModel.outputFileName(jobID, resourceType, part) + compression.getExtension()));
+        }
+        return parts;
+    }
+
+    private static ExplanationOfBenefit eob(String eobID) {
+        final ExplanationOfBenefit eob = new ExplanationOfBenefit();
+        eob.setId(eobID);
+        return eob;
+    }
+
+    private static Patient patient(String beneficiaryID) {
+        final Patient patient = new Patient();
+        patient.setId(beneficiaryID);
+        return patient;
+    }
+}
@@ -0,0 +1,41 @@
+package gov.cms.dpc.aggregation;
+
+import com.typesafe.config.ConfigFactory;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CircuitBreakerTest {
+
+    @Test
+    void testTrial() {
+        // Trials are due as soon as the breaker opens
+        final CircuitBreaker breaker = new CircuitBreaker(ConfigFactory.parseString("failureThreshold = 2, openDuration = 0ms"));
+        final long first = breaker.tryAcquire();
+        final long second = breaker.tryAcquire();
+        final long slow = breaker.tryAcquire();
+        breaker.failure(first);
+        breaker.failure(second);
+        assertTrue(breaker.isOpen(), "Should open after enough failures");
+
+        final long trial = breaker.tryAcquire();
+        assertAll(() -> assertNotEquals(CircuitBreaker.NO_PERMIT, trial, "Should let trial through"),
+                () -> assertEquals(CircuitBreaker.NO_PERMIT, breaker.tryAcquire(), "Should only let a single trial through"));
+
+        // A request sent before the breaker opened doesn't speak for the trial
+        breaker.success(slow);
+        assertTrue(breaker.isOpen(), "Should ignore outcome of request from before the breaker opened");
+
+        breaker.failure(trial);
+        assertTrue(breaker.isOpen(), "Should stay open after failed trial");
+        final long retrial = breaker.tryAcquire();
+        breaker.failure(trial);
+        breaker.success(retrial);
+        assertFalse(breaker.isOpen(), "Should close after successful trial");
+
+        // Nor do failures from before it closed count towards opening it again
+        breaker.failure(trial);
+        breaker.failure(first);
+        assertFalse(breaker.isOpen(), "Should ignore failures of requests from before the breaker closed");
+    }
+}
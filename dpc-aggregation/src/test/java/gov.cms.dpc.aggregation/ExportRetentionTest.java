@@ -0,0 +1,136 @@
+package gov.cms.dpc.aggregation;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import gov.cms.dpc.queue.JobStatus;
+import gov.cms.dpc.queue.MemoryQueue;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ExportRetentionTest {
+
+    private Path exportPath;
+    private MemoryQueue queue;
+
+    @BeforeEach
+    void setup() throws IOException {
+        exportPath = Files.createTempDirectory("dpc-exports");
+        queue = new MemoryQueue();
+    }
+
+    @AfterEach
+    void cleanup() throws IOException {
+        try (Stream<Path> files = Files.walk(exportPath)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    void testExpiredJobs() throws Exception {
+        final ExportRetention retention = new ExportRetention(queue, exportPath.toString(), config("ttl = 50ms"));
+
+        final UUID finished = submitAndWork(JobStatus.COMPLETED);
+        final UUID running = submitAndWork(null);
+        final Path finishedFile = writeExport(finished, 10);
+        final Path runningFile = writeExport(running, 10);
+        // Orphaned by a restart
+        final Path orphanFile = writeExport(UUID.randomUUID(), 10);
+        Files.setLastModifiedTime(orphanFile, FileTime.from(Instant.now().minus(1, ChronoUnit.DAYS)));
+        final Path otherFile = Files.write(exportPath.resolve("README"), new byte[10]);
+
+        Thread.sleep(100);
+        retention.sweep();
+        assertAll(() -> assertTrue(queue.getJobStatus(finished).isEmpty(), "Should remove finished job"),
+                () -> assertFalse(Files.exists(finishedFile), "Should delete finished export"),
+                () -> assertFalse(Files.exists(orphanFile), "Should delete orphaned export"),
+                () -> assertEquals(JobStatus.RUNNING, queue.getJobStatus(running).orElseThrow(), "Should keep running job"),
+                () -> assertTrue(Files.exists(runningFile), "Should keep running export"),
+                () -> assertTrue(Files.exists(otherFile), "Should ignore other files"));
+    }
+
+    @Test
+    void testDiskQuota() throws Exception {
+        final ExportRetention retention = new ExportRetention(queue, exportPath.toString(), config("maxExportSize = 25"));
+
+        final UUID oldest = submitAndWork(JobStatus.COMPLETED);
+        final UUID newest = submitAndWork(JobStatus.FAILED);
+        final UUID running = submitAndWork(null);
+        final Path oldestFile = writeExport(oldest, 10);
+        final Path newestFile = writeExport(newest, 10);
+        final Path runningFile = writeExport(running, 10);
+        Files.setLastModifiedTime(oldestFile, FileTime.from(Instant.now().minus(2, ChronoUnit.HOURS)));
+        Files.setLastModifiedTime(runningFile, FileTime.from(Instant.now().minus(3, ChronoUnit.HOURS)));
+
+        retention.sweep();
+        assertAll(() -> assertTrue(queue.getJobStatus(oldest).isEmpty(), "Should remove oldest finished job"),
+                () -> assertFalse(Files.exists(oldestFile), "Should delete oldest export"),
+                () -> assertTrue(Files.exists(newestFile), "Should keep newest export, once under the limit"),
+                () -> assertTrue(Files.exists(runningFile), "Should never delete running export"));
+    }
+
+    @Test
+    void testShardedExport() throws Exception {
+        final ExportRetention retention = new ExportRetention(queue, exportPath.toString(), config("maxExportSize = 25"));
+
+        // One shard has finished, and is the oldest export in the directory, but its sibling is still running
+        final UUID sharded = UUID.randomUUID();
+        queue.submitShardedJob(sharded, List.of("first shard", "second shard"));
+        final UUID firstShard = queue.workJob().orElseThrow().getLeft();
+        final UUID secondShard = queue.workJob().orElseThrow().getLeft();
+        queue.completeJob(firstShard, JobStatus.COMPLETED);
+        final Path firstFile = writeExport(firstShard, 10);
+        final Path secondFile = writeExport(secondShard, 10);
+        Files.setLastModifiedTime(firstFile, FileTime.from(Instant.now().minus(2, ChronoUnit.DAYS)));
+        final UUID finished = submitAndWork(JobStatus.COMPLETED);
+        final Path finishedFile = writeExport(finished, 10);
+
+        retention.sweep();
+        assertAll(() -> assertTrue(Files.exists(firstFile), "Should keep finished shard of running job"),
+                () -> assertTrue(Files.exists(secondFile), "Should keep running shard"),
+                () -> assertEquals(JobStatus.RUNNING, queue.getJobStatus(sharded).orElseThrow(), "Should keep running sharded job"),
+                () -> assertFalse(Files.exists(finishedFile), "Should remove finished export instead"));
+
+        // Once every shard has finished, the export goes as a whole
+        queue.completeJob(secondShard, JobStatus.COMPLETED);
+        Files.setLastModifiedTime(secondFile, FileTime.from(Instant.now().minus(1, ChronoUnit.DAYS)));
+        final Path newestFile = writeExport(submitAndWork(JobStatus.COMPLETED), 10);
+        retention.sweep();
+        assertAll(() -> assertFalse(Files.exists(firstFile), "Should delete every shard's export"),
+                () -> assertFalse(Files.exists(secondFile), "Should delete every shard's export"),
+                () -> assertTrue(Files.exists(newestFile), "Should keep newest export, once under the limit"),
+                () -> assertTrue(queue.getJobStatus(sharded).isEmpty(), "Should remove parent job"),
+                () -> assertTrue(queue.getJobStatus(secondShard).isEmpty(), "Should remove shards with their parent"));
+    }
+
+    private UUID submitAndWork(JobStatus status) {
+        final UUID jobID = UUID.randomUUID();
+        queue.submitJob(jobID, "test job");
+        queue.workJob().orElseThrow();
+        if (status != null) {
+            queue.completeJob(jobID, status);
+        }
+        return jobID;
+    }
+
+    private Path writeExport(UUID jobID, int size) throws IOException {
+        return Files.write(exportPath.resolve(jobID.toString() + ".ndjson"), new byte[size]);
+    }
+
+    private static Config config(String retention) {
+        return ConfigFactory.parseString("aggregation.retention." + retention).withFallback(ConfigFactory.load());
+    }
+}
@@ -0,0 +1,164 @@
+package gov.cms.dpc.aggregation;
+
+import com.codahale.metrics.MetricRegistry;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import gov.cms.dpc.aggregation.bbclient.AsyncBlueButtonClient;
+import gov.cms.dpc.aggregation.bbclient.BlueButtonClient;
+import gov.cms.dpc.common.models.JobModel;
+import gov.cms.dpc.common.models.ResourceType;
+import gov.cms.dpc.queue.JobStatus;
+import gov.cms.dpc.queue.MemoryQueue;
+import org.hl7.fhir.dstu3.model.Patient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WorkerPoolTest {
+
+    private static final String PROVIDER_ID = "test-provider";
+    private static final Set<String> BENEFICIARIES = Set.of("1", "2", "3");
+
+    private Path exportPath;
+    private MemoryQueue queue;
+    // Runs the blocking test clients
+    private ExecutorService fetchExecutor;
+    private MetricRegistry registry;
+
+    @BeforeEach
+    void setup() throws IOException {
+        exportPath = Files.createTempDirectory("dpc-exports");
+        fetchExecutor = Executors.newCachedThreadPool();
+        queue = new MemoryQueue(ConfigFactory.parseString("queue.scheduling.mode = FIFO").withFallback(ConfigFactory.load()));
+        registry = new MetricRegistry();
+    }
+
+    @AfterEach
+    void cleanup() throws IOException {
+        fetchExecutor.shutdownNow();
+        try (Stream<Path> files = Files.walk(exportPath)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    void testConcurrentWorkers() throws Exception {
+        // Every worker has to be working a job at the same time for them all to get past the latch
+        final CountDownLatch latch = new CountDownLatch(2);
+        final WorkerPool pool = createPool(2, beneficiaryID -> {
+            latch.countDown();
+            try {
+                if (!latch.await(5, TimeUnit.SECONDS)) {
+                    throw new IllegalStateException("Workers should run concurrently");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return patient(beneficiaryID);
+        });
+
+        final List<UUID> jobs = IntStream.range(0, 4)
+                .mapToObj(i -> UUID.randomUUID())
+                .collect(Collectors.toList());
+        jobs.forEach(jobID -> queue.submitJob(jobID, patientJob(BENEFICIARIES)));
+        pool.start();
+        try {
+            for (final UUID jobID : jobs) {
+                awaitStatus(jobID, JobStatus.COMPLETED);
+                assertTrue(Files.exists(exportPath.resolve(JobModel.outputFileName(jobID, ResourceType.PATIENT, 0) + ".ndjson")), "Should write export file");
+            }
+        } finally {
+            pool.stop();
+        }
+
+        final long worked = registry.getTimers()
+                .entrySet()
+                .stream()
+                .filter(entry -> entry.getKey().startsWith("gov.cms.dpc.aggregation.AggregationEngine.workers.aggregation-worker-"))
+                .mapToLong(entry -> entry.getValue().getCount())
+                .sum();
+        assertAll(() -> assertEquals(4, worked, "Should time jobs for each worker"),
+                () -> assertEquals(2, registry.getGauges().get("gov.cms.dpc.aggregation.WorkerPool.size").getValue(), "Should report pool size"));
+    }
+
+    @Test
+    void testDrainOnStop() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final WorkerPool pool = createPool(2, beneficiaryID -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return patient(beneficiaryID);
+        });
+
+        final UUID jobID = UUID.randomUUID();
+        queue.submitJob(jobID, patientJob(Set.of("1")));
+        pool.start();
+        assertTrue(started.await(5, TimeUnit.SECONDS), "Should start working job");
+
+        // Stop drains in the background, while the job is still running
+        final Thread stopper = new Thread(() -> {
+            try {
+                pool.stop();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        stopper.start();
+        Thread.sleep(100);
+        assertAll(() -> assertTrue(stopper.isAlive(), "Should wait for running job"),
+                () -> assertEquals(JobStatus.RUNNING, queue.getJobStatus(jobID).orElseThrow(), "Should still be running"));
+
+        release.countDown();
+        stopper.join(TimeUnit.SECONDS.toMillis(5));
+        assertAll(() -> assertFalse(stopper.isAlive(), "Should stop once job has finished, without waiting on the idle worker"),
+                () -> assertEquals(JobStatus.COMPLETED, queue.getJobStatus(jobID).orElseThrow(), "Should finish running job"));
+    }
+
+    private WorkerPool createPool(int workers, BlueButtonClient bbclient) {
+        final Config config = ConfigFactory.parseString(String.format("aggregation.workers.count = %d, aggregation.fetch.parallelism = 1", workers)).withFallback(ConfigFactory.load());
+        final AggregationEngine engine = new AggregationEngine(queue, AsyncBlueButtonClient.fromBlocking(bbclient, fetchExecutor), exportPath.toString(), config, registry);
+        return new WorkerPool(engine, config, registry);
+    }
+
+    /**
+     * The test clients only serve Patients
+     */
+    private static JobModel patientJob(Set<String> beneficiaries) {
+        return new JobModel(PROVIDER_ID, beneficiaries, List.of(ResourceType.PATIENT), null, OffsetDateTime.now(ZoneOffset.UTC));
+    }
+
+    private static Patient patient(String beneficiaryID) {
+        final Patient patient = new Patient();
+        patient.setId(beneficiaryID);
+        return patient;
+    }
+
+    private void awaitStatus(UUID jobID, JobStatus status) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (queue.getJobStatus(jobID).orElseThrow() != status) {
+            assertTrue(System.nanoTime() < deadline, String.format("Job %s should be %s", jobID, status));
+            Thread.sleep(10);
+        }
+    }
+}
@@ -2,23 +2,28 @@ package gov.cms.dpc.aggregation.bbclient;
 
 import com.google.inject.Guice;
 import com.google.inject.Injector;
+import gov.cms.dpc.common.models.ResourceType;
 import org.hl7.fhir.dstu3.model.Patient;
+import org.hl7.fhir.dstu3.model.Resource;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
 import java.sql.Date;
+import java.util.List;
+import java.util.Map;
 
-import static org.junit.jupiter.api.Assertions.assertEquals;
-import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.*;
 
 class BlueButtonClientTest {
     private static final String TEST_BENEFICIARY_ID = "20140000008325";
     private BlueButtonClient bbc;
+    private AsyncBlueButtonClient asyncBbc;
 
     @BeforeEach
     public void setupBlueButtonClient() {
         final Injector injector = Guice.createInjector(new TestModule(), new BlueButtonClientModule());
         bbc = injector.getInstance(BlueButtonClient.class);
+        asyncBbc = injector.getInstance(AsyncBlueButtonClient.class);
     }
 
     @Test
@@ -34,4 +39,37 @@ class BlueButtonClientTest {
         assertEquals(ret.getName().get(0).getGiven().get(0).toString(), "Jane");
     }
 
-}
\ No newline at end of file
+    @Test
+    void testGetFHIRFromBeneficiaryIDAsync() throws Exception {
+        Patient ret = asyncBbc.requestFHIRFromServerAsync(TEST_BENEFICIARY_ID).get();
+
+        assertNotEquals(ret, null);
+        assertEquals(ret.getBirthDate(), Date.valueOf("2014-06-01"));
+        assertEquals(ret.getName().get(0).getFamily(), "Doe");
+    }
+
+    @Test
+    void testGetFHIRFromBeneficiaryIDBatch() throws Exception {
+        final List<String> beneficiaryIDs = List.of(TEST_BENEFICIARY_ID, "-1");
+        Map<String, Patient> ret = bbc.requestFHIRFromServer(beneficiaryIDs);
+        Map<String, Patient> asyncRet = asyncBbc.requestFHIRFromServerAsync(beneficiaryIDs).get();
+
+        // Unknown beneficiaries are left out
+        assertEquals(ret.keySet(), asyncRet.keySet());
+        assertEquals(ret.size(), 1);
+        assertEquals(ret.get(TEST_BENEFICIARY_ID).getName().get(0).getFamily(), "Doe");
+    }
+
+    @Test
+    void testGetResourcesFromBeneficiaryID() throws Exception {
+        final List<String> beneficiaryIDs = List.of(TEST_BENEFICIARY_ID);
+        for (final ResourceType resourceType : List.of(ResourceType.EXPLANATION_OF_BENEFIT, ResourceType.COVERAGE)) {
+            Map<String, List<Resource>> ret = bbc.requestResourcesFromServer(resourceType, beneficiaryIDs);
+            Map<String, List<Resource>> asyncRet = asyncBbc.requestResourcesFromServerAsync(resourceType, beneficiaryIDs).get();
+
+            assertEquals(ret.get(TEST_BENEFICIARY_ID).size(), asyncRet.get(TEST_BENEFICIARY_ID).size());
+            assertFalse(ret.get(TEST_BENEFICIARY_ID).isEmpty());
+            assertTrue(ret.get(TEST_BENEFICIARY_ID).stream().allMatch(resource -> resource.getResourceType().name().equals(resourceType.getFhirName())));
+        }
+    }
+}
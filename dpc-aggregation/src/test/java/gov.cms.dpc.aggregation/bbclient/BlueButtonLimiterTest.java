@@ -0,0 +1,183 @@
+package gov.cms.dpc.aggregation.bbclient;
+
+import com.codahale.metrics.MetricRegistry;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.typesafe.config.ConfigFactory;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.net.ssl.SSLSession;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BlueButtonLimiterTest {
+
+    private static final String PREFIX = "gov.cms.dpc.aggregation.bbclient.BlueButtonLimiter";
+
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    private HttpClient client;
+    private MetricRegistry registry;
+    // Holds back responses from /slow
+    private CountDownLatch slow;
+
+    @BeforeEach
+    void startServer() throws IOException {
+        slow = new CountDownLatch(1);
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        // /slow holds its thread, so the other requests need their own
+        serverExecutor = Executors.newCachedThreadPool();
+        server.setExecutor(serverExecutor);
+        server.createContext("/ok", exchange -> respond(exchange, 200));
+        server.createContext("/throttle", exchange -> {
+            exchange.getResponseHeaders().add("Retry-After", "1");
+            respond(exchange, 429);
+        });
+        server.createContext("/slow", exchange -> {
+            try {
+                slow.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            respond(exchange, 200);
+        });
+        server.start();
+        client = HttpClient.newHttpClient();
+        registry = new MetricRegistry();
+    }
+
+    @AfterEach
+    void stopServer() {
+        slow.countDown();
+        server.stop(0);
+        serverExecutor.shutdownNow();
+    }
+
+    @Test
+    void testLimitInFlight() throws Exception {
+        final BlueButtonLimiter limiter = limiter("initialLimit = 2");
+        final List<CompletableFuture<HttpResponse<String>>> requests = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            requests.add(send(limiter, "/slow"));
+        }
+        assertAll(() -> assertEquals(2, limiter.getInFlight(), "Should only send up to the limit"),
+                () -> assertEquals(2, limiter.getWaiting(), "Should hold back the rest"));
+
+        slow.countDown();
+        CompletableFuture.allOf(requests.toArray(CompletableFuture[]::new)).get(10, TimeUnit.SECONDS);
+        assertAll(() -> assertEquals(0, limiter.getInFlight(), "Should finish every request"),
+                () -> assertEquals(0, limiter.getWaiting(), "Should send every request"));
+    }
+
+    @Test
+    void testIncrease() throws Exception {
+        final BlueButtonLimiter limiter = limiter("initialLimit = 1");
+        for (int i = 0; i < 10; i++) {
+            send(limiter, "/ok").get(10, TimeUnit.SECONDS);
+        }
+        assertTrue(limiter.getLimit() > 1, "Should raise limit while requests complete in good time");
+        assertEquals(limiter.getLimit(), registry.getGauges().get(PREFIX + ".limit").getValue(), "Should report limit");
+    }
+
+    @Test
+    void testThrottled() throws Exception {
+        final BlueButtonLimiter limiter = limiter("initialLimit = 8");
+        final List<CompletableFuture<HttpResponse<String>>> throttled = List.of(send(limiter, "/throttle"), send(limiter, "/throttle"));
+        for (final CompletableFuture<HttpResponse<String>> request : throttled) {
+            assertEquals(429, request.get(10, TimeUnit.SECONDS).statusCode(), "Should pass throttled response through");
+        }
+        assertAll(() -> assertEquals(4, limiter.getLimit(), "Should only halve limit once for requests in flight together"),
+                () -> assertEquals(4, registry.getGauges().get(PREFIX + ".limit").getValue(), "Should report reduced limit"),
+                () -> assertEquals(2, registry.meter(PREFIX + ".throttled").getCount(), "Should count throttled requests"));
+
+        final long start = System.nanoTime();
+        final CompletableFuture<HttpResponse<String>> held = send(limiter, "/ok");
+        assertEquals(200, held.get(10, TimeUnit.SECONDS).statusCode(), "Should send request once Retry-After has passed");
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(500), "Should hold back request until Retry-After");
+    }
+
+    @Test
+    void testRetryAfterDate() {
+        final HttpResponse<String> response = new HttpResponse<>() {
+            @Override
+            public int statusCode() {
+                return 503;
+            }
+
+            @Override
+            public HttpRequest request() {
+                return null;
+            }
+
+            @Override
+            public Optional<HttpResponse<String>> previousResponse() {
+                return Optional.empty();
+            }
+
+            @Override
+            public HttpHeaders headers() {
+                return HttpHeaders.of(Map.of("Retry-After", List.of("Wed, 21 Oct 2015 07:28:00 GMT")), (name, value) -> true);
+            }
+
+            @Override
+            public String body() {
+                return "";
+            }
+
+            @Override
+            public Optional<SSLSession> sslSession() {
+                return Optional.empty();
+            }
+
+            @Override
+            public URI uri() {
+                return null;
+            }
+
+            @Override
+            public HttpClient.Version version() {
+                return HttpClient.Version.HTTP_1_1;
+            }
+        };
+        assertEquals(Duration.ZERO, BlueButtonLimiter.retryAfter(response).orElseThrow(), "Should not wait for a date in the past");
+    }
+
+    private BlueButtonLimiter limiter(String config) {
+        // Latency on localhost is too noisy to back off on
+        return new BlueButtonLimiter(ConfigFactory.parseString(config).atPath("aggregation.bbclient.limiter")
+                .withFallback(ConfigFactory.parseString("aggregation.bbclient.limiter.latencyTolerance = 1000"))
+                .withFallback(ConfigFactory.load()), registry);
+    }
+
+    private CompletableFuture<HttpResponse<String>> send(BlueButtonLimiter limiter, String path) {
+        final HttpRequest request = HttpRequest.newBuilder(URI.create(String.format("http://localhost:%d%s", server.getAddress().getPort(), path))).GET().build();
+        return limiter.send(() -> client.sendAsync(request, HttpResponse.BodyHandlers.ofString()));
+    }
+
+    private static void respond(HttpExchange exchange, int status) throws IOException {
+        final byte[] body = "{}".getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, body.length);
+        exchange.getResponseBody().write(body);
+        exchange.close();
+    }
+}
@@ -0,0 +1,99 @@
+package gov.cms.dpc.aggregation.bbclient;
+
+import com.codahale.metrics.MetricRegistry;
+import com.sun.net.httpserver.HttpServer;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.ssl.SSLContexts;
+import org.apache.http.util.EntityUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BlueButtonTransportTest {
+
+    private static final String PREFIX = "gov.cms.dpc.aggregation.bbclient.DefaultBlueButtonClient.pool";
+
+    private HttpServer server;
+    // Remote ports of the connections the server has seen, one per connection
+    private Set<Integer> connections;
+
+    @BeforeEach
+    void startServer() throws IOException {
+        connections = ConcurrentHashMap.newKeySet();
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", exchange -> {
+            connections.add(exchange.getRemoteAddress().getPort());
+            final byte[] body = "{}".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        server.start();
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    void testPooledConnections() throws IOException {
+        final BlueButtonTransport transport = new BlueButtonTransport(ConfigFactory.parseString("aggregation.bbclient.transport.maxConnections = 10")
+                .withFallback(ConfigFactory.load()));
+        final SSLContext sslContext = SSLContexts.createDefault();
+        transport.configureSessionCache(sslContext);
+
+        try (CloseableHttpClient client = transport.buildHttpClient(sslContext)) {
+            for (int i = 0; i < 5; i++) {
+                try (CloseableHttpResponse response = client.execute(new HttpGet(String.format("http://localhost:%d/Patient/%d", server.getAddress().getPort(), i)))) {
+                    assertEquals(200, response.getStatusLine().getStatusCode(), "Should succeed");
+                    EntityUtils.consume(response.getEntity());
+                }
+            }
+
+            assertAll(() -> assertEquals(1, connections.size(), "Should reuse a single keep-alive connection"),
+                    () -> assertEquals(1000, sslContext.getClientSessionContext().getSessionCacheSize(), "Should size TLS session cache"));
+        }
+    }
+
+    @Test
+    void testPooledAsyncConnections() throws Exception {
+        final Config config = ConfigFactory.parseString("aggregation.bbclient.transport.maxConnections = 10")
+                .withFallback(ConfigFactory.load());
+        final BlueButtonTransport transport = new BlueButtonTransport(config);
+        final MetricRegistry registry = new MetricRegistry();
+        final BlueButtonLimiter limiter = new BlueButtonLimiter(config, registry);
+        final HttpClient client = transport.buildAsyncClient(SSLContexts.createDefault(), limiter, registry);
+
+        for (int i = 0; i < 5; i++) {
+            final URI uri = URI.create(String.format("http://localhost:%d/Patient/%d", server.getAddress().getPort(), i));
+            final HttpResponse<String> response = limiter.send(() -> client.sendAsync(HttpRequest.newBuilder(uri).build(), HttpResponse.BodyHandlers.ofString())).get(10, TimeUnit.SECONDS);
+            assertEquals(200, response.statusCode(), "Should succeed");
+        }
+
+        assertAll(() -> assertEquals(1, connections.size(), "Should reuse a single keep-alive connection"),
+                () -> assertTrue(client.executor().isPresent(), "Should handle responses on our own executor"),
+                () -> assertNotNull(System.getProperty("jdk.httpclient.connectionPoolSize"), "Should size the JDK connection pool"),
+                () -> assertEquals(10, registry.getGauges().get(PREFIX + ".max").getValue(), "Should report pool size"),
+                () -> assertEquals(0, registry.getGauges().get(PREFIX + ".leased").getValue(), "Should not have any requests in flight"),
+                () -> assertEquals(0, registry.getGauges().get(PREFIX + ".pending").getValue(), "Should not have any requests waiting"));
+    }
+}
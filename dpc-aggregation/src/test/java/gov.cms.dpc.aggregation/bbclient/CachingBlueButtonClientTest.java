@@ -0,0 +1,148 @@
+package gov.cms.dpc.aggregation.bbclient;
+
+import com.codahale.metrics.MetricRegistry;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.hl7.fhir.dstu3.model.Patient;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CachingBlueButtonClientTest {
+
+    private static final String PREFIX = "gov.cms.dpc.aggregation.bbclient.CachingBlueButtonClient";
+
+    private MetricRegistry registry;
+    // Upstream requests, one entry per request
+    private List<List<String>> requests;
+    // Upstream async requests, completed by the test
+    private Map<String, CompletableFuture<Patient>> pending;
+    private BlueButtonClient upstream;
+    private AsyncBlueButtonClient asyncUpstream;
+
+    @BeforeEach
+    void setup() {
+        registry = new MetricRegistry();
+        requests = Collections.synchronizedList(new ArrayList<>());
+        pending = Collections.synchronizedMap(new HashMap<>());
+        upstream = new BlueButtonClient() {
+            @Override
+            public Patient requestFHIRFromServer(String beneficiaryID) {
+                requests.add(List.of(beneficiaryID));
+                if (beneficiaryID.equals("missing")) {
+                    throw new BlueButtonClientException("Could not find beneficiary with ID: " + beneficiaryID, new IllegalStateException());
+                }
+                return patient(beneficiaryID);
+            }
+
+            @Override
+            public Map<String, Patient> requestFHIRFromServer(List<String> beneficiaryIDs) {
+                requests.add(List.copyOf(beneficiaryIDs));
+                return beneficiaryIDs
+                        .stream()
+                        .filter(beneficiaryID -> !beneficiaryID.equals("missing"))
+                        .collect(Collectors.toMap(beneficiaryID -> beneficiaryID, CachingBlueButtonClientTest::patient));
+            }
+        };
+        asyncUpstream = beneficiaryID -> {
+            requests.add(List.of(beneficiaryID));
+            final CompletableFuture<Patient> request = new CompletableFuture<>();
+            pending.put(beneficiaryID, request);
+            return request;
+        };
+    }
+
+    @Test
+    void testCaching() {
+        final CachingBlueButtonClient client = createClient("ttl = 1h", blockingUpstream());
+        assertEquals("1", client.requestFHIRFromServer("1").getIdElement().getIdPart(), "Should fetch beneficiary");
+        assertEquals("1", client.requestFHIRFromServer("1").getIdElement().getIdPart(), "Should serve beneficiary from cache");
+        assertThrows(BlueButtonClientException.class, () -> client.requestFHIRFromServer("missing"), "Should pass through failure");
+        assertThrows(BlueButtonClientException.class, () -> client.requestFHIRFromServer("missing"), "Should not cache failure");
+
+        assertAll(() -> assertEquals(List.of(List.of("1"), List.of("missing"), List.of("missing")), requests, "Should only fetch cached beneficiary once"),
+                () -> assertEquals(1, registry.meter(PREFIX + ".hits").getCount(), "Should count hit"),
+                () -> assertEquals(3, registry.meter(PREFIX + ".misses").getCount(), "Should count misses"),
+                () -> assertEquals(1L, registry.getGauges().get(PREFIX + ".size").getValue(), "Should report cache size"));
+    }
+
+    @Test
+    void testExpiry() throws InterruptedException {
+        final CachingBlueButtonClient client = createClient("ttl = 1ms", blockingUpstream());
+        client.requestFHIRFromServer("1");
+        Thread.sleep(20);
+        client.requestFHIRFromServer("1");
+        assertEquals(2, requests.size(), "Should fetch expired beneficiary again");
+    }
+
+    @Test
+    void testBatch() {
+        final CachingBlueButtonClient client = createClient("ttl = 1h", blockingUpstream());
+        client.requestFHIRFromServer("2");
+        final Map<String, Patient> patients = client.requestFHIRFromServer(List.of("1", "2", "3", "missing"));
+
+        assertAll(() -> assertEquals(Set.of("1", "2", "3"), patients.keySet(), "Should leave out missing beneficiary"),
+                () -> assertEquals(List.of(List.of("2"), List.of("1", "3", "missing")), requests, "Should only request beneficiaries which aren't cached"));
+    }
+
+    @Test
+    void testSingleFlight() throws ExecutionException, InterruptedException {
+        final CachingBlueButtonClient client = createClient("maxSize = 0", asyncUpstream);
+        final CompletableFuture<Patient> first = client.requestFHIRFromServerAsync("1");
+        final CompletableFuture<Patient> second = client.requestFHIRFromServerAsync("1");
+        final CompletableFuture<Map<String, Patient>> batch = client.requestFHIRFromServerAsync(List.of("1", "2"));
+        // Cancelling one caller shouldn't affect the others
+        first.cancel(true);
+
+        assertEquals(List.of(List.of("1"), List.of("2")), requests, "Should collapse concurrent requests into one");
+        pending.get("1").complete(patient("1"));
+        pending.get("2").complete(patient("2"));
+        assertAll(() -> assertEquals("1", second.get().getIdElement().getIdPart(), "Should share result"),
+                () -> assertEquals(Set.of("1", "2"), batch.get().keySet(), "Should share result with batch"));
+
+        client.requestFHIRFromServerAsync("1");
+        assertEquals(3, requests.size(), "Should not cache when turned off");
+    }
+
+    @Test
+    void testBatchFailure() {
+        final CachingBlueButtonClient client = createClient("ttl = 1h", asyncUpstream);
+        final CompletableFuture<Map<String, Patient>> failed = client.requestFHIRFromServerAsync(List.of("1", "2"));
+        pending.get("1").completeExceptionally(new BlueButtonClientException("Unexpected response fetching beneficiary 1", new IllegalStateException("HTTP 503")));
+        pending.get("2").completeExceptionally(new BlueButtonClientException("Unexpected response fetching beneficiary 2", new IllegalStateException("HTTP 503")));
+        final ExecutionException error = assertThrows(ExecutionException.class, failed::get, "Should fail batch when every request fails");
+        assertTrue(error.getCause() instanceof BlueButtonClientException, "Should pass through failure");
+
+        final CompletableFuture<Map<String, Patient>> partial = client.requestFHIRFromServerAsync(List.of("3", "4"));
+        pending.get("3").complete(patient("3"));
+        pending.get("4").completeExceptionally(new BlueButtonClientException("Unexpected response fetching beneficiary 4", new IllegalStateException("HTTP 503")));
+        assertEquals(Set.of("3"), partial.join().keySet(), "Should leave out failed beneficiary, when others succeed");
+
+        final CompletableFuture<Map<String, Patient>> missing = client.requestFHIRFromServerAsync(List.of("missing", "5"));
+        pending.get("missing").completeExceptionally(new BeneficiaryNotFoundException("Could not find beneficiary with ID: missing", new IllegalStateException("HTTP 404")));
+        pending.get("5").completeExceptionally(new BeneficiaryNotFoundException("Could not find beneficiary with ID: 5", new IllegalStateException("HTTP 404")));
+        assertTrue(missing.join().isEmpty(), "Should not fail batch of beneficiaries which weren't found");
+    }
+
+    private CachingBlueButtonClient createClient(String cacheConfig, AsyncBlueButtonClient client) {
+        final Config config = ConfigFactory.parseString(cacheConfig).atPath("aggregation.bbclient.cache").withFallback(ConfigFactory.load());
+        return new CachingBlueButtonClient(client, config, registry);
+    }
+
+    private AsyncBlueButtonClient blockingUpstream() {
+        // Requests run on the calling thread, so they've finished by the time the client returns
+        return AsyncBlueButtonClient.fromBlocking(upstream, Runnable::run);
+    }
+
+    private static Patient patient(String beneficiaryID) {
+        final Patient patient = new Patient();
+        patient.setId(beneficiaryID);
+        return patient;
+    }
+}
@@ -0,0 +1,208 @@
+package gov.cms.dpc.aggregation.bbclient;
+
+import com.codahale.metrics.MetricRegistry;
+import com.sun.net.httpserver.HttpServer;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.KeyStore;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DiskResourceCacheTest {
+
+    private static final String PREFIX = "gov.cms.dpc.aggregation.bbclient.DefaultBlueButtonClient.diskCache";
+    private static final String ETAG = "W/\"1\"";
+    private static final String LAST_MODIFIED = "Wed, 21 Oct 2015 07:28:00 GMT";
+
+    private Path cachePath;
+    private HttpServer server;
+    // Requests the server has seen, along with their If-None-Match header
+    private List<String> requests;
+
+    @BeforeEach
+    void setup() throws IOException {
+        cachePath = Files.createTempDirectory("bb-cache");
+        requests = Collections.synchronizedList(new ArrayList<>());
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/fhir/", exchange -> {
+            final String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+            requests.add(exchange.getRequestURI() + (ifNoneMatch == null ? "" : " " + ifNoneMatch));
+            final String path = exchange.getRequestURI().getPath();
+            final String body;
+            if (path.equals("/fhir/metadata") || path.endsWith("/missing")) {
+                exchange.sendResponseHeaders(404, -1);
+                exchange.close();
+                return;
+            } else if (ETAG.equals(ifNoneMatch)) {
+                exchange.sendResponseHeaders(304, -1);
+                exchange.close();
+                return;
+            } else if (path.equals("/fhir/Patient") && exchange.getRequestURI().getQuery().contains("_lastUpdated")) {
+                // Nothing has been updated since it was cached
+                body = "{\"resourceType\":\"Bundle\",\"type\":\"searchset\"}";
+            } else if (path.equals("/fhir/Patient")) {
+                body = "{\"resourceType\":\"Bundle\",\"type\":\"searchset\",\"entry\":["
+                        + "{\"resource\":{\"resourceType\":\"Patient\",\"id\":\"2\",\"meta\":{\"versionId\":\"1\",\"lastUpdated\":\"2015-10-21T07:28:00Z\"}}},"
+                        + "{\"resource\":{\"resourceType\":\"Patient\",\"id\":\"3\",\"meta\":{\"versionId\":\"1\",\"lastUpdated\":\"2015-10-21T07:28:00Z\"}}}]}";
+            } else {
+                // Pretty printed, which has to be compacted before it can go into an export
+                body = "{\n  \"resourceType\": \"Patient\",\n  \"id\": \"1\"\n}";
+                exchange.getResponseHeaders().add("ETag", ETAG);
+                exchange.getResponseHeaders().add("Last-Modified", LAST_MODIFIED);
+            }
+            final byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, bytes.length);
+            exchange.getResponseBody().write(bytes);
+            exchange.close();
+        });
+        server.start();
+    }
+
+    @AfterEach
+    void cleanup() throws IOException {
+        server.stop(0);
+        try (Stream<Path> files = Files.walk(cachePath)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    void testEntries() throws IOException {
+        final DiskResourceCache cache = new DiskResourceCache(createConfig());
+        cache.put("Patient", "1", new DiskResourceCache.Entry("{}".getBytes(StandardCharsets.UTF_8), ETAG, null));
+        cache.put("Patient", "../escape", new DiskResourceCache.Entry("{}".getBytes(StandardCharsets.UTF_8), null, null));
+
+        // Simulate a restart
+        final DiskResourceCache reopened = new DiskResourceCache(createConfig());
+        final DiskResourceCache.Entry entry = reopened.get("Patient", "1").orElseThrow();
+        assertAll(() -> assertEquals("{}", new String(entry.getResource(), StandardCharsets.UTF_8), "Should restore resource"),
+                () -> assertEquals(ETAG, entry.getEtag(), "Should restore ETag"),
+                () -> assertEquals("", entry.getLastModified(), "Should not have Last-Modified"),
+                () -> assertTrue(reopened.get("Patient", "../escape").isPresent(), "Should restore entry with unusual ID"),
+                () -> assertTrue(reopened.get("Coverage", "1").isEmpty(), "Should key entries by resource type"));
+
+        try (Stream<Path> files = Files.walk(cachePath)) {
+            assertTrue(files.allMatch(path -> path.startsWith(cachePath) && !path.getFileName().toString().contains("escape")), "Should keep entries in cache directory, without IDs in their names");
+        }
+        reopened.remove("Patient", "1");
+        assertTrue(reopened.get("Patient", "1").isEmpty(), "Should remove entry");
+
+        // Corrupt entries are treated as a miss
+        Files.write(reopened.resolve("Patient", "4"), new byte[]{0, 0, 0, 1, 0});
+        assertTrue(reopened.get("Patient", "4").isEmpty(), "Should discard corrupt entry");
+
+        // Expired entries are treated as a miss, even before they're swept
+        reopened.put("Patient", "5", new DiskResourceCache.Entry("{}".getBytes(StandardCharsets.UTF_8), ETAG, null));
+        setAge(reopened, "Patient", "5", Duration.ofDays(2));
+        assertTrue(reopened.get("Patient", "5").isEmpty(), "Should not serve expired entry");
+    }
+
+    @Test
+    void testDirectory() throws IOException {
+        assertFalse(new DiskResourceCache(ConfigFactory.load()).isEnabled(), "Should be off by default");
+
+        final Path location = cachePath.resolve("nested").resolve("cache");
+        final DiskResourceCache cache = new DiskResourceCache(ConfigFactory.parseMap(Map.of("aggregation.bbclient.diskCache.location", location.toString()))
+                .withFallback(ConfigFactory.load()));
+        assertAll(() -> assertTrue(cache.isEnabled(), "Should be on once it has a location"),
+                () -> assertEquals(PosixFilePermissions.fromString("rwx------"), Files.getPosixFilePermissions(location), "Should only be readable by its owner"));
+
+        // An existing directory is tightened up
+        Files.setPosixFilePermissions(location, PosixFilePermissions.fromString("rwxr-xr-x"));
+        new DiskResourceCache(ConfigFactory.parseMap(Map.of("aggregation.bbclient.diskCache.location", location.toString()))
+                .withFallback(ConfigFactory.load()));
+        assertEquals(PosixFilePermissions.fromString("rwx------"), Files.getPosixFilePermissions(location), "Should restrict existing directory");
+    }
+
+    @Test
+    void testRevalidation() throws Exception {
+        final Config config = createConfig();
+        final Map<String, byte[]> fetched = new DefaultBlueButtonClient(config, new MetricRegistry())
+                .requestEncodedFromServerAsync(List.of("1")).get();
+        assertEquals("{\"resourceType\":\"Patient\",\"id\":\"1\"}", new String(fetched.get("1"), StandardCharsets.UTF_8), "Should compact pretty printed resource");
+        new DefaultBlueButtonClient(config, new MetricRegistry()).requestEncodedFromServerAsync(List.of("2", "3")).get();
+
+        // Simulate a restart
+        requests.clear();
+        final MetricRegistry registry = new MetricRegistry();
+        final DefaultBlueButtonClient client = new DefaultBlueButtonClient(config, registry);
+        final Map<String, byte[]> revalidated = client.requestEncodedFromServerAsync(List.of("1", "2", "3", "missing")).get();
+
+        final String lastUpdated = URLEncoder.encode("2015-10-21T07:28:00Z", StandardCharsets.UTF_8);
+        assertAll(() -> assertArrayEquals(fetched.get("1"), revalidated.get("1"), "Should return cached bytes"),
+                () -> assertEquals(Set.of("1", "2", "3"), revalidated.keySet(), "Should leave out missing beneficiary"),
+                () -> assertEquals(Set.of("/fhir/Patient?_id=1,2,3&_count=3&_lastUpdated=ge" + lastUpdated, "/fhir/Patient/missing"), Set.copyOf(requests), "Should revalidate cached beneficiaries with a single search"),
+                () -> assertEquals(3, registry.meter(PREFIX + ".notModified").getCount(), "Should count unchanged beneficiaries"),
+                () -> assertEquals(0, registry.meter(PREFIX + ".modified").getCount(), "Should not count changed beneficiaries"));
+    }
+
+    @Test
+    void testSweep() throws IOException {
+        final DiskResourceCache cache = new DiskResourceCache(ConfigFactory.parseString("aggregation.bbclient.diskCache { ttl = 1h, maxSize = 350 }").withFallback(createConfig()));
+        final DiskResourceCache.Entry entry = new DiskResourceCache.Entry(new byte[100], ETAG, LAST_MODIFIED);
+        cache.put("Patient", "expired", entry);
+        cache.put("Patient", "oldest", entry);
+        cache.put("Patient", "newest", entry);
+        setAge(cache, "Patient", "expired", Duration.ofHours(2));
+        setAge(cache, "Patient", "oldest", Duration.ofMinutes(10));
+
+        assertEquals(1, cache.sweep(), "Should only remove expired entry, while under the limit");
+        assertAll(() -> assertTrue(cache.get("Patient", "expired").isEmpty(), "Should remove expired entry"),
+                () -> assertTrue(cache.get("Patient", "oldest").isPresent(), "Should keep unexpired entry"),
+                () -> assertTrue(Files.exists(cachePath.resolve("test.keystore")), "Should ignore files which aren't entries"));
+
+        cache.put("Coverage", "1", entry);
+        assertEquals(1, cache.sweep(), "Should remove oldest entry, once over the limit");
+        assertAll(() -> assertTrue(cache.get("Patient", "oldest").isEmpty(), "Should remove oldest entry"),
+                () -> assertTrue(cache.get("Patient", "newest").isPresent(), "Should keep newer entry"),
+                () -> assertTrue(cache.get("Coverage", "1").isPresent(), "Should keep newer entry"));
+    }
+
+    private static void setAge(DiskResourceCache cache, String resourceType, String id, Duration age) throws IOException {
+        Files.setLastModifiedTime(cache.resolve(resourceType, id), FileTime.from(Instant.now().minus(age)));
+    }
+
+    private Config createConfig() throws IOException {
+        return ConfigFactory.parseMap(Map.of(
+                "aggregation.bbclient.diskCache.location", cachePath.toString(),
+                "aggregation.bbclient.serverBaseUrl", String.format("http://localhost:%d/fhir/", server.getAddress().getPort()),
+                "aggregation.bbclient.keyStore.location", createKeyStore().toString()))
+                .withFallback(ConfigFactory.load());
+    }
+
+    /**
+     * The local server doesn't use TLS, so the client only needs an empty keystore
+     */
+    private Path createKeyStore() throws IOException {
+        final Path keyStorePath = cachePath.resolve("test.keystore");
+        if (Files.exists(keyStorePath)) {
+            return keyStorePath;
+        }
+        try (OutputStream output = Files.newOutputStream(keyStorePath)) {
+            final KeyStore keyStore = KeyStore.getInstance("JKS");
+            keyStore.load(null, "changeit".toCharArray());
+            keyStore.store(output, "changeit".toCharArray());
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Unable to create keystore", e);
+        }
+        return keyStorePath;
+    }
+}
@@ -0,0 +1,28 @@
+package gov.cms.dpc.aggregation.bbclient;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.dstu3.model.Patient;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ResourceEncodingTest {
+
+    @Test
+    void testEncode() {
+        final Patient large = new Patient();
+        large.setId("1");
+        // Big enough that the buffer isn't kept for the next resource
+        large.addName().setFamily("\u00fc".repeat(1024 * 1024));
+        final Patient small = new Patient();
+        small.setId("2");
+
+        for (Patient patient : new Patient[]{small, large, small, small}) {
+            final byte[] encoded = ResourceEncoding.encode(patient);
+            assertEquals(FhirContext.forDstu3().newJsonParser().encodeResourceToString(patient), new String(encoded, StandardCharsets.UTF_8), "Should encode only the resource, as UTF-8");
+            assertEquals(patient.getId(), ResourceEncoding.decode(Patient.class, encoded).getIdElement().getIdPart(), "Should decode encoded resource");
+        }
+    }
+}
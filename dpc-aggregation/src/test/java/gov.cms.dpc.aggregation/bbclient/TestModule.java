@@ -1,5 +1,6 @@
 package gov.cms.dpc.aggregation.bbclient;
 
+import com.codahale.metrics.MetricRegistry;
 import com.google.inject.AbstractModule;
 import com.google.inject.Provides;
 import com.typesafe.config.Config;
@@ -13,6 +14,11 @@ public class TestModule extends AbstractModule {
         return ConfigFactory.load();
     }
 
+    @Provides
+    MetricRegistry provideMetricRegistry() {
+        return new MetricRegistry();
+    }
+
     @Provides
     @ExportPath
     public String provideExportPath() {
@@ -0,0 +1,10 @@
+package gov.cms.dpc.common.interfaces;
+
+/**
+ * Work which is done on behalf of a single provider.
+ * The job queue uses this to share workers fairly between providers.
+ */
+public interface ProviderScoped {
+
+    String getProviderID();
+}
@@ -0,0 +1,22 @@
+package gov.cms.dpc.common.models;
+
+/**
+ * How export files are compressed on disk, which determines their extension
+ */
+public enum ExportCompression {
+    NONE(".ndjson"),
+    GZIP(".ndjson.gz");
+
+    private final String extension;
+
+    ExportCompression(String extension) {
+        this.extension = extension;
+    }
+
+    /**
+     * @return - {@link String} extension which is appended to {@link JobModel#outputFileName}, to get the name of the file on disk
+     */
+    public String getExtension() {
+        return extension;
+    }
+}
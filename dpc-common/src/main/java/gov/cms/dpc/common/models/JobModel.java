@@ -1,20 +1,55 @@
 package gov.cms.dpc.common.models;
 
-import java.util.Objects;
-import java.util.Set;
+import gov.cms.dpc.common.interfaces.ProviderScoped;
 
-public class JobModel {
+import java.io.Serializable;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.stream.Collectors;
 
-    public static final long serializationUID = 42L;
+public class JobModel implements Serializable, ProviderScoped {
+
+    public static final long serialVersionUID = 42L;
+    // FHIR resource type of the error files, which isn't a ResourceType, since it can't be requested
+    public static final String ERROR_RESOURCE_TYPE = "OperationOutcome";
 
     private final String providerID;
     private final Set<String> beneficiaries;
+    private final List<ResourceType> resourceTypes;
+    private final OffsetDateTime since;
+    private final OffsetDateTime transactionTime;
 
     public JobModel(String providerID, Set<String> beneficiaries) {
+        this(providerID, beneficiaries, null, OffsetDateTime.now(ZoneOffset.UTC));
+    }
+
+    /**
+     * Export every {@link ResourceType}, see {@link #JobModel(String, Set, List, OffsetDateTime, OffsetDateTime)}
+     */
+    public JobModel(String providerID, Set<String> beneficiaries, OffsetDateTime since, OffsetDateTime transactionTime) {
+        this(providerID, beneficiaries, List.of(ResourceType.values()), since, transactionTime);
+    }
+
+    /**
+     * @param providerID      - {@link String} provider ID
+     * @param beneficiaries   - {@link Set} of beneficiary IDs to export
+     * @param resourceTypes   - {@link List} of {@link ResourceType}s to export, each of which is written to its own file
+     * @param since           - {@link OffsetDateTime} only export resources updated at or after this time, {@code null} exports every resource
+     * @param transactionTime - {@link OffsetDateTime} time the export was requested, which clients pass as the {@code since} of their next export
+     */
+    public JobModel(String providerID, Set<String> beneficiaries, List<ResourceType> resourceTypes, OffsetDateTime since, OffsetDateTime transactionTime) {
+        if (resourceTypes.isEmpty()) {
+            throw new IllegalArgumentException("Must export at least one resource type");
+        }
         this.providerID = providerID;
         this.beneficiaries = beneficiaries;
+        this.resourceTypes = List.copyOf(resourceTypes);
+        this.since = since;
+        this.transactionTime = transactionTime;
     }
 
+    @Override
     public String getProviderID() {
         return providerID;
     }
@@ -23,17 +58,81 @@ public class JobModel {
         return beneficiaries;
     }
 
+    public List<ResourceType> getResourceTypes() {
+        return resourceTypes;
+    }
+
+    public Optional<OffsetDateTime> getSince() {
+        return Optional.ofNullable(since);
+    }
+
+    public OffsetDateTime getTransactionTime() {
+        return transactionTime;
+    }
+
+    /**
+     * Split the job into smaller jobs for the same provider, each with at most the given number of beneficiaries.
+     * Beneficiaries are sorted before being split, so the same roster always produces the same shards.
+     *
+     * @param maxBeneficiaries - maximum number of beneficiaries in each shard
+     * @return - {@link List} of {@link JobModel} shards, which contains only this job, if it's already small enough
+     */
+    public List<JobModel> shard(int maxBeneficiaries) {
+        if (maxBeneficiaries <= 0) {
+            throw new IllegalArgumentException("Shards must have at least one beneficiary");
+        }
+        if (beneficiaries.size() <= maxBeneficiaries) {
+            return List.of(this);
+        }
+        final List<String> sorted = beneficiaries.stream().sorted().collect(Collectors.toList());
+        final List<JobModel> shards = new ArrayList<>();
+        for (int start = 0; start < sorted.size(); start += maxBeneficiaries) {
+            final List<String> slice = sorted.subList(start, Math.min(start + maxBeneficiaries, sorted.size()));
+            shards.add(new JobModel(providerID, new HashSet<>(slice), resourceTypes, since, transactionTime));
+        }
+        return shards;
+    }
+
+    /**
+     * Name of a file a job (or shard) writes the given resource type to, without its {@link ExportCompression} extension.
+     * This is also the ID the file is downloaded with, from the Data endpoint.
+     * Each resource type is split into numbered parts, so there's always a part 0, followed by as many parts as the export needed.
+     *
+     * @param jobID        - {@link UUID} of the job or shard
+     * @param resourceType - {@link ResourceType} written to the file
+     * @param part         - index of the part, starting at 0
+     * @return - {@link String} file name
+     */
+    public static String outputFileName(UUID jobID, ResourceType resourceType, int part) {
+        return String.format("%s.%s.%d", jobID, resourceType.getFhirName(), part);
+    }
+
+    /**
+     * Name of a file a job (or shard) writes an OperationOutcome to for each resource it couldn't export, in the same form as {@link #outputFileName(UUID, ResourceType, int)}.
+     * The file is only written if something failed, so unlike the output files, there may not be a part 0.
+     *
+     * @param jobID - {@link UUID} of the job or shard
+     * @param part  - index of the part, starting at 0
+     * @return - {@link String} file name
+     */
+    public static String errorFileName(UUID jobID, int part) {
+        return String.format("%s.%s.%d", jobID, ERROR_RESOURCE_TYPE, part);
+    }
+
+    // The transaction time only records when the job was requested, so it's left out, and the same export requested twice is equal
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         JobModel jobModel = (JobModel) o;
         return providerID.equals(jobModel.providerID) &&
-                beneficiaries.equals(jobModel.beneficiaries);
+                beneficiaries.equals(jobModel.beneficiaries) &&
+                resourceTypes.equals(jobModel.resourceTypes) &&
+                Objects.equals(since, jobModel.since);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(providerID, beneficiaries);
+        return Objects.hash(providerID, beneficiaries, resourceTypes, since);
     }
 }
@@ -0,0 +1,38 @@
+package gov.cms.dpc.common.models;
+
+import java.util.Arrays;
+import java.util.Optional;
+
+/**
+ * FHIR resource types which can be exported for a beneficiary
+ */
+public enum ResourceType {
+    PATIENT("Patient"),
+    EXPLANATION_OF_BENEFIT("ExplanationOfBenefit"),
+    COVERAGE("Coverage");
+
+    private final String fhirName;
+
+    ResourceType(String fhirName) {
+        this.fhirName = fhirName;
+    }
+
+    /**
+     * @return - {@link String} FHIR name of the resource type, as used by the {@code _type} parameter and in export file names
+     */
+    public String getFhirName() {
+        return fhirName;
+    }
+
+    /**
+     * Look up a resource type by its FHIR name
+     *
+     * @param fhirName - {@link String} FHIR name, e.g. ExplanationOfBenefit
+     * @return - {@link ResourceType}, empty if the resource type can't be exported
+     */
+    public static Optional<ResourceType> fromFhirName(String fhirName) {
+        return Arrays.stream(values())
+                .filter(resourceType -> resourceType.fhirName.equals(fhirName))
+                .findFirst();
+    }
+}
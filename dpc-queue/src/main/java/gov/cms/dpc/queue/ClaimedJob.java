@@ -0,0 +1,24 @@
+package gov.cms.dpc.queue;
+
+import java.util.UUID;
+
+/**
+ * A job claimed from a {@link JobQueue}, along with the attempt number of the claim.
+ * <p>
+ * The attempt number identifies the claim, so a worker whose lease has expired (and whose job may since have been claimed again) can't renew or complete the job on behalf of the new claim.
+ *
+ * @param <T> - type of job data
+ */
+public class ClaimedJob<T> extends Pair<UUID, T> {
+
+    private final int attempt;
+
+    public ClaimedJob(UUID jobID, T data, int attempt) {
+        super(jobID, data);
+        this.attempt = attempt;
+    }
+
+    public int getAttempt() {
+        return attempt;
+    }
+}
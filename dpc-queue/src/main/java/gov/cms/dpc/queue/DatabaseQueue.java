@@ -0,0 +1,791 @@
+package gov.cms.dpc.queue;
+
+import com.codahale.metrics.MetricRegistry;
+import com.typesafe.config.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.sql.DataSource;
+import java.io.Serializable;
+import java.sql.*;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link JobQueue} backed by a relational database (Postgres in production, H2 for local development and testing).
+ * <p>
+ * Jobs are stored in the JOB_QUEUE table (see queue.migrations.xml) and survive restarts of the service.
+ * Multiple workers, on any number of nodes, can claim jobs at the same time.
+ * On Postgres, the next job is selected with FOR UPDATE SKIP LOCKED, so concurrent claimers never wait on each other's rows.
+ * Databases which do not support SKIP LOCKED fall back to FOR UPDATE, and every claim is guarded by a conditional update, so a job can only ever be claimed once.
+ * <p>
+ * Leases are stored alongside the job, so any node can requeue jobs abandoned by a worker on another node.
+ * <p>
+ * In {@link SchedulingPolicy.Mode#FAIR_SHARE} mode, each claim first looks at the running and waiting jobs of every provider, and then claims the oldest job of whichever provider the {@link SchedulingPolicy} picks.
+ * The per-provider limit on running jobs is checked at claim time, so simultaneous claims on different nodes can briefly exceed it.
+ * Running shards count towards the limit as part of their parent, so a sharded job only takes up a single slot.
+ * <p>
+ * Coalesced submissions are checked and inserted in a single transaction, without any locking in the queue itself.
+ * A unique index on the coalescing key of unfinished jobs stops two submissions of the same key at the same moment, from this node or any other, from both creating a job, the one which loses the race attaches to the other's job instead.
+ * <p>
+ * Sharded jobs are stored as a parent row, with a shard_count and no data, which is never claimed, and a row for each shard, which points at the parent.
+ * Whenever a shard changes status, the parent row is locked and its status is recomputed from the shards, in the same transaction, so concurrent updates from different nodes can't leave it stale.
+ * <p>
+ * Job data, and the {@link JobOutput} each job reports, are stored using Java serialization, so job data must implement {@link Serializable}.
+ *
+ * @see JobSerializer
+ */
+public class DatabaseQueue implements JobQueue {
+
+    private static final Logger logger = LoggerFactory.getLogger(DatabaseQueue.class);
+    // How often to check the database for new jobs, when waiting on work submitted by other nodes
+    private static final Duration POLL_INTERVAL = Duration.ofMillis(500);
+    // SQLSTATE for a unique constraint violation, on both Postgres and H2
+    private static final String UNIQUE_VIOLATION = "23505";
+
+    private static final String INSERT_JOB = "INSERT INTO job_queue (id, status, data, submit_time, provider_id) VALUES (?, ?, ?, ?, ?)";
+    private static final String INSERT_JOB_ENTRY = "INSERT INTO job_queue (id, status, data, submit_time, provider_id, coalesce_key, parent_id, shard_count) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+    private static final String SELECT_COALESCED_JOB = "SELECT id FROM job_queue WHERE coalesce_key = ? AND (status IN (?, ?) OR (status = ? AND complete_time > ?)) ORDER BY submit_time DESC LIMIT 1";
+    private static final String SELECT_STATUS = "SELECT status FROM job_queue WHERE id = ?";
+    // Parents don't have any data, so they fall back to their first shard
+    private static final String SELECT_DATA = "SELECT data FROM job_queue WHERE (id = ? OR parent_id = ?) AND data IS NOT NULL ORDER BY id LIMIT 1";
+    private static final String SELECT_SHARDS = "SELECT id FROM job_queue WHERE parent_id = ? ORDER BY id";
+    // Parents don't have any output of their own, so this is the output of each of their shards, in the same order as SELECT_SHARDS
+    private static final String SELECT_OUTPUT = "SELECT output FROM job_queue WHERE (id = ? OR parent_id = ?) AND output IS NOT NULL ORDER BY id";
+    private static final String SELECT_PARENT = "SELECT parent_id FROM job_queue WHERE id = ?";
+    private static final String LOCK_PARENT = "SELECT id FROM job_queue WHERE id = ? FOR UPDATE";
+    private static final String COUNT_SHARDS = "SELECT status, COUNT(*) FROM job_queue WHERE parent_id = ? GROUP BY status";
+    private static final String UPDATE_PARENT = "UPDATE job_queue SET status = ?, complete_time = ? WHERE id = ? AND status <> ?";
+    private static final String SELECT_NEXT_JOB = "SELECT id, data, submit_time, provider_id, parent_id, attempts FROM job_queue WHERE status = ? AND shard_count IS NULL ORDER BY submit_time LIMIT 1 FOR UPDATE";
+    private static final String SELECT_NEXT_PROVIDER_JOB = "SELECT id, data, submit_time, provider_id, parent_id, attempts FROM job_queue WHERE status = ? AND provider_id = ? AND shard_count IS NULL ORDER BY submit_time LIMIT 1 FOR UPDATE";
+    private static final String SELECT_PROVIDER_LOAD = "SELECT p.provider_id, " +
+            "(SELECT COUNT(DISTINCT COALESCE(r.parent_id, r.id)) FROM job_queue r WHERE r.provider_id = p.provider_id AND r.status = ? AND r.shard_count IS NULL), " +
+            "(SELECT MAX(s.start_time) FROM job_queue s WHERE s.provider_id = p.provider_id) " +
+            "FROM (SELECT DISTINCT provider_id FROM job_queue WHERE status = ? AND shard_count IS NULL) p";
+    private static final String CLAIM_JOB = "UPDATE job_queue SET status = ?, start_time = ?, lease_expiry = ?, attempts = attempts + 1, output = NULL, progress_total = NULL, progress_fetched = NULL, progress_failed = NULL, progress_bytes = NULL WHERE id = ? AND status = ?";
+    private static final String COMPLETE_JOB = "UPDATE job_queue SET status = ?, complete_time = ?, lease_expiry = NULL, output = ? WHERE id = ?";
+    private static final String COMPLETE_CLAIMED_JOB = COMPLETE_JOB + " AND status = ? AND attempts = ?";
+    private static final String UPDATE_PROGRESS = "UPDATE job_queue SET progress_total = ?, progress_fetched = ?, progress_failed = ?, progress_bytes = ? WHERE id = ? AND status = ?";
+    private static final String SELECT_PROGRESS = "SELECT start_time, progress_total, progress_fetched, progress_failed, progress_bytes, shard_count FROM job_queue WHERE id = ?";
+    private static final String SELECT_SHARD_PROGRESS = "SELECT MIN(start_time), SUM(progress_total), SUM(progress_fetched), SUM(progress_failed), SUM(progress_bytes) FROM job_queue WHERE parent_id = ? AND progress_total IS NOT NULL";
+    private static final String RENEW_LEASE = "UPDATE job_queue SET lease_expiry = ? WHERE id = ? AND status = ?";
+    private static final String RENEW_CLAIMED_LEASE = RENEW_LEASE + " AND attempts = ?";
+    private static final String FAIL_EXPIRED = "UPDATE job_queue SET status = ?, complete_time = ?, lease_expiry = NULL WHERE status = ? AND lease_expiry < ? AND attempts > ?";
+    // Requeued jobs go to the back of the queue, as they do in the MemoryQueue
+    private static final String REQUEUE_EXPIRED = "UPDATE job_queue SET status = ?, submit_time = ?, lease_expiry = NULL WHERE status = ? AND lease_expiry < ?";
+    private static final String SELECT_EXPIRED_PARENTS = "SELECT DISTINCT parent_id FROM job_queue WHERE status = ? AND lease_expiry < ? AND parent_id IS NOT NULL";
+    private static final String DELETE_JOB = "DELETE FROM job_queue WHERE id = ? OR parent_id = ?";
+    private static final String SELECT_FINISHED = "SELECT id FROM job_queue WHERE status IN (?, ?) AND complete_time < ? AND parent_id IS NULL";
+    private static final String COUNT_JOBS = "SELECT COUNT(*) FROM job_queue WHERE parent_id IS NULL";
+    private static final String COUNT_BY_PROVIDER = "SELECT provider_id, status, COUNT(*) FROM job_queue WHERE shard_count IS NULL GROUP BY provider_id, status";
+    private static final String SELECT_RUN_INFO = "SELECT provider_id, start_time, parent_id FROM job_queue WHERE id = ?";
+
+    private final DataSource dataSource;
+    private final String selectNextJob;
+    private final String selectNextProviderJob;
+    private final Duration leaseDuration;
+    private final int maxRetries;
+    private final Duration coalesceWindow;
+    private final SchedulingPolicy policy;
+    private final QueueMetrics metrics;
+
+    @Inject
+    public DatabaseQueue(DataSource dataSource, Config config, MetricRegistry registry) {
+        this.dataSource = dataSource;
+        this.leaseDuration = config.getDuration("queue.lease.duration");
+        this.maxRetries = config.getInt("queue.lease.maxRetries");
+        this.coalesceWindow = config.getDuration("queue.coalescing.completedWindow");
+        this.policy = new SchedulingPolicy(config);
+        this.metrics = new QueueMetrics(registry, this::countJobs);
+        final boolean skipLocked = supportsSkipLocked(dataSource);
+        this.selectNextJob = skipLocked ? SELECT_NEXT_JOB + " SKIP LOCKED" : SELECT_NEXT_JOB;
+        this.selectNextProviderJob = skipLocked ? SELECT_NEXT_PROVIDER_JOB + " SKIP LOCKED" : SELECT_NEXT_PROVIDER_JOB;
+    }
+
+    @Override
+    public <T> void submitJob(UUID jobID, T data) {
+        logger.debug("Submitting job: {}", jobID);
+        try (final Connection connection = this.dataSource.getConnection();
+             final PreparedStatement statement = connection.prepareStatement(INSERT_JOB)) {
+            statement.setObject(1, jobID);
+            statement.setInt(2, JobStatus.QUEUED.getCode());
+            statement.setBytes(3, JobSerializer.serialize(data));
+            statement.setTimestamp(4, Timestamp.from(Instant.now()));
+            statement.setString(5, SchedulingPolicy.providerID(data));
+            statement.executeUpdate();
+        } catch (SQLException e) {
+            throw new JobQueueException(String.format("Unable to submit job %s", jobID), e);
+        }
+
+        // Wake up any local workers, remote workers will pick it up on their next poll
+        synchronized (this) {
+            this.notifyAll();
+        }
+    }
+
+    @Override
+    public <T> void submitShardedJob(UUID jobID, List<T> shards) {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException(String.format("Job %s does not have any shards", jobID));
+        }
+        if (shards.size() == 1) {
+            submitJob(jobID, shards.get(0));
+            return;
+        }
+
+        try (final Connection connection = this.dataSource.getConnection()) {
+            connection.setAutoCommit(false);
+            try {
+                insertJob(connection, jobID, shards, null);
+                connection.commit();
+            } catch (SQLException | RuntimeException e) {
+                connection.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            throw new JobQueueException(String.format("Unable to submit job %s", jobID), e);
+        }
+
+        synchronized (this) {
+            this.notifyAll();
+        }
+    }
+
+    @Override
+    public <T> UUID submitCoalescedJob(UUID jobID, List<T> shards, String coalesceKey) {
+        try (final Connection connection = this.dataSource.getConnection()) {
+            connection.setAutoCommit(false);
+            try {
+                final Optional<UUID> existing = findCoalescedJob(connection, coalesceKey);
+                if (existing.isPresent()) {
+                    connection.commit();
+                    logger.debug("Attaching to existing job {}, rather than submitting job {}", existing.get(), jobID);
+                    return existing.get();
+                }
+
+                insertJob(connection, jobID, shards, coalesceKey);
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                if (!isUniqueViolation(e)) {
+                    throw e;
+                }
+                // Another node submitted the same key in the meantime, so attach to its job
+                final Optional<UUID> existing = findCoalescedJob(connection, coalesceKey);
+                connection.commit();
+                if (existing.isEmpty()) {
+                    throw e;
+                }
+                logger.debug("Attaching to job {}, which was submitted concurrently with job {}", existing.get(), jobID);
+                return existing.get();
+            } catch (RuntimeException e) {
+                connection.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            throw new JobQueueException(String.format("Unable to submit job %s", jobID), e);
+        }
+
+        synchronized (this) {
+            this.notifyAll();
+        }
+        return jobID;
+    }
+
+    @Override
+    public List<UUID> getShards(UUID jobID) {
+        try (final Connection connection = this.dataSource.getConnection();
+             final PreparedStatement statement = connection.prepareStatement(SELECT_SHARDS)) {
+            statement.setObject(1, jobID);
+            try (final ResultSet rs = statement.executeQuery()) {
+                final List<UUID> shards = new ArrayList<>();
+                while (rs.next()) {
+                    shards.add(rs.getObject(1, UUID.class));
+                }
+                return shards;
+            }
+        } catch (SQLException e) {
+            throw new JobQueueException(String.format("Unable to get shards for job %s", jobID), e);
+        }
+    }
+
+    @Override
+    public Optional<UUID> getParentID(UUID jobID) {
+        try (final Connection connection = this.dataSource.getConnection();
+             final PreparedStatement statement = connection.prepareStatement(SELECT_PARENT)) {
+            statement.setObject(1, jobID);
+            try (final ResultSet rs = statement.executeQuery()) {
+                return rs.next() ? Optional.ofNullable(rs.getObject(1, UUID.class)) : Optional.empty();
+            }
+        } catch (SQLException e) {
+            throw new JobQueueException(String.format("Unable to get parent of job %s", jobID), e);
+        }
+    }
+
+    @Override
+    public Optional<JobStatus> getJobStatus(UUID jobID) {
+        logger.debug("Getting status for job: {}", jobID);
+        try (final Connection connection = this.dataSource.getConnection();
+             final PreparedStatement statement = connection.prepareStatement(SELECT_STATUS)) {
+            statement.setObject(1, jobID);
+            try (final ResultSet rs = statement.executeQuery()) {
+                if (!rs.next()) {
+                    return Optional.empty();
+                }
+                return Optional.of(JobStatus.fromCode(rs.getInt(1)));
+            }
+        } catch (SQLException e) {
+            throw new JobQueueException(String.format("Unable to get status for job %s", jobID), e);
+        }
+    }
+
+    @Override
+    public <T> Optional<T> getJobData(UUID jobID) {
+        try (final Connection connection = this.dataSource.getConnection();
+             final PreparedStatement statement = connection.prepareStatement(SELECT_DATA)) {
+            statement.setObject(1, jobID);
+            statement.setObject(2, jobID);
+            try (final ResultSet rs = statement.executeQuery()) {
+                if (!rs.next()) {
+                    return Optional.empty();
+                }
+                return Optional.of(JobSerializer.deserialize(rs.getBytes(1)));
+            }
+        } catch (SQLException e) {
+            throw new JobQueueException(String.format("Unable to get data for job %s", jobID), e);
+        }
+    }
+
+    @Override
+    public <T> Optional<ClaimedJob<T>> workJob() {
+        logger.debug("Pulling first QUEUED job");
+        try (final Connection connection = this.dataSource.getConnection()) {
+            connection.setAutoCommit(false);
+            try {
+                final Optional<ClaimedJob<T>> job = claimJob(connection);
+                connection.commit();
+                job.ifPresent(pair -> logger.debug("Found job {}", pair.getLeft()));
+                return job;
+            } catch (SQLException | RuntimeException e) {
+                connection.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            throw new JobQueueException("Unable to claim job", e);
+        }
+    }
+
+    @Override
+    public <T> Optional<ClaimedJob<T>> workJob(Duration maxWait) throws InterruptedException {
+        final long deadline = System.nanoTime() + maxWait.toNanos();
+        Optional<ClaimedJob<T>> job;
+        while ((job = workJob()).isEmpty()) {
+            final long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                break;
+            }
+            synchronized (this) {
+                TimeUnit.NANOSECONDS.timedWait(this, Math.min(remaining, POLL_INTERVAL.toNanos()));
+            }
+        }
+        return job;
+    }
+
+    @Override
+    public void completeJob(UUID jobID, JobStatus status) {
+        if (!complete(jobID, status, null, Collections.emptyList())) {
+            throw new IllegalArgumentException(String.format("Job %s does not exist in queue", jobID));
+        }
+    }
+
+    @Override
+    public boolean completeJob(UUID jobID, int attempt, JobStatus status, List<JobOutput> output) {
+        if (!complete(jobID, status, attempt, output)) {
+            logger.warn("Ignoring {} status for job {} from attempt {}, which no longer holds the lease", status, jobID, attempt);
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public List<JobOutput> getJobOutput(UUID jobID) {
+        try (final Connection connection = this.dataSource.getConnection();
+             final PreparedStatement statement = connection.prepareStatement(SELECT_OUTPUT)) {
+            statement.setObject(1, jobID);
+            statement.setObject(2, jobID);
+            try (final ResultSet rs = statement.executeQuery()) {
+                final List<JobOutput> output = new ArrayList<>();
+                while (rs.next()) {
+                    output.addAll(JobSerializer.<List<JobOutput>>deserialize(rs.getBytes(1)));
+                }
+                return output;
+            }
+        } catch (SQLException e) {
+            throw new JobQueueException(String.format("Unable to get output for job %s", jobID), e);
+        }
+    }
+
+    @Override
+    public void updateProgress(UUID jobID, JobProgress progress) {
+        try (final Connection connection = this.dataSource.getConnection();
+             final PreparedStatement statement = connection.prepareStatement(UPDATE_PROGRESS)) {
+            statement.setInt(1, progress.getTotal());
+            statement.setInt(2, progress.getFetched());
+            statement.setInt(3, progress.getFailed());
+            statement.setLong(4, progress.getBytesWritten());
+            statement.setObject(5, jobID);
+            statement.setInt(6, JobStatus.RUNNING.getCode());
+            if (statement.executeUpdate() == 0) {
+                logger.debug("Ignoring progress for job {}, it is no longer running", jobID);
+            }
+        } catch (SQLException e) {
+            throw new JobQueueException(String.format("Unable to update progress for job %s", jobID), e);
+        }
+    }
+
+    @Override
+    public Optional<JobProgress> getJobProgress(UUID jobID) {
+        try (final Connection connection = this.dataSource.getConnection();
+             final PreparedStatement statement = connection.prepareStatement(SELECT_PROGRESS)) {
+            statement.setObject(1, jobID);
+            try (final ResultSet rs = statement.executeQuery()) {
+                if (!rs.next()) {
+                    return Optional.empty();
+                }
+                rs.getInt(6);
+                if (!rs.wasNull()) {
+                    return getShardProgress(connection, jobID);
+                }
+                final int total = rs.getInt(2);
+                if (rs.wasNull()) {
+                    return Optional.empty();
+                }
+                final Timestamp startTime = rs.getTimestamp(1);
+                return Optional.of(new JobProgress(total, rs.getInt(3), rs.getInt(4), rs.getLong(5), startTime == null ? null : startTime.toInstant()));
+            }
+        } catch (SQLException e) {
+            throw new JobQueueException(String.format("Unable to get progress for job %s", jobID), e);
+        }
+    }
+
+    @Override
+    public boolean renewLease(UUID jobID) {
+        if (!renew(jobID, null)) {
+            logger.warn("Cannot renew lease for job {}, it is no longer running", jobID);
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean renewLease(UUID jobID, int attempt) {
+        if (!renew(jobID, attempt)) {
+            logger.warn("Cannot renew lease for job {}, attempt {} no longer holds it", jobID, attempt);
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int requeueExpiredJobs() {
+        final Timestamp now = Timestamp.from(Instant.now());
+        try (final Connection connection = this.dataSource.getConnection()) {
+            connection.setAutoCommit(false);
+            try (final PreparedStatement parents = connection.prepareStatement(SELECT_EXPIRED_PARENTS);
+                 final PreparedStatement fail = connection.prepareStatement(FAIL_EXPIRED);
+                 final PreparedStatement requeue = connection.prepareStatement(REQUEUE_EXPIRED)) {
+                parents.setInt(1, JobStatus.RUNNING.getCode());
+                parents.setTimestamp(2, now);
+                final List<UUID> parentIDs = new ArrayList<>();
+                try (final ResultSet rs = parents.executeQuery()) {
+                    while (rs.next()) {
+                        parentIDs.add(rs.getObject(1, UUID.class));
+                    }
+                }
+
+                fail.setInt(1, JobStatus.FAILED.getCode());
+                fail.setTimestamp(2, now);
+                fail.setInt(3, JobStatus.RUNNING.getCode());
+                fail.setTimestamp(4, now);
+                fail.setInt(5, this.maxRetries);
+                final int failed = fail.executeUpdate();
+
+                requeue.setInt(1, JobStatus.QUEUED.getCode());
+                requeue.setTimestamp(2, now);
+                requeue.setInt(3, JobStatus.RUNNING.getCode());
+                requeue.setTimestamp(4, now);
+                final int requeued = requeue.executeUpdate();
+                for (final UUID parentID : parentIDs) {
+                    refreshParent(connection, parentID);
+                }
+                connection.commit();
+
+                if (failed + requeued > 0) {
+                    logger.warn("Leases expired for {} jobs. Requeued {}, failed {}", failed + requeued, requeued, failed);
+                }
+                return failed + requeued;
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            throw new JobQueueException("Unable to requeue expired jobs", e);
+        }
+    }
+
+    @Override
+    public void removeJob(UUID jobID) {
+        try (final Connection connection = this.dataSource.getConnection();
+             final PreparedStatement statement = connection.prepareStatement(DELETE_JOB)) {
+            statement.setObject(1, jobID);
+            statement.setObject(2, jobID);
+            statement.executeUpdate();
+        } catch (SQLException e) {
+            throw new JobQueueException(String.format("Unable to remove job %s", jobID), e);
+        }
+    }
+
+    @Override
+    public List<UUID> removeFinishedJobs(Instant finishedBefore) {
+        try (final Connection connection = this.dataSource.getConnection()) {
+            connection.setAutoCommit(false);
+            try (final PreparedStatement select = connection.prepareStatement(SELECT_FINISHED);
+                 final PreparedStatement shards = connection.prepareStatement(SELECT_SHARDS);
+                 final PreparedStatement delete = connection.prepareStatement(DELETE_JOB)) {
+                select.setInt(1, JobStatus.COMPLETED.getCode());
+                select.setInt(2, JobStatus.FAILED.getCode());
+                select.setTimestamp(3, Timestamp.from(finishedBefore));
+                final List<UUID> expired = new ArrayList<>();
+                try (final ResultSet rs = select.executeQuery()) {
+                    while (rs.next()) {
+                        expired.add(rs.getObject(1, UUID.class));
+                    }
+                }
+
+                // Delete exactly the jobs we found, so anything which finishes in the meantime isn't removed without being reported
+                final List<UUID> removed = new ArrayList<>(expired);
+                for (final UUID jobID : expired) {
+                    shards.setObject(1, jobID);
+                    try (final ResultSet rs = shards.executeQuery()) {
+                        while (rs.next()) {
+                            removed.add(rs.getObject(1, UUID.class));
+                        }
+                    }
+                    delete.setObject(1, jobID);
+                    delete.setObject(2, jobID);
+                    delete.addBatch();
+                }
+                if (!expired.isEmpty()) {
+                    delete.executeBatch();
+                }
+                connection.commit();
+                return removed;
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            throw new JobQueueException("Unable to remove finished jobs", e);
+        }
+    }
+
+    @Override
+    public int queueSize() {
+        try (final Connection connection = this.dataSource.getConnection();
+             final Statement statement = connection.createStatement();
+             final ResultSet rs = statement.executeQuery(COUNT_JOBS)) {
+            rs.next();
+            return rs.getInt(1);
+        } catch (SQLException e) {
+            throw new JobQueueException("Unable to get queue size", e);
+        }
+    }
+
+    /**
+     * Complete a job, optionally only if it's still running under the given claim.
+     * Only completed jobs keep their output, which is written along with the status, so a job is never seen as completed without it.
+     * The job and its parent, if it's a shard, are updated in a single transaction, so the parent can't be left out of step with its shards.
+     *
+     * @return - {@code false} no job was updated
+     */
+    private boolean complete(UUID jobID, JobStatus status, Integer attempt, List<JobOutput> output) {
+        logger.debug("Completed job {} with status: {}", jobID, status);
+        final Instant now = Instant.now();
+        final String providerID;
+        final Timestamp startTime;
+        try (final Connection connection = this.dataSource.getConnection()) {
+            connection.setAutoCommit(false);
+            try (final PreparedStatement update = connection.prepareStatement(attempt == null ? COMPLETE_JOB : COMPLETE_CLAIMED_JOB);
+                 final PreparedStatement select = connection.prepareStatement(SELECT_RUN_INFO)) {
+                update.setInt(1, status.getCode());
+                update.setTimestamp(2, Timestamp.from(now));
+                update.setBytes(3, status == JobStatus.COMPLETED && !output.isEmpty() ? JobSerializer.serialize(new ArrayList<>(output)) : null);
+                update.setObject(4, jobID);
+                if (attempt != null) {
+                    update.setInt(5, JobStatus.RUNNING.getCode());
+                    update.setInt(6, attempt);
+                }
+                if (update.executeUpdate() == 0) {
+                    connection.rollback();
+                    return false;
+                }
+
+                select.setObject(1, jobID);
+                final UUID parentID;
+                try (final ResultSet rs = select.executeQuery()) {
+                    rs.next();
+                    providerID = rs.getString(1);
+                    startTime = rs.getTimestamp(2);
+                    parentID = rs.getObject(3, UUID.class);
+                }
+                if (parentID != null) {
+                    refreshParent(connection, parentID);
+                }
+                connection.commit();
+            } catch (SQLException | RuntimeException e) {
+                connection.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            throw new JobQueueException(String.format("Unable to complete job %s", jobID), e);
+        }
+
+        if ((status == JobStatus.COMPLETED || status == JobStatus.FAILED) && startTime != null) {
+            this.metrics.completed(providerID, status, Duration.between(startTime.toInstant(), now));
+        }
+        return true;
+    }
+
+    /**
+     * Renew the lease on a running job, optionally only if it's still running under the given claim
+     *
+     * @return - {@code false} no lease was renewed
+     */
+    private boolean renew(UUID jobID, Integer attempt) {
+        try (final Connection connection = this.dataSource.getConnection();
+             final PreparedStatement statement = connection.prepareStatement(attempt == null ? RENEW_LEASE : RENEW_CLAIMED_LEASE)) {
+            statement.setTimestamp(1, Timestamp.from(Instant.now().plus(this.leaseDuration)));
+            statement.setObject(2, jobID);
+            statement.setInt(3, JobStatus.RUNNING.getCode());
+            if (attempt != null) {
+                statement.setInt(4, attempt);
+            }
+            return statement.executeUpdate() > 0;
+        } catch (SQLException e) {
+            throw new JobQueueException(String.format("Unable to renew lease for job %s", jobID), e);
+        }
+    }
+
+    private <T> Optional<ClaimedJob<T>> claimJob(Connection connection) throws SQLException {
+        if (this.policy.getMode() == SchedulingPolicy.Mode.FIFO) {
+            return claimJob(connection, this.selectNextJob, null);
+        }
+        for (final ProviderLoad load : this.policy.rank(getProviderLoads(connection))) {
+            final Optional<ClaimedJob<T>> job = claimJob(connection, this.selectNextProviderJob, load.getProviderID());
+            if (job.isPresent()) {
+                return job;
+            }
+        }
+        return Optional.empty();
+    }
+
+    private <T> Optional<ClaimedJob<T>> claimJob(Connection connection, String query, String providerID) throws SQLException {
+        final UUID jobID;
+        final byte[] data;
+        final Instant submitTime;
+        final String jobProvider;
+        final UUID parentID;
+        final int attempt;
+        try (final PreparedStatement statement = connection.prepareStatement(query)) {
+            statement.setInt(1, JobStatus.QUEUED.getCode());
+            if (providerID != null) {
+                statement.setString(2, providerID);
+            }
+            try (final ResultSet rs = statement.executeQuery()) {
+                if (!rs.next()) {
+                    return Optional.empty();
+                }
+                jobID = rs.getObject(1, UUID.class);
+                data = rs.getBytes(2);
+                submitTime = rs.getTimestamp(3).toInstant();
+                jobProvider = rs.getString(4);
+                parentID = rs.getObject(5, UUID.class);
+                attempt = rs.getInt(6) + 1;
+            }
+        }
+
+        // If another worker got there first, we'll pick it up on the next go-around
+        final Instant now = Instant.now();
+        try (final PreparedStatement statement = connection.prepareStatement(CLAIM_JOB)) {
+            statement.setInt(1, JobStatus.RUNNING.getCode());
+            statement.setTimestamp(2, Timestamp.from(now));
+            statement.setTimestamp(3, Timestamp.from(now.plus(this.leaseDuration)));
+            statement.setObject(4, jobID);
+            statement.setInt(5, JobStatus.QUEUED.getCode());
+            if (statement.executeUpdate() == 0) {
+                return Optional.empty();
+            }
+        }
+        if (parentID != null) {
+            refreshParent(connection, parentID);
+        }
+        this.metrics.claimed(jobProvider, Duration.between(submitTime, now));
+        return Optional.of(new ClaimedJob<>(jobID, JobSerializer.deserialize(data), attempt));
+    }
+
+    /**
+     * Insert a job, as a parent row followed by a row for each shard if it has more than one
+     */
+    private <T> void insertJob(Connection connection, UUID jobID, List<T> shards, String coalesceKey) throws SQLException {
+        logger.debug("Submitting job {} with {} shards", jobID, shards.size());
+        final Timestamp now = Timestamp.from(Instant.now());
+        try (final PreparedStatement statement = connection.prepareStatement(INSERT_JOB_ENTRY)) {
+            statement.setObject(1, jobID);
+            statement.setInt(2, JobStatus.QUEUED.getCode());
+            statement.setBytes(3, shards.size() == 1 ? JobSerializer.serialize(shards.get(0)) : null);
+            statement.setTimestamp(4, now);
+            statement.setString(5, SchedulingPolicy.providerID(shards.get(0)));
+            statement.setString(6, coalesceKey);
+            statement.setNull(7, Types.OTHER);
+            if (shards.size() == 1) {
+                statement.setNull(8, Types.INTEGER);
+            } else {
+                statement.setInt(8, shards.size());
+            }
+            statement.addBatch();
+
+            if (shards.size() > 1) {
+                for (final T data : shards) {
+                    statement.setObject(1, UUID.randomUUID());
+                    statement.setInt(2, JobStatus.QUEUED.getCode());
+                    statement.setBytes(3, JobSerializer.serialize(data));
+                    statement.setTimestamp(4, now);
+                    statement.setString(5, SchedulingPolicy.providerID(data));
+                    statement.setString(6, null);
+                    statement.setObject(7, jobID);
+                    statement.setNull(8, Types.INTEGER);
+                    statement.addBatch();
+                }
+            }
+            statement.executeBatch();
+        }
+    }
+
+    /**
+     * Recompute the status of a sharded job from its shards.
+     * The parent row is locked first, so refreshes from different shards are applied one at a time and the last one sees every shard's status.
+     */
+    private void refreshParent(Connection connection, UUID parentID) throws SQLException {
+        try (final PreparedStatement lock = connection.prepareStatement(LOCK_PARENT)) {
+            lock.setObject(1, parentID);
+            try (final ResultSet rs = lock.executeQuery()) {
+                if (!rs.next()) {
+                    return;
+                }
+            }
+        }
+
+        final Map<JobStatus, Long> counts = new EnumMap<>(JobStatus.class);
+        try (final PreparedStatement statement = connection.prepareStatement(COUNT_SHARDS)) {
+            statement.setObject(1, parentID);
+            try (final ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    counts.put(JobStatus.fromCode(rs.getInt(1)), rs.getLong(2));
+                }
+            }
+        }
+
+        final JobStatus status = JobModel.parentStatus(counts);
+        try (final PreparedStatement statement = connection.prepareStatement(UPDATE_PARENT)) {
+            statement.setInt(1, status.getCode());
+            statement.setTimestamp(2, status == JobStatus.COMPLETED || status == JobStatus.FAILED ? Timestamp.from(Instant.now()) : null);
+            statement.setObject(3, parentID);
+            statement.setInt(4, status.getCode());
+            statement.executeUpdate();
+        }
+    }
+
+    private Optional<JobProgress> getShardProgress(Connection connection, UUID jobID) throws SQLException {
+        try (final PreparedStatement statement = connection.prepareStatement(SELECT_SHARD_PROGRESS)) {
+            statement.setObject(1, jobID);
+            try (final ResultSet rs = statement.executeQuery()) {
+                if (!rs.next()) {
+                    return Optional.empty();
+                }
+                final int total = rs.getInt(2);
+                if (rs.wasNull()) {
+                    return Optional.empty();
+                }
+                final Timestamp startTime = rs.getTimestamp(1);
+                return Optional.of(new JobProgress(total, rs.getInt(3), rs.getInt(4), rs.getLong(5), startTime == null ? null : startTime.toInstant()));
+            }
+        }
+    }
+
+    private List<ProviderLoad> getProviderLoads(Connection connection) throws SQLException {
+        try (final PreparedStatement statement = connection.prepareStatement(SELECT_PROVIDER_LOAD)) {
+            statement.setInt(1, JobStatus.RUNNING.getCode());
+            statement.setInt(2, JobStatus.QUEUED.getCode());
+            try (final ResultSet rs = statement.executeQuery()) {
+                final List<ProviderLoad> loads = new ArrayList<>();
+                while (rs.next()) {
+                    final Timestamp lastStart = rs.getTimestamp(3);
+                    loads.add(new ProviderLoad(rs.getString(1), rs.getInt(2), lastStart == null ? Long.MIN_VALUE : lastStart.getTime()));
+                }
+                return loads;
+            }
+        }
+    }
+
+    private Optional<UUID> findCoalescedJob(Connection connection, String coalesceKey) throws SQLException {
+        try (final PreparedStatement statement = connection.prepareStatement(SELECT_COALESCED_JOB)) {
+            statement.setString(1, coalesceKey);
+            statement.setInt(2, JobStatus.QUEUED.getCode());
+            statement.setInt(3, JobStatus.RUNNING.getCode());
+            statement.setInt(4, JobStatus.COMPLETED.getCode());
+            statement.setTimestamp(5, Timestamp.from(Instant.now().minus(this.coalesceWindow)));
+            try (final ResultSet rs = statement.executeQuery()) {
+                if (!rs.next()) {
+                    return Optional.empty();
+                }
+                return Optional.of(rs.getObject(1, UUID.class));
+            }
+        }
+    }
+
+    private Map<String, Map<JobStatus, Long>> countJobs() {
+        try (final Connection connection = this.dataSource.getConnection();
+             final Statement statement = connection.createStatement();
+             final ResultSet rs = statement.executeQuery(COUNT_BY_PROVIDER)) {
+            final Map<String, Map<JobStatus, Long>> counts = new HashMap<>();
+            while (rs.next()) {
+                counts.computeIfAbsent(rs.getString(1), provider -> new EnumMap<>(JobStatus.class))
+                        .put(JobStatus.fromCode(rs.getInt(2)), rs.getLong(3));
+            }
+            return counts;
+        } catch (SQLException e) {
+            throw new JobQueueException("Unable to count jobs", e);
+        }
+    }
+
+    private static boolean isUniqueViolation(SQLException e) {
+        // Batched inserts report the violation on a chained exception
+        for (SQLException next = e; next != null; next = next.getNextException()) {
+            if (UNIQUE_VIOLATION.equals(next.getSQLState())) {
+                return true;
+            }
+        }
+        return e.getCause() instanceof SQLException && UNIQUE_VIOLATION.equals(((SQLException) e.getCause()).getSQLState());
+    }
+
+    private static boolean supportsSkipLocked(DataSource dataSource) {
+        try (final Connection connection = dataSource.getConnection()) {
+            return connection.getMetaData().getDatabaseProductName().equalsIgnoreCase("PostgreSQL");
+        } catch (SQLException e) {
+            throw new JobQueueException("Unable to connect to queue database", e);
+        }
+    }
+}
@@ -1,9 +1,25 @@
 package gov.cms.dpc.queue;
 
+import java.time.Instant;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
 class JobModel<T> {
 
     private final T data;
     private JobStatus status;
+    private Instant leaseExpiry;
+    private int attempts;
+    private Instant completeTime;
+    private Instant startTime;
+    private Instant queuedTime;
+    private JobProgress progress;
+    private String coalesceKey;
+    private UUID parentID;
+    private List<UUID> shards;
+    private List<JobOutput> output = Collections.emptyList();
 
     JobModel(JobStatus initialStatus, T data) {
         this.data = data;
@@ -21,4 +37,135 @@ class JobModel<T> {
     void setStatus(JobStatus status) {
         this.status = status;
     }
+
+    Instant getLeaseExpiry() {
+        return leaseExpiry;
+    }
+
+    void setLeaseExpiry(Instant leaseExpiry) {
+        this.leaseExpiry = leaseExpiry;
+    }
+
+    /**
+     * Key identifying equivalent jobs, null if the job was not submitted with {@link JobQueue#submitCoalescedJob(UUID, List, String)}
+     */
+    String getCoalesceKey() {
+        return coalesceKey;
+    }
+
+    void setCoalesceKey(String coalesceKey) {
+        this.coalesceKey = coalesceKey;
+    }
+
+    /**
+     * When the job was last put in the queue, either by being submitted or requeued
+     */
+    Instant getQueuedTime() {
+        return queuedTime;
+    }
+
+    void setQueuedTime(Instant queuedTime) {
+        this.queuedTime = queuedTime;
+    }
+
+    /**
+     * When the job was last claimed by a worker
+     */
+    Instant getStartTime() {
+        return startTime;
+    }
+
+    void setStartTime(Instant startTime) {
+        this.startTime = startTime;
+    }
+
+    /**
+     * ID of the parent job, null if this job is not a shard
+     */
+    UUID getParentID() {
+        return parentID;
+    }
+
+    void setParentID(UUID parentID) {
+        this.parentID = parentID;
+    }
+
+    /**
+     * IDs of the job's shards, null if the job was not split into shards.
+     * A job with shards is never worked itself.
+     */
+    List<UUID> getShards() {
+        return shards;
+    }
+
+    void setShards(List<UUID> shards) {
+        this.shards = shards;
+    }
+
+    /**
+     * Derive the status of a parent job from the number of its shards in each status.
+     * The parent is {@link JobStatus#QUEUED} until a shard is claimed, {@link JobStatus#RUNNING} until every shard has finished,
+     * then {@link JobStatus#COMPLETED} if every shard completed and {@link JobStatus#FAILED} otherwise.
+     *
+     * @param counts - {@link Map} of shard status to number of shards with that status
+     * @return - {@link JobStatus} of the parent job
+     */
+    static JobStatus parentStatus(Map<JobStatus, Long> counts) {
+        final long total = counts.values().stream().mapToLong(Long::longValue).sum();
+        final long queued = counts.getOrDefault(JobStatus.QUEUED, 0L);
+        final long completed = counts.getOrDefault(JobStatus.COMPLETED, 0L);
+        final long failed = counts.getOrDefault(JobStatus.FAILED, 0L);
+        if (queued == total) {
+            return JobStatus.QUEUED;
+        }
+        if (completed == total) {
+            return JobStatus.COMPLETED;
+        }
+        return completed + failed == total ? JobStatus.FAILED : JobStatus.RUNNING;
+    }
+
+    /**
+     * Files the job wrote, as reported when it was last {@link JobStatus#COMPLETED}, empty otherwise
+     */
+    List<JobOutput> getOutput() {
+        return output;
+    }
+
+    void setOutput(List<JobOutput> output) {
+        this.output = output;
+    }
+
+    JobProgress getProgress() {
+        return progress;
+    }
+
+    void setProgress(JobProgress progress) {
+        this.progress = progress;
+    }
+
+    /**
+     * When the job was marked as {@link JobStatus#COMPLETED} or {@link JobStatus#FAILED}, null if it hasn't finished
+     */
+    Instant getCompleteTime() {
+        return completeTime;
+    }
+
+    void setCompleteTime(Instant completeTime) {
+        this.completeTime = completeTime;
+    }
+
+    /**
+     * Number of times the job has been claimed by a worker
+     */
+    int getAttempts() {
+        return attempts;
+    }
+
+    void incrementAttempts() {
+        this.attempts++;
+    }
+
+    void setAttempts(int attempts) {
+        this.attempts = attempts;
+    }
 }
@@ -0,0 +1,69 @@
+package gov.cms.dpc.queue;
+
+import gov.cms.dpc.common.models.ExportCompression;
+
+import java.io.Serializable;
+import java.util.Objects;
+
+/**
+ * A file written by a job, which the worker reports to the queue when it completes the job, through {@link JobQueue#completeJob(java.util.UUID, int, JobStatus, java.util.List)}.
+ * The queue is the record of which files an export has, so they can be listed from any node, not just the one which wrote them.
+ */
+public class JobOutput implements Serializable {
+    public static final long serialVersionUID = 42L;
+
+    private final String resourceType;
+    private final String fileName;
+    private final ExportCompression compression;
+    private final long count;
+
+    /**
+     * @param resourceType - FHIR name of the type of resource in the file
+     * @param fileName     - name of the file, without the extension of its compression
+     * @param compression  - {@link ExportCompression} the file was written with
+     * @param count        - number of resources in the file
+     */
+    public JobOutput(String resourceType, String fileName, ExportCompression compression, long count) {
+        this.resourceType = resourceType;
+        this.fileName = fileName;
+        this.compression = compression;
+        this.count = count;
+    }
+
+    public String getResourceType() {
+        return resourceType;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public ExportCompression getCompression() {
+        return compression;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        JobOutput jobOutput = (JobOutput) o;
+        return count == jobOutput.count &&
+                Objects.equals(resourceType, jobOutput.resourceType) &&
+                Objects.equals(fileName, jobOutput.fileName) &&
+                compression == jobOutput.compression;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(resourceType, fileName, compression, count);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s (%s, %d %s resources)", fileName, compression, count, resourceType);
+    }
+}
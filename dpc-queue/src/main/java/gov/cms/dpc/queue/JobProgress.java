@@ -0,0 +1,85 @@
+package gov.cms.dpc.queue;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Optional;
+
+/**
+ * Progress counters for a running job, reported by the worker through {@link JobQueue#updateProgress}.
+ * <p>
+ * Progress is counted in fetches, one for each resource type of each beneficiary, since that's the unit the worker fetches and writes.
+ * A job exporting Patients and Coverage for 10 beneficiaries has a total of 20 fetches.
+ */
+public class JobProgress {
+
+    private final int total;
+    private final int fetched;
+    private final int failed;
+    private final long bytesWritten;
+    private final Instant startTime;
+
+    public JobProgress(int total, int fetched, int failed, long bytesWritten) {
+        this(total, fetched, failed, bytesWritten, null);
+    }
+
+    /**
+     * @param total        - number of fetches in the job, its beneficiaries times its resource types
+     * @param fetched      - number of fetches whose resources were written
+     * @param failed       - number of fetches which failed
+     * @param bytesWritten - number of bytes written to the export files
+     * @param startTime    - {@link Instant} when the job was claimed by its current worker, filled in by the queue
+     */
+    public JobProgress(int total, int fetched, int failed, long bytesWritten, Instant startTime) {
+        this.total = total;
+        this.fetched = fetched;
+        this.failed = failed;
+        this.bytesWritten = bytesWritten;
+        this.startTime = startTime;
+    }
+
+    public int getTotal() {
+        return total;
+    }
+
+    public int getFetched() {
+        return fetched;
+    }
+
+    public int getFailed() {
+        return failed;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    public Optional<Instant> getStartTime() {
+        return Optional.ofNullable(startTime);
+    }
+
+    /**
+     * Percentage of fetches which have been processed (either fetched or failed)
+     *
+     * @return - whole percentage, between 0 and 100
+     */
+    public int getPercentComplete() {
+        if (total <= 0) {
+            return 0;
+        }
+        return (int) Math.min(100, (fetched + failed) * 100L / total);
+    }
+
+    /**
+     * Estimate when the job will finish, assuming the remaining fetches are processed at the same rate as the ones so far
+     *
+     * @return - {@link Optional} {@link Instant} of estimated completion, empty if nothing has been processed yet
+     */
+    public Optional<Instant> getEstimatedCompletion() {
+        final int processed = fetched + failed;
+        if (startTime == null || processed <= 0 || total <= 0) {
+            return Optional.empty();
+        }
+        final Duration elapsed = Duration.between(startTime, Instant.now());
+        return Optional.of(startTime.plus(elapsed.multipliedBy(total).dividedBy(processed)));
+    }
+}
@@ -1,5 +1,9 @@
 package gov.cms.dpc.queue;
 
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
 
@@ -11,15 +15,169 @@ public interface JobQueue {
 
     <T> void submitJob(UUID jobID, T data);
 
+    /**
+     * Submit a job which has been split into shards.
+     * Each shard is queued as a separate job, with a generated ID, which can be claimed by any worker.
+     * The parent job is never worked itself, its status is derived from its shards and it finishes once all of them have finished.
+     * A job with a single shard is submitted as a regular job.
+     *
+     * @param jobID  - {@link UUID} ID of the parent job
+     * @param shards - {@link List} of job data for each shard, must not be empty
+     * @param <T>    - type of job data
+     */
+    <T> void submitShardedJob(UUID jobID, List<T> shards);
+
+    /**
+     * Submit a (possibly sharded) job, unless an equivalent job is already in the queue, in which case the caller is attached to that job instead.
+     * A job is equivalent if it was submitted with the same key and is either {@link JobStatus#QUEUED}, {@link JobStatus#RUNNING}, or {@link JobStatus#COMPLETED} within the queue.coalescing.completedWindow.
+     *
+     * @param jobID       - {@link UUID} ID to use, if a new job is submitted
+     * @param shards      - {@link List} of job data for each shard, as in {@link JobQueue#submitShardedJob(UUID, List)}
+     * @param coalesceKey - {@link String} key which identifies equivalent jobs
+     * @param <T>         - type of job data
+     * @return - {@link UUID} ID of the job the caller should track, which is either jobID or the ID of the existing job
+     */
+    <T> UUID submitCoalescedJob(UUID jobID, List<T> shards, String coalesceKey);
+
+    /**
+     * Get the IDs of a job's shards, in the order they were submitted.
+     *
+     * @param jobID - {@link UUID} ID of the parent job
+     * @return - {@link List} of shard IDs, empty if the job doesn't exist or was not split into shards
+     */
+    List<UUID> getShards(UUID jobID);
+
+    /**
+     * Get the ID of the job a shard belongs to.
+     *
+     * @param jobID - {@link UUID} ID of the shard
+     * @return - {@link Optional} ID of the parent job, empty if the job doesn't exist or is not a shard
+     */
+    Optional<UUID> getParentID(UUID jobID);
+
     Optional<JobStatus> getJobStatus(UUID jobID);
 
-    <T> Optional<Pair<UUID, T>> workJob();
+    /**
+     * Get the data a job was submitted with.
+     * A sharded job doesn't have any data of its own, so the data of one of its shards is returned instead.
+     *
+     * @param jobID - {@link UUID} ID of the job
+     * @param <T>   - type of job data
+     * @return - {@link Optional} job data, empty if the job doesn't exist
+     */
+    <T> Optional<T> getJobData(UUID jobID);
+
+    <T> Optional<ClaimedJob<T>> workJob();
+
+    /**
+     * Claim the next available job, waiting up to the given amount of time for one to be submitted.
+     *
+     * @param maxWait - {@link Duration} maximum amount of time to wait for a job
+     * @param <T>     - type of job data
+     * @return - {@link Optional} {@link ClaimedJob}, empty if nothing was submitted before the wait elapsed
+     * @throws InterruptedException - if the calling thread is interrupted while waiting
+     */
+    <T> Optional<ClaimedJob<T>> workJob(Duration maxWait) throws InterruptedException;
 
     void completeJob(UUID jobID, JobStatus status);
 
+    /**
+     * Complete a job on behalf of the worker which claimed it.
+     * The job is only updated if it's still {@link JobStatus#RUNNING} under the given claim, so a worker whose lease expired can't overwrite the outcome of the job's next run.
+     *
+     * @param jobID   - {@link UUID} ID of job to complete
+     * @param attempt - attempt number from the {@link ClaimedJob}
+     * @param status  - {@link JobStatus} to complete the job with
+     * @return - {@code true} job was completed. {@code false} the claim is stale, and the job was left alone.
+     */
+    default boolean completeJob(UUID jobID, int attempt, JobStatus status) {
+        return completeJob(jobID, attempt, status, Collections.emptyList());
+    }
+
+    /**
+     * Complete a job on behalf of the worker which claimed it, recording the files it wrote.
+     *
+     * @param jobID   - {@link UUID} ID of job to complete
+     * @param attempt - attempt number from the {@link ClaimedJob}
+     * @param status  - {@link JobStatus} to complete the job with
+     * @param output  - {@link List} of {@link JobOutput} files the job wrote, which replace any reported by an earlier attempt
+     * @return - {@code true} job was completed. {@code false} the claim is stale, and the job (along with its output) was left alone.
+     */
+    boolean completeJob(UUID jobID, int attempt, JobStatus status, List<JobOutput> output);
+
+    /**
+     * Get the files a job wrote, as reported when it was completed.
+     * The output of a sharded job is the output of each of its shards, in the same order as {@link JobQueue#getShards(UUID)}.
+     *
+     * @param jobID - {@link UUID} ID of the job
+     * @return - {@link List} of {@link JobOutput}, empty if the job doesn't exist, or didn't report any
+     */
+    List<JobOutput> getJobOutput(UUID jobID);
+
+    /**
+     * Record the progress of a {@link JobStatus#RUNNING} job.
+     * Updates for jobs which are no longer running are ignored.
+     *
+     * @param jobID    - {@link UUID} ID of job to update
+     * @param progress - {@link JobProgress} latest counters from the worker
+     */
+    void updateProgress(UUID jobID, JobProgress progress);
+
+    /**
+     * Get the progress of the job's current (or most recent) run.
+     * The progress of a sharded job is the sum of the progress of its shards.
+     *
+     * @param jobID - {@link UUID} ID of job
+     * @return - {@link Optional} {@link JobProgress}, empty if the job doesn't exist, or hasn't reported any progress
+     */
+    Optional<JobProgress> getJobProgress(UUID jobID);
+
+    /**
+     * Renew the lease on a {@link JobStatus#RUNNING} job.
+     * Workers need to call this periodically while they work a job, otherwise it will be put back in the queue by {@link JobQueue#requeueExpiredJobs()}.
+     *
+     * @param jobID - {@link UUID} ID of job to renew lease for
+     * @return - {@code true} lease was renewed. {@code false} the job is no longer running (e.g. the lease has already expired) and the worker should abandon it.
+     */
+    boolean renewLease(UUID jobID);
+
+    /**
+     * Renew the lease on a {@link JobStatus#RUNNING} job, on behalf of the worker which claimed it.
+     *
+     * @param jobID   - {@link UUID} ID of job to renew lease for
+     * @param attempt - attempt number from the {@link ClaimedJob}
+     * @return - {@code true} lease was renewed. {@code false} the job is no longer running under this claim and the worker should abandon it.
+     */
+    boolean renewLease(UUID jobID, int attempt);
+
+    /**
+     * Put {@link JobStatus#RUNNING} jobs with an expired lease back in the queue.
+     * Jobs which have already used up their retries are marked as {@link JobStatus#FAILED}.
+     *
+     * @return - number of expired jobs
+     */
+    int requeueExpiredJobs();
+
+    /**
+     * Remove a job, along with its shards.
+     *
+     * @param jobID - {@link UUID} ID of job to remove
+     */
     void removeJob(UUID jobID);
 
+    /**
+     * Remove every {@link JobStatus#COMPLETED} or {@link JobStatus#FAILED} job which finished before the given time, along with its shards.
+     *
+     * @param finishedBefore - {@link Instant} jobs which finished before this time are removed
+     * @return - {@link List} of IDs of the removed jobs and shards, so their output can be cleaned up
+     */
+    List<UUID> removeFinishedJobs(Instant finishedBefore);
+
+    /**
+     * Number of jobs in the queue, shards are counted as part of their parent job
+     *
+     * @return - number of jobs
+     */
     int queueSize();
 }
 
-
@@ -0,0 +1,11 @@
+package gov.cms.dpc.queue;
+
+/**
+ * Thrown when a {@link JobQueue} is unable to communicate with its backing store.
+ */
+public class JobQueueException extends RuntimeException {
+
+    public JobQueueException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -1,10 +1,22 @@
 package gov.cms.dpc.queue;
 
+import com.codahale.metrics.MetricRegistry;
 import com.google.inject.AbstractModule;
+import com.google.inject.Provides;
 import com.google.inject.Scopes;
+import com.typesafe.config.Config;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.inject.Singleton;
+
+/**
+ * Binds the {@link JobQueue} implementation.
+ * <p>
+ * By default, jobs are tracked by the {@link MemoryQueue}, which can optionally be backed by a {@link QueueJournal} (see the queue.journal configuration block).
+ * Passing inMemory = false binds the {@link DatabaseQueue} instead, which requires a {@link javax.sql.DataSource} to be bound by another module.
+ * Either way, a {@link MetricRegistry} needs to be bound, for the queue metrics.
+ */
 public class JobQueueModule extends AbstractModule {
 
     private static final Logger logger = LoggerFactory.getLogger(JobQueueModule.class);
@@ -30,9 +42,28 @@ public class JobQueueModule extends AbstractModule {
 //                })
 //        .in(Scopes.SINGLETON);
 
-        // Manually bind to the Memory Queue, as a Singleton
-        bind(JobQueue.class)
-                .to(MemoryQueue.class)
-                .in(Scopes.SINGLETON);
+        // Manually bind to the correct queue, as a Singleton
+        if (this.inMemory) {
+            logger.debug("Binding MemoryQueue to JobQueue");
+            bind(JobQueue.class)
+                    .to(MemoryQueue.class)
+                    .in(Scopes.SINGLETON);
+        } else {
+            logger.debug("Binding DatabaseQueue to JobQueue");
+            bind(JobQueue.class)
+                    .to(DatabaseQueue.class)
+                    .in(Scopes.SINGLETON);
+        }
+    }
+
+    @Provides
+    @Singleton
+    MemoryQueue provideMemoryQueue(Config config, MetricRegistry registry) {
+        final Config journalConfig = config.getConfig("queue.journal");
+        if (!journalConfig.getBoolean("enabled")) {
+            return new MemoryQueue(config, null, registry);
+        }
+        logger.info("Journaling queue to {}", journalConfig.getString("path"));
+        return new MemoryQueue(config, QueueJournal.fromConfig(journalConfig), registry);
     }
 }
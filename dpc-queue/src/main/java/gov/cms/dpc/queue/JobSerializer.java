@@ -0,0 +1,34 @@
+package gov.cms.dpc.queue;
+
+import java.io.*;
+
+/**
+ * Helpers for converting job data to and from bytes, for queues which persist their jobs.
+ * Job data is stored using Java serialization, so it must implement {@link Serializable}.
+ */
+class JobSerializer {
+
+    private JobSerializer() {
+        // Not used
+    }
+
+    static byte[] serialize(Object data) {
+        try (final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+             final ObjectOutputStream oos = new ObjectOutputStream(bos)) {
+            oos.writeObject(data);
+            oos.flush();
+            return bos.toByteArray();
+        } catch (IOException e) {
+            throw new JobQueueException("Unable to serialize job data", e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T> T deserialize(byte[] data) {
+        try (final ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data))) {
+            return (T) ois.readObject();
+        } catch (IOException | ClassNotFoundException e) {
+            throw new JobQueueException("Unable to deserialize job data", e);
+        }
+    }
+}
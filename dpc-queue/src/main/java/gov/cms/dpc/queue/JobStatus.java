@@ -1,8 +1,31 @@
 package gov.cms.dpc.queue;
 
+/**
+ * Each status has a fixed code, which is what the {@link DatabaseQueue} and the {@link QueueJournal} store, so the statuses can be reordered, or added to, without changing the meaning of stored jobs.
+ * The queue migrations refer to these codes, so they must never change.
+ */
 public enum JobStatus {
-    QUEUED,
-    RUNNING,
-    COMPLETED,
-    FAILED
+    QUEUED(0),
+    RUNNING(1),
+    COMPLETED(2),
+    FAILED(3);
+
+    private final int code;
+
+    JobStatus(int code) {
+        this.code = code;
+    }
+
+    public int getCode() {
+        return code;
+    }
+
+    public static JobStatus fromCode(int code) {
+        for (final JobStatus status : values()) {
+            if (status.code == code) {
+                return status;
+            }
+        }
+        throw new IllegalArgumentException(String.format("Unknown job status code: %d", code));
+    }
 }
@@ -0,0 +1,59 @@
+package gov.cms.dpc.queue;
+
+import com.typesafe.config.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background task which periodically puts jobs with expired leases back in the {@link JobQueue}.
+ * This is what keeps a wedged (or dead) worker from holding onto a job forever.
+ */
+public class LeaseReaper {
+
+    private static final Logger logger = LoggerFactory.getLogger(LeaseReaper.class);
+
+    private final JobQueue queue;
+    private final Duration interval;
+    private ScheduledExecutorService executor;
+
+    @Inject
+    public LeaseReaper(JobQueue queue, Config config) {
+        this.queue = queue;
+        this.interval = config.getDuration("queue.lease.reapInterval");
+    }
+
+    public synchronized void start() {
+        if (this.executor != null) {
+            return;
+        }
+        logger.debug("Checking for expired leases every {}", this.interval);
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "queue-lease-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.scheduleWithFixedDelay(this::reap, this.interval.toMillis(), this.interval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (this.executor != null) {
+            this.executor.shutdownNow();
+            this.executor = null;
+        }
+    }
+
+    private void reap() {
+        // Exceptions would cancel any further runs, so we just log them and try again next time
+        try {
+            this.queue.requeueExpiredJobs();
+        } catch (Exception e) {
+            logger.error("Unable to requeue expired jobs", e);
+        }
+    }
+}
@@ -1,32 +1,183 @@
 package gov.cms.dpc.queue;
 
+import com.codahale.metrics.MetricRegistry;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.inject.Inject;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Optional;
-import java.util.UUID;
+import java.io.Closeable;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 /**
  * Simple in-memory queue for tracking job statuses
+ * <p>
+ * Jobs are indexed by ID, and the IDs of {@link JobStatus#QUEUED} jobs are kept in a separate FIFO deque for each provider, so claiming and completing a job are cheap operations, regardless of how many jobs the queue has seen.
+ * The {@link SchedulingPolicy} decides which provider's deque the next job is taken from.
+ * Workers waiting in {@link MemoryQueue#workJob(Duration)} are woken up whenever a job is added to a deque.
+ * <p>
+ * If a {@link QueueJournal} is provided, every transition is recorded before it is applied, and the queue is rebuilt from the journal on startup.
+ * Jobs which were {@link JobStatus#RUNNING} when the previous process went away are put back in the queue.
+ * <p>
+ * Claimed jobs are leased to their worker, which needs to renew the lease while it works.
+ * {@link MemoryQueue#requeueExpiredJobs()} puts jobs with an expired lease back at the end of the queue, or fails them once they run out of retries.
+ * <p>
+ * Sharded jobs are stored as a parent entry, which is never enqueued, and a regular entry for each shard.
+ * The parent's status is recomputed whenever one of its shards changes status.
  */
-public class MemoryQueue implements JobQueue{
+public class MemoryQueue implements JobQueue, Closeable {
 
     private static Logger logger = LoggerFactory.getLogger(MemoryQueue.class);
 
     private final Map<UUID, JobModel<Object>> queue;
+    // Jobs waiting to be worked, and the number of running jobs, for each provider which has any
+    private final Map<String, Partition> partitions;
+    // IDs of claimed jobs, so we only have to look at these when checking for expired leases
+    private final Set<UUID> runningJobs;
+    // Most recent job for each coalescing key
+    private final Map<String, UUID> coalescedJobs;
+    // Null if journaling is disabled
+    private final QueueJournal journal;
+    private final Duration leaseDuration;
+    private final int maxRetries;
+    private final Duration coalesceWindow;
+    private final SchedulingPolicy policy;
+    private final QueueMetrics metrics;
+    // Incremented on every claim, so we know which provider has waited the longest
+    private long claims;
+    // Number of shard entries in the queue, so the queue size doesn't need to look at every job
+    private int shardCount;
 
-    @Inject
     public MemoryQueue() {
+        this(ConfigFactory.load());
+    }
+
+    public MemoryQueue(Config config) {
+        this(config, null, new MetricRegistry());
+    }
+
+    /**
+     * Create a queue, backed by the given journal
+     *
+     * @param config   - {@link Config} root configuration, with a queue block
+     * @param journal  - {@link QueueJournal} to rebuild the queue from and record transitions to, or {@code null} to disable journaling
+     * @param registry - {@link MetricRegistry} to register queue metrics with
+     */
+    public MemoryQueue(Config config, QueueJournal journal, MetricRegistry registry) {
         this.queue = new HashMap<>();
+        this.partitions = new LinkedHashMap<>();
+        this.runningJobs = new HashSet<>();
+        this.coalescedJobs = new HashMap<>();
+        this.journal = journal;
+        this.leaseDuration = config.getDuration("queue.lease.duration");
+        this.maxRetries = config.getInt("queue.lease.maxRetries");
+        this.coalesceWindow = config.getDuration("queue.coalescing.completedWindow");
+        this.policy = new SchedulingPolicy(config);
+        this.metrics = new QueueMetrics(registry, this::countJobs);
+
+        if (journal == null) {
+            return;
+        }
+        final Instant replayed = Instant.now();
+        final List<UUID> parents = new ArrayList<>();
+        journal.replay().forEach((jobID, job) -> {
+            if (job.getShards() != null) {
+                this.queue.put(jobID, job);
+                parents.add(jobID);
+                return;
+            }
+            if (job.getStatus() == JobStatus.RUNNING) {
+                logger.info("Requeuing job {}, which was running at shutdown", jobID);
+                job.setStatus(JobStatus.QUEUED);
+            }
+            // Journals written before completion times were recorded don't have them, so those jobs get a fresh retention period
+            if (isFinished(job.getStatus()) && job.getCompleteTime() == null) {
+                job.setCompleteTime(replayed);
+            }
+            this.queue.put(jobID, job);
+            if (job.getParentID() != null) {
+                this.shardCount++;
+            }
+            if (job.getStatus() == JobStatus.QUEUED) {
+                job.setQueuedTime(replayed);
+                enqueue(jobID, job);
+            }
+        });
+        parents.forEach(this::refreshParent);
+        this.queue.forEach(this::rememberCoalesceKey);
+        // Start with a compact journal, which also records the requeued jobs
+        journal.compact(snapshot());
     }
 
     @Override
     public synchronized <T> void submitJob(UUID jobID, T data) {
-        logger.debug("Submitting job: {}", jobID);
-        this.queue.put(jobID, new JobModel<>(JobStatus.QUEUED, data));
+        addJob(jobID, data);
+        maybeCompact();
+    }
+
+    @Override
+    public synchronized <T> void submitShardedJob(UUID jobID, List<T> shards) {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException(String.format("Job %s does not have any shards", jobID));
+        }
+        if (shards.size() == 1) {
+            submitJob(jobID, shards.get(0));
+            return;
+        }
+
+        logger.debug("Submitting job {} with {} shards", jobID, shards.size());
+        final List<UUID> shardIDs = new ArrayList<>(shards.size());
+        shards.forEach(data -> shardIDs.add(UUID.randomUUID()));
+        // The parent goes first, so a journal which ends part way through the shards can be told apart from a complete submission
+        if (this.journal != null) {
+            this.journal.shard(jobID, shardIDs);
+        }
+        final JobModel<Object> parent = new JobModel<>(JobStatus.QUEUED, null);
+        parent.setShards(shardIDs);
+        this.queue.put(jobID, parent);
+        for (int i = 0; i < shards.size(); i++) {
+            addJob(shardIDs.get(i), shards.get(i));
+            this.queue.get(shardIDs.get(i)).setParentID(jobID);
+            this.shardCount++;
+        }
+        maybeCompact();
+    }
+
+    @Override
+    public synchronized <T> UUID submitCoalescedJob(UUID jobID, List<T> shards, String coalesceKey) {
+        final UUID existingID = this.coalescedJobs.get(coalesceKey);
+        final JobModel<Object> existing = existingID == null ? null : this.queue.get(existingID);
+        if (existing != null && isCoalescable(existing)) {
+            logger.debug("Attaching to existing job {}, rather than submitting job {}", existingID, jobID);
+            return existingID;
+        }
+
+        submitShardedJob(jobID, shards);
+        if (this.journal != null) {
+            this.journal.coalesce(jobID, coalesceKey);
+        }
+        this.queue.get(jobID).setCoalesceKey(coalesceKey);
+        this.coalescedJobs.put(coalesceKey, jobID);
+        return jobID;
+    }
+
+    @Override
+    public synchronized List<UUID> getShards(UUID jobID) {
+        final JobModel<Object> job = this.queue.get(jobID);
+        if (job == null || job.getShards() == null) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<>(job.getShards());
+    }
+
+    @Override
+    public synchronized Optional<UUID> getParentID(UUID jobID) {
+        final JobModel<Object> job = this.queue.get(jobID);
+        return job == null ? Optional.empty() : Optional.ofNullable(job.getParentID());
     }
 
     @Override
@@ -36,49 +187,500 @@ public class MemoryQueue implements JobQueue{
         if (jobData == null) {
             return Optional.empty();
         }
-        return Optional.ofNullable(this.queue.get(jobID).getStatus());
+        return Optional.ofNullable(jobData.getStatus());
+    }
 
+    @Override
+    public synchronized <T> Optional<T> getJobData(UUID jobID) {
+        JobModel<Object> job = this.queue.get(jobID);
+        if (job != null && job.getShards() != null) {
+            job = this.queue.get(job.getShards().get(0));
+        }
+        if (job == null) {
+            return Optional.empty();
+        }
+        @SuppressWarnings("unchecked") final T jobData = (T) job.getData();
+        return Optional.ofNullable(jobData);
     }
 
     @Override
-    public synchronized <T> Optional<Pair<UUID, T>> workJob() {
+    public synchronized <T> Optional<ClaimedJob<T>> workJob() {
         logger.debug("Pulling first QUEUED job");
-        final Optional<Map.Entry<UUID, JobModel<Object>>> first = this.queue.entrySet()
+        final List<Partition> waiting = this.partitions
+                .values()
                 .stream()
-                .filter((entry) -> entry.getValue().getStatus().equals(JobStatus.QUEUED))
-                .findFirst();
-
-        if (first.isPresent()) {
-            final UUID key = first.get().getKey();
-            final JobModel<Object> data = first.get().getValue();
-            data.setStatus(JobStatus.RUNNING);
-            logger.debug("Found job {}", key);
-            this.queue.replace(key, data);
-            // FIXME(nickrobison): Get rid of this unsafe cast
-            return Optional.of(new Pair<>(key, (T) data.getData()));
+                .filter(partition -> !partition.getReady().isEmpty())
+                .collect(Collectors.toList());
+
+        for (final Partition partition : this.policy.rank(waiting)) {
+            UUID key;
+            while ((key = partition.getReady().peekFirst()) != null) {
+                final JobModel<Object> data = this.queue.get(key);
+                // Jobs which have been removed (or resubmitted) since being enqueued are skipped, rather than searched for on removal
+                if (data == null || data.getStatus() != JobStatus.QUEUED) {
+                    partition.getReady().pollFirst();
+                    continue;
+                }
+                // The job only leaves the deque once the claim is journaled, so a failed write leaves it waiting to be worked
+                if (this.journal != null) {
+                    this.journal.work(key, data.getAttempts() + 1);
+                }
+                partition.getReady().pollFirst();
+                final Instant now = Instant.now();
+                data.setStatus(JobStatus.RUNNING);
+                data.setStartTime(now);
+                data.setProgress(null);
+                data.setLeaseExpiry(now.plus(this.leaseDuration));
+                data.incrementAttempts();
+                this.runningJobs.add(key);
+                partition.started(runningSlot(key, data));
+                partition.setLastClaim(++this.claims);
+                this.metrics.claimed(SchedulingPolicy.providerID(data.getData()), Duration.between(data.getQueuedTime(), now));
+                refreshParent(data.getParentID());
+                logger.debug("Found job {}", key);
+                // FIXME(nickrobison): Get rid of this unsafe cast
+                @SuppressWarnings("unchecked") final T jobData = (T) data.getData();
+                return Optional.of(new ClaimedJob<>(key, jobData, data.getAttempts()));
+            }
+            prune(partition);
         }
         return Optional.empty();
     }
 
+    @Override
+    public synchronized <T> Optional<ClaimedJob<T>> workJob(Duration maxWait) throws InterruptedException {
+        final long deadline = System.nanoTime() + maxWait.toNanos();
+        Optional<ClaimedJob<T>> job;
+        while ((job = workJob()).isEmpty()) {
+            final long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                break;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return job;
+    }
+
     @Override
     public synchronized void completeJob(UUID jobID, JobStatus status) {
-        logger.debug("Completed job {} with status: {}", jobID, status);
+        complete(jobID, status, Collections.emptyList());
+    }
+
+    @Override
+    public synchronized boolean completeJob(UUID jobID, int attempt, JobStatus status, List<JobOutput> output) {
+        if (!isClaimed(this.queue.get(jobID), attempt)) {
+            logger.warn("Ignoring {} status for job {} from attempt {}, which no longer holds the lease", status, jobID, attempt);
+            return false;
+        }
+        complete(jobID, status, output);
+        return true;
+    }
+
+    @Override
+    public synchronized List<JobOutput> getJobOutput(UUID jobID) {
         final JobModel<Object> job = this.queue.get(jobID);
         if (job == null) {
-            throw new IllegalArgumentException(String.format("Job %s does not exist in queue", jobID));
+            return Collections.emptyList();
+        }
+        if (job.getShards() == null) {
+            return new ArrayList<>(job.getOutput());
         }
+        return job.getShards()
+                .stream()
+                .map(this.queue::get)
+                .filter(Objects::nonNull)
+                .flatMap(shard -> shard.getOutput().stream())
+                .collect(Collectors.toList());
+    }
 
-        job.setStatus(status);
-        this.queue.replace(jobID, job);
+    @Override
+    public synchronized void updateProgress(UUID jobID, JobProgress progress) {
+        final JobModel<Object> job = this.queue.get(jobID);
+        if (job == null || job.getStatus() != JobStatus.RUNNING) {
+            logger.debug("Ignoring progress for job {}, it is no longer running", jobID);
+            return;
+        }
+        job.setProgress(progress);
+    }
+
+    @Override
+    public synchronized Optional<JobProgress> getJobProgress(UUID jobID) {
+        final JobModel<Object> job = this.queue.get(jobID);
+        if (job != null && job.getShards() != null) {
+            return shardProgress(job.getShards());
+        }
+        if (job == null || job.getProgress() == null) {
+            return Optional.empty();
+        }
+        final JobProgress progress = job.getProgress();
+        return Optional.of(new JobProgress(progress.getTotal(), progress.getFetched(), progress.getFailed(), progress.getBytesWritten(), job.getStartTime()));
+    }
+
+    @Override
+    public synchronized boolean renewLease(UUID jobID) {
+        final JobModel<Object> job = this.queue.get(jobID);
+        if (job == null || job.getStatus() != JobStatus.RUNNING) {
+            logger.warn("Cannot renew lease for job {}, it is no longer running", jobID);
+            return false;
+        }
+        job.setLeaseExpiry(Instant.now().plus(this.leaseDuration));
+        return true;
+    }
+
+    @Override
+    public synchronized boolean renewLease(UUID jobID, int attempt) {
+        if (!isClaimed(this.queue.get(jobID), attempt)) {
+            logger.warn("Cannot renew lease for job {}, attempt {} no longer holds it", jobID, attempt);
+            return false;
+        }
+        return renewLease(jobID);
+    }
+
+    @Override
+    public synchronized int requeueExpiredJobs() {
+        final Instant now = Instant.now();
+        final List<UUID> expired = new ArrayList<>();
+        this.runningJobs.forEach(jobID -> {
+            final JobModel<Object> job = this.queue.get(jobID);
+            if (job != null && job.getLeaseExpiry().isBefore(now)) {
+                expired.add(jobID);
+            }
+        });
+
+        expired.forEach(jobID -> {
+            final JobModel<Object> job = this.queue.get(jobID);
+            final JobStatus status = job.getAttempts() > this.maxRetries ? JobStatus.FAILED : JobStatus.QUEUED;
+            logger.warn("Lease expired for job {} after {} attempts, marking as {}", jobID, job.getAttempts(), status);
+            if (this.journal != null) {
+                this.journal.complete(jobID, status, job.getAttempts(), isFinished(status) ? now : null);
+            }
+            setStatus(jobID, job, status, now);
+        });
+        return expired.size();
     }
 
     @Override
     public synchronized void removeJob(UUID jobID) {
-        this.queue.remove(jobID);
+        final JobModel<Object> parent = this.queue.get(jobID);
+        if (parent != null && parent.getShards() != null) {
+            parent.getShards().forEach(this::removeJob);
+        }
+        if (this.journal != null) {
+            this.journal.remove(jobID);
+        }
+        final JobModel<Object> job = this.queue.remove(jobID);
+        if (job != null && job.getParentID() != null) {
+            this.shardCount--;
+        }
+        if (job != null && job.getStatus() == JobStatus.RUNNING) {
+            released(jobID, job);
+        }
+        if (job != null) {
+            forgetCoalesceKey(jobID, job);
+        }
     }
 
     @Override
-    public int queueSize() {
-        return this.queue.size();
+    public synchronized List<UUID> removeFinishedJobs(Instant finishedBefore) {
+        // Shards are removed along with their parent
+        final List<UUID> expired = this.queue.entrySet()
+                .stream()
+                .filter(entry -> entry.getValue().getParentID() == null)
+                .filter(entry -> isFinished(entry.getValue().getStatus()) && entry.getValue().getCompleteTime().isBefore(finishedBefore))
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toList());
+
+        final List<UUID> removed = new ArrayList<>();
+        expired.forEach(jobID -> {
+            removed.addAll(getShards(jobID));
+            removed.add(jobID);
+            removeJob(jobID);
+        });
+        if (!expired.isEmpty()) {
+            logger.debug("Removed {} jobs which finished before {}", expired.size(), finishedBefore);
+            maybeCompact();
+        }
+        return removed;
+    }
+
+    @Override
+    public synchronized int queueSize() {
+        return this.queue.size() - this.shardCount;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (this.journal != null) {
+            this.journal.close();
+        }
+    }
+
+    private void complete(UUID jobID, JobStatus status, List<JobOutput> output) {
+        logger.debug("Completed job {} with status: {}", jobID, status);
+        final JobModel<Object> job = this.queue.get(jobID);
+        if (job == null) {
+            throw new IllegalArgumentException(String.format("Job %s does not exist in queue", jobID));
+        }
+
+        // Only completed jobs have output, which is journaled ahead of the completion, so it's in place as soon as the job is
+        final List<JobOutput> completedOutput = status == JobStatus.COMPLETED ? List.copyOf(output) : Collections.emptyList();
+        final Instant now = Instant.now();
+        if (this.journal != null) {
+            if (!completedOutput.isEmpty()) {
+                this.journal.output(jobID, completedOutput);
+            }
+            this.journal.complete(jobID, status, job.getAttempts(), isFinished(status) ? now : null);
+        }
+        setStatus(jobID, job, status, now);
+        job.setOutput(completedOutput);
+        maybeCompact();
+    }
+
+    private void setStatus(UUID jobID, JobModel<Object> job, JobStatus status, Instant now) {
+        if (job.getStatus() == JobStatus.RUNNING && status != JobStatus.RUNNING) {
+            released(jobID, job);
+            if (isFinished(status)) {
+                this.metrics.completed(SchedulingPolicy.providerID(job.getData()), status, Duration.between(job.getStartTime(), now));
+            }
+        }
+        job.setStatus(status);
+        if (status != JobStatus.RUNNING) {
+            job.setLeaseExpiry(null);
+        }
+        if (status != JobStatus.COMPLETED) {
+            job.setOutput(Collections.emptyList());
+        }
+        job.setCompleteTime(isFinished(status) ? now : null);
+        // Returning a job to the queue puts it back at the end of the line
+        if (status == JobStatus.QUEUED) {
+            job.setQueuedTime(now);
+            enqueue(jobID, job);
+            this.notifyAll();
+        }
+        refreshParent(job.getParentID());
+    }
+
+    /**
+     * Recompute the status of a sharded job, after one of its shards has changed status
+     *
+     * @param parentID - {@link UUID} ID of the parent job, does nothing if null
+     */
+    private void refreshParent(UUID parentID) {
+        final JobModel<Object> parent = parentID == null ? null : this.queue.get(parentID);
+        if (parent == null) {
+            return;
+        }
+        final Map<JobStatus, Long> counts = new EnumMap<>(JobStatus.class);
+        parent.getShards().forEach(shardID -> {
+            final JobModel<Object> shard = this.queue.get(shardID);
+            if (shard != null) {
+                counts.merge(shard.getStatus(), 1L, Long::sum);
+            }
+        });
+        final JobStatus status = JobModel.parentStatus(counts);
+        if (status != parent.getStatus()) {
+            parent.setStatus(status);
+            // The parent finished when its last shard did, which also holds for parents rebuilt from the journal
+            parent.setCompleteTime(isFinished(status) ? parent.getShards()
+                    .stream()
+                    .map(this.queue::get)
+                    .filter(shard -> shard != null && shard.getCompleteTime() != null)
+                    .map(JobModel::getCompleteTime)
+                    .max(Comparator.naturalOrder())
+                    .orElseGet(Instant::now) : null);
+        }
+    }
+
+    private Optional<JobProgress> shardProgress(List<UUID> shardIDs) {
+        final List<JobModel<Object>> reported = shardIDs
+                .stream()
+                .map(this.queue::get)
+                .filter(shard -> shard != null && shard.getProgress() != null)
+                .collect(Collectors.toList());
+        if (reported.isEmpty()) {
+            return Optional.empty();
+        }
+        final Instant startTime = reported.stream().map(JobModel::getStartTime).min(Comparator.naturalOrder()).orElseThrow();
+        return Optional.of(new JobProgress(
+                reported.stream().mapToInt(shard -> shard.getProgress().getTotal()).sum(),
+                reported.stream().mapToInt(shard -> shard.getProgress().getFetched()).sum(),
+                reported.stream().mapToInt(shard -> shard.getProgress().getFailed()).sum(),
+                reported.stream().mapToLong(shard -> shard.getProgress().getBytesWritten()).sum(),
+                startTime));
+    }
+
+    private boolean isCoalescable(JobModel<Object> job) {
+        switch (job.getStatus()) {
+            case QUEUED:
+            case RUNNING:
+                return true;
+            case COMPLETED:
+                return job.getCompleteTime().isAfter(Instant.now().minus(this.coalesceWindow));
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Rebuild the most recent job for a coalescing key, from a replayed job.
+     * Only the latest job for a key can still be unfinished, so that's the one to keep, or else the one which finished last.
+     */
+    private void rememberCoalesceKey(UUID jobID, JobModel<Object> job) {
+        if (job.getCoalesceKey() == null) {
+            return;
+        }
+        final UUID currentID = this.coalescedJobs.get(job.getCoalesceKey());
+        final JobModel<Object> current = currentID == null ? null : this.queue.get(currentID);
+        if (current == null
+                || (isFinished(current.getStatus()) && !isFinished(job.getStatus()))
+                || (isFinished(current.getStatus()) && isFinished(job.getStatus()) && job.getCompleteTime().isAfter(current.getCompleteTime()))) {
+            this.coalescedJobs.put(job.getCoalesceKey(), jobID);
+        }
+    }
+
+    private void forgetCoalesceKey(UUID jobID, JobModel<Object> job) {
+        if (job.getCoalesceKey() != null) {
+            this.coalescedJobs.remove(job.getCoalesceKey(), jobID);
+        }
+    }
+
+    private synchronized Map<String, Map<JobStatus, Long>> countJobs() {
+        final Map<String, Map<JobStatus, Long>> counts = new HashMap<>();
+        this.queue.values()
+                .stream()
+                .filter(job -> job.getShards() == null)
+                .forEach(job -> counts
+                .computeIfAbsent(SchedulingPolicy.providerID(job.getData()), provider -> new EnumMap<>(JobStatus.class))
+                .merge(job.getStatus(), 1L, Long::sum));
+        return counts;
+    }
+
+    /**
+     * Check whether the job is still running under the given claim, rather than having been requeued (and possibly claimed again) since
+     */
+    private static boolean isClaimed(JobModel<Object> job, int attempt) {
+        return job != null && job.getStatus() == JobStatus.RUNNING && job.getAttempts() == attempt;
+    }
+
+    private static boolean isFinished(JobStatus status) {
+        return status == JobStatus.COMPLETED || status == JobStatus.FAILED;
+    }
+
+    /**
+     * Journal and enqueue a new job, without compacting the journal, so a sharded job can be added a shard at a time
+     */
+    private <T> void addJob(UUID jobID, T data) {
+        logger.debug("Submitting job: {}", jobID);
+        if (this.journal != null) {
+            this.journal.submit(jobID, data);
+        }
+        final JobModel<Object> job = new JobModel<>(JobStatus.QUEUED, data);
+        job.setQueuedTime(Instant.now());
+        final JobModel<Object> previous = this.queue.put(jobID, job);
+        if (previous != null && previous.getParentID() != null) {
+            this.shardCount--;
+        }
+        enqueue(jobID, job);
+        this.notifyAll();
+    }
+
+    private void enqueue(UUID jobID, JobModel<Object> job) {
+        this.partitions
+                .computeIfAbsent(this.policy.providerOf(job.getData()), Partition::new)
+                .getReady()
+                .addLast(jobID);
+    }
+
+    /**
+     * Release the worker slot held by a running job, which might let another one of the provider's jobs run
+     */
+    private void released(UUID jobID, JobModel<Object> job) {
+        this.runningJobs.remove(jobID);
+        final Partition partition = this.partitions.get(this.policy.providerOf(job.getData()));
+        if (partition != null) {
+            partition.finished(runningSlot(jobID, job));
+            prune(partition);
+            this.notifyAll();
+        }
+    }
+
+    /**
+     * Shards count towards their provider's running jobs as part of their parent, so a sharded job takes up a single slot, however many of its shards are running
+     */
+    private static UUID runningSlot(UUID jobID, JobModel<Object> job) {
+        return job.getParentID() == null ? jobID : job.getParentID();
+    }
+
+    /**
+     * Drop providers which have nothing waiting or running, so we don't hang on to every provider we've ever seen
+     */
+    private void prune(Partition partition) {
+        if (partition.getReady().isEmpty() && partition.getRunning() <= 0) {
+            this.partitions.remove(partition.getProviderID());
+        }
+    }
+
+    /**
+     * Compact the journal, if it has grown too large.
+     * This is called after every submission and completion, so replay time stays bounded.
+     */
+    private void maybeCompact() {
+        if (this.journal != null && this.journal.needsCompaction()) {
+            this.journal.compact(snapshot());
+        }
+    }
+
+    /**
+     * Snapshot of every job in the queue, with the queued jobs after the others, in the order they'll be worked, followed by the sharded jobs
+     */
+    private List<Map.Entry<UUID, JobModel<Object>>> snapshot() {
+        final List<Map.Entry<UUID, JobModel<Object>>> jobs = new ArrayList<>(this.queue.size());
+        this.queue.entrySet()
+                .stream()
+                .filter(entry -> entry.getValue().getShards() == null && entry.getValue().getStatus() != JobStatus.QUEUED)
+                .forEach(jobs::add);
+        final Set<UUID> seen = new HashSet<>();
+        this.partitions.values().forEach(partition -> partition.getReady().forEach(jobID -> {
+            final JobModel<Object> job = this.queue.get(jobID);
+            if (job != null && job.getStatus() == JobStatus.QUEUED && seen.add(jobID)) {
+                jobs.add(new AbstractMap.SimpleImmutableEntry<>(jobID, job));
+            }
+        }));
+        this.queue.entrySet()
+                .stream()
+                .filter(entry -> entry.getValue().getShards() != null)
+                .forEach(jobs::add);
+        return jobs;
+    }
+
+    /**
+     * Scheduling state for a single provider
+     */
+    private static class Partition extends ProviderLoad {
+
+        // IDs of jobs waiting to be worked, in submission order
+        private final Deque<UUID> ready;
+        // Number of running shards for each running job, a job which isn't sharded being its own single shard
+        private final Map<UUID, Integer> runningShards;
+
+        Partition(String providerID) {
+            super(providerID, 0, Long.MIN_VALUE);
+            this.ready = new ArrayDeque<>();
+            this.runningShards = new HashMap<>();
+        }
+
+        Deque<UUID> getReady() {
+            return ready;
+        }
+
+        void started(UUID slot) {
+            this.runningShards.merge(slot, 1, Integer::sum);
+            setRunning(this.runningShards.size());
+        }
+
+        void finished(UUID slot) {
+            this.runningShards.computeIfPresent(slot, (jobID, shards) -> shards > 1 ? shards - 1 : null);
+            setRunning(this.runningShards.size());
+        }
     }
 }
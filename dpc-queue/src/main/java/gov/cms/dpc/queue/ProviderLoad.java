@@ -0,0 +1,42 @@
+package gov.cms.dpc.queue;
+
+/**
+ * Snapshot of the queue from the point of view of a single provider, used by {@link SchedulingPolicy} to decide who goes next
+ */
+class ProviderLoad {
+
+    private final String providerID;
+    private int running;
+    private long lastClaim;
+
+    /**
+     * @param providerID - {@link String} provider ID
+     * @param running    - number of the provider's jobs which are currently {@link JobStatus#RUNNING}, counting the running shards of a sharded job as one
+     * @param lastClaim  - when one of the provider's jobs was last claimed, in any monotonic unit ({@link Long#MIN_VALUE} if never)
+     */
+    ProviderLoad(String providerID, int running, long lastClaim) {
+        this.providerID = providerID;
+        this.running = running;
+        this.lastClaim = lastClaim;
+    }
+
+    String getProviderID() {
+        return providerID;
+    }
+
+    int getRunning() {
+        return running;
+    }
+
+    void setRunning(int running) {
+        this.running = running;
+    }
+
+    long getLastClaim() {
+        return lastClaim;
+    }
+
+    void setLastClaim(long lastClaim) {
+        this.lastClaim = lastClaim;
+    }
+}
@@ -0,0 +1,514 @@
+package gov.cms.dpc.queue;
+
+import com.typesafe.config.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only write-ahead journal for the {@link MemoryQueue}.
+ * <p>
+ * Every job transition is appended as a compact binary record to a memory-mapped segment file.
+ * When a segment fills up, the journal rolls over to a new one.
+ * Records are written to the page cache as soon as they're appended, so they survive a crash of the JVM; the {@link FsyncPolicy} determines when they are forced to disk.
+ * <p>
+ * Each record is laid out as: body length (int), record type (byte), job ID (2 longs), type specific payload, CRC32 of the body (int).
+ * Claims and completions carry the job's attempt count, so jobs don't get a fresh set of retries after a restart, and completions carry the time the job finished, so it isn't kept any longer than it would have been.
+ * The files a job wrote are recorded just ahead of its completion, so a completed job never comes back without them.
+ * A sharded job is recorded ahead of its shards, and is dropped on replay unless all of them are there, so a submission which was cut short never leaves shards running as jobs of their own.
+ * Coalescing keys are recorded just after the job they belong to, so later submissions still attach to it after a restart.
+ * A zero length marks the end of a segment, and records with a bad checksum (e.g. from a torn write) end the replay of their segment.
+ * <p>
+ * Replay time is bounded by compacting the journal: the live state of the queue is written to a fresh segment and the older segments are deleted.
+ * Segments are unmapped as soon as they're no longer written to, rather than whenever the garbage collector gets to them, so deleted segments don't hold on to disk space.
+ */
+public class QueueJournal implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(QueueJournal.class);
+
+    private static final String SEGMENT_PREFIX = "queue-";
+    private static final String SEGMENT_SUFFIX = ".journal";
+
+    private static final byte SUBMIT = 1;
+    private static final byte WORK = 2;
+    private static final byte COMPLETE = 3;
+    private static final byte REMOVE = 4;
+    private static final byte SHARD = 5;
+    private static final byte OUTPUT = 6;
+    private static final byte COALESCE = 7;
+    // Stands in for the completion time of jobs which haven't finished
+    private static final long NOT_FINISHED = Long.MIN_VALUE;
+
+    // Record type + job ID
+    private static final int HEADER_SIZE = Byte.BYTES + Long.BYTES * 2;
+    // Body length + checksum
+    private static final int RECORD_OVERHEAD = Integer.BYTES * 2;
+
+    /**
+     * When journal writes are forced to disk
+     */
+    public enum FsyncPolicy {
+        /**
+         * Force after every record, nothing is lost when the machine goes down.
+         */
+        PER_OPERATION,
+        /**
+         * Force on a fixed interval, at most one interval of transitions is lost when the machine goes down.
+         */
+        BATCHED,
+        /**
+         * Never force, the OS writes the pages back when it sees fit.
+         */
+        ASYNC
+    }
+
+    private final Path directory;
+    private final int segmentSize;
+    private final FsyncPolicy policy;
+    private final int compactionSegments;
+    // Number of segments written by the last compaction, which the journal is allowed to grow beyond
+    private int snapshotSegments;
+    private final ScheduledExecutorService syncExecutor;
+    // Segment files making up the journal, oldest first
+    private final List<Path> segments;
+    private long nextSegment;
+    private MappedByteBuffer current;
+    private boolean dirty;
+
+    /**
+     * Create a journal in the given directory, picking up any existing segments.
+     *
+     * @param directory          - {@link Path} directory to store segment files in
+     * @param segmentSize        - size (in bytes) of each segment file
+     * @param policy             - {@link FsyncPolicy} for forcing writes to disk
+     * @param syncInterval       - {@link Duration} between forced writes, when using {@link FsyncPolicy#BATCHED}
+     * @param compactionSegments - number of segments the journal can grow by, beyond its last compacted size, before it needs to be compacted
+     */
+    public QueueJournal(Path directory, int segmentSize, FsyncPolicy policy, Duration syncInterval, int compactionSegments) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.policy = policy;
+        this.compactionSegments = compactionSegments;
+
+        try {
+            Files.createDirectories(directory);
+            try (Stream<Path> files = Files.list(directory)) {
+                this.segments = files
+                        .filter(path -> path.getFileName().toString().startsWith(SEGMENT_PREFIX))
+                        .filter(path -> path.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+                        .sorted(Comparator.comparingLong(QueueJournal::segmentNumber))
+                        .collect(Collectors.toCollection(ArrayList::new));
+            }
+        } catch (IOException e) {
+            throw new JobQueueException(String.format("Unable to open queue journal in %s", directory), e);
+        }
+        this.nextSegment = this.segments.isEmpty() ? 0 : segmentNumber(this.segments.get(this.segments.size() - 1)) + 1;
+
+        if (policy == FsyncPolicy.BATCHED) {
+            this.syncExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+                final Thread thread = new Thread(r, "queue-journal-sync");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.syncExecutor.scheduleAtFixedRate(this::sync, syncInterval.toMillis(), syncInterval.toMillis(), TimeUnit.MILLISECONDS);
+        } else {
+            this.syncExecutor = null;
+        }
+    }
+
+    /**
+     * Build a journal from the queue.journal configuration block
+     *
+     * @param config - {@link Config} journal configuration
+     * @return - {@link QueueJournal}
+     */
+    public static QueueJournal fromConfig(Config config) {
+        return new QueueJournal(Paths.get(config.getString("path")),
+                Math.toIntExact(config.getBytes("segmentSize")),
+                config.getEnum(FsyncPolicy.class, "fsync"),
+                config.getDuration("syncInterval"),
+                config.getInt("compactionSegments"));
+    }
+
+    /**
+     * Rebuild the queue state from the journal.
+     * Jobs are returned in the order they were (re)queued.
+     *
+     * @return - {@link LinkedHashMap} of job ID to job
+     */
+    synchronized LinkedHashMap<UUID, JobModel<Object>> replay() {
+        final LinkedHashMap<UUID, JobModel<Object>> jobs = new LinkedHashMap<>();
+        for (final Path segment : this.segments) {
+            logger.debug("Replaying journal segment {}", segment);
+            try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+                final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                try {
+                    replaySegment(segment, buffer, jobs);
+                } finally {
+                    unmap(buffer);
+                }
+            } catch (IOException e) {
+                throw new JobQueueException(String.format("Unable to replay journal segment %s", segment), e);
+            }
+        }
+        linkShards(jobs);
+        logger.info("Replayed {} jobs from {} journal segments", jobs.size(), this.segments.size());
+        return jobs;
+    }
+
+    synchronized void submit(UUID jobID, Object data) {
+        append(SUBMIT, jobID, JobSerializer.serialize(data));
+    }
+
+    synchronized void work(UUID jobID, int attempts) {
+        append(WORK, jobID, encodeWork(attempts));
+    }
+
+    synchronized void complete(UUID jobID, JobStatus status, int attempts, Instant completeTime) {
+        append(COMPLETE, jobID, encodeComplete(status, attempts, completeTime));
+    }
+
+    synchronized void output(UUID jobID, List<JobOutput> output) {
+        append(OUTPUT, jobID, JobSerializer.serialize(new ArrayList<>(output)));
+    }
+
+    synchronized void remove(UUID jobID) {
+        append(REMOVE, jobID, new byte[0]);
+    }
+
+    synchronized void shard(UUID jobID, List<UUID> shards) {
+        append(SHARD, jobID, encodeShards(shards));
+    }
+
+    synchronized void coalesce(UUID jobID, String coalesceKey) {
+        append(COALESCE, jobID, coalesceKey.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Determine whether the journal has grown enough that it should be compacted.
+     * This is measured from the size of the last compaction, so a queue whose live state fills several segments isn't compacted on every transition.
+     *
+     * @return - {@code true} journal should be compacted
+     */
+    synchronized boolean needsCompaction() {
+        return this.segments.size() > this.snapshotSegments + this.compactionSegments;
+    }
+
+    /**
+     * Replace the existing journal with a snapshot of the given jobs.
+     * The snapshot is written (and forced to disk) before any existing segments are deleted, so a crash part way through only means some records are replayed twice.
+     *
+     * @param jobs - {@link Collection} of jobs, in the order they should be replayed
+     */
+    synchronized void compact(Collection<Map.Entry<UUID, JobModel<Object>>> jobs) {
+        logger.debug("Compacting journal with {} jobs", jobs.size());
+        final List<Path> previous = new ArrayList<>(this.segments);
+        roll(0);
+        jobs.forEach(entry -> {
+            final UUID jobID = entry.getKey();
+            final JobStatus status = entry.getValue().getStatus();
+            // Parent status is derived from the shards, so only the relationship needs to be recorded
+            if (entry.getValue().getShards() != null) {
+                append(SHARD, jobID, encodeShards(entry.getValue().getShards()));
+                appendCoalesceKey(jobID, entry.getValue());
+                return;
+            }
+            final int attempts = entry.getValue().getAttempts();
+            append(SUBMIT, jobID, JobSerializer.serialize(entry.getValue().getData()));
+            appendCoalesceKey(jobID, entry.getValue());
+            if (status == JobStatus.RUNNING) {
+                append(WORK, jobID, encodeWork(attempts));
+            } else if (status != JobStatus.QUEUED || attempts > 0) {
+                if (!entry.getValue().getOutput().isEmpty()) {
+                    append(OUTPUT, jobID, JobSerializer.serialize(new ArrayList<>(entry.getValue().getOutput())));
+                }
+                // Requeued jobs are recorded as completed back into the queue, which keeps their place in line, along with their attempts
+                append(COMPLETE, jobID, encodeComplete(status, attempts, entry.getValue().getCompleteTime()));
+            }
+        });
+        this.current.force();
+        this.dirty = false;
+        this.snapshotSegments = this.segments.size() - previous.size();
+
+        for (final Path segment : previous) {
+            try {
+                Files.deleteIfExists(segment);
+            } catch (IOException e) {
+                logger.error("Unable to delete journal segment {}", segment, e);
+            }
+        }
+        this.segments.removeAll(previous);
+    }
+
+    /**
+     * Force any outstanding writes to disk
+     */
+    public synchronized void sync() {
+        if (this.dirty && this.current != null) {
+            this.current.force();
+            this.dirty = false;
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (this.syncExecutor != null) {
+            this.syncExecutor.shutdown();
+        }
+        // Closing is an orderly shutdown, so we always make sure everything is on disk
+        if (this.current != null) {
+            this.current.force();
+            unmap(this.current);
+            this.current = null;
+        }
+    }
+
+    private void appendCoalesceKey(UUID jobID, JobModel<Object> job) {
+        if (job.getCoalesceKey() != null) {
+            append(COALESCE, jobID, job.getCoalesceKey().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private void append(byte type, UUID jobID, byte[] payload) {
+        final int bodyLength = HEADER_SIZE + payload.length;
+        // Leave room for the end of segment marker
+        final int required = bodyLength + RECORD_OVERHEAD + Integer.BYTES;
+        if (this.current == null || this.current.remaining() < required) {
+            roll(required);
+        }
+
+        final int bodyStart = this.current.position() + Integer.BYTES;
+        this.current.putInt(bodyLength);
+        this.current.put(type);
+        this.current.putLong(jobID.getMostSignificantBits());
+        this.current.putLong(jobID.getLeastSignificantBits());
+        this.current.put(payload);
+        this.current.putInt(checksum(this.current, bodyStart, bodyLength));
+
+        if (this.policy == FsyncPolicy.PER_OPERATION) {
+            this.current.force();
+        } else {
+            this.dirty = true;
+        }
+    }
+
+    private void roll(int minimumSize) {
+        final MappedByteBuffer previous = this.current;
+        if (previous != null && this.policy != FsyncPolicy.ASYNC) {
+            previous.force();
+        }
+        final Path segment = this.directory.resolve(String.format("%s%016d%s", SEGMENT_PREFIX, this.nextSegment++, SEGMENT_SUFFIX));
+        logger.debug("Rolling journal to segment {}", segment);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            this.current = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(this.segmentSize, minimumSize));
+        } catch (IOException e) {
+            throw new JobQueueException(String.format("Unable to create journal segment %s", segment), e);
+        }
+        this.dirty = false;
+        this.segments.add(segment);
+        // Nothing else holds on to the old segment's buffer, so it's safe to unmap it
+        if (previous != null) {
+            unmap(previous);
+        }
+    }
+
+    private static void replaySegment(Path segment, ByteBuffer buffer, LinkedHashMap<UUID, JobModel<Object>> jobs) {
+        while (buffer.remaining() >= Integer.BYTES) {
+            final int bodyLength = buffer.getInt();
+            if (bodyLength == 0) {
+                return;
+            }
+            final int bodyStart = buffer.position();
+            if (bodyLength < HEADER_SIZE || bodyLength + Integer.BYTES > buffer.remaining()) {
+                logger.warn("Truncated record at offset {} in journal segment {}, skipping the rest of the segment", bodyStart, segment);
+                return;
+            }
+            final int expected = buffer.getInt(bodyStart + bodyLength);
+            if (checksum(buffer, bodyStart, bodyLength) != expected) {
+                logger.warn("Corrupt record at offset {} in journal segment {}, skipping the rest of the segment", bodyStart, segment);
+                return;
+            }
+
+            final byte type = buffer.get();
+            final UUID jobID = new UUID(buffer.getLong(), buffer.getLong());
+            final byte[] payload = new byte[bodyLength - HEADER_SIZE];
+            buffer.get(payload);
+            buffer.getInt();
+            applyRecord(type, jobID, payload, jobs);
+        }
+    }
+
+    private static void applyRecord(byte type, UUID jobID, byte[] payload, LinkedHashMap<UUID, JobModel<Object>> jobs) {
+        switch (type) {
+            case SUBMIT: {
+                // Resubmitted jobs go to the back of the line
+                jobs.remove(jobID);
+                try {
+                    jobs.put(jobID, new JobModel<>(JobStatus.QUEUED, JobSerializer.deserialize(payload)));
+                } catch (JobQueueException e) {
+                    logger.error("Unable to restore job {} from journal, dropping it", jobID, e);
+                }
+                break;
+            }
+            case WORK: {
+                final JobModel<Object> job = jobs.get(jobID);
+                if (job != null) {
+                    job.setStatus(JobStatus.RUNNING);
+                    // Records written before attempts were journaled don't have any
+                    if (payload.length >= Integer.BYTES) {
+                        job.setAttempts(ByteBuffer.wrap(payload).getInt());
+                    }
+                }
+                break;
+            }
+            case COMPLETE: {
+                final JobModel<Object> job = jobs.get(jobID);
+                if (job != null) {
+                    final JobStatus status = JobStatus.fromCode(payload[0]);
+                    job.setStatus(status);
+                    if (status != JobStatus.COMPLETED) {
+                        job.setOutput(Collections.emptyList());
+                    }
+                    // Older records don't have the attempts, or the completion time
+                    if (payload.length >= Byte.BYTES + Integer.BYTES) {
+                        job.setAttempts(ByteBuffer.wrap(payload, Byte.BYTES, Integer.BYTES).getInt());
+                    }
+                    final long completeTime = payload.length >= Byte.BYTES + Integer.BYTES + Long.BYTES ? ByteBuffer.wrap(payload).getLong(Byte.BYTES + Integer.BYTES) : NOT_FINISHED;
+                    job.setCompleteTime(completeTime == NOT_FINISHED ? null : Instant.ofEpochMilli(completeTime));
+                    if (status == JobStatus.QUEUED) {
+                        jobs.remove(jobID);
+                        jobs.put(jobID, job);
+                    }
+                }
+                break;
+            }
+            case OUTPUT: {
+                final JobModel<Object> job = jobs.get(jobID);
+                if (job != null) {
+                    try {
+                        job.setOutput(JobSerializer.deserialize(payload));
+                    } catch (JobQueueException e) {
+                        logger.error("Unable to restore the output of job {} from journal, dropping it", jobID, e);
+                    }
+                }
+                break;
+            }
+            case REMOVE: {
+                jobs.remove(jobID);
+                break;
+            }
+            case SHARD: {
+                // The shards are linked to the parent, and its status is derived from them, once the whole journal has been replayed
+                final JobModel<Object> parent = new JobModel<>(JobStatus.QUEUED, null);
+                final ByteBuffer shards = ByteBuffer.wrap(payload);
+                final List<UUID> shardIDs = new ArrayList<>();
+                while (shards.remaining() >= Long.BYTES * 2) {
+                    shardIDs.add(new UUID(shards.getLong(), shards.getLong()));
+                }
+                parent.setShards(shardIDs);
+                jobs.put(jobID, parent);
+                break;
+            }
+            case COALESCE: {
+                final JobModel<Object> job = jobs.get(jobID);
+                if (job != null) {
+                    job.setCoalesceKey(new String(payload, StandardCharsets.UTF_8));
+                }
+                break;
+            }
+            default: {
+                logger.warn("Unknown journal record type {} for job {}", type, jobID);
+            }
+        }
+    }
+
+    /**
+     * Point each replayed shard at its parent.
+     * A parent which is missing any of its shards, because the journal ends part way through its submission, or its removal, is dropped along with the shards it does have.
+     */
+    private static void linkShards(LinkedHashMap<UUID, JobModel<Object>> jobs) {
+        final List<UUID> parentIDs = jobs.entrySet()
+                .stream()
+                .filter(entry -> entry.getValue().getShards() != null)
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toList());
+        for (final UUID parentID : parentIDs) {
+            final List<UUID> shardIDs = jobs.get(parentID).getShards();
+            if (!jobs.keySet().containsAll(shardIDs)) {
+                logger.warn("Dropping job {}, which is missing some of its {} shards", parentID, shardIDs.size());
+                shardIDs.forEach(jobs::remove);
+                jobs.remove(parentID);
+                continue;
+            }
+            shardIDs.forEach(shardID -> jobs.get(shardID).setParentID(parentID));
+        }
+    }
+
+    private static byte[] encodeWork(int attempts) {
+        return ByteBuffer.allocate(Integer.BYTES).putInt(attempts).array();
+    }
+
+    private static byte[] encodeComplete(JobStatus status, int attempts, Instant completeTime) {
+        return ByteBuffer.allocate(Byte.BYTES + Integer.BYTES + Long.BYTES)
+                .put((byte) status.getCode())
+                .putInt(attempts)
+                .putLong(completeTime == null ? NOT_FINISHED : completeTime.toEpochMilli())
+                .array();
+    }
+
+    private static byte[] encodeShards(List<UUID> shards) {
+        final ByteBuffer buffer = ByteBuffer.allocate(shards.size() * Long.BYTES * 2);
+        shards.forEach(shardID -> buffer.putLong(shardID.getMostSignificantBits()).putLong(shardID.getLeastSignificantBits()));
+        return buffer.array();
+    }
+
+    private static int checksum(ByteBuffer buffer, int offset, int length) {
+        final ByteBuffer body = buffer.duplicate();
+        body.position(offset);
+        body.limit(offset + length);
+        final CRC32 crc = new CRC32();
+        crc.update(body);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Release a segment's mapping straight away, rather than waiting for the buffer to be garbage collected.
+     * The buffer must not be used afterwards.
+     * There's no public API for this, so if the JDK doesn't allow it, the mapping is left for the garbage collector.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            final Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(field.get(null), buffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            logger.debug("Unable to unmap journal segment, leaving it for the garbage collector", e);
+        }
+    }
+
+    private static long segmentNumber(Path segment) {
+        final String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+}
@@ -0,0 +1,120 @@
+package gov.cms.dpc.queue;
+
+import com.codahale.metrics.CachedGauge;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Dropwizard metrics shared by the {@link JobQueue} implementations.
+ * <p>
+ * Metrics are registered under gov.cms.dpc.queue.JobQueue:
+ * <ul>
+ * <li>jobs.{status} - number of jobs in the queue with the given status</li>
+ * <li>wait - time between a job being queued and claimed by a worker</li>
+ * <li>run.{status} - time between a job being claimed and completed, by final status</li>
+ * <li>providers.{providerID}.* - the same metrics, for the jobs of a single provider</li>
+ * </ul>
+ * Job counts come from the queue itself and are cached for a few seconds, so scraping the metrics doesn't put any real load on the backing store.
+ * <p>
+ * A provider's metrics are removed once it no longer has any jobs waiting or running, so the number of metrics follows the number of active providers, rather than every provider the queue has ever seen.
+ */
+class QueueMetrics {
+
+    private static final String PREFIX = MetricRegistry.name(JobQueue.class);
+    // Label for jobs which don't belong to a provider
+    private static final String UNSCOPED = "unscoped";
+    private static final Duration COUNT_CACHE = Duration.ofSeconds(5);
+
+    private final MetricRegistry registry;
+    private final CachedGauge<Map<String, Map<JobStatus, Long>>> counts;
+    // Providers which currently have metrics registered
+    private final Set<String> providers;
+
+    /**
+     * @param registry - {@link MetricRegistry} to register metrics with
+     * @param counter  - {@link Supplier} of the number of jobs for each provider and status
+     */
+    QueueMetrics(MetricRegistry registry, Supplier<Map<String, Map<JobStatus, Long>>> counter) {
+        this(registry, counter, COUNT_CACHE);
+    }
+
+    /**
+     * @param registry  - {@link MetricRegistry} to register metrics with
+     * @param counter   - {@link Supplier} of the number of jobs for each provider and status
+     * @param cacheTime - {@link Duration} to cache job counts for
+     */
+    QueueMetrics(MetricRegistry registry, Supplier<Map<String, Map<JobStatus, Long>>> counter, Duration cacheTime) {
+        this.registry = registry;
+        this.providers = ConcurrentHashMap.newKeySet();
+        this.counts = new CachedGauge<>(cacheTime.toNanos(), TimeUnit.NANOSECONDS) {
+            @Override
+            protected Map<String, Map<JobStatus, Long>> loadValue() {
+                final Map<String, Map<JobStatus, Long>> counts = counter.get();
+                final Set<String> idle = new HashSet<>(providers);
+                counts.forEach((providerID, byStatus) -> {
+                    if (byStatus.getOrDefault(JobStatus.QUEUED, 0L) + byStatus.getOrDefault(JobStatus.RUNNING, 0L) > 0) {
+                        // Pick up any providers which were submitted by another node
+                        registerProvider(providerID);
+                        idle.remove(providerID);
+                    }
+                });
+                idle.forEach(QueueMetrics.this::unregisterProvider);
+                return counts;
+            }
+        };
+
+        for (final JobStatus status : JobStatus.values()) {
+            this.registry.gauge(MetricRegistry.name(PREFIX, "jobs", status.name()), () -> (Gauge<Long>) () -> this.counts.getValue()
+                    .values()
+                    .stream()
+                    .mapToLong(byStatus -> byStatus.getOrDefault(status, 0L))
+                    .sum());
+        }
+    }
+
+    void claimed(String providerID, Duration waited) {
+        registerProvider(providerID);
+        this.registry.timer(MetricRegistry.name(PREFIX, "wait")).update(waited.toNanos(), TimeUnit.NANOSECONDS);
+        this.registry.timer(providerName(providerID, "wait")).update(waited.toNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    void completed(String providerID, JobStatus status, Duration ran) {
+        this.registry.timer(MetricRegistry.name(PREFIX, "run", status.name())).update(ran.toNanos(), TimeUnit.NANOSECONDS);
+        this.registry.timer(providerName(providerID, "run", status.name())).update(ran.toNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    private void registerProvider(String providerID) {
+        if (!this.providers.add(providerID)) {
+            return;
+        }
+        for (final JobStatus status : JobStatus.values()) {
+            this.registry.gauge(providerName(providerID, "jobs", status.name()), () -> (Gauge<Long>) () -> this.counts.getValue()
+                    .getOrDefault(providerID, Map.of())
+                    .getOrDefault(status, 0L));
+        }
+    }
+
+    /**
+     * Remove every metric for the provider, they're registered again if it submits another job
+     */
+    private void unregisterProvider(String providerID) {
+        if (!this.providers.remove(providerID)) {
+            return;
+        }
+        final String prefix = providerName(providerID) + ".";
+        this.registry.removeMatching((name, metric) -> name.startsWith(prefix));
+    }
+
+    private static String providerName(String providerID, String... names) {
+        final String label = providerID.equals(SchedulingPolicy.DEFAULT_PROVIDER) ? UNSCOPED : providerID;
+        return MetricRegistry.name(MetricRegistry.name(PREFIX, "providers", label), names);
+    }
+}
@@ -0,0 +1,100 @@
+package gov.cms.dpc.queue;
+
+import com.typesafe.config.Config;
+import gov.cms.dpc.common.interfaces.ProviderScoped;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Decides the order in which providers get to claim jobs, based on the queue.scheduling config block.
+ * <p>
+ * In {@link Mode#FIFO} mode, providers are ignored and every job goes into the same partition.
+ * In {@link Mode#FAIR_SHARE} mode, the provider with the fewest running jobs (relative to its weight) goes next, with ties going to the provider which has waited longest since its last claim.
+ * This means providers take turns, so a small provider never waits behind the entire backlog of a large one.
+ * Providers which already have the maximum number of running jobs are skipped entirely.
+ * A sharded job counts as a single running job, however many of its shards are running, so the limit doesn't stop a large export from fanning out across the workers.
+ * <p>
+ * Job data which is not {@link ProviderScoped} is never capped and is scheduled as if it belonged to a single, anonymous provider.
+ */
+class SchedulingPolicy {
+
+    enum Mode {
+        FIFO,
+        FAIR_SHARE
+    }
+
+    static final String DEFAULT_PROVIDER = "";
+
+    private final Mode mode;
+    private final int maxRunning;
+    private final Map<String, Integer> weights;
+
+    SchedulingPolicy(Config config) {
+        this.mode = config.getEnum(Mode.class, "queue.scheduling.mode");
+        this.maxRunning = config.getInt("queue.scheduling.maxRunningPerProvider");
+        this.weights = new HashMap<>();
+        config.getObject("queue.scheduling.weights").forEach((providerID, weight) -> this.weights.put(providerID, ((Number) weight.unwrapped()).intValue()));
+    }
+
+    Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Determine which scheduling partition the job data belongs to
+     *
+     * @param data - job data
+     * @return - {@link String} provider ID, or {@link SchedulingPolicy#DEFAULT_PROVIDER} if the data is not {@link ProviderScoped}, or we're in FIFO mode
+     */
+    String providerOf(Object data) {
+        if (this.mode == Mode.FIFO) {
+            return DEFAULT_PROVIDER;
+        }
+        return providerID(data);
+    }
+
+    /**
+     * Get the provider the job data belongs to, regardless of the scheduling mode
+     *
+     * @param data - job data
+     * @return - {@link String} provider ID, or {@link SchedulingPolicy#DEFAULT_PROVIDER} if the data is not {@link ProviderScoped}
+     */
+    static String providerID(Object data) {
+        if (!(data instanceof ProviderScoped)) {
+            return DEFAULT_PROVIDER;
+        }
+        final String providerID = ((ProviderScoped) data).getProviderID();
+        return providerID == null ? DEFAULT_PROVIDER : providerID;
+    }
+
+    /**
+     * Order the providers with waiting jobs, by who should get the next worker.
+     * Providers which are at their limit of running jobs are excluded.
+     *
+     * @param candidates - {@link Collection} of {@link ProviderLoad} for each provider with jobs waiting to be worked
+     * @param <P>        - {@link ProviderLoad} type
+     * @return - {@link List} of providers, in the order they should be tried
+     */
+    <P extends ProviderLoad> List<P> rank(Collection<P> candidates) {
+        if (this.mode == Mode.FIFO) {
+            return new ArrayList<>(candidates);
+        }
+        return candidates
+                .stream()
+                .filter(this::belowLimit)
+                .sorted(Comparator.<P>comparingDouble(load -> (double) load.getRunning() / getWeight(load.getProviderID()))
+                        .thenComparingLong(ProviderLoad::getLastClaim))
+                .collect(Collectors.toList());
+    }
+
+    private boolean belowLimit(ProviderLoad load) {
+        return this.maxRunning <= 0
+                || load.getProviderID().equals(DEFAULT_PROVIDER)
+                || load.getRunning() < this.maxRunning;
+    }
+
+    private int getWeight(String providerID) {
+        return Math.max(1, this.weights.getOrDefault(providerID, 1));
+    }
+}
@@ -0,0 +1,408 @@
+package gov.cms.dpc.queue;
+
+import com.codahale.metrics.MetricRegistry;
+import com.typesafe.config.ConfigFactory;
+import gov.cms.dpc.common.models.ExportCompression;
+import gov.cms.dpc.common.models.JobModel;
+import liquibase.Contexts;
+import liquibase.Liquibase;
+import liquibase.database.jvm.JdbcConnection;
+import liquibase.resource.ClassLoaderResourceAccessor;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DatabaseQueueTest {
+
+    private JdbcDataSource dataSource;
+    private MetricRegistry registry;
+    private Connection keepAlive;
+    private DatabaseQueue queue;
+
+    @BeforeEach
+    public void setupQueue() throws Exception {
+        dataSource = new JdbcDataSource();
+        dataSource.setURL(String.format("jdbc:h2:mem:%s;LOCK_TIMEOUT=10000", UUID.randomUUID()));
+        // Keep the in-memory database around for the duration of the test
+        keepAlive = dataSource.getConnection();
+        new Liquibase("queue.migrations.xml", new ClassLoaderResourceAccessor(), new JdbcConnection(keepAlive))
+                .update(new Contexts());
+        registry = new MetricRegistry();
+        queue = new DatabaseQueue(dataSource, ConfigFactory.load(), registry);
+    }
+
+    @AfterEach
+    public void shutdown() throws Exception {
+        keepAlive.close();
+    }
+
+    @Test
+    public void testSimpleSubmissionCompletion() {
+        final UUID jobID = UUID.randomUUID();
+        queue.submitJob(jobID, new TestJob("test job"));
+        assertAll(() -> assertEquals(1, queue.queueSize(), "Should have a single job"),
+                () -> assertEquals(JobStatus.QUEUED, queue.getJobStatus(jobID).orElseThrow(), "Job should be queued"));
+
+        final Optional<ClaimedJob<TestJob>> workJob = queue.workJob();
+        assertAll(() -> assertTrue(workJob.isPresent(), "Should have job to work"),
+                () -> assertEquals(jobID, workJob.get().getLeft(), "Should have submitted job"),
+                () -> assertEquals("test job", workJob.get().getRight().data, "Should round-trip job data"),
+                () -> assertEquals(JobStatus.RUNNING, queue.getJobStatus(jobID).orElseThrow(), "Job should be running"),
+                () -> assertTrue(queue.workJob().isEmpty(), "Should not have another job to work"));
+
+        queue.completeJob(jobID, JobStatus.COMPLETED);
+        assertEquals(JobStatus.COMPLETED, queue.getJobStatus(jobID).orElseThrow(), "Job should be completed");
+
+        queue.removeJob(jobID);
+        assertAll(() -> assertEquals(0, queue.queueSize(), "Should have an empty queue"),
+                () -> assertTrue(queue.getJobStatus(jobID).isEmpty(), "Should not have removed job"));
+    }
+
+    @Test
+    public void testStatusCodes() {
+        // The migrations refer to these codes, so they can't change
+        assertAll(() -> assertEquals(0, JobStatus.QUEUED.getCode(), "Should have stable code for queued"),
+                () -> assertEquals(1, JobStatus.RUNNING.getCode(), "Should have stable code for running"),
+                () -> assertEquals(2, JobStatus.COMPLETED.getCode(), "Should have stable code for completed"),
+                () -> assertEquals(3, JobStatus.FAILED.getCode(), "Should have stable code for failed"));
+        for (final JobStatus status : JobStatus.values()) {
+            assertEquals(status, JobStatus.fromCode(status.getCode()), "Should round-trip status code");
+        }
+        assertThrows(IllegalArgumentException.class, () -> JobStatus.fromCode(4), "Should reject unknown status code");
+    }
+
+    @Test
+    public void testMissingJob() throws InterruptedException {
+        final UUID jobID = UUID.randomUUID();
+
+        assertAll(() -> assertTrue(queue.workJob().isEmpty(), "Should not have job to work"),
+                () -> assertTrue(queue.getJobStatus(jobID).isEmpty(), "Should not be able to get missing job status"),
+                () -> assertThrows(IllegalArgumentException.class, () -> queue.completeJob(jobID, JobStatus.FAILED), "Should error when completing a job which does not exist"));
+        assertTrue(queue.workJob(Duration.ofMillis(50)).isEmpty(), "Should not have job to work after waiting");
+    }
+
+    @Test
+    public void testConcurrentClaims() throws Exception {
+        final List<UUID> jobs = IntStream.range(0, 50)
+                .mapToObj((i) -> UUID.randomUUID())
+                .collect(Collectors.toList());
+        jobs.forEach((job) -> queue.submitJob(job, new TestJob("test job")));
+
+        // Have multiple workers drain the queue, every job should be claimed exactly once
+        final ExecutorService executor = Executors.newFixedThreadPool(5);
+        try {
+            final List<Future<List<UUID>>> workers = new ArrayList<>();
+            for (int i = 0; i < 5; i++) {
+                workers.add(executor.submit(() -> {
+                    final List<UUID> claimed = new ArrayList<>();
+                    Optional<ClaimedJob<TestJob>> job;
+                    while ((job = queue.workJob(Duration.ofMillis(100))).isPresent()) {
+                        claimed.add(job.get().getLeft());
+                    }
+                    return claimed;
+                }));
+            }
+
+            final List<UUID> claimed = new ArrayList<>();
+            for (Future<List<UUID>> worker : workers) {
+                claimed.addAll(worker.get(30, TimeUnit.SECONDS));
+            }
+            assertAll(() -> assertEquals(jobs.size(), claimed.size(), "Should not claim a job more than once"),
+                    () -> assertEquals(new HashSet<>(jobs), new HashSet<>(claimed), "Should claim every job"));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testLeaseExpiry() throws Exception {
+        final DatabaseQueue leasedQueue = new DatabaseQueue(dataSource, ConfigFactory.parseString("queue.lease.duration = 50ms\nqueue.lease.maxRetries = 1")
+                .withFallback(ConfigFactory.load()), new MetricRegistry());
+        final UUID jobID = UUID.randomUUID();
+        leasedQueue.submitJob(jobID, new TestJob("test job"));
+
+        assertEquals(jobID, leasedQueue.<TestJob>workJob().orElseThrow().getLeft(), "Should have job to work");
+        assertAll(() -> assertTrue(leasedQueue.renewLease(jobID), "Should renew lease"),
+                () -> assertEquals(0, leasedQueue.requeueExpiredJobs(), "Should not requeue renewed job"));
+
+        // Stop heartbeating and the job should go back in the queue, behind the jobs submitted while it was running
+        final UUID laterJob = UUID.randomUUID();
+        leasedQueue.submitJob(laterJob, new TestJob("later job"));
+        Thread.sleep(100);
+        assertAll(() -> assertEquals(1, leasedQueue.requeueExpiredJobs(), "Should requeue expired job"),
+                () -> assertEquals(JobStatus.QUEUED, leasedQueue.getJobStatus(jobID).orElseThrow(), "Job should be queued"),
+                () -> assertFalse(leasedQueue.renewLease(jobID), "Should not renew lease on requeued job"));
+        assertEquals(laterJob, leasedQueue.<TestJob>workJob().orElseThrow().getLeft(), "Should work later job before requeued job");
+        leasedQueue.completeJob(laterJob, JobStatus.COMPLETED);
+
+        // Second attempt expires as well, which exhausts the retries
+        assertEquals(jobID, leasedQueue.<TestJob>workJob().orElseThrow().getLeft(), "Should work the job again");
+        Thread.sleep(100);
+        assertAll(() -> assertEquals(1, leasedQueue.requeueExpiredJobs(), "Should expire job"),
+                () -> assertEquals(JobStatus.FAILED, leasedQueue.getJobStatus(jobID).orElseThrow(), "Job should fail after too many attempts"),
+                () -> assertTrue(leasedQueue.workJob().isEmpty(), "Should not have another job to work"));
+    }
+
+    @Test
+    public void testStaleCompletion() throws InterruptedException {
+        final DatabaseQueue leasedQueue = new DatabaseQueue(dataSource, ConfigFactory.parseString("queue.lease.duration = 50ms")
+                .withFallback(ConfigFactory.load()), new MetricRegistry());
+        final UUID jobID = UUID.randomUUID();
+        leasedQueue.submitJob(jobID, new TestJob("test job"));
+
+        // First worker loses its lease, and the job is claimed again
+        final ClaimedJob<TestJob> first = leasedQueue.<TestJob>workJob().orElseThrow();
+        Thread.sleep(100);
+        assertEquals(1, leasedQueue.requeueExpiredJobs(), "Should requeue expired job");
+        final ClaimedJob<TestJob> second = leasedQueue.<TestJob>workJob().orElseThrow();
+        assertEquals(jobID, second.getLeft(), "Should claim job again");
+
+        assertAll(() -> assertFalse(leasedQueue.renewLease(jobID, first.getAttempt()), "Should not renew lease for stale claim"),
+                () -> assertFalse(leasedQueue.completeJob(jobID, first.getAttempt(), JobStatus.FAILED), "Should drop stale completion"),
+                () -> assertEquals(JobStatus.RUNNING, leasedQueue.getJobStatus(jobID).orElseThrow(), "Should leave job running for its new owner"));
+
+        assertAll(() -> assertTrue(leasedQueue.renewLease(jobID, second.getAttempt()), "Should renew lease for current claim"),
+                () -> assertTrue(leasedQueue.completeJob(jobID, second.getAttempt(), JobStatus.COMPLETED), "Should complete current claim"),
+                () -> assertEquals(JobStatus.COMPLETED, leasedQueue.getJobStatus(jobID).orElseThrow(), "Should be completed by its new owner"));
+    }
+
+    @Test
+    public void testFairShare() {
+        queue = new DatabaseQueue(dataSource, ConfigFactory.parseString("queue.scheduling.maxRunningPerProvider = 2").withFallback(ConfigFactory.load()), new MetricRegistry());
+        final List<UUID> largeJobs = IntStream.range(0, 5)
+                .mapToObj((i) -> UUID.randomUUID())
+                .collect(Collectors.toList());
+        largeJobs.forEach((job) -> queue.submitJob(job, new JobModel("large", Set.of("1"))));
+        final UUID smallJob = UUID.randomUUID();
+        queue.submitJob(smallJob, new JobModel("small", Set.of("1")));
+
+        // Whoever goes first, the small provider should not have to wait behind the entire backlog
+        final List<UUID> worked = new ArrayList<>();
+        Optional<ClaimedJob<JobModel>> workJob;
+        while ((workJob = queue.workJob()).isPresent()) {
+            worked.add(workJob.get().getLeft());
+        }
+        assertAll(() -> assertEquals(3, worked.size(), "Should stop at the running limit for the large provider"),
+                () -> assertTrue(worked.indexOf(smallJob) >= 0 && worked.indexOf(smallJob) <= 1, "Small provider should get one of the first two jobs"));
+
+        // Finishing a job frees up a slot
+        final UUID finished = worked.get(worked.indexOf(smallJob) == 0 ? 1 : 0);
+        queue.completeJob(finished, JobStatus.COMPLETED);
+        assertAll(() -> assertEquals(largeJobs.get(2), queue.<JobModel>workJob().orElseThrow().getLeft(), "Should have next job for provider"),
+                () -> assertTrue(queue.workJob().isEmpty(), "Should be back at the limit"));
+    }
+
+    @Test
+    public void testShardedFairShare() {
+        queue = new DatabaseQueue(dataSource, ConfigFactory.parseString("queue.scheduling.maxRunningPerProvider = 2").withFallback(ConfigFactory.load()), new MetricRegistry());
+        // A sharded job only takes up one of the provider's running slots, however many shards are running
+        final UUID shardedJob = UUID.randomUUID();
+        queue.submitShardedJob(shardedJob, IntStream.range(0, 4).mapToObj((i) -> new JobModel("large", Set.of(String.valueOf(i)))).collect(Collectors.toList()));
+        final List<UUID> otherJobs = List.of(UUID.randomUUID(), UUID.randomUUID());
+        otherJobs.forEach((job) -> queue.submitJob(job, new JobModel("large", Set.of("1"))));
+
+        final List<UUID> worked = new ArrayList<>();
+        Optional<ClaimedJob<JobModel>> workJob;
+        while ((workJob = queue.workJob()).isPresent()) {
+            worked.add(workJob.get().getLeft());
+        }
+        final List<UUID> expected = new ArrayList<>(queue.getShards(shardedJob));
+        expected.add(otherJobs.get(0));
+        assertEquals(new HashSet<>(expected), new HashSet<>(worked), "Should run every shard, along with one other job");
+    }
+
+    @Test
+    public void testRemoveFinishedJobs() throws InterruptedException {
+        final List<UUID> jobs = IntStream.range(0, 3)
+                .mapToObj((i) -> UUID.randomUUID())
+                .collect(Collectors.toList());
+        jobs.forEach((job) -> queue.submitJob(job, new TestJob("test job")));
+        queue.completeJob(queue.workJob().orElseThrow().getLeft(), JobStatus.COMPLETED);
+        queue.completeJob(queue.workJob().orElseThrow().getLeft(), JobStatus.FAILED);
+
+        assertTrue(queue.removeFinishedJobs(Instant.now().minusSeconds(60)).isEmpty(), "Should not remove recently finished jobs");
+        Thread.sleep(10);
+        final List<UUID> removed = queue.removeFinishedJobs(Instant.now());
+        assertAll(() -> assertEquals(Set.of(jobs.get(0), jobs.get(1)), new HashSet<>(removed), "Should remove finished jobs"),
+                () -> assertEquals(1, queue.queueSize(), "Should only have the queued job"),
+                () -> assertTrue(queue.getJobStatus(jobs.get(0)).isEmpty(), "Should not have removed job"));
+    }
+
+    @Test
+    public void testProgress() {
+        final UUID jobID = UUID.randomUUID();
+        queue.submitJob(jobID, new TestJob("test job"));
+        queue.updateProgress(jobID, new JobProgress(10, 1, 0, 100));
+        assertTrue(queue.getJobProgress(jobID).isEmpty(), "Should ignore progress for queued job");
+
+        queue.workJob().orElseThrow();
+        queue.updateProgress(jobID, new JobProgress(10, 4, 1, 500));
+        final JobProgress progress = queue.getJobProgress(jobID).orElseThrow();
+        assertAll(() -> assertEquals(10, progress.getTotal(), "Should have total"),
+                () -> assertEquals(4, progress.getFetched(), "Should have fetched"),
+                () -> assertEquals(1, progress.getFailed(), "Should have failed"),
+                () -> assertEquals(500, progress.getBytesWritten(), "Should have bytes written"),
+                () -> assertEquals(50, progress.getPercentComplete(), "Should be half done"),
+                () -> assertTrue(progress.getStartTime().isPresent(), "Should have start time"),
+                () -> assertFalse(progress.getEstimatedCompletion().orElseThrow().isBefore(progress.getStartTime().orElseThrow()), "Should estimate completion after start"));
+
+        // Requeuing the job starts over
+        queue.completeJob(jobID, JobStatus.QUEUED);
+        queue.workJob().orElseThrow();
+        assertTrue(queue.getJobProgress(jobID).isEmpty(), "Should reset progress when reclaimed");
+    }
+
+    @Test
+    public void testMetrics() {
+        final UUID first = UUID.randomUUID();
+        queue.submitJob(first, new JobModel("provider", Set.of("1")));
+        queue.submitJob(UUID.randomUUID(), new JobModel("provider", Set.of("1")));
+        queue.submitJob(UUID.randomUUID(), new TestJob("test job"));
+        queue.<JobModel>workJob().orElseThrow();
+        queue.completeJob(first, JobStatus.COMPLETED);
+
+        final String prefix = "gov.cms.dpc.queue.JobQueue";
+        assertAll(() -> assertEquals(2L, registry.getGauges().get(prefix + ".jobs.QUEUED").getValue(), "Should have queued jobs"),
+                () -> assertEquals(1L, registry.getGauges().get(prefix + ".jobs.COMPLETED").getValue(), "Should have completed job"),
+                () -> assertEquals(1L, registry.getGauges().get(prefix + ".providers.provider.jobs.QUEUED").getValue(), "Should have queued jobs for provider"),
+                () -> assertEquals(1L, registry.getTimers().get(prefix + ".wait").getCount(), "Should time the wait"),
+                () -> assertEquals(1L, registry.getTimers().get(prefix + ".run.COMPLETED").getCount(), "Should time the run"),
+                () -> assertEquals(1L, registry.getTimers().get(prefix + ".providers.provider.run.COMPLETED").getCount(), "Should time the run for provider"));
+    }
+
+    @Test
+    public void testCoalescing() {
+        final UUID first = UUID.randomUUID();
+        assertEquals(first, queue.submitCoalescedJob(first, List.of(new TestJob("test job")), "key"), "Should submit new job");
+        assertAll(() -> assertEquals(first, queue.submitCoalescedJob(UUID.randomUUID(), List.of(new TestJob("test job")), "key"), "Should attach to queued job"),
+                () -> assertEquals(1, queue.queueSize(), "Should only have a single job"));
+
+        queue.workJob().orElseThrow();
+        assertEquals(first, queue.submitCoalescedJob(UUID.randomUUID(), List.of(new TestJob("test job")), "key"), "Should attach to running job");
+        queue.completeJob(first, JobStatus.COMPLETED);
+        assertEquals(first, queue.submitCoalescedJob(UUID.randomUUID(), List.of(new TestJob("test job")), "key"), "Should attach to recently completed job");
+
+        final UUID other = UUID.randomUUID();
+        assertAll(() -> assertEquals(other, queue.submitCoalescedJob(other, List.of(new TestJob("test job")), "other key"), "Should not attach to job with a different key"),
+                () -> assertEquals(2, queue.queueSize(), "Should have a new job"));
+
+        // Failed jobs are never reused
+        queue.workJob().orElseThrow();
+        queue.completeJob(other, JobStatus.FAILED);
+        final UUID retry = UUID.randomUUID();
+        assertEquals(retry, queue.submitCoalescedJob(retry, List.of(new TestJob("test job")), "other key"), "Should not attach to failed job");
+    }
+
+    @Test
+    public void testConcurrentCoalescing() throws Exception {
+        // Two nodes, sharing the same database, each with several concurrent submitters
+        final DatabaseQueue otherNode = new DatabaseQueue(dataSource, ConfigFactory.load(), new MetricRegistry());
+        final CountDownLatch start = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            final List<Future<UUID>> submissions = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                final DatabaseQueue node = i % 2 == 0 ? queue : otherNode;
+                submissions.add(executor.submit(() -> {
+                    start.await();
+                    return node.submitCoalescedJob(UUID.randomUUID(), List.of(new TestJob("test job")), "key");
+                }));
+            }
+            start.countDown();
+
+            final Set<UUID> jobs = new HashSet<>();
+            for (Future<UUID> submission : submissions) {
+                jobs.add(submission.get(30, TimeUnit.SECONDS));
+            }
+            assertAll(() -> assertEquals(1, jobs.size(), "Every submission should attach to the same job"),
+                    () -> assertEquals(1, queue.queueSize(), "Should only have a single job"));
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // The database itself rejects a second unfinished job for the key
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement statement = connection.prepareStatement("INSERT INTO job_queue (id, status, submit_time, coalesce_key) VALUES (?, ?, ?, ?)")) {
+            statement.setObject(1, UUID.randomUUID());
+            statement.setInt(2, JobStatus.QUEUED.getCode());
+            statement.setTimestamp(3, Timestamp.from(Instant.now()));
+            statement.setString(4, "key");
+            assertThrows(SQLException.class, statement::executeUpdate, "Should not allow duplicate unfinished job");
+        }
+    }
+
+    @Test
+    public void testSharding() {
+        final UUID jobID = UUID.randomUUID();
+        queue.submitShardedJob(jobID, List.of(new TestJob("first"), new TestJob("second"), new TestJob("third")));
+        final List<UUID> shards = queue.getShards(jobID);
+        assertAll(() -> assertEquals(3, shards.size(), "Should have a job for each shard"),
+                () -> assertEquals(1, queue.queueSize(), "Should count shards as part of their parent"),
+                () -> assertEquals(jobID, queue.getParentID(shards.get(0)).orElseThrow(), "Should find parent of shard"),
+                () -> assertTrue(queue.getParentID(jobID).isEmpty(), "Should not have parent for parent job"),
+                () -> assertEquals(JobStatus.QUEUED, queue.getJobStatus(jobID).orElseThrow(), "Should be queued until a shard is claimed"));
+
+        final String parentData = queue.<TestJob>getJobData(jobID).orElseThrow().data;
+        assertAll(() -> assertTrue(List.of("first", "second", "third").contains(parentData), "Should fall back to shard data for parent"),
+                () -> assertEquals(3, shards.stream().map(shardID -> queue.<TestJob>getJobData(shardID).orElseThrow().data).distinct().count(), "Should have data for each shard"),
+                () -> assertTrue(queue.getJobData(UUID.randomUUID()).isEmpty(), "Should not have data for missing job"));
+
+        final UUID first = queue.workJob().orElseThrow().getLeft();
+        final UUID second = queue.workJob().orElseThrow().getLeft();
+        queue.updateProgress(first, new JobProgress(10, 5, 1, 100));
+        queue.updateProgress(second, new JobProgress(20, 5, 0, 50));
+        final JobProgress progress = queue.getJobProgress(jobID).orElseThrow();
+        assertAll(() -> assertTrue(shards.containsAll(List.of(first, second)), "Should work shards, rather than the parent"),
+                () -> assertEquals(JobStatus.RUNNING, queue.getJobStatus(jobID).orElseThrow(), "Should be running once a shard is claimed"),
+                () -> assertEquals(30, progress.getTotal(), "Should sum shard totals"),
+                () -> assertEquals(10, progress.getFetched(), "Should sum fetched shards"),
+                () -> assertEquals(1, progress.getFailed(), "Should sum failed shards"),
+                () -> assertEquals(150, progress.getBytesWritten(), "Should sum bytes written"));
+
+        final JobOutput firstOutput = new JobOutput("Patient", first + ".Patient.0", ExportCompression.GZIP, 10);
+        final JobOutput secondOutput = new JobOutput("Patient", second + ".Patient.0", ExportCompression.NONE, 20);
+        assertTrue(queue.completeJob(first, 1, JobStatus.COMPLETED, List.of(firstOutput)), "Should complete first shard");
+        assertTrue(queue.completeJob(second, 1, JobStatus.COMPLETED, List.of(secondOutput)), "Should complete second shard");
+        final List<JobOutput> expectedOutput = shards.indexOf(first) < shards.indexOf(second) ? List.of(firstOutput, secondOutput) : List.of(secondOutput, firstOutput);
+        assertAll(() -> assertEquals(JobStatus.RUNNING, queue.getJobStatus(jobID).orElseThrow(), "Should run until every shard has finished"),
+                () -> assertEquals(List.of(firstOutput), queue.getJobOutput(first), "Should have output of shard"),
+                () -> assertEquals(expectedOutput, queue.getJobOutput(jobID), "Should list output of each shard, in shard order"),
+                () -> assertTrue(queue.getJobOutput(UUID.randomUUID()).isEmpty(), "Should not have output for missing job"));
+
+        final UUID third = queue.workJob().orElseThrow().getLeft();
+        assertTrue(queue.workJob().isEmpty(), "Should never work the parent");
+        queue.completeJob(third, JobStatus.FAILED);
+        assertEquals(JobStatus.FAILED, queue.getJobStatus(jobID).orElseThrow(), "Should fail if any shard failed");
+
+        final List<UUID> removed = queue.removeFinishedJobs(Instant.now().plusSeconds(1));
+        assertAll(() -> assertEquals(4, removed.size(), "Should remove parent and shards"),
+                () -> assertTrue(removed.containsAll(shards), "Should report removed shards"),
+                () -> assertTrue(queue.getJobStatus(third).isEmpty(), "Should not have shard"),
+                () -> assertEquals(0, queue.queueSize(), "Should not have any jobs"));
+    }
+
+    private static class TestJob implements Serializable {
+        public static final long serialVersionUID = 42L;
+
+        private final String data;
+
+        TestJob(String data) {
+            this.data = data;
+        }
+    }
+}
@@ -0,0 +1,300 @@
+package gov.cms.dpc.queue;
+
+import com.codahale.metrics.MetricRegistry;
+import com.typesafe.config.ConfigFactory;
+import gov.cms.dpc.common.models.ExportCompression;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.AbstractMap;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class JournalTest {
+
+    private static final int SEGMENT_SIZE = 4096;
+
+    private Path journalPath;
+
+    @BeforeEach
+    public void createDirectory() throws IOException {
+        journalPath = Files.createTempDirectory("queue-journal");
+    }
+
+    @AfterEach
+    public void deleteDirectory() throws IOException {
+        try (Stream<Path> files = Files.walk(journalPath)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void testReplay() {
+        final List<UUID> jobs = IntStream.range(0, 5)
+                .mapToObj((i) -> UUID.randomUUID())
+                .collect(Collectors.toList());
+
+        try (MemoryQueue queue = new MemoryQueue(ConfigFactory.load(), openJournal(QueueJournal.FsyncPolicy.PER_OPERATION), new MetricRegistry())) {
+            jobs.forEach((job) -> queue.submitJob(job, new TestJob("test job")));
+            // Finish the first job, leave the second one running
+            queue.completeJob(queue.workJob().orElseThrow().getLeft(), JobStatus.COMPLETED);
+            queue.workJob();
+            queue.removeJob(jobs.get(4));
+        }
+
+        // Simulate a restart
+        try (MemoryQueue queue = new MemoryQueue(ConfigFactory.load(), openJournal(QueueJournal.FsyncPolicy.PER_OPERATION), new MetricRegistry())) {
+            assertAll(() -> assertEquals(4, queue.queueSize(), "Should not restore removed job"),
+                    () -> assertEquals(JobStatus.COMPLETED, queue.getJobStatus(jobs.get(0)).orElseThrow(), "Should restore completed job"),
+                    () -> assertEquals(JobStatus.QUEUED, queue.getJobStatus(jobs.get(1)).orElseThrow(), "Should requeue running job"));
+
+            // Running job should be worked first, followed by the rest in submission order
+            for (UUID expected : List.of(jobs.get(1), jobs.get(2), jobs.get(3))) {
+                final Pair<UUID, TestJob> job = queue.<TestJob>workJob().orElseThrow();
+                assertAll(() -> assertEquals(expected, job.getLeft(), "Should work jobs in order"),
+                        () -> assertEquals("test job", job.getRight().data, "Should restore job data"));
+            }
+            assertTrue(queue.workJob().isEmpty(), "Should not have another job to work");
+        }
+    }
+
+    @Test
+    public void testCompaction() throws IOException {
+        final UUID lastJob = UUID.randomUUID();
+        try (MemoryQueue queue = new MemoryQueue(ConfigFactory.load(), openJournal(QueueJournal.FsyncPolicy.BATCHED), new MetricRegistry())) {
+            // Churn through enough jobs to roll over a bunch of segments
+            for (int i = 0; i < 500; i++) {
+                final UUID jobID = UUID.randomUUID();
+                queue.submitJob(jobID, new TestJob("test job"));
+                queue.workJob();
+                queue.completeJob(jobID, JobStatus.COMPLETED);
+                queue.removeJob(jobID);
+            }
+            queue.submitJob(lastJob, new TestJob("last job"));
+        }
+
+        assertTrue(countSegments() <= 3, "Journal should have been compacted");
+        try (MemoryQueue queue = new MemoryQueue(ConfigFactory.load(), openJournal(QueueJournal.FsyncPolicy.ASYNC), new MetricRegistry())) {
+            assertAll(() -> assertEquals(1, queue.queueSize(), "Should only have a single job"),
+                    () -> assertEquals(lastJob, queue.workJob().orElseThrow().getLeft(), "Should have last job"));
+        }
+    }
+
+    @Test
+    public void testTornWrite() throws IOException {
+        final UUID jobID = UUID.randomUUID();
+        try (MemoryQueue queue = new MemoryQueue(ConfigFactory.load(), openJournal(QueueJournal.FsyncPolicy.PER_OPERATION), new MetricRegistry())) {
+            queue.submitJob(jobID, new TestJob("test job"));
+            queue.submitJob(UUID.randomUUID(), new TestJob("torn job"));
+        }
+
+        // Corrupt the last record of the newest segment
+        final Path segment;
+        try (Stream<Path> files = Files.list(journalPath)) {
+            segment = files.max(Comparator.naturalOrder()).orElseThrow();
+        }
+        try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+            int offset = 0;
+            int previous = 0;
+            file.seek(offset);
+            int length;
+            while ((length = file.readInt()) != 0) {
+                previous = offset;
+                offset += Integer.BYTES * 2 + length;
+                file.seek(offset);
+            }
+            file.seek(previous + Integer.BYTES + 1);
+            file.writeLong(0);
+        }
+
+        try (MemoryQueue queue = new MemoryQueue(ConfigFactory.load(), openJournal(QueueJournal.FsyncPolicy.PER_OPERATION), new MetricRegistry())) {
+            assertAll(() -> assertEquals(1, queue.queueSize(), "Should drop corrupt record"),
+                    () -> assertEquals(jobID, queue.workJob().orElseThrow().getLeft(), "Should keep intact record"));
+        }
+    }
+
+    @Test
+    public void testShardReplay() {
+        final UUID jobID = UUID.randomUUID();
+        final List<UUID> shards;
+        try (MemoryQueue queue = new MemoryQueue(ConfigFactory.load(), openJournal(QueueJournal.FsyncPolicy.PER_OPERATION), new MetricRegistry())) {
+            queue.submitShardedJob(jobID, List.of(new TestJob("first"), new TestJob("second")));
+            shards = queue.getShards(jobID);
+            final ClaimedJob<TestJob> shard = queue.<TestJob>workJob().orElseThrow();
+            queue.completeJob(shard.getLeft(), shard.getAttempt(), JobStatus.COMPLETED, List.of(output(shard.getLeft())));
+        }
+
+        try (MemoryQueue queue = new MemoryQueue(ConfigFactory.load(), openJournal(QueueJournal.FsyncPolicy.PER_OPERATION), new MetricRegistry())) {
+            assertAll(() -> assertEquals(shards, queue.getShards(jobID), "Should restore shards"),
+                    () -> assertEquals(1, queue.queueSize(), "Should count shards as part of their parent"),
+                    () -> assertEquals(JobStatus.RUNNING, queue.getJobStatus(jobID).orElseThrow(), "Should derive parent status from shards"),
+                    () -> assertEquals(1, queue.getJobOutput(jobID).size(), "Should restore output of completed shard"));
+
+            final ClaimedJob<TestJob> shard = queue.<TestJob>workJob().orElseThrow();
+            queue.completeJob(shard.getLeft(), shard.getAttempt(), JobStatus.COMPLETED, List.of(output(shard.getLeft())));
+            assertEquals(JobStatus.COMPLETED, queue.getJobStatus(jobID).orElseThrow(), "Should complete once every shard has completed");
+        }
+
+        // The journal was compacted when the queue was last opened, so the output has to survive compaction as well
+        try (MemoryQueue queue = new MemoryQueue(ConfigFactory.load(), openJournal(QueueJournal.FsyncPolicy.PER_OPERATION), new MetricRegistry())) {
+            assertEquals(shards.stream().map(JournalTest::output).collect(Collectors.toList()), queue.getJobOutput(jobID), "Should restore output of every shard");
+        }
+    }
+
+    @Test
+    public void testPartialShardSubmission() {
+        final UUID jobID = UUID.randomUUID();
+        final List<UUID> shards = List.of(UUID.randomUUID(), UUID.randomUUID());
+        // The process went away part way through submitting the shards
+        try (QueueJournal journal = openJournal(QueueJournal.FsyncPolicy.PER_OPERATION)) {
+            journal.shard(jobID, shards);
+            journal.submit(shards.get(0), new TestJob("first"));
+        }
+
+        try (MemoryQueue queue = new MemoryQueue(ConfigFactory.load(), openJournal(QueueJournal.FsyncPolicy.PER_OPERATION), new MetricRegistry())) {
+            assertAll(() -> assertTrue(queue.getJobStatus(jobID).isEmpty(), "Should drop incomplete sharded job"),
+                    () -> assertTrue(queue.getJobStatus(shards.get(0)).isEmpty(), "Should not leave shard behind as a job of its own"),
+                    () -> assertEquals(0, queue.queueSize(), "Should not have any jobs"));
+        }
+    }
+
+    @Test
+    public void testRetentionReplay() {
+        final UUID jobID = UUID.randomUUID();
+        final Instant finished;
+        try (MemoryQueue queue = new MemoryQueue(ConfigFactory.load(), openJournal(QueueJournal.FsyncPolicy.PER_OPERATION), new MetricRegistry())) {
+            queue.submitShardedJob(jobID, List.of(new TestJob("first"), new TestJob("second")));
+            for (int i = 0; i < 2; i++) {
+                queue.completeJob(queue.workJob().orElseThrow().getLeft(), JobStatus.COMPLETED);
+            }
+            finished = Instant.now();
+        }
+
+        // Restart twice, so the completion time has to survive compaction as well as replay
+        for (int restart = 0; restart < 2; restart++) {
+            try (MemoryQueue queue = new MemoryQueue(ConfigFactory.load(), openJournal(QueueJournal.FsyncPolicy.PER_OPERATION), new MetricRegistry())) {
+                assertTrue(queue.removeFinishedJobs(finished.minusSeconds(60)).isEmpty(), "Should keep job which finished after the cutoff");
+            }
+        }
+        try (MemoryQueue queue = new MemoryQueue(ConfigFactory.load(), openJournal(QueueJournal.FsyncPolicy.PER_OPERATION), new MetricRegistry())) {
+            assertTrue(queue.removeFinishedJobs(finished.plusMillis(1)).contains(jobID), "Should keep the time the job finished, rather than when it was replayed");
+        }
+    }
+
+    @Test
+    public void testCoalesceReplay() {
+        final UUID jobID = UUID.randomUUID();
+        final UUID shardedID = UUID.randomUUID();
+        try (MemoryQueue queue = new MemoryQueue(ConfigFactory.load(), openJournal(QueueJournal.FsyncPolicy.PER_OPERATION), new MetricRegistry())) {
+            queue.submitCoalescedJob(jobID, List.of(new TestJob("test job")), "key");
+            queue.submitCoalescedJob(shardedID, List.of(new TestJob("first"), new TestJob("second")), "sharded key");
+        }
+
+        // Restart twice, so the keys have to survive compaction as well as replay
+        for (int restart = 0; restart < 2; restart++) {
+            try (MemoryQueue queue = new MemoryQueue(ConfigFactory.load(), openJournal(QueueJournal.FsyncPolicy.PER_OPERATION), new MetricRegistry())) {
+                assertAll(() -> assertEquals(jobID, queue.submitCoalescedJob(UUID.randomUUID(), List.of(new TestJob("test job")), "key"), "Should attach to job from before the restart"),
+                        () -> assertEquals(shardedID, queue.submitCoalescedJob(UUID.randomUUID(), List.of(new TestJob("first"), new TestJob("second")), "sharded key"), "Should attach to sharded job from before the restart"),
+                        () -> assertEquals(2, queue.queueSize(), "Should not submit new jobs"));
+            }
+        }
+    }
+
+    private static JobOutput output(UUID shardID) {
+        return new JobOutput("Patient", shardID + ".Patient.0", ExportCompression.NONE, 1);
+    }
+
+    @Test
+    public void testAttemptReplay() {
+        final UUID jobID = UUID.randomUUID();
+        try (MemoryQueue queue = new MemoryQueue(ConfigFactory.load(), openJournal(QueueJournal.FsyncPolicy.PER_OPERATION), new MetricRegistry())) {
+            queue.submitJob(jobID, new TestJob("test job"));
+            assertEquals(1, queue.workJob().orElseThrow().getAttempt(), "Should be first attempt");
+        }
+
+        // Restart twice, so the attempts have to survive compaction as well as replay
+        for (int attempt = 2; attempt <= 3; attempt++) {
+            try (MemoryQueue queue = new MemoryQueue(ConfigFactory.load(), openJournal(QueueJournal.FsyncPolicy.PER_OPERATION), new MetricRegistry())) {
+                assertEquals(attempt, queue.workJob().orElseThrow().getAttempt(), "Should carry on counting attempts after a restart");
+            }
+        }
+    }
+
+    @Test
+    public void testCompactionThreshold() throws IOException {
+        final List<Map.Entry<UUID, JobModel<Object>>> jobs = IntStream.range(0, 200)
+                .mapToObj((i) -> new AbstractMap.SimpleImmutableEntry<>(UUID.randomUUID(), new JobModel<Object>(JobStatus.QUEUED, new TestJob("test job"))))
+                .collect(Collectors.toList());
+        try (QueueJournal journal = openJournal(QueueJournal.FsyncPolicy.ASYNC)) {
+            // A snapshot which fills more segments than the threshold on its own
+            journal.compact(jobs);
+            final long compacted = countSegments();
+            assertAll(() -> assertTrue(compacted > 2, "Snapshot should span several segments"),
+                    () -> assertFalse(journal.needsCompaction(), "Should not need compacting straight after a compaction"));
+
+            while (countSegments() <= compacted + 2) {
+                journal.complete(jobs.get(0).getKey(), JobStatus.COMPLETED, 1, Instant.now());
+            }
+            assertTrue(journal.needsCompaction(), "Should need compacting once the journal has grown");
+        }
+    }
+
+    @Test
+    public void testFailedClaimRecord() {
+        final UUID jobID = UUID.randomUUID();
+        final QueueJournal journal = new QueueJournal(journalPath, SEGMENT_SIZE, QueueJournal.FsyncPolicy.PER_OPERATION, Duration.ofMillis(10), 2) {
+            private boolean failed;
+
+            @Override
+            synchronized void work(UUID jobID, int attempts) {
+                if (!failed) {
+                    failed = true;
+                    throw new JobQueueException("Disk full", null);
+                }
+                super.work(jobID, attempts);
+            }
+        };
+
+        try (MemoryQueue queue = new MemoryQueue(ConfigFactory.load(), journal, new MetricRegistry())) {
+            queue.submitJob(jobID, new TestJob("test job"));
+            assertThrows(JobQueueException.class, queue::workJob, "Should fail claim which can't be journaled");
+            assertEquals(JobStatus.QUEUED, queue.getJobStatus(jobID).orElseThrow(), "Should leave job queued");
+            assertEquals(jobID, queue.workJob().orElseThrow().getLeft(), "Should still be able to claim job");
+        }
+    }
+
+    private QueueJournal openJournal(QueueJournal.FsyncPolicy policy) {
+        return new QueueJournal(journalPath, SEGMENT_SIZE, policy, Duration.ofMillis(10), 2);
+    }
+
+    private long countSegments() throws IOException {
+        try (Stream<Path> files = Files.list(journalPath)) {
+            return files.count();
+        }
+    }
+
+    private static class TestJob implements Serializable {
+        public static final long serialVersionUID = 42L;
+
+        private final String data;
+
+        TestJob(String data) {
+            this.data = data;
+        }
+    }
+}
@@ -1,12 +1,27 @@
 package gov.cms.dpc.queue;
 
+import com.codahale.metrics.MetricRegistry;
+import com.typesafe.config.ConfigFactory;
+import gov.cms.dpc.common.models.ExportCompression;
+import gov.cms.dpc.common.models.JobModel;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -38,7 +53,7 @@ public class QueueTest {
 
         // Complete the job and check its status
 
-        Optional<Pair<UUID, TestJob>> workJob = queue.workJob();
+        Optional<ClaimedJob<TestJob>> workJob = queue.workJob();
         assertTrue(workJob.isPresent(), "Should have job to work");
         queue.completeJob(workJob.get().getLeft(), JobStatus.COMPLETED);
         // Remove from the job set so we can track what's been done
@@ -78,6 +93,330 @@ public class QueueTest {
         assertThrows(IllegalArgumentException.class, () -> queue.completeJob(jobID, JobStatus.FAILED), "Should error when completing a job which does not exist");
     }
 
+    @Test
+    public void testFIFOOrdering() {
+        final List<UUID> jobs = IntStream.range(0, 10)
+                .mapToObj((i) -> UUID.randomUUID())
+                .collect(Collectors.toList());
+        jobs.forEach((job) -> queue.submitJob(job, new TestJob("test job")));
+
+        // Remove a job before it's worked, it should be skipped
+        queue.removeJob(jobs.get(3));
+
+        final List<UUID> worked = new ArrayList<>();
+        Optional<ClaimedJob<TestJob>> workJob;
+        while ((workJob = queue.workJob()).isPresent()) {
+            worked.add(workJob.get().getLeft());
+        }
+
+        final List<UUID> expected = new ArrayList<>(jobs);
+        expected.remove(3);
+        assertEquals(expected, worked, "Jobs should be worked in submission order");
+
+        // Requeue a job and make sure it comes back around
+        queue.completeJob(expected.get(0), JobStatus.QUEUED);
+        assertAll(() -> assertEquals(expected.get(0), queue.workJob().orElseThrow().getLeft(), "Should get the requeued job"),
+                () -> assertTrue(queue.workJob().isEmpty(), "Should not have another job to work"));
+    }
+
+    @Test
+    public void testBlockingWork() throws InterruptedException {
+        // Nothing submitted, so we should wait out the timeout
+        assertTrue(queue.workJob(Duration.ofMillis(50)).isEmpty(), "Should not have job to work");
+
+        // Submit a job from another thread, while we're waiting for it
+        final UUID jobID = UUID.randomUUID();
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            executor.submit(() -> {
+                Thread.sleep(100);
+                queue.submitJob(jobID, new TestJob("test job"));
+                return null;
+            });
+
+            final long start = System.nanoTime();
+            final Optional<ClaimedJob<TestJob>> workJob = queue.workJob(Duration.ofSeconds(30));
+            final Duration waited = Duration.ofNanos(System.nanoTime() - start);
+            assertAll(() -> assertTrue(workJob.isPresent(), "Should have job to work"),
+                    () -> assertEquals(jobID, workJob.get().getLeft(), "Should have submitted job"),
+                    () -> assertTrue(waited.compareTo(Duration.ofSeconds(10)) < 0, "Should be woken up by submission"));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testLeaseExpiry() throws InterruptedException {
+        final MemoryQueue leasedQueue = new MemoryQueue(ConfigFactory.parseString("queue.lease.duration = 50ms\nqueue.lease.maxRetries = 1")
+                .withFallback(ConfigFactory.load()));
+        final UUID jobID = UUID.randomUUID();
+        leasedQueue.submitJob(jobID, new TestJob("test job"));
+
+        // Heartbeats keep the job, even past the original lease
+        assertEquals(jobID, leasedQueue.workJob().orElseThrow().getLeft(), "Should have job to work");
+        for (int i = 0; i < 3; i++) {
+            Thread.sleep(25);
+            assertTrue(leasedQueue.renewLease(jobID), "Should renew lease");
+            assertEquals(0, leasedQueue.requeueExpiredJobs(), "Should not requeue renewed job");
+        }
+
+        // Stop heartbeating and the job should go back in the queue
+        Thread.sleep(100);
+        assertAll(() -> assertEquals(1, leasedQueue.requeueExpiredJobs(), "Should requeue expired job"),
+                () -> assertEquals(JobStatus.QUEUED, leasedQueue.getJobStatus(jobID).orElseThrow(), "Job should be queued"),
+                () -> assertFalse(leasedQueue.renewLease(jobID), "Should not renew lease on requeued job"));
+
+        // Second attempt expires as well, which exhausts the retries
+        assertEquals(jobID, leasedQueue.workJob().orElseThrow().getLeft(), "Should work the job again");
+        Thread.sleep(100);
+        assertAll(() -> assertEquals(1, leasedQueue.requeueExpiredJobs(), "Should expire job"),
+                () -> assertEquals(JobStatus.FAILED, leasedQueue.getJobStatus(jobID).orElseThrow(), "Job should fail after too many attempts"),
+                () -> assertTrue(leasedQueue.workJob().isEmpty(), "Should not have another job to work"));
+    }
+
+    @Test
+    public void testStaleCompletion() throws InterruptedException {
+        final MemoryQueue leasedQueue = new MemoryQueue(ConfigFactory.parseString("queue.lease.duration = 50ms")
+                .withFallback(ConfigFactory.load()));
+        final UUID jobID = UUID.randomUUID();
+        leasedQueue.submitJob(jobID, new TestJob("test job"));
+
+        // First worker loses its lease, and the job is claimed again
+        final ClaimedJob<TestJob> first = leasedQueue.<TestJob>workJob().orElseThrow();
+        Thread.sleep(100);
+        assertEquals(1, leasedQueue.requeueExpiredJobs(), "Should requeue expired job");
+        final ClaimedJob<TestJob> second = leasedQueue.<TestJob>workJob().orElseThrow();
+        assertEquals(jobID, second.getLeft(), "Should claim job again");
+
+        assertAll(() -> assertFalse(leasedQueue.renewLease(jobID, first.getAttempt()), "Should not renew lease for stale claim"),
+                () -> assertFalse(leasedQueue.completeJob(jobID, first.getAttempt(), JobStatus.FAILED), "Should drop stale completion"),
+                () -> assertEquals(JobStatus.RUNNING, leasedQueue.getJobStatus(jobID).orElseThrow(), "Should leave job running for its new owner"));
+
+        assertAll(() -> assertTrue(leasedQueue.renewLease(jobID, second.getAttempt()), "Should renew lease for current claim"),
+                () -> assertTrue(leasedQueue.completeJob(jobID, second.getAttempt(), JobStatus.COMPLETED), "Should complete current claim"),
+                () -> assertEquals(JobStatus.COMPLETED, leasedQueue.getJobStatus(jobID).orElseThrow(), "Should be completed by its new owner"));
+    }
+
+    @Test
+    public void testFairShare() {
+        queue = new MemoryQueue(ConfigFactory.parseString("queue.scheduling.maxRunningPerProvider = 2").withFallback(ConfigFactory.load()));
+        // One large provider submits first, the small provider should still get every other job
+        final List<UUID> largeJobs = IntStream.range(0, 5)
+                .mapToObj((i) -> UUID.randomUUID())
+                .collect(Collectors.toList());
+        largeJobs.forEach((job) -> queue.submitJob(job, new JobModel("large", Set.of("1"))));
+        final List<UUID> smallJobs = List.of(UUID.randomUUID(), UUID.randomUUID());
+        smallJobs.forEach((job) -> queue.submitJob(job, new JobModel("small", Set.of("1"))));
+
+        final List<UUID> worked = new ArrayList<>();
+        Optional<ClaimedJob<JobModel>> workJob;
+        while ((workJob = queue.workJob()).isPresent()) {
+            worked.add(workJob.get().getLeft());
+        }
+
+        // Both providers are at their limit of 2 running jobs
+        assertEquals(List.of(largeJobs.get(0), smallJobs.get(0), largeJobs.get(1), smallJobs.get(1)), worked, "Providers should take turns");
+
+        // Finishing a job frees up a slot for the large provider
+        queue.completeJob(largeJobs.get(0), JobStatus.COMPLETED);
+        assertAll(() -> assertEquals(largeJobs.get(2), queue.workJob().orElseThrow().getLeft(), "Should have next job for provider"),
+                () -> assertTrue(queue.workJob().isEmpty(), "Should be back at the limit"));
+    }
+
+    @Test
+    public void testShardedFairShare() {
+        queue = new MemoryQueue(ConfigFactory.parseString("queue.scheduling.maxRunningPerProvider = 2").withFallback(ConfigFactory.load()));
+        // A sharded job only takes up one of the provider's running slots, however many shards are running
+        final UUID shardedJob = UUID.randomUUID();
+        queue.submitShardedJob(shardedJob, IntStream.range(0, 4).mapToObj((i) -> new JobModel("large", Set.of(String.valueOf(i)))).collect(Collectors.toList()));
+        final List<UUID> otherJobs = List.of(UUID.randomUUID(), UUID.randomUUID());
+        otherJobs.forEach((job) -> queue.submitJob(job, new JobModel("large", Set.of("1"))));
+
+        final List<UUID> worked = new ArrayList<>();
+        Optional<ClaimedJob<JobModel>> workJob;
+        while ((workJob = queue.workJob()).isPresent()) {
+            worked.add(workJob.get().getLeft());
+        }
+        final List<UUID> expected = new ArrayList<>(queue.getShards(shardedJob));
+        expected.add(otherJobs.get(0));
+        assertEquals(new HashSet<>(expected), new HashSet<>(worked), "Should run every shard, along with one other job");
+    }
+
+    @Test
+    public void testFIFOScheduling() {
+        final MemoryQueue fifoQueue = new MemoryQueue(ConfigFactory.parseString("queue.scheduling.mode = FIFO")
+                .withFallback(ConfigFactory.load()));
+        final List<UUID> jobs = IntStream.range(0, 6)
+                .mapToObj((i) -> UUID.randomUUID())
+                .collect(Collectors.toList());
+        jobs.forEach((job) -> fifoQueue.submitJob(job, new JobModel(jobs.indexOf(job) < 4 ? "large" : "small", Set.of("1"))));
+
+        final List<UUID> worked = new ArrayList<>();
+        Optional<ClaimedJob<JobModel>> workJob;
+        while ((workJob = fifoQueue.workJob()).isPresent()) {
+            worked.add(workJob.get().getLeft());
+        }
+        assertEquals(jobs, worked, "Should ignore providers and limits");
+    }
+
+    @Test
+    public void testRemoveFinishedJobs() throws InterruptedException {
+        final List<UUID> jobs = IntStream.range(0, 3)
+                .mapToObj((i) -> UUID.randomUUID())
+                .collect(Collectors.toList());
+        jobs.forEach((job) -> queue.submitJob(job, new TestJob("test job")));
+        queue.completeJob(queue.workJob().orElseThrow().getLeft(), JobStatus.COMPLETED);
+        queue.completeJob(queue.workJob().orElseThrow().getLeft(), JobStatus.FAILED);
+
+        assertTrue(queue.removeFinishedJobs(Instant.now().minusSeconds(60)).isEmpty(), "Should not remove recently finished jobs");
+        Thread.sleep(10);
+        final List<UUID> removed = queue.removeFinishedJobs(Instant.now());
+        assertAll(() -> assertEquals(Set.of(jobs.get(0), jobs.get(1)), new HashSet<>(removed), "Should remove finished jobs"),
+                () -> assertEquals(1, queue.queueSize(), "Should only have the queued job"),
+                () -> assertTrue(queue.getJobStatus(jobs.get(0)).isEmpty(), "Should not have removed job"),
+                () -> assertEquals(jobs.get(2), queue.workJob().orElseThrow().getLeft(), "Should still work the queued job"));
+    }
+
+    @Test
+    public void testProgress() {
+        final UUID jobID = UUID.randomUUID();
+        queue.submitJob(jobID, new TestJob("test job"));
+        queue.updateProgress(jobID, new JobProgress(10, 1, 0, 100));
+        assertTrue(queue.getJobProgress(jobID).isEmpty(), "Should ignore progress for queued job");
+
+        queue.workJob().orElseThrow();
+        queue.updateProgress(jobID, new JobProgress(10, 4, 1, 500));
+        final JobProgress progress = queue.getJobProgress(jobID).orElseThrow();
+        assertAll(() -> assertEquals(10, progress.getTotal(), "Should have total"),
+                () -> assertEquals(4, progress.getFetched(), "Should have fetched"),
+                () -> assertEquals(1, progress.getFailed(), "Should have failed"),
+                () -> assertEquals(500, progress.getBytesWritten(), "Should have bytes written"),
+                () -> assertEquals(50, progress.getPercentComplete(), "Should be half done"),
+                () -> assertTrue(progress.getStartTime().isPresent(), "Should have start time"),
+                () -> assertFalse(progress.getEstimatedCompletion().orElseThrow().isBefore(progress.getStartTime().orElseThrow()), "Should estimate completion after start"));
+
+        // Requeuing the job starts over
+        queue.completeJob(jobID, JobStatus.QUEUED);
+        queue.workJob().orElseThrow();
+        assertTrue(queue.getJobProgress(jobID).isEmpty(), "Should reset progress when reclaimed");
+    }
+
+    @Test
+    public void testMetrics() {
+        final MetricRegistry registry = new MetricRegistry();
+        final MemoryQueue meteredQueue = new MemoryQueue(ConfigFactory.load(), null, registry);
+        final UUID first = UUID.randomUUID();
+        meteredQueue.submitJob(first, new JobModel("provider", Set.of("1")));
+        meteredQueue.submitJob(UUID.randomUUID(), new JobModel("provider", Set.of("1")));
+        meteredQueue.submitJob(UUID.randomUUID(), new TestJob("test job"));
+        meteredQueue.workJob().orElseThrow();
+        meteredQueue.completeJob(first, JobStatus.COMPLETED);
+
+        final String prefix = "gov.cms.dpc.queue.JobQueue";
+        assertAll(() -> assertEquals(2L, registry.getGauges().get(prefix + ".jobs.QUEUED").getValue(), "Should have queued jobs"),
+                () -> assertEquals(1L, registry.getGauges().get(prefix + ".jobs.COMPLETED").getValue(), "Should have completed job"),
+                () -> assertEquals(1L, registry.getGauges().get(prefix + ".providers.provider.jobs.QUEUED").getValue(), "Should have queued jobs for provider"),
+                () -> assertEquals(1L, registry.getTimers().get(prefix + ".wait").getCount(), "Should time the wait"),
+                () -> assertEquals(1L, registry.getTimers().get(prefix + ".providers.provider.wait").getCount(), "Should time the wait for provider"),
+                () -> assertEquals(1L, registry.getTimers().get(prefix + ".run.COMPLETED").getCount(), "Should time the run"),
+                () -> assertEquals(1L, registry.getTimers().get(prefix + ".providers.provider.run.COMPLETED").getCount(), "Should time the run for provider"));
+    }
+
+    @Test
+    public void testIdleProviderMetrics() {
+        final MetricRegistry registry = new MetricRegistry();
+        final Map<String, Map<JobStatus, Long>> counts = new HashMap<>();
+        counts.put("provider", new EnumMap<>(Map.of(JobStatus.RUNNING, 1L)));
+        final QueueMetrics metrics = new QueueMetrics(registry, () -> new HashMap<>(counts), Duration.ZERO);
+        metrics.claimed("provider", Duration.ofSeconds(1));
+
+        final String prefix = "gov.cms.dpc.queue.JobQueue";
+        assertEquals(1L, registry.getGauges().get(prefix + ".providers.provider.jobs.RUNNING").getValue(), "Should have running job for provider");
+
+        // Once the provider's jobs have finished, its metrics go away
+        counts.put("provider", new EnumMap<>(Map.of(JobStatus.COMPLETED, 1L)));
+        assertEquals(0L, registry.getGauges().get(prefix + ".jobs.RUNNING").getValue(), "Should not have running jobs");
+        assertAll(() -> assertTrue(registry.getNames().stream().noneMatch(name -> name.startsWith(prefix + ".providers.provider.")), "Should remove idle provider's metrics"),
+                () -> assertNotNull(registry.getGauges().get(prefix + ".jobs.COMPLETED"), "Should keep aggregate metrics"));
+
+        // And come back when it submits another
+        metrics.claimed("provider", Duration.ofSeconds(1));
+        assertNotNull(registry.getGauges().get(prefix + ".providers.provider.jobs.RUNNING"), "Should register active provider's metrics again");
+    }
+
+    @Test
+    public void testCoalescing() {
+        final UUID first = UUID.randomUUID();
+        assertEquals(first, queue.submitCoalescedJob(first, List.of(new TestJob("test job")), "key"), "Should submit new job");
+        assertAll(() -> assertEquals(first, queue.submitCoalescedJob(UUID.randomUUID(), List.of(new TestJob("test job")), "key"), "Should attach to queued job"),
+                () -> assertEquals(1, queue.queueSize(), "Should only have a single job"));
+
+        queue.workJob().orElseThrow();
+        assertEquals(first, queue.submitCoalescedJob(UUID.randomUUID(), List.of(new TestJob("test job")), "key"), "Should attach to running job");
+        queue.completeJob(first, JobStatus.COMPLETED);
+        assertEquals(first, queue.submitCoalescedJob(UUID.randomUUID(), List.of(new TestJob("test job")), "key"), "Should attach to recently completed job");
+
+        final UUID other = UUID.randomUUID();
+        assertAll(() -> assertEquals(other, queue.submitCoalescedJob(other, List.of(new TestJob("test job")), "other key"), "Should not attach to job with a different key"),
+                () -> assertEquals(2, queue.queueSize(), "Should have a new job"));
+
+        // Failed jobs are never reused
+        queue.workJob().orElseThrow();
+        queue.completeJob(other, JobStatus.FAILED);
+        final UUID retry = UUID.randomUUID();
+        assertEquals(retry, queue.submitCoalescedJob(retry, List.of(new TestJob("test job")), "other key"), "Should not attach to failed job");
+    }
+
+    @Test
+    public void testSharding() {
+        final UUID jobID = UUID.randomUUID();
+        queue.submitShardedJob(jobID, List.of(new TestJob("first"), new TestJob("second"), new TestJob("third")));
+        final List<UUID> shards = queue.getShards(jobID);
+        assertAll(() -> assertEquals(3, shards.size(), "Should have a job for each shard"),
+                () -> assertEquals(1, queue.queueSize(), "Should count shards as part of their parent"),
+                () -> assertEquals(jobID, queue.getParentID(shards.get(0)).orElseThrow(), "Should find parent of shard"),
+                () -> assertTrue(queue.getParentID(jobID).isEmpty(), "Should not have parent for parent job"),
+                () -> assertEquals(JobStatus.QUEUED, queue.getJobStatus(jobID).orElseThrow(), "Should be queued until a shard is claimed"));
+
+        final String parentData = queue.<TestJob>getJobData(jobID).orElseThrow().data;
+        assertAll(() -> assertTrue(List.of("first", "second", "third").contains(parentData), "Should fall back to shard data for parent"),
+                () -> assertEquals(3, shards.stream().map(shardID -> queue.<TestJob>getJobData(shardID).orElseThrow().data).distinct().count(), "Should have data for each shard"),
+                () -> assertTrue(queue.getJobData(UUID.randomUUID()).isEmpty(), "Should not have data for missing job"));
+
+        final UUID first = queue.workJob().orElseThrow().getLeft();
+        final UUID second = queue.workJob().orElseThrow().getLeft();
+        queue.updateProgress(first, new JobProgress(10, 5, 1, 100));
+        queue.updateProgress(second, new JobProgress(20, 5, 0, 50));
+        final JobProgress progress = queue.getJobProgress(jobID).orElseThrow();
+        assertAll(() -> assertTrue(shards.containsAll(List.of(first, second)), "Should work shards, rather than the parent"),
+                () -> assertEquals(JobStatus.RUNNING, queue.getJobStatus(jobID).orElseThrow(), "Should be running once a shard is claimed"),
+                () -> assertEquals(30, progress.getTotal(), "Should sum shard totals"),
+                () -> assertEquals(10, progress.getFetched(), "Should sum fetched shards"),
+                () -> assertEquals(1, progress.getFailed(), "Should sum failed shards"),
+                () -> assertEquals(150, progress.getBytesWritten(), "Should sum bytes written"));
+
+        final JobOutput firstOutput = new JobOutput("Patient", first + ".Patient.0", ExportCompression.GZIP, 10);
+        final JobOutput secondOutput = new JobOutput("Patient", second + ".Patient.0", ExportCompression.NONE, 20);
+        assertTrue(queue.completeJob(first, 1, JobStatus.COMPLETED, List.of(firstOutput)), "Should complete first shard");
+        assertTrue(queue.completeJob(second, 1, JobStatus.COMPLETED, List.of(secondOutput)), "Should complete second shard");
+        final List<JobOutput> expectedOutput = shards.indexOf(first) < shards.indexOf(second) ? List.of(firstOutput, secondOutput) : List.of(secondOutput, firstOutput);
+        assertAll(() -> assertEquals(JobStatus.RUNNING, queue.getJobStatus(jobID).orElseThrow(), "Should run until every shard has finished"),
+                () -> assertEquals(List.of(firstOutput), queue.getJobOutput(first), "Should have output of shard"),
+                () -> assertEquals(expectedOutput, queue.getJobOutput(jobID), "Should list output of each shard, in shard order"),
+                () -> assertTrue(queue.getJobOutput(UUID.randomUUID()).isEmpty(), "Should not have output for missing job"));
+
+        final UUID third = queue.workJob().orElseThrow().getLeft();
+        assertTrue(queue.workJob().isEmpty(), "Should never work the parent");
+        queue.completeJob(third, JobStatus.FAILED);
+        assertEquals(JobStatus.FAILED, queue.getJobStatus(jobID).orElseThrow(), "Should fail if any shard failed");
+
+        final List<UUID> removed = queue.removeFinishedJobs(Instant.now().plusSeconds(1));
+        assertAll(() -> assertEquals(4, removed.size(), "Should remove parent and shards"),
+                () -> assertTrue(removed.containsAll(shards), "Should report removed shards"),
+                () -> assertTrue(queue.getJobStatus(third).isEmpty(), "Should not have shard"),
+                () -> assertEquals(0, queue.queueSize(), "Should not have any jobs"));
+    }
+
     private static <T> T getSetFirst(Set<T> set) {
         return set.stream().findFirst().orElseThrow(() -> new IllegalStateException("Cannot get first from empty array"));
     }
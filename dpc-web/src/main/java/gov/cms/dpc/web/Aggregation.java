@@ -1,29 +1,38 @@
 package gov.cms.dpc.web;
 
-import gov.cms.dpc.aggregation.AggregationEngine;
+import gov.cms.dpc.aggregation.ExportRetention;
+import gov.cms.dpc.aggregation.WorkerPool;
+import gov.cms.dpc.queue.LeaseReaper;
 import io.dropwizard.lifecycle.Managed;
 
 import javax.inject.Inject;
 
 public class Aggregation implements Managed {
 
-    private final Thread thread;
-    private final AggregationEngine engine;
+    private final WorkerPool workers;
+    private final LeaseReaper reaper;
+    private final ExportRetention retention;
 
     @Inject
-    public Aggregation(AggregationEngine engine) {
-        this.engine = engine;
-        thread = new Thread(this.engine);
+    public Aggregation(WorkerPool workers, LeaseReaper reaper, ExportRetention retention) {
+        this.workers = workers;
+        this.reaper = reaper;
+        this.retention = retention;
     }
 
 
     @Override
     public void start() throws Exception {
-        thread.start();
+        this.workers.start();
+        this.reaper.start();
+        this.retention.start();
     }
 
     @Override
     public void stop() throws Exception {
-        this.engine.stop();
+        this.retention.stop();
+        this.reaper.stop();
+        // Let running jobs finish, so they aren't left for the lease reaper on another node
+        this.workers.stop();
     }
 }
@@ -1,5 +1,6 @@
 package gov.cms.dpc.web;
 
+import com.codahale.metrics.MetricRegistry;
 import com.google.inject.Binder;
 import com.google.inject.Provides;
 import com.hubspot.dropwizard.guicier.DropwizardAwareModule;
@@ -10,6 +11,7 @@ import gov.cms.dpc.common.interfaces.AttributionEngine;
 import gov.cms.dpc.common.annotations.APIV1;
 import gov.cms.dpc.web.annotations.AttributionService;
 import gov.cms.dpc.common.annotations.ServiceBaseURL;
+import gov.cms.dpc.queue.JobQueueModule;
 import gov.cms.dpc.web.client.AttributionServiceClient;
 import gov.cms.dpc.web.resources.TestResource;
 import gov.cms.dpc.web.resources.v1.BaseResource;
@@ -17,11 +19,13 @@ import gov.cms.dpc.web.resources.v1.DataResource;
 import gov.cms.dpc.web.resources.v1.GroupResource;
 import gov.cms.dpc.web.resources.v1.JobResource;
 import io.dropwizard.client.JerseyClientBuilder;
+import io.dropwizard.db.ManagedDataSource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.inject.Singleton;
 import javax.servlet.http.HttpServletRequest;
+import javax.sql.DataSource;
 import javax.ws.rs.client.WebTarget;
 import javax.ws.rs.core.Context;
 
@@ -36,6 +40,13 @@ public class DPCAppModule extends DropwizardAwareModule<DPWebConfiguration> {
     @Override
     public void configure(Binder binder) {
 
+        // The queue implementation depends on the configuration, so we have to install it here, rather than in the application
+        binder.install(new JobQueueModule(getConfiguration().isInMemoryQueue()));
+        // Only the database queue needs a connection pool, there's no point opening one otherwise
+        if (!getConfiguration().isInMemoryQueue()) {
+            binder.bind(DataSource.class).toInstance(buildQueueDataSource());
+        }
+
         // Clients
         binder.bind(AttributionEngine.class)
                 .to(AttributionServiceClient.class);
@@ -62,6 +73,28 @@ public class DPCAppModule extends DropwizardAwareModule<DPWebConfiguration> {
                 .target(getConfiguration().getAttributionURL());
     }
 
+    /**
+     * Build the connection pool for the queue database.
+     * This is only bound when the {@link gov.cms.dpc.queue.DatabaseQueue} is enabled.
+     *
+     * @return - {@link DataSource} managed by the Dropwizard lifecycle
+     */
+    private DataSource buildQueueDataSource() {
+        final ManagedDataSource dataSource = getConfiguration().getDatabase().build(getEnvironment().metrics(), "dpc-queue");
+        getEnvironment().lifecycle().manage(dataSource);
+        return dataSource;
+    }
+
+    /**
+     * Provides the application's metrics, which are served by the admin connector
+     *
+     * @return - {@link MetricRegistry} from the Dropwizard environment
+     */
+    @Provides
+    public MetricRegistry provideMetricRegistry() {
+        return getEnvironment().metrics();
+    }
+
     @Provides
     public Config provideConfig() {
         return getConfiguration().getConfig();
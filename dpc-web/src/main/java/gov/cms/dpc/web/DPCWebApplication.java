@@ -5,8 +5,9 @@ import com.hubspot.dropwizard.guicier.GuiceBundle;
 import com.squarespace.jersey2.guice.JerseyGuiceUtils;
 import gov.cms.dpc.fhir.FHIRModule;
 import gov.cms.dpc.aggregation.bbclient.BlueButtonClientModule;
-import gov.cms.dpc.queue.JobQueueModule;
 import io.dropwizard.Application;
+import io.dropwizard.db.PooledDataSourceFactory;
+import io.dropwizard.migrations.MigrationsBundle;
 import io.dropwizard.setup.Bootstrap;
 import io.dropwizard.setup.Environment;
 
@@ -27,11 +28,23 @@ public class DPCWebApplication extends Application<DPWebConfiguration> {
         // https://github.com/dropwizard/dropwizard/issues/1772
         JerseyGuiceUtils.reset();
         GuiceBundle<DPWebConfiguration> guiceBundle = GuiceBundle.defaultBuilder(DPWebConfiguration.class)
-                .modules(new DPCAppModule(), new JobQueueModule(), new FHIRModule(), new BlueButtonClientModule())
+                .modules(new DPCAppModule(), new FHIRModule(), new BlueButtonClientModule())
                 .build();
 
         bootstrap.addBundle(guiceBundle);
         bootstrap.addBundle(new TypesafeConfigurationBundle());
+        // Migrations for the queue database, only needed when the queue isn't in memory
+        bootstrap.addBundle(new MigrationsBundle<DPWebConfiguration>() {
+            @Override
+            public PooledDataSourceFactory getDataSourceFactory(DPWebConfiguration configuration) {
+                return configuration.getDatabase();
+            }
+
+            @Override
+            public String getMigrationsFileName() {
+                return "queue.migrations.xml";
+            }
+        });
     }
 
     @Override
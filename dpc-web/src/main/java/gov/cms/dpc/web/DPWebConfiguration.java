@@ -3,6 +3,7 @@ package gov.cms.dpc.web;
 import ca.mestevens.java.configuration.TypesafeConfiguration;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import io.dropwizard.client.JerseyClientConfiguration;
+import io.dropwizard.db.DataSourceFactory;
 import org.hibernate.validator.constraints.NotEmpty;
 
 import javax.validation.Valid;
@@ -19,6 +20,14 @@ public class DPWebConfiguration extends TypesafeConfiguration {
     @JsonProperty
     private JerseyClientConfiguration httpClient = new JerseyClientConfiguration();
 
+    @Valid
+    @NotNull
+    @JsonProperty("database")
+    private DataSourceFactory database = new DataSourceFactory();
+
+    // Track jobs in memory, rather than in the queue database
+    private boolean inMemoryQueue = true;
+
     @NotEmpty
     @NotNull
     private String attributionURL;
@@ -51,6 +60,18 @@ public class DPWebConfiguration extends TypesafeConfiguration {
         this.attributionURL = attributionURL;
     }
 
+    public DataSourceFactory getDatabase() {
+        return database;
+    }
+
+    public boolean isInMemoryQueue() {
+        return inMemoryQueue;
+    }
+
+    public void setInMemoryQueue(boolean inMemoryQueue) {
+        this.inMemoryQueue = inMemoryQueue;
+    }
+
     public String getExportPath() {
         return exportPath;
     }
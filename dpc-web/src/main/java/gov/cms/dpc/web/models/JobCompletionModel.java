@@ -6,23 +6,69 @@ import java.util.List;
 
 public class JobCompletionModel {
 
+    /**
+     * An export file, along with the resource type it contains, so clients can load each type separately.
+     * Error files are listed the same way, with a type of OperationOutcome.
+     */
+    public static class OutputEntry {
 
-    // FIXME(nickrobison): This needs to the time that the export request actually started, rather than just when it was retrieved.
+        private String type;
+        private String url;
+        // Number of resources in the file
+        private long count;
+
+        public OutputEntry() {
+
+        }
+
+        public OutputEntry(String type, String url, long count) {
+            this.type = type;
+            this.url = url;
+            this.count = count;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public void setType(String type) {
+            this.type = type;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public void setUrl(String url) {
+            this.url = url;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public void setCount(long count) {
+            this.count = count;
+        }
+    }
+
+    // When the export was requested, which clients use as the _since of their next export
     private OffsetDateTime transactionTime;
     private String request;
     private final boolean requiresAccessToken = false;
-    private List<String> output;
-    // FIXME(nickrobison): Should return errors as well. OperationOutcomes, serialized as NDJSON
-    private final List<String> error = new ArrayList<>();
+    private List<OutputEntry> output;
+    // OperationOutcomes for the resources which couldn't be exported, serialized as NDJSON
+    private List<OutputEntry> error = new ArrayList<>();
 
     public JobCompletionModel() {
 
     }
 
-    public JobCompletionModel(OffsetDateTime transactionTime, String request, List<String> output) {
+    public JobCompletionModel(OffsetDateTime transactionTime, String request, List<OutputEntry> output, List<OutputEntry> error) {
         this.transactionTime = transactionTime;
         this.request = request;
         this.output = output;
+        this.error = error;
     }
 
     public OffsetDateTime getTransactionTime() {
@@ -45,15 +91,19 @@ public class JobCompletionModel {
         return requiresAccessToken;
     }
 
-    public List<String> getOutput() {
+    public List<OutputEntry> getOutput() {
         return output;
     }
 
-    public void setOutput(List<String> output) {
+    public void setOutput(List<OutputEntry> output) {
         this.output = output;
     }
 
-    public List<String> getError() {
+    public List<OutputEntry> getError() {
         return error;
     }
+
+    public void setError(List<OutputEntry> error) {
+        this.error = error;
+    }
 }
@@ -14,5 +14,5 @@ public abstract class AbstractDataResource {
 
     @Path("/{fileID}/")
     @GET
-    public abstract Response export(String fileID);
+    public abstract Response export(String fileID, String acceptEncoding);
 }
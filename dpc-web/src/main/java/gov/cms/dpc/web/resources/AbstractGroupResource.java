@@ -6,6 +6,7 @@ import gov.cms.dpc.fhir.annotations.FHIR;
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.Response;
 
 @FHIR
@@ -18,5 +19,5 @@ public abstract class AbstractGroupResource {
 
     @Path("/{providerID}/$export")
     @GET
-    public abstract Response export(@PathParam("providerID") String groupID);
+    public abstract Response export(@PathParam("providerID") String groupID, @QueryParam("_type") String resourceTypes, @QueryParam("_since") String since);
 }
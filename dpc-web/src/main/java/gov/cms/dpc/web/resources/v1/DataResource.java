@@ -1,6 +1,9 @@
 package gov.cms.dpc.web.resources.v1;
 
 import gov.cms.dpc.common.annotations.ExportPath;
+import gov.cms.dpc.common.models.ExportCompression;
+import gov.cms.dpc.queue.JobOutput;
+import gov.cms.dpc.queue.JobQueue;
 import gov.cms.dpc.web.resources.AbstractDataResource;
 import org.eclipse.jetty.http.HttpStatus;
 import org.slf4j.Logger;
@@ -8,43 +11,140 @@ import org.slf4j.LoggerFactory;
 
 import javax.inject.Inject;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.StreamingOutput;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.zip.GZIPInputStream;
 
 public class DataResource extends AbstractDataResource {
 
     private static final Logger logger = LoggerFactory.getLogger(DataResource.class);
+    private static final String GZIP = "gzip";
 
+    private final JobQueue queue;
     private final String fileLocation;
 
     @Inject
-    public DataResource(@ExportPath String exportPath) {
+    public DataResource(JobQueue queue, @ExportPath String exportPath) {
+        this.queue = queue;
         this.fileLocation = exportPath;
     }
 
 
+    /**
+     * Download an export file.
+     * Only files which the aggregation engine reported to the queue are served, and the queue records how each of them was compressed.
+     * Files the aggregation engine compressed are sent as they are, with a gzip Content-Encoding, to clients which accept it, and decompressed on the fly for the rest.
+     *
+     * @param fileID         - {@link String} ID of the file, as listed in the job's output
+     * @param acceptEncoding - {@link String} Accept-Encoding header of the request, if any
+     * @return - {@link Response} streaming the file
+     */
     @Override
     @Path("/{fileID}/")
     @GET
-    public Response export(@PathParam("fileID") String fileID) {
+    public Response export(@PathParam("fileID") String fileID, @HeaderParam(HttpHeaders.ACCEPT_ENCODING) String acceptEncoding) {
+        // Exports are removed once they expire
+        final Optional<JobOutput> file = findFile(fileID);
+        if (file.isEmpty()) {
+            return Response.status(HttpStatus.NOT_FOUND_404).entity("Could not find file").build();
+        }
+        final java.nio.file.Path path = Paths.get(fileLocation, fileID + file.get().getCompression().getExtension());
+        if (!Files.isRegularFile(path)) {
+            logger.warn("File {} is listed in the queue, but is missing from the export path", path);
+            return Response.status(HttpStatus.NOT_FOUND_404).entity("Could not find file").build();
+        }
+        final boolean compressed = file.get().getCompression() == ExportCompression.GZIP;
+        final boolean sendCompressed = compressed && acceptsGzip(acceptEncoding);
+
         final StreamingOutput fileStream = new StreamingOutput() {
             @Override
             public void write(OutputStream outputStream) throws IOException, WebApplicationException {
-                final java.nio.file.Path path = Paths.get(String.format("%s/%s.ndjson", fileLocation, fileID));
                 logger.debug("Streaming file {}", path.toString());
-                final byte[] data = Files.readAllBytes(path);
-                outputStream.write(data);
+                // Copied in chunks, rather than read into memory, since parts can be hundreds of MB
+                if (compressed && !sendCompressed) {
+                    try (InputStream decompressed = new GZIPInputStream(Files.newInputStream(path))) {
+                        decompressed.transferTo(outputStream);
+                    }
+                } else {
+                    Files.copy(path, outputStream);
+                }
                 outputStream.flush();
             }
         };
 
-        return Response.ok(fileStream).build();
+        final Response.ResponseBuilder builder = Response.ok(fileStream);
+        if (compressed) {
+            // The same URL is sent compressed or not, depending on the request, so caches have to take the header into account
+            builder.header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        }
+        if (sendCompressed) {
+            builder.header(HttpHeaders.CONTENT_ENCODING, GZIP);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Look up a file in the output of the job (or shard) which wrote it, which is the ID its name starts with
+     *
+     * @param fileID - {@link String} ID of the file
+     * @return - {@link Optional} {@link JobOutput}, empty if the file isn't in the output of any job
+     */
+    private Optional<JobOutput> findFile(String fileID) {
+        final UUID jobID;
+        try {
+            jobID = UUID.fromString(fileID.split("\\.", 2)[0]);
+        } catch (IllegalArgumentException e) {
+            return Optional.empty();
+        }
+        return this.queue.getJobOutput(jobID)
+                .stream()
+                .filter(output -> output.getFileName().equals(fileID))
+                .findFirst();
+    }
+
+    /**
+     * Whether an Accept-Encoding header allows a gzip response, either by name or through a wildcard, as long as it doesn't have a quality of 0
+     *
+     * @param acceptEncoding - {@link String} header value, which may be null
+     * @return - {@code true} if the client accepts gzip
+     */
+    static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (final String coding : acceptEncoding.split(",")) {
+            final String[] params = coding.split(";");
+            final String name = params[0].trim();
+            if (!name.equalsIgnoreCase(GZIP) && !name.equals("*")) {
+                continue;
+            }
+            return Arrays.stream(params)
+                    .skip(1)
+                    .map(String::trim)
+                    .filter(param -> param.startsWith("q="))
+                    .noneMatch(param -> isZero(param.substring(2)));
+        }
+        return false;
+    }
+
+    private static boolean isZero(String quality) {
+        try {
+            return Double.parseDouble(quality) == 0;
+        } catch (NumberFormatException e) {
+            return false;
+        }
     }
 }
@@ -1,7 +1,9 @@
 package gov.cms.dpc.web.resources.v1;
 
+import com.typesafe.config.Config;
 import gov.cms.dpc.common.interfaces.AttributionEngine;
 import gov.cms.dpc.common.models.JobModel;
+import gov.cms.dpc.common.models.ResourceType;
 import gov.cms.dpc.queue.JobQueue;
 import gov.cms.dpc.common.annotations.APIV1;
 import gov.cms.dpc.web.resources.AbstractGroupResource;
@@ -15,10 +17,16 @@ import org.slf4j.LoggerFactory;
 import javax.inject.Inject;
 import javax.ws.rs.*;
 import javax.ws.rs.core.Response;
+import java.math.BigInteger;
 import java.net.URI;
-import java.util.Optional;
-import java.util.Set;
-import java.util.UUID;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.stream.Collectors;
 
 
 public class GroupResource extends AbstractGroupResource {
@@ -28,12 +36,14 @@ public class GroupResource extends AbstractGroupResource {
     private final JobQueue queue;
     private final AttributionEngine client;
     private final String baseURL;
+    private final int beneficiariesPerShard;
 
     @Inject
-    public GroupResource(JobQueue queue, AttributionEngine client, @APIV1 String baseURL) {
+    public GroupResource(JobQueue queue, AttributionEngine client, @APIV1 String baseURL, Config config) {
         this.queue = queue;
         this.client = client;
         this.baseURL = baseURL;
+        this.beneficiariesPerShard = config.getInt("aggregation.sharding.beneficiariesPerShard");
     }
 
     /**
@@ -41,14 +51,18 @@ public class GroupResource extends AbstractGroupResource {
      * On success, returns a {@link org.eclipse.jetty.http.HttpStatus#NO_CONTENT_204} response along with a {@link org.hl7.fhir.r4.model.OperationOutcome} result.
      * The `Content-Location` header contains the URI to call when
      *
-     * @param providerID {@link String} ID of provider to retrieve data for
+     * @param providerID    {@link String} ID of provider to retrieve data for
+     * @param resourceTypes {@link String} comma separated list of resource types to export, optional, defaults to every supported type
+     * @param since         {@link String} FHIR instant, only resources updated at or after it are exported, optional
      * @return - {@link org.hl7.fhir.r4.model.OperationOutcome} specifying whether or not the request was successful.
      */
     @Override
     @Path("/{providerID}/$export")
     @GET // Need this here, since we're using a path param
-    public Response export(@PathParam("providerID") String providerID) {
+    public Response export(@PathParam("providerID") String providerID, @QueryParam("_type") String resourceTypes, @QueryParam("_since") String since) {
         logger.debug("Exporting data for provider: {}", providerID);
+        final List<ResourceType> types = parseResourceTypes(resourceTypes);
+        final OffsetDateTime sinceTime = parseSince(since);
 
         // Get a list of attributed beneficiaries
         final Optional<Set<String>> attributedBeneficiaries = this.client.getAttributedBeneficiaries(providerID);
@@ -57,15 +71,84 @@ public class GroupResource extends AbstractGroupResource {
             throw new WebApplicationException(String.format("Unable to get attributed patients for provider: {}", providerID), Response.Status.NOT_FOUND);
         }
 
-        // Generate a job ID and submit it to the queue
-        final UUID jobID = UUID.randomUUID();
-
-        this.queue.submitJob(jobID, new JobModel(providerID, attributedBeneficiaries.get()));
+        // Generate a job ID and submit it to the queue, repeated requests for the same roster are attached to the existing job
+        // Large rosters are split into shards, which can be exported in parallel by different workers
+        final UUID jobID = this.queue.submitCoalescedJob(UUID.randomUUID(),
+                new JobModel(providerID, attributedBeneficiaries.get(), types, sinceTime, OffsetDateTime.now(ZoneOffset.UTC)).shard(this.beneficiariesPerShard),
+                coalesceKey(providerID, attributedBeneficiaries.get(), types, sinceTime));
 
         return Response.status(Response.Status.NO_CONTENT)
                 .contentLocation(URI.create(this.baseURL + "/Jobs/" + jobID)).build();
     }
 
+    /**
+     * Parse the Bulk Data {@code _type} parameter
+     *
+     * @param resourceTypes - {@link String} comma separated list of FHIR resource types, e.g. Patient,Coverage
+     * @return - {@link List} of {@link ResourceType}s, without duplicates, every supported type if no parameter was given
+     */
+    private static List<ResourceType> parseResourceTypes(String resourceTypes) {
+        if (resourceTypes == null || resourceTypes.isBlank()) {
+            return List.of(ResourceType.values());
+        }
+        return Arrays.stream(resourceTypes.split(","))
+                .map(String::trim)
+                .map(type -> ResourceType.fromFhirName(type)
+                        .orElseThrow(() -> new WebApplicationException(String.format("Unsupported resource type: %s", type), Response.Status.BAD_REQUEST)))
+                .distinct()
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Parse the Bulk Data {@code _since} parameter
+     *
+     * @param since - {@link String} FHIR instant, e.g. 2019-01-01T00:00:00Z
+     * @return - {@link OffsetDateTime}, {@code null} if no parameter was given
+     */
+    private static OffsetDateTime parseSince(String since) {
+        if (since == null) {
+            return null;
+        }
+        try {
+            return OffsetDateTime.parse(since);
+        } catch (DateTimeParseException e) {
+            throw new WebApplicationException(String.format("_since must be a FHIR instant, e.g. 2019-01-01T00:00:00Z, not %s", since), Response.Status.BAD_REQUEST);
+        }
+    }
+
+    /**
+     * Build a key which identifies exports for the same provider, roster, resource types and {@code _since}, regardless of beneficiary and resource type order
+     *
+     * @param providerID    - {@link String} provider ID
+     * @param beneficiaries - {@link Set} of attributed beneficiary IDs
+     * @param resourceTypes - {@link List} of {@link ResourceType}s to export
+     * @param since         - {@link OffsetDateTime} {@code _since} parameter, {@code null} if there wasn't one
+     * @return - {@link String} hex encoded SHA-256 digest
+     */
+    private static String coalesceKey(String providerID, Set<String> beneficiaries, List<ResourceType> resourceTypes, OffsetDateTime since) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not supported", e);
+        }
+        digest.update(providerID.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) '\n');
+        digest.update(("_type=" + resourceTypes.stream().map(ResourceType::getFhirName).sorted().collect(Collectors.joining(","))).getBytes(StandardCharsets.UTF_8));
+        if (since != null) {
+            digest.update((byte) '\n');
+            digest.update(("_since=" + since.toInstant()).getBytes(StandardCharsets.UTF_8));
+        }
+        beneficiaries
+                .stream()
+                .sorted()
+                .forEach(beneficiary -> {
+                    digest.update((byte) '\n');
+                    digest.update(beneficiary.getBytes(StandardCharsets.UTF_8));
+                });
+        return String.format("%064x", new BigInteger(1, digest.digest()));
+    }
+
     /**
      * Test method for verifying FHIR deserialization, it will eventually be removed.
      * TODO(nickrobison): Remove this
@@ -1,5 +1,9 @@
 package gov.cms.dpc.web.resources.v1;
 
+import gov.cms.dpc.common.models.JobModel;
+import gov.cms.dpc.common.models.ResourceType;
+import gov.cms.dpc.queue.JobOutput;
+import gov.cms.dpc.queue.JobProgress;
 import gov.cms.dpc.queue.JobQueue;
 import gov.cms.dpc.queue.JobStatus;
 import gov.cms.dpc.common.annotations.APIV1;
@@ -11,15 +15,24 @@ import javax.inject.Inject;
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.Response;
+import java.time.Duration;
 import java.time.Instant;
+import java.time.OffsetDateTime;
 import java.time.ZoneOffset;
-import java.util.Collections;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.stream.Collectors;
 
 public class JobResource extends AbstractJobResource {
 
+    // Bounds on the polling interval we suggest to clients
+    private static final Duration MIN_RETRY_AFTER = Duration.ofSeconds(1);
+    private static final Duration MAX_RETRY_AFTER = Duration.ofSeconds(60);
+
     private final JobQueue queue;
     private final String baseURL;
 
@@ -43,13 +56,42 @@ public class JobResource extends AbstractJobResource {
 
         switch (jobStatus.get()) {
             case RUNNING: {
-                builder = builder.status(HttpStatus.ACCEPTED_202).header("X-Progress", jobStatus.get());
+                builder = builder.status(HttpStatus.ACCEPTED_202);
+                final Optional<JobProgress> progress = this.queue.getJobProgress(UUID.fromString(jobID));
+                if (progress.isPresent()) {
+                    builder = builder
+                            .header("X-Progress", formatProgress(progress.get()))
+                            .header(HttpHeaders.RETRY_AFTER, retryAfter(progress.get()));
+                } else {
+                    builder = builder.header("X-Progress", jobStatus.get());
+                }
                 break;
             }
             case COMPLETED: {
+                // The files are listed from what the workers reported to the queue, since they may have been written on any node.
+                // Each shard of a sharded job has its own output files, one series of parts for each resource type.
+                final Optional<JobModel> job = this.queue.getJobData(UUID.fromString(jobID));
+                final List<ResourceType> resourceTypes = job.map(JobModel::getResourceTypes).orElse(List.of(ResourceType.values()));
+                final List<JobOutput> files = this.queue.getJobOutput(UUID.fromString(jobID));
+                final List<JobCompletionModel.OutputEntry> output = resourceTypes
+                        .stream()
+                        .flatMap(resourceType -> files
+                                .stream()
+                                .filter(file -> file.getResourceType().equals(resourceType.getFhirName())))
+                        .map(this::outputEntry)
+                        .collect(Collectors.toList());
+                // Beneficiaries which couldn't be exported are reported in error files, which are only written if something failed
+                final List<JobCompletionModel.OutputEntry> errors = files
+                        .stream()
+                        .filter(file -> file.getResourceType().equals(JobModel.ERROR_RESOURCE_TYPE))
+                        .map(this::outputEntry)
+                        .collect(Collectors.toList());
+                // Clients pass the transaction time as the _since of their next export, so it has to be when the export was requested, rather than now
+                final OffsetDateTime transactionTime = job
+                        .map(JobModel::getTransactionTime)
+                        .orElse(Instant.now().atOffset(ZoneOffset.UTC));
                 final JobCompletionModel completionModel = new JobCompletionModel(
-                        Instant.now().atOffset(ZoneOffset.UTC), String.format("%s/Job/%s", baseURL, jobID),
-                        Collections.singletonList(String.format("%s/Data/%s", this.baseURL, jobID)));
+                        transactionTime, String.format("%s/Job/%s", baseURL, jobID), output, errors);
                 builder = builder.status(HttpStatus.OK_200).entity(completionModel);
                 break;
             }
@@ -64,4 +106,24 @@ public class JobResource extends AbstractJobResource {
 
         return builder.build();
     }
+
+    private JobCompletionModel.OutputEntry outputEntry(JobOutput file) {
+        return new JobCompletionModel.OutputEntry(file.getResourceType(), String.format("%s/Data/%s", this.baseURL, file.getFileName()), file.getCount());
+    }
+
+    private static String formatProgress(JobProgress progress) {
+        return progress.getEstimatedCompletion()
+                .map(eta -> String.format("%d%% complete, estimated completion at %s", progress.getPercentComplete(), eta.truncatedTo(ChronoUnit.SECONDS)))
+                .orElse(String.format("%d%% complete", progress.getPercentComplete()));
+    }
+
+    /**
+     * Suggest how long the client should wait before polling again, based on how much longer we expect the job to take
+     */
+    private static long retryAfter(JobProgress progress) {
+        final long remaining = progress.getEstimatedCompletion()
+                .map(eta -> Duration.between(Instant.now(), eta).getSeconds())
+                .orElse(MIN_RETRY_AFTER.getSeconds());
+        return Math.max(MIN_RETRY_AFTER.getSeconds(), Math.min(MAX_RETRY_AFTER.getSeconds(), remaining));
+    }
 }
@@ -1,27 +1,44 @@
 package gov.cms.dpc.web;
 
+import com.typesafe.config.ConfigFactory;
+import gov.cms.dpc.common.models.ExportCompression;
 import gov.cms.dpc.common.models.JobModel;
+import gov.cms.dpc.common.models.ResourceType;
+import gov.cms.dpc.queue.ClaimedJob;
+import gov.cms.dpc.queue.JobOutput;
 import gov.cms.dpc.queue.JobQueue;
 import gov.cms.dpc.queue.JobStatus;
 import gov.cms.dpc.queue.MemoryQueue;
 import gov.cms.dpc.web.client.AttributionServiceClient;
+import gov.cms.dpc.web.models.JobCompletionModel;
+import gov.cms.dpc.web.resources.v1.DataResource;
 import gov.cms.dpc.web.resources.v1.GroupResource;
 import gov.cms.dpc.web.resources.v1.JobResource;
 import io.dropwizard.testing.junit5.DropwizardExtensionsSupport;
 import io.dropwizard.testing.junit5.ResourceExtension;
 import org.eclipse.jetty.http.HttpStatus;
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.Mockito;
 
 import javax.ws.rs.client.WebTarget;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
-import java.util.Arrays;
-import java.util.HashSet;
-import java.util.Optional;
-import java.util.UUID;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.OffsetDateTime;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import static gov.cms.dpc.fhir.FHIRMediaTypes.FHIR_JSON;
 import static gov.cms.dpc.fhir.FHIRMediaTypes.FHIR_NDJSON;
@@ -36,8 +53,10 @@ public class FHIRSubmissionTest {
     public static final String TEST_BASE_URL = "http://localhost:3002/v1";
     private final JobQueue queue = spy(MemoryQueue.class);
     private final AttributionServiceClient client = mock(AttributionServiceClient.class);
-    private ResourceExtension groupResource = ResourceExtension.builder().addResource(new GroupResource(queue, client, TEST_BASE_URL)).build();
+    private final Path exportPath = createExportPath();
+    private ResourceExtension groupResource = ResourceExtension.builder().addResource(new GroupResource(queue, client, TEST_BASE_URL, ConfigFactory.load())).build();
     private ResourceExtension jobResource = ResourceExtension.builder().addResource(new JobResource(queue, TEST_BASE_URL)).build();
+    private ResourceExtension dataResource = ResourceExtension.builder().addResource(new DataResource(queue, exportPath.toString())).build();
 
 
     // Test data
@@ -62,6 +81,13 @@ public class FHIRSubmissionTest {
                 .when(queue).submitJob(Mockito.any(UUID.class), Mockito.any(JobModel.class));
     }
 
+    @AfterEach
+    public void cleanup() throws IOException {
+        try (Stream<Path> files = Files.walk(exportPath)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
     @Test
     public void testDataRequest() {
 
@@ -86,6 +112,12 @@ public class FHIRSubmissionTest {
         jobResp = jobTarget.request().accept(MediaType.APPLICATION_JSON).get();
         assertEquals(HttpStatus.OK_200, jobResp.getStatus(), "Job should be done");
 
+        // Exporting the same roster again should attach to the completed job
+        final Response repeated = groupResource.client().target("/Group/1/$export").request().get();
+        assertAll(() -> assertEquals(HttpStatus.NO_CONTENT_204, repeated.getStatus(), "Should have 204 status"),
+                () -> assertEquals(response.getHeaderString("Content-Location"), repeated.getHeaderString("Content-Location"), "Should have the same job"),
+                () -> assertEquals(1, queue.queueSize(), "Should not submit another job"));
+
 
 //        final IGenericClient client = ctx.newRestfulGenericClient();
 
@@ -103,4 +135,118 @@ public class FHIRSubmissionTest {
 //
 //        assertEquals(1, responseBundle.getTotal(), "Should only have 1 groupResource");
     }
+
+    @Test
+    public void testIncrementalDataRequest() {
+        // Drop the submission check, which expects a full export
+        reset(queue);
+
+        final Response invalid = groupResource.client().target("/Group/1/$export").queryParam("_since", "yesterday").request().get();
+        assertEquals(HttpStatus.BAD_REQUEST_400, invalid.getStatus(), "Should reject invalid _since");
+
+        final Response full = groupResource.client().target("/Group/1/$export").request().get();
+        final Response response = groupResource.client().target("/Group/1/$export").queryParam("_since", "2019-01-01T00:00:00Z").request().get();
+        assertAll(() -> assertEquals(HttpStatus.NO_CONTENT_204, response.getStatus(), "Should have 204 status"),
+                () -> assertNotEquals(full.getHeaderString("Content-Location"), response.getHeaderString("Content-Location"), "Should not attach to full export"));
+
+        final String jobURL = response.getHeaderString("Content-Location").replace(TEST_BASE_URL, "");
+        final UUID jobID = UUID.fromString(jobURL.replace("/Jobs/", ""));
+        final JobModel job = queue.<JobModel>getJobData(jobID).orElseThrow();
+        assertEquals(OffsetDateTime.parse("2019-01-01T00:00:00Z"), job.getSince().orElseThrow(), "Should carry _since in job");
+
+        queue.completeJob(jobID, JobStatus.COMPLETED);
+        final JobCompletionModel completion = jobResource.client().target(jobURL).request().accept(MediaType.APPLICATION_JSON).get(JobCompletionModel.class);
+        assertEquals(job.getTransactionTime().toInstant(), completion.getTransactionTime().toInstant(), "Should report when the export was requested");
+    }
+
+    @Test
+    public void testResourceTypeDataRequest() throws IOException {
+        // Drop the submission check, which expects every resource type
+        reset(queue);
+
+        final Response invalid = groupResource.client().target("/Group/1/$export").queryParam("_type", "Patient,Claim").request().get();
+        assertEquals(HttpStatus.BAD_REQUEST_400, invalid.getStatus(), "Should reject unsupported resource type");
+
+        final Response full = groupResource.client().target("/Group/1/$export").request().get();
+        final Response response = groupResource.client().target("/Group/1/$export").queryParam("_type", "Coverage,Patient").request().get();
+        assertAll(() -> assertEquals(HttpStatus.NO_CONTENT_204, response.getStatus(), "Should have 204 status"),
+                () -> assertNotEquals(full.getHeaderString("Content-Location"), response.getHeaderString("Content-Location"), "Should not attach to export of every type"));
+
+        final String jobURL = response.getHeaderString("Content-Location").replace(TEST_BASE_URL, "");
+        final UUID jobID = UUID.fromString(jobURL.replace("/Jobs/", ""));
+        assertEquals(List.of(ResourceType.COVERAGE, ResourceType.PATIENT), queue.<JobModel>getJobData(jobID).orElseThrow().getResourceTypes(), "Should carry _type in job");
+
+        // The worker reports the files it wrote, which don't have to be on this node's disk, in whatever order it wrote them.
+        // Coverage has been split into two parts.
+        final ClaimedJob<Object> claimed = claim(jobID);
+        queue.completeJob(jobID, claimed.getAttempt(), JobStatus.COMPLETED, List.of(
+                new JobOutput("Patient", JobModel.outputFileName(jobID, ResourceType.PATIENT, 0), ExportCompression.NONE, 4),
+                new JobOutput("Coverage", JobModel.outputFileName(jobID, ResourceType.COVERAGE, 0), ExportCompression.GZIP, 5),
+                new JobOutput("Coverage", JobModel.outputFileName(jobID, ResourceType.COVERAGE, 1), ExportCompression.GZIP, 2),
+                new JobOutput("OperationOutcome", JobModel.errorFileName(jobID, 0), ExportCompression.GZIP, 1)));
+        final JobCompletionModel completion = jobResource.client().target(jobURL).request().accept(MediaType.APPLICATION_JSON).get(JobCompletionModel.class);
+        assertAll(() -> assertEquals(List.of("Coverage", "Coverage", "Patient"), completion.getOutput().stream().map(JobCompletionModel.OutputEntry::getType).collect(Collectors.toList()), "Should have an output file for each part of each type, in the requested order"),
+                () -> assertEquals(String.format("%s/Data/%s.Coverage.0", TEST_BASE_URL, jobID), completion.getOutput().get(0).getUrl(), "Should link to the first part"),
+                () -> assertEquals(String.format("%s/Data/%s.Coverage.1", TEST_BASE_URL, jobID), completion.getOutput().get(1).getUrl(), "Should link to the second part"),
+                () -> assertEquals(List.of(5L, 2L, 4L), completion.getOutput().stream().map(JobCompletionModel.OutputEntry::getCount).collect(Collectors.toList()), "Should report the resources in each part"),
+                () -> assertEquals(List.of("OperationOutcome"), completion.getError().stream().map(JobCompletionModel.OutputEntry::getType).collect(Collectors.toList()), "Should list error file"),
+                () -> assertEquals(String.format("%s/Data/%s.OperationOutcome.0", TEST_BASE_URL, jobID), completion.getError().get(0).getUrl(), "Should link to the error file"));
+    }
+
+    @Test
+    public void testCompressedDownload() throws IOException {
+        final String ndjson = "{\"resourceType\":\"Patient\",\"id\":\"1\"}\n";
+        final UUID jobID = UUID.randomUUID();
+        final String plainFile = JobModel.outputFileName(jobID, ResourceType.PATIENT, 0);
+        final String compressedFile = JobModel.outputFileName(jobID, ResourceType.PATIENT, 1);
+        final String expiredFile = JobModel.outputFileName(jobID, ResourceType.PATIENT, 2);
+        final String unlistedFile = JobModel.outputFileName(jobID, ResourceType.COVERAGE, 0);
+        Files.writeString(exportPath.resolve(plainFile + ExportCompression.NONE.getExtension()), ndjson);
+        try (OutputStream compressed = new GZIPOutputStream(Files.newOutputStream(exportPath.resolve(compressedFile + ExportCompression.GZIP.getExtension())))) {
+            compressed.write(ndjson.getBytes(StandardCharsets.UTF_8));
+        }
+        Files.writeString(exportPath.resolve(unlistedFile + ExportCompression.NONE.getExtension()), ndjson);
+        queue.submitJob(jobID, testJobModel);
+        final ClaimedJob<Object> claimed = claim(jobID);
+        queue.completeJob(jobID, claimed.getAttempt(), JobStatus.COMPLETED, List.of(
+                new JobOutput("Patient", plainFile, ExportCompression.NONE, 1),
+                new JobOutput("Patient", compressedFile, ExportCompression.GZIP, 1),
+                new JobOutput("Patient", expiredFile, ExportCompression.GZIP, 1)));
+
+        final Response plain = dataResource.client().target("/Data/" + plainFile).request(FHIR_NDJSON).header(HttpHeaders.ACCEPT_ENCODING, "gzip").get();
+        final Response gzipped = dataResource.client().target("/Data/" + compressedFile).request(FHIR_NDJSON).header(HttpHeaders.ACCEPT_ENCODING, "deflate, gzip;q=0.5").get();
+        final Response decompressed = dataResource.client().target("/Data/" + compressedFile).request(FHIR_NDJSON).header(HttpHeaders.ACCEPT_ENCODING, "gzip;q=0").get();
+        final Response missing = dataResource.client().target("/Data/" + UUID.randomUUID()).request(FHIR_NDJSON).get();
+        final Response expired = dataResource.client().target("/Data/" + expiredFile).request(FHIR_NDJSON).get();
+        final Response unlisted = dataResource.client().target("/Data/" + unlistedFile).request(FHIR_NDJSON).get();
+        assertAll(() -> assertEquals(HttpStatus.OK_200, plain.getStatus(), "Should find uncompressed file"),
+                () -> assertNull(plain.getHeaderString(HttpHeaders.CONTENT_ENCODING), "Should not mark uncompressed file as encoded"),
+                () -> assertEquals(ndjson, plain.readEntity(String.class), "Should send uncompressed file as is"),
+                () -> assertEquals("gzip", gzipped.getHeaderString(HttpHeaders.CONTENT_ENCODING), "Should send compressed file encoded"),
+                () -> assertEquals(ndjson, new String(new GZIPInputStream(gzipped.readEntity(InputStream.class)).readAllBytes(), StandardCharsets.UTF_8), "Should send compressed bytes as is"),
+                () -> assertNull(decompressed.getHeaderString(HttpHeaders.CONTENT_ENCODING), "Should not encode response for client which refuses gzip"),
+                () -> assertEquals(ndjson, decompressed.readEntity(String.class), "Should decompress file for client which refuses gzip"),
+                () -> assertEquals(HttpStatus.NOT_FOUND_404, missing.getStatus(), "Should not find missing file"),
+                () -> assertEquals(HttpStatus.NOT_FOUND_404, expired.getStatus(), "Should not find file which has been removed from disk"),
+                () -> assertEquals(HttpStatus.NOT_FOUND_404, unlisted.getStatus(), "Should not serve file which the job didn't report"));
+    }
+
+    /**
+     * Claim jobs until we get to the given one, as a worker would
+     */
+    private ClaimedJob<Object> claim(UUID jobID) {
+        ClaimedJob<Object> claimed;
+        do {
+            claimed = queue.workJob().orElseThrow(() -> new IllegalStateException("Should have job " + jobID));
+        } while (!claimed.getLeft().equals(jobID));
+        return claimed;
+    }
+
+    private static Path createExportPath() {
+        try {
+            return Files.createTempDirectory("dpc-exports");
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to create export directory", e);
+        }
+    }
 }